@@ -0,0 +1,142 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.benchmarks;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * A throw-away user profile in a temporary directory, used to run the
+ * services outside of OSGi. Its <tt>FileAccessService</tt> resolves the
+ * private persistent files and directories of every category in the profile
+ * directory, the other methods of the service are not supported.
+ */
+public class BenchmarkProfile
+{
+    /**
+     * The directory of the profile.
+     */
+    private final File directory;
+
+    /**
+     * The file access service of the profile.
+     */
+    private final FileAccessService fileAccessService;
+
+    /**
+     * Creates an empty profile in a new temporary directory.
+     *
+     * @throws IOException if the directory could not be created
+     */
+    public BenchmarkProfile()
+        throws IOException
+    {
+        directory = Files.createTempDirectory("jitsi-benchmark").toFile();
+        fileAccessService = (FileAccessService) Proxy.newProxyInstance(
+            FileAccessService.class.getClassLoader(),
+            new Class<?>[] { FileAccessService.class },
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("getPrivatePersistentFile"))
+                        return new File(directory, (String) args[0]);
+
+                    if (name.equals("getPrivatePersistentDirectory"))
+                    {
+                        File dir = new File(directory, (String) args[0]);
+                        dir.mkdirs();
+                        return dir;
+                    }
+
+                    if (name.equals("toString"))
+                        return "FileAccessService[" + directory + "]";
+                    if (name.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (name.equals("equals"))
+                        return proxy == args[0];
+
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+    }
+
+    /**
+     * Returns the directory of the profile.
+     *
+     * @return the directory of the profile
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns the file access service of the profile.
+     *
+     * @return the file access service of the profile
+     */
+    public FileAccessService getFileAccessService()
+    {
+        return fileAccessService;
+    }
+
+    /**
+     * Deletes the profile directory and everything in it.
+     */
+    public void delete()
+    {
+        delete(directory);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Returns <tt>count</tt> random indexes, used to pick the items
+     * looked up by a benchmark without measuring the random generator.
+     *
+     * @param count the number of indexes to return
+     * @param bound the upper bound (exclusive) of the indexes
+     * @param seed the seed of the random generator
+     * @return the indexes
+     */
+    public static int[] randomIndexes(int count, int bound, long seed)
+    {
+        Random random = new Random(seed);
+        int[] indexes = new int[count];
+        for (int i = 0; i < count; i++)
+            indexes[i] = random.nextInt(bound);
+        return indexes;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.benchmarks;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Stubs of the interfaces of the services, e.g. contacts and protocol
+ * providers, for the benchmarks run outside of OSGi. A stub answers its
+ * methods by name with fixed results. The methods returning an
+ * <tt>Iterator</tt> iterate over a fixed collection, the other methods are
+ * not supported.
+ */
+public class Stubs
+{
+    private Stubs()
+    {
+    }
+
+    /**
+     * Creates a stub.
+     *
+     * @param type the interface of the stub
+     * @param results the results of the methods, by method name
+     * @return the stub
+     */
+    public static <T> T create(Class<T> type, final Map<String, ?> results)
+    {
+        final String name = type.getSimpleName();
+
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    String methodName = method.getName();
+                    if (results.containsKey(methodName))
+                    {
+                        Object result = results.get(methodName);
+                        if (method.getReturnType() == Iterator.class)
+                            return ((Collection<?>) result).iterator();
+                        return result;
+                    }
+
+                    if (methodName.equals("toString"))
+                        return name + "@" + System.identityHashCode(proxy);
+                    if (methodName.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (methodName.equals("equals"))
+                        return proxy == args[0];
+
+                    throw new UnsupportedOperationException(
+                        name + "." + methodName);
+                }
+            }));
+    }
+}
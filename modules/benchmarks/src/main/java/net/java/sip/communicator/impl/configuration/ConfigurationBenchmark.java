@@ -0,0 +1,219 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the <tt>JdbcConfigService</tt> on a profile with a
+ * configurable number of properties, grouped by account the way the
+ * protocol providers store them.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar ConfigurationBenchmark
+ * -p properties=100000</tt>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConfigurationBenchmark
+{
+    /**
+     * The prefix of the account property names.
+     */
+    private static final String ACCOUNT_PREFIX
+        = "net.java.sip.communicator.impl.protocol.jabber.acc";
+
+    /**
+     * The number of properties of an account.
+     */
+    private static final int PROPERTIES_PER_ACCOUNT = 50;
+
+    /**
+     * The number of precomputed lookups, a power of two.
+     */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * A profile whose properties were stored and loaded again by a new
+     * service, as on startup.
+     */
+    @State(Scope.Benchmark)
+    public static class LoadedProfile
+    {
+        /**
+         * The number of properties of the profile.
+         */
+        @Param({"1000", "10000", "100000"})
+        public int properties;
+
+        private BenchmarkProfile profile;
+
+        private JdbcConfigService service;
+
+        private String[] names;
+
+        private int[] lookups;
+
+        @Setup(Level.Trial)
+        public void setUp()
+            throws Exception
+        {
+            profile = new BenchmarkProfile();
+            names = storeProperties(profile, properties);
+            service = new JdbcConfigService(profile.getFileAccessService());
+            lookups = BenchmarkProfile.randomIndexes(
+                LOOKUPS, properties, properties);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+            throws Exception
+        {
+            service.storeConfiguration();
+            profile.delete();
+        }
+
+        private String name(int lookup)
+        {
+            return names[lookups[lookup]];
+        }
+
+        private String account(int lookup)
+        {
+            return ACCOUNT_PREFIX
+                + (lookups[lookup] / PROPERTIES_PER_ACCOUNT);
+        }
+    }
+
+    /**
+     * A profile whose properties were stored, not opened by any service.
+     */
+    @State(Scope.Benchmark)
+    public static class StoredProfile
+    {
+        /**
+         * The number of properties of the profile.
+         */
+        @Param({"1000", "10000", "100000"})
+        public int properties;
+
+        private BenchmarkProfile profile;
+
+        @Setup(Level.Trial)
+        public void setUp()
+            throws Exception
+        {
+            profile = new BenchmarkProfile();
+            storeProperties(profile, properties);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            profile.delete();
+        }
+    }
+
+    /**
+     * The position of a benchmark thread in the precomputed lookups.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next = 0;
+
+        private int next()
+        {
+            return next++ & (LOOKUPS - 1);
+        }
+    }
+
+    /**
+     * Stores properties in a profile.
+     *
+     * @param profile the profile
+     * @param count the number of properties
+     * @return the names of the properties
+     * @throws Exception if the properties could not be stored
+     */
+    private static String[] storeProperties(BenchmarkProfile profile,
+        int count)
+        throws Exception
+    {
+        String[] names = new String[count];
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = ACCOUNT_PREFIX + (i / PROPERTIES_PER_ACCOUNT)
+                + ".PROPERTY_" + (i % PROPERTIES_PER_ACCOUNT);
+            properties.put(names[i], "value" + i);
+        }
+
+        JdbcConfigService service
+            = new JdbcConfigService(profile.getFileAccessService());
+        service.setProperties(properties);
+        service.storeConfiguration();
+        return names;
+    }
+
+    @Benchmark
+    public Object getProperty(LoadedProfile profile, Cursor cursor)
+    {
+        return profile.service.getProperty(profile.name(cursor.next()));
+    }
+
+    @Benchmark
+    public List<String> getPropertyNamesByPrefix(LoadedProfile profile,
+        Cursor cursor)
+    {
+        return profile.service.getPropertyNamesByPrefix(
+            profile.account(cursor.next()) + ".", false);
+    }
+
+    @Benchmark
+    public List<String> getPropertyNamesByExactPrefix(LoadedProfile profile,
+        Cursor cursor)
+    {
+        return profile.service.getPropertyNamesByPrefix(
+            profile.account(cursor.next()), true);
+    }
+
+    /**
+     * Opens the stored profile, as on startup, and closes it again.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public JdbcConfigService load(StoredProfile profile)
+        throws Exception
+    {
+        JdbcConfigService service
+            = new JdbcConfigService(profile.profile.getFileAccessService());
+        service.storeConfiguration();
+        return service;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+import net.java.sip.communicator.service.contactlist.*;
+
+import org.jitsi.service.resources.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the ordered child contacts of a <tt>MetaContactGroupImpl</tt>
+ * with <tt>contacts</tt> meta contacts: the positional accesses of the user
+ * interface, the moves of a contact whose order changes, and the loading of
+ * the whole group.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar MetaContactGroupBenchmark
+ * -p contacts=10000</tt>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class MetaContactGroupBenchmark
+{
+    /**
+     * The number of precomputed lookups, a power of two.
+     */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * The number of meta contacts of the group.
+     */
+    @Param({"1000", "10000"})
+    public int contacts;
+
+    private MetaContactListServiceImpl service;
+
+    private MetaContactGroupImpl group;
+
+    private MetaContactImpl[] metaContacts;
+
+    private MetaContactImpl[] lookupContacts;
+
+    private int[] lookupIndexes;
+
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Map<String, Object> resourcesResults = new HashMap<String, Object>();
+        resourcesResults.put("getI18NString", "Contacts");
+        service = new MetaContactListServiceImpl(
+            Stubs.create(ResourceManagementService.class, resourcesResults));
+
+        metaContacts = new MetaContactImpl[contacts];
+        for (int i = 0; i < contacts; i++)
+        {
+            metaContacts[i] = new MetaContactImpl(
+                "contact" + i, new HashMap<String, List<String>>());
+            metaContacts[i].setDisplayName("Contact " + i);
+        }
+        group = loadGroup();
+
+        lookupIndexes = BenchmarkProfile.randomIndexes(
+            LOOKUPS, contacts, contacts);
+        lookupContacts = new MetaContactImpl[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++)
+            lookupContacts[i] = metaContacts[lookupIndexes[i]];
+    }
+
+    private int next()
+    {
+        return next++ & (LOOKUPS - 1);
+    }
+
+    private MetaContactGroupImpl loadGroup()
+    {
+        MetaContactGroupImpl group
+            = new MetaContactGroupImpl(service, "Group", "group");
+        for (MetaContactImpl metaContact : metaContacts)
+            group.addMetaContact(metaContact);
+        return group;
+    }
+
+    @Benchmark
+    public MetaContact getMetaContact()
+    {
+        return group.getMetaContact(lookupIndexes[next()]);
+    }
+
+    @Benchmark
+    public int indexOf()
+    {
+        return group.indexOf(lookupContacts[next()]);
+    }
+
+    /**
+     * Renames a contact, which moves it to its new position, as a change of
+     * presence does.
+     */
+    @Benchmark
+    public void reorder()
+    {
+        int lookup = next();
+        MetaContactImpl metaContact = lookupContacts[lookup];
+        metaContact.setDisplayName(
+            metaContact.getDisplayName().startsWith("Contact")
+                ? "Renamed " + lookup
+                : "Contact " + lookup);
+    }
+
+    /**
+     * Adds all the contacts to a new group, as done when the list is loaded.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20)
+    public MetaContactGroupImpl load()
+    {
+        MetaContactGroupImpl loaded = loadGroup();
+
+        // back to the group of the other benchmarks
+        for (MetaContactImpl metaContact : metaContacts)
+            metaContact.setParentGroup(group);
+        return loaded;
+    }
+}
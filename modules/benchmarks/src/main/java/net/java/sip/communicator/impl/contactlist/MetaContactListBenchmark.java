@@ -0,0 +1,261 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.jitsi.service.resources.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the lookups of the <tt>MetaContactListServiceImpl</tt>, with
+ * its indexes, against the walks of the tree of groups which they replace.
+ * The list is a synthetic tree of <tt>contacts</tt> meta contacts with one
+ * protocol contact each, spread over two accounts and <tt>groups</tt>
+ * groups of two levels.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar MetaContactListBenchmark
+ * -p contacts=10000</tt>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class MetaContactListBenchmark
+{
+    /**
+     * The number of precomputed lookups, a power of two.
+     */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * The number of accounts the contacts are spread over.
+     */
+    private static final int ACCOUNTS = 2;
+
+    /**
+     * The number of meta contacts of the list.
+     */
+    @Param({"1000", "10000"})
+    public int contacts;
+
+    /**
+     * The number of groups of the list, half of them subgroups of the other
+     * half.
+     */
+    @Param({"100"})
+    public int groups;
+
+    private MetaContactListServiceImpl service;
+
+    private Contact[] lookupContacts;
+
+    private String[] lookupAccounts;
+
+    private String[] lookupMetaUIDs;
+
+    private String[] lookupGroupUIDs;
+
+    /**
+     * Contacts which are not in the list, e.g. the authors of messages from
+     * strangers.
+     */
+    private Contact[] unknownContacts;
+
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Map<String, Object> resourcesResults = new HashMap<String, Object>();
+        resourcesResults.put("getI18NString", "Contacts");
+        service = new MetaContactListServiceImpl(
+            Stubs.create(ResourceManagementService.class, resourcesResults));
+
+        ProtocolProviderService[] providers
+            = new ProtocolProviderService[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++)
+            providers[i] = createProvider("user" + i);
+
+        PresenceStatus offline = new PresenceStatus(0, "Offline")
+        {
+        };
+
+        // the first half of the groups at the root, the other half inside
+        MetaContactGroupImpl[] metaGroups = new MetaContactGroupImpl[groups];
+        for (int i = 0; i < groups; i++)
+        {
+            metaGroups[i] = new MetaContactGroupImpl(
+                service, "Group " + i, "group" + i);
+            MetaContactGroupImpl parent = (i < groups / 2)
+                ? service.rootMetaGroup
+                : metaGroups[i - groups / 2];
+            parent.addSubgroup(metaGroups[i]);
+        }
+
+        Contact[] protoContacts = new Contact[contacts];
+        for (int i = 0; i < contacts; i++)
+        {
+            MetaContactImpl metaContact = new MetaContactImpl(
+                "contact" + i, new HashMap<String, List<String>>());
+            protoContacts[i] = createContact(
+                "contact" + i + "@example.org", providers[i % ACCOUNTS],
+                offline);
+            metaContact.addProtoContact(protoContacts[i]);
+            metaGroups[i % groups].addMetaContact(metaContact);
+        }
+
+        int[] indexes = BenchmarkProfile.randomIndexes(
+            LOOKUPS, contacts, contacts);
+        lookupContacts = new Contact[LOOKUPS];
+        lookupAccounts = new String[LOOKUPS];
+        lookupMetaUIDs = new String[LOOKUPS];
+        lookupGroupUIDs = new String[LOOKUPS];
+        unknownContacts = new Contact[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++)
+        {
+            Contact contact = protoContacts[indexes[i]];
+            lookupContacts[i] = contact;
+            lookupAccounts[i] = contact.getProtocolProvider().getAccountID()
+                .getAccountUniqueID();
+            lookupMetaUIDs[i] = "contact" + indexes[i];
+            lookupGroupUIDs[i] = "group" + (indexes[i] % groups);
+            unknownContacts[i] = createContact(
+                "stranger" + i + "@example.org", providers[i % ACCOUNTS],
+                offline);
+        }
+
+        if (!service.index.check(service.rootMetaGroup))
+            throw new IllegalStateException("Inconsistent index");
+    }
+
+    private int next()
+    {
+        return next++ & (LOOKUPS - 1);
+    }
+
+    @Benchmark
+    public MetaContact findMetaContactByContact()
+    {
+        return service.findMetaContactByContact(lookupContacts[next()]);
+    }
+
+    @Benchmark
+    public MetaContact findMetaContactByContactInTree()
+    {
+        return service.rootMetaGroup.findMetaContactByContact(
+            lookupContacts[next()]);
+    }
+
+    @Benchmark
+    public MetaContact findUnknownContact()
+    {
+        return service.findMetaContactByContact(unknownContacts[next()]);
+    }
+
+    @Benchmark
+    public MetaContact findUnknownContactInTree()
+    {
+        return service.rootMetaGroup.findMetaContactByContact(
+            unknownContacts[next()]);
+    }
+
+    @Benchmark
+    public MetaContact findMetaContactByAddress()
+    {
+        int lookup = next();
+        return service.findMetaContactByContact(
+            lookupContacts[lookup].getAddress(), lookupAccounts[lookup]);
+    }
+
+    @Benchmark
+    public MetaContact findMetaContactByAddressInTree()
+    {
+        int lookup = next();
+        return service.rootMetaGroup.findMetaContactByContact(
+            lookupContacts[lookup].getAddress(), lookupAccounts[lookup]);
+    }
+
+    @Benchmark
+    public MetaContact findMetaContactByMetaUID()
+    {
+        return service.findMetaContactByMetaUID(lookupMetaUIDs[next()]);
+    }
+
+    @Benchmark
+    public MetaContact findMetaContactByMetaUIDInTree()
+    {
+        return service.rootMetaGroup.findMetaContactByMetaUID(
+            lookupMetaUIDs[next()]);
+    }
+
+    @Benchmark
+    public MetaContactGroup findMetaContactGroupByMetaUID()
+    {
+        return service.findMetaContactGroupByMetaUID(lookupGroupUIDs[next()]);
+    }
+
+    @Benchmark
+    public MetaContactGroup findMetaContactGroupByMetaUIDInTree()
+    {
+        return service.rootMetaGroup.findMetaContactGroupByMetaUID(
+            lookupGroupUIDs[next()]);
+    }
+
+    /**
+     * Walks the whole list to check the indexes, as done when an account is
+     * added or removed.
+     */
+    @Benchmark
+    public boolean checkIndex()
+    {
+        return service.index.check(service.rootMetaGroup);
+    }
+
+    private static ProtocolProviderService createProvider(String user)
+    {
+        AccountID accountID = new AccountID(
+            user, new HashMap<String, String>(), "Jabber", "example.org")
+        {
+        };
+
+        Map<String, Object> results = new HashMap<String, Object>();
+        results.put("getAccountID", accountID);
+        results.put("getOperationSet", null);
+        return Stubs.create(ProtocolProviderService.class, results);
+    }
+
+    private static Contact createContact(String address,
+                                         ProtocolProviderService provider,
+                                         PresenceStatus status)
+    {
+        Map<String, Object> results = new HashMap<String, Object>();
+        results.put("getAddress", address);
+        results.put("getDisplayName", address);
+        results.put("getProtocolProvider", provider);
+        results.put("getPresenceStatus", status);
+        return Stubs.create(Contact.class, results);
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+import net.java.sip.communicator.impl.configuration.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the <tt>HistoryServiceImpl</tt> on a profile with a
+ * configurable number of histories and records per history, shaped like
+ * the message history. The keyword index, the timestamp index and the
+ * write-behind mode of the XML histories can be turned off to compare with
+ * the plain XML reads and writes. They have no effect on the segment log
+ * engine.
+ * <p>
+ * The full parameter matrix takes hours, run a slice of it with e.g.
+ * <tt>java -jar benchmarks.jar HistoryBenchmark.findByKeyword
+ * -p records=50000 -p storageEngine=xml -p keywordIndex=true,false</tt>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HistoryBenchmark
+{
+    /**
+     * The structure of the records.
+     */
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(
+            new String[] { "dir", "msg", "uid", "receivedTimestamp" });
+
+    /**
+     * The words the messages are made of.
+     */
+    private static final String[] WORDS
+        = {
+            "hello", "call", "meeting", "tomorrow", "please", "thanks",
+            "send", "file", "later", "today", "review", "conference"
+        };
+
+    /**
+     * The keyword searched for, in one message out of
+     * {@link #KEYWORD_INTERVAL}.
+     */
+    private static final String KEYWORD = "benchmark";
+
+    private static final int KEYWORD_INTERVAL = 100;
+
+    /**
+     * The number of records returned by <tt>findLast</tt>.
+     */
+    private static final int LAST_COUNT = 20;
+
+    /**
+     * The number of records read by <tt>findByPeriod</tt>, a day of
+     * messages.
+     */
+    private static final int PERIOD_RECORDS = 24 * 60;
+
+    /**
+     * The number of messages written by an invocation of
+     * <tt>addRecords</tt>.
+     */
+    private static final int BATCH = 100;
+
+    /**
+     * The number of precomputed lookups, a power of two.
+     */
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * The time of the first record and the time between records.
+     */
+    private static final long START_TIME = 1500000000000L;
+
+    private static final long RECORD_INTERVAL = 60000L;
+
+    /**
+     * A profile whose histories were written and loaded again by a new
+     * service, as on startup.
+     */
+    @State(Scope.Benchmark)
+    public static class LoadedProfile
+    {
+        /**
+         * The number of histories of the profile.
+         */
+        @Param({"10"})
+        public int histories;
+
+        /**
+         * The number of records of each history, up to a few years of a
+         * busy conversation.
+         */
+        @Param({"1000", "10000", "50000"})
+        public int records;
+
+        /**
+         * The storage engine of the histories.
+         */
+        @Param({
+            HistoryService.STORAGE_ENGINE_XML,
+            HistoryService.STORAGE_ENGINE_SEGMENT_LOG
+        })
+        public String storageEngine;
+
+        /**
+         * Whether keyword searches use the keyword index.
+         */
+        @Param({"true", "false"})
+        public boolean keywordIndex;
+
+        /**
+         * Whether the record timestamps are kept in the timestamp index.
+         */
+        @Param({"true", "false"})
+        public boolean timestampIndex;
+
+        /**
+         * Whether added records are written in batches.
+         */
+        @Param({"false", "true"})
+        public boolean writeBehind;
+
+        private BenchmarkProfile profile;
+
+        private JdbcConfigService configService;
+
+        private HistoryServiceImpl historyService;
+
+        private History[] loaded;
+
+        private int[] lookups;
+
+        /**
+         * The history the benchmarks add records to.
+         */
+        private History scratch;
+
+        private long scratchTime = START_TIME;
+
+        @Setup(Level.Trial)
+        public void setUp()
+            throws Exception
+        {
+            profile = new BenchmarkProfile();
+            configService = openConfiguration(profile, storageEngine);
+            configService.setProperty(
+                HistoryService.KEYWORD_INDEX_ENABLED_PROPERTY,
+                Boolean.toString(keywordIndex));
+            configService.setProperty(
+                HistoryService.TIMESTAMP_INDEX_ENABLED_PROPERTY,
+                Boolean.toString(timestampIndex));
+            writeHistories(configService, profile, histories, records);
+            configService.setProperty(
+                HistoryService.WRITE_BEHIND_ENABLED_PROPERTY,
+                Boolean.toString(writeBehind));
+
+            historyService = new HistoryServiceImpl(
+                configService, profile.getFileAccessService());
+            historyService.getExistingIDs();
+            loaded = new History[histories];
+            for (int i = 0; i < histories; i++)
+                loaded[i] = historyService.getHistory(historyId(i));
+            lookups = BenchmarkProfile.randomIndexes(
+                LOOKUPS, histories, histories);
+
+            scratch = historyService.createHistory(
+                HistoryID.createFromRawID(new String[] { "scratch" }),
+                STRUCTURE);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+            throws Exception
+        {
+            historyService.stop();
+            configService.storeConfiguration();
+            profile.delete();
+        }
+
+        private HistoryReader reader(int lookup)
+        {
+            return loaded[lookups[lookup]].getReader();
+        }
+    }
+
+    /**
+     * A profile whose histories were written, not opened by any service.
+     */
+    @State(Scope.Benchmark)
+    public static class StoredProfile
+    {
+        /**
+         * The number of histories of the profile.
+         */
+        @Param({"10"})
+        public int histories;
+
+        /**
+         * The number of records of each history.
+         */
+        @Param({"1000", "10000", "50000"})
+        public int records;
+
+        /**
+         * The storage engine of the histories.
+         */
+        @Param({
+            HistoryService.STORAGE_ENGINE_XML,
+            HistoryService.STORAGE_ENGINE_SEGMENT_LOG
+        })
+        public String storageEngine;
+
+        private BenchmarkProfile profile;
+
+        private JdbcConfigService configService;
+
+        @Setup(Level.Trial)
+        public void setUp()
+            throws Exception
+        {
+            profile = new BenchmarkProfile();
+            configService = openConfiguration(profile, storageEngine);
+            writeHistories(configService, profile, histories, records);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+            throws Exception
+        {
+            configService.storeConfiguration();
+            profile.delete();
+        }
+    }
+
+    /**
+     * The position of a benchmark thread in the precomputed lookups.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next = 0;
+
+        private int next()
+        {
+            return next++ & (LOOKUPS - 1);
+        }
+    }
+
+    /**
+     * Opens the configuration of a profile, selecting a history storage
+     * engine.
+     *
+     * @param profile the profile
+     * @param storageEngine the history storage engine
+     * @return the configuration service
+     * @throws Exception if the configuration could not be opened
+     */
+    private static JdbcConfigService openConfiguration(
+        BenchmarkProfile profile,
+        String storageEngine)
+        throws Exception
+    {
+        JdbcConfigService configService
+            = new JdbcConfigService(profile.getFileAccessService());
+        configService.setProperty(
+            HistoryService.STORAGE_ENGINE_PROPERTY, storageEngine);
+        return configService;
+    }
+
+    /**
+     * Writes histories in a profile with a service of their own. The records
+     * are written in write-behind mode, one history file at a time, which
+     * leaves the same files as writing them one by one.
+     *
+     * @param configService the configuration of the profile
+     * @param profile the profile
+     * @param histories the number of histories
+     * @param records the number of records of each history
+     * @throws Exception if the histories could not be written
+     */
+    private static void writeHistories(JdbcConfigService configService,
+        BenchmarkProfile profile,
+        int histories,
+        int records)
+        throws Exception
+    {
+        configService.setProperty(
+            HistoryService.WRITE_BEHIND_ENABLED_PROPERTY, "true");
+        configService.setProperty(
+            HistoryService.WRITE_BEHIND_BATCH_SIZE_PROPERTY,
+            Integer.toString(HistoryWriterImpl.MAX_RECORDS_PER_FILE));
+
+        HistoryServiceImpl historyService = new HistoryServiceImpl(
+            configService, profile.getFileAccessService());
+        try
+        {
+            for (int i = 0; i < histories; i++)
+            {
+                HistoryWriter writer = historyService
+                    .createHistory(historyId(i), STRUCTURE).getWriter();
+                for (int j = 0; j < records; j++)
+                {
+                    writer.addRecord(
+                        record(j),
+                        new Date(START_TIME + j * RECORD_INTERVAL));
+                }
+            }
+        }
+        finally
+        {
+            historyService.stop();
+            configService.removeProperty(
+                HistoryService.WRITE_BEHIND_ENABLED_PROPERTY);
+            configService.removeProperty(
+                HistoryService.WRITE_BEHIND_BATCH_SIZE_PROPERTY);
+        }
+    }
+
+    private static HistoryID historyId(int history)
+    {
+        return HistoryID.createFromRawID(
+            new String[] { "messages", "contact" + history });
+    }
+
+    /**
+     * Returns the values of a record, a message of a few words.
+     *
+     * @param index the index of the record in its history
+     * @return the values of the record
+     */
+    private static String[] record(int index)
+    {
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+        {
+            if (i > 0)
+                msg.append(' ');
+            msg.append(WORDS[(index * 7 + i * 5) % WORDS.length]);
+        }
+        if (index % KEYWORD_INTERVAL == 0)
+            msg.append(' ').append(KEYWORD);
+
+        return new String[]
+            {
+                (index % 2 == 0) ? "in" : "out",
+                msg.toString(),
+                "uid" + index,
+                String.valueOf(START_TIME + index * RECORD_INTERVAL)
+            };
+    }
+
+    /**
+     * Reads all the records of a result set.
+     *
+     * @param rs the result set
+     * @return the number of records read
+     */
+    private static int count(QueryResultSet<HistoryRecord> rs)
+    {
+        int count = 0;
+        while (rs.hasNext())
+        {
+            rs.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int findLast(LoadedProfile profile, Cursor cursor)
+    {
+        return count(profile.reader(cursor.next()).findLast(LAST_COUNT));
+    }
+
+    @Benchmark
+    public int findByKeyword(LoadedProfile profile, Cursor cursor)
+    {
+        return count(profile.reader(cursor.next())
+            .findByKeyword(KEYWORD, "msg"));
+    }
+
+    /**
+     * Reads a day of messages from the middle of a history.
+     */
+    @Benchmark
+    public int findByPeriod(LoadedProfile profile, Cursor cursor)
+    {
+        long start = START_TIME
+            + (profile.records - PERIOD_RECORDS) / 2 * RECORD_INTERVAL;
+
+        return count(profile.reader(cursor.next()).findByPeriod(
+            new Date(start),
+            new Date(start + PERIOD_RECORDS * RECORD_INTERVAL)));
+    }
+
+    /**
+     * Adds records to a history, which grows for the whole trial. In
+     * write-behind mode, this only measures queuing the records.
+     */
+    @Benchmark
+    public void addRecord(LoadedProfile profile)
+        throws Exception
+    {
+        addScratchRecord(profile);
+    }
+
+    /**
+     * Adds {@link #BATCH} records to a history and waits for them to be
+     * written, which gives the messages per second the history sustains in
+     * both write modes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addRecords(LoadedProfile profile)
+        throws Exception
+    {
+        for (int i = 0; i < BATCH; i++)
+            addScratchRecord(profile);
+
+        HistoryWriter writer = profile.scratch.getWriter();
+        if (writer instanceof HistoryWriterImpl)
+            ((HistoryWriterImpl) writer).flush();
+    }
+
+    private static void addScratchRecord(LoadedProfile profile)
+        throws Exception
+    {
+        long time = profile.scratchTime += RECORD_INTERVAL;
+        profile.scratch.getWriter().addRecord(
+            record((int) ((time - START_TIME) / RECORD_INTERVAL)),
+            new Date(time));
+    }
+
+    /**
+     * Opens the stored histories, as on startup, and closes them again.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public int load(StoredProfile profile)
+        throws Exception
+    {
+        HistoryServiceImpl historyService = new HistoryServiceImpl(
+            profile.configService, profile.profile.getFileAccessService());
+        try
+        {
+            int count = 0;
+            Iterator<HistoryID> ids = historyService.getExistingIDs();
+            while (ids.hasNext())
+            {
+                ids.next();
+                count++;
+            }
+            return count;
+        }
+        finally
+        {
+            historyService.stop();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+/**
+ * Access to the <tt>HistoryServiceImpl</tt> for the benchmarks of the
+ * services built on it, which are outside of its package.
+ */
+public class HistoryServices
+{
+    private HistoryServices()
+    {
+    }
+
+    /**
+     * Stops a history service, flushing and closing its histories like the
+     * bundle does when stopped.
+     *
+     * @param historyService the history service
+     */
+    public static void stop(HistoryServiceImpl historyService)
+    {
+        historyService.stop();
+    }
+}
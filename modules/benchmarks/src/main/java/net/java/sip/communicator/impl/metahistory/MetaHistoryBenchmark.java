@@ -0,0 +1,161 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.filehistory.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the merge of the records found by the
+ * <tt>MetaHistoryServiceImpl</tt>, against the former collect-and-sort.
+ * Each source returns <tt>count</tt> sorted records, like the histories of
+ * the sub-contacts of a meta contact do.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar MetaHistoryBenchmark
+ * -p sources=10</tt>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class MetaHistoryBenchmark
+{
+    /**
+     * The time of the first record and the time span of the records.
+     */
+    private static final long START_TIME = 1500000000000L;
+
+    private static final long TIME_SPAN = 365L * 24 * 60 * 60 * 1000;
+
+    private static final Comparator<Object> RECORDS_COMPARATOR
+        = new Comparator<Object>()
+        {
+            public int compare(Object o1, Object o2)
+            {
+                return ((FileRecord) o1).getDate().compareTo(
+                    ((FileRecord) o2).getDate());
+            }
+        };
+
+    /**
+     * The number of sources, e.g. the sub-contacts of a meta contact.
+     */
+    @Param({"5", "10", "20"})
+    public int sources;
+
+    /**
+     * The number of records asked and returned by each source.
+     */
+    @Param({"20", "100"})
+    public int count;
+
+    private List<List<Object>> results;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Random random = new Random(42);
+        results = new ArrayList<List<Object>>(sources);
+        for (int i = 0; i < sources; i++)
+        {
+            long[] times = new long[count];
+            for (int j = 0; j < count; j++)
+            {
+                times[j]
+                    = START_TIME + (long) (random.nextDouble() * TIME_SPAN);
+            }
+            Arrays.sort(times);
+
+            List<Object> records = new ArrayList<Object>(count);
+            for (long time : times)
+            {
+                records.add(new FileRecord(
+                    String.valueOf(time), null, FileRecord.IN,
+                    new Date(time), null, FileRecord.COMPLETED));
+            }
+            results.add(records);
+        }
+    }
+
+    /**
+     * The newest records of all the sources, as returned by
+     * <tt>findLast</tt>.
+     */
+    @Benchmark
+    public Collection<Object> mergeLast()
+    {
+        return MetaHistoryServiceImpl.mergeLast(sorted(), count);
+    }
+
+    /**
+     * The newest records of all the sources, collected and sorted.
+     */
+    @Benchmark
+    public Collection<Object> collectAndSortLast()
+    {
+        TreeSet<Object> result = new TreeSet<Object>(RECORDS_COMPARATOR);
+        for (List<Object> records : results)
+            result.addAll(records);
+
+        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
+        int startIndex = Math.max(resultAsList.size() - count, 0);
+        return resultAsList.subList(startIndex, resultAsList.size());
+    }
+
+    /**
+     * All the records of the sources, as returned by <tt>findByPeriod</tt>.
+     */
+    @Benchmark
+    public Collection<Object> mergeAll()
+    {
+        return MetaHistoryServiceImpl.mergeAll(sorted());
+    }
+
+    /**
+     * All the records of the sources, collected and sorted.
+     */
+    @Benchmark
+    public Collection<Object> collectAndSortAll()
+    {
+        List<Object> result = new ArrayList<Object>(sources * count);
+        for (List<Object> records : results)
+            result.addAll(records);
+
+        Collections.sort(result, RECORDS_COMPARATOR);
+        return result;
+    }
+
+    /**
+     * Wraps the records of the sources for the merge, which checks that they
+     * are sorted as the merge of the search results does.
+     */
+    private List<MetaHistoryServiceImpl.SortedRecords> sorted()
+    {
+        List<MetaHistoryServiceImpl.SortedRecords> sorted
+            = new ArrayList<MetaHistoryServiceImpl.SortedRecords>(sources);
+        for (List<Object> records : results)
+            sorted.add(MetaHistoryServiceImpl.SortedRecords.of(records));
+        return sorted;
+    }
+}
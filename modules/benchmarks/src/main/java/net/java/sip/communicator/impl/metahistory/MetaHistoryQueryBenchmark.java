@@ -0,0 +1,267 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+import net.java.sip.communicator.service.callhistory.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.filehistory.*;
+import net.java.sip.communicator.service.msghistory.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.event.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.*;
+
+/**
+ * Benchmarks of <tt>MetaHistoryServiceImpl.findByPeriod</tt> from the
+ * query of the services to the merged result, against the former sequential
+ * query of the services collecting all their records in one list and
+ * sorting it. The services are stubs returning their records the way the
+ * real ones do: the messages from the oldest in a <tt>LinkedList</tt>, the
+ * file transfers from the oldest and the calls from the newest in a
+ * <tt>TreeSet</tt>. The services don't read their histories, so only the
+ * cost of the meta history service itself is measured.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar MetaHistoryQueryBenchmark
+ * -p messages=10000</tt>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class MetaHistoryQueryBenchmark
+{
+    private static final long START_TIME = 1500000000000L;
+
+    private static final long TIME_SPAN = 365L * 24 * 60 * 60 * 1000;
+
+    private static final Class<?>[] SERVICES = {
+        MessageHistoryService.class,
+        FileHistoryService.class,
+        CallHistoryService.class };
+
+    /**
+     * The number of messages found, with a tenth as many calls and a
+     * twentieth as many file transfers.
+     */
+    @Param({"100", "1000", "10000"})
+    public int messages;
+
+    private MetaHistoryServiceImpl metaHistoryService;
+
+    private BundleContext bundleContext;
+
+    private MetaContact contact;
+
+    private Map<Class<?>, Object> services;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Random random = new Random(42);
+
+        LinkedList<EventObject> messageRecords = new LinkedList<EventObject>();
+        Message message = stub(Message.class);
+        Contact to = stub(Contact.class);
+        for (long time : times(random, messages))
+        {
+            messageRecords.add(
+                new MessageDeliveredEvent(message, to, new Date(time)));
+        }
+
+        TreeSet<FileRecord> fileRecords = new TreeSet<FileRecord>(
+            new Comparator<FileRecord>()
+            {
+                public int compare(FileRecord o1, FileRecord o2)
+                {
+                    return o1.getDate().compareTo(o2.getDate());
+                }
+            });
+        for (long time : times(random, messages / 20))
+        {
+            fileRecords.add(new FileRecord(
+                String.valueOf(time), null, FileRecord.IN,
+                new Date(time), null, FileRecord.COMPLETED));
+        }
+
+        TreeSet<CallRecord> callRecords = new TreeSet<CallRecord>(
+            new Comparator<CallRecord>()
+            {
+                public int compare(CallRecord o1, CallRecord o2)
+                {
+                    return o2.getStartTime().compareTo(o1.getStartTime());
+                }
+            });
+        for (long time : times(random, messages / 10))
+        {
+            callRecords.add(new CallRecord(
+                CallRecord.OUT, new Date(time), new Date(time + 60000)));
+        }
+
+        Map<String, Object> noResults = new HashMap<String, Object>();
+        noResults.put("addSearchProgressListener", null);
+        noResults.put("removeSearchProgressListener", null);
+
+        services = new HashMap<Class<?>, Object>();
+        services.put(MessageHistoryService.class,
+            Stubs.create(MessageHistoryService.class,
+                results(noResults, "findByPeriod", messageRecords)));
+        services.put(FileHistoryService.class,
+            Stubs.create(FileHistoryService.class,
+                results(noResults, "findByPeriod", fileRecords)));
+        services.put(CallHistoryService.class,
+            Stubs.create(CallHistoryService.class,
+                results(noResults, "findByPeriod", callRecords)));
+
+        contact = stub(MetaContact.class);
+        bundleContext = createBundleContext(services);
+        metaHistoryService = new MetaHistoryServiceImpl();
+        metaHistoryService.start(bundleContext);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        metaHistoryService.stop(bundleContext);
+    }
+
+    /**
+     * The records found by the meta history service.
+     */
+    @Benchmark
+    public Collection<Object> findByPeriod()
+    {
+        return metaHistoryService.findByPeriod(
+            SERVICES, contact, new Date(START_TIME),
+            new Date(START_TIME + TIME_SPAN));
+    }
+
+    /**
+     * The records found by querying the services one after the other and
+     * sorting all their records, as the meta history service did before
+     * merging them.
+     */
+    @Benchmark
+    public Collection<Object> collectAndSort()
+    {
+        Date startDate = new Date(START_TIME);
+        Date endDate = new Date(START_TIME + TIME_SPAN);
+
+        LinkedList<Object> result = new LinkedList<Object>();
+        result.addAll(
+            ((MessageHistoryService) services.get(MessageHistoryService.class))
+                .findByPeriod(contact, startDate, endDate));
+        result.addAll(
+            ((FileHistoryService) services.get(FileHistoryService.class))
+                .findByPeriod(contact, startDate, endDate));
+        result.addAll(
+            ((CallHistoryService) services.get(CallHistoryService.class))
+                .findByPeriod(startDate, endDate));
+
+        Collections.sort(result, new Comparator<Object>()
+        {
+            public int compare(Object o1, Object o2)
+            {
+                return getDate(o1).compareTo(getDate(o2));
+            }
+        });
+        return result;
+    }
+
+    private static Date getDate(Object record)
+    {
+        if (record instanceof MessageDeliveredEvent)
+            return ((MessageDeliveredEvent) record).getTimestamp();
+        if (record instanceof CallRecord)
+            return ((CallRecord) record).getStartTime();
+        return ((FileRecord) record).getDate();
+    }
+
+    private static long[] times(Random random, int count)
+    {
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++)
+            times[i] = START_TIME + (long) (random.nextDouble() * TIME_SPAN);
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static <T> T stub(Class<T> type)
+    {
+        return Stubs.create(type, Collections.<String, Object>emptyMap());
+    }
+
+    private static Map<String, Object> results(
+        Map<String, Object> results, String name, Object result)
+    {
+        Map<String, Object> map = new HashMap<String, Object>(results);
+        map.put(name, result);
+        return map;
+    }
+
+    /**
+     * Creates a bundle context returning the stubs of the services by their
+     * class.
+     */
+    private static BundleContext createBundleContext(
+        final Map<Class<?>, Object> services)
+    {
+        final Map<Object, Object> references = new HashMap<Object, Object>();
+        for (Map.Entry<Class<?>, Object> e : services.entrySet())
+        {
+            references.put(
+                e.getKey(), stub(ServiceReference.class));
+        }
+
+        return (BundleContext) Proxy.newProxyInstance(
+            BundleContext.class.getClassLoader(),
+            new Class<?>[] { BundleContext.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("getServiceReference"))
+                        return references.get(args[0]);
+                    if (name.equals("getService"))
+                    {
+                        for (Map.Entry<Object, Object> e
+                                : references.entrySet())
+                        {
+                            if (e.getValue() == args[0])
+                                return services.get(e.getKey());
+                        }
+                        return null;
+                    }
+                    if (name.equals("addServiceListener")
+                            || name.equals("removeServiceListener"))
+                        return null;
+                    throw new UnsupportedOperationException(
+                        "BundleContext." + name);
+                }
+            });
+    }
+}
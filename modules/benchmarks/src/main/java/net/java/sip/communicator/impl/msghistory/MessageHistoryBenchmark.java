@@ -0,0 +1,232 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+import net.java.sip.communicator.impl.configuration.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the searches of the <tt>MessageHistoryServiceImpl</tt> in
+ * the histories of the sub-contacts of a meta contact, reading the histories
+ * one after the other or at once. Every search is made by new services, so
+ * that nothing is cached by the history service.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar MessageHistoryBenchmark
+ * -p subContacts=10</tt>.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@State(Scope.Benchmark)
+public class MessageHistoryBenchmark
+{
+    /**
+     * The keyword searched for, in one message out of
+     * {@link #KEYWORD_INTERVAL}.
+     */
+    private static final String KEYWORD = "benchmark";
+
+    private static final int KEYWORD_INTERVAL = 100;
+
+    /**
+     * The number of messages returned by <tt>findLast</tt>.
+     */
+    private static final int LAST_COUNT = 20;
+
+    /**
+     * The time of the first message and the time between the messages.
+     */
+    private static final long START_TIME = 1500000000000L;
+
+    private static final long MESSAGE_INTERVAL = 60000L;
+
+    /**
+     * The number of sub-contacts of the meta contact.
+     */
+    @Param({"1", "5", "10"})
+    public int subContacts;
+
+    /**
+     * The number of messages with each sub-contact.
+     */
+    @Param({"2000"})
+    public int messages;
+
+    /**
+     * Whether the histories are read at once.
+     */
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private BenchmarkProfile profile;
+
+    private JdbcConfigService configService;
+
+    private MetaContact metaContact;
+
+    private HistoryServiceImpl historyService;
+
+    private MessageHistoryServiceImpl messageHistoryService;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        profile = new BenchmarkProfile();
+        configService = new JdbcConfigService(profile.getFileAccessService());
+
+        AccountID accountID = new AccountID(
+            "benchmark", new HashMap<String, String>(),
+            "Jabber", "example.org")
+        {
+        };
+        Map<String, Object> providerResults = new HashMap<String, Object>();
+        providerResults.put("getAccountID", accountID);
+        ProtocolProviderService provider = Stubs.create(
+            ProtocolProviderService.class, providerResults);
+
+        List<Contact> contacts = new ArrayList<Contact>(subContacts);
+        for (int i = 0; i < subContacts; i++)
+        {
+            Map<String, Object> contactResults = new HashMap<String, Object>();
+            contactResults.put("getAddress", "contact" + i + "@example.org");
+            contactResults.put("getProtocolProvider", provider);
+            contacts.add(Stubs.create(Contact.class, contactResults));
+        }
+        Map<String, Object> metaContactResults = new HashMap<String, Object>();
+        metaContactResults.put("getContacts", contacts);
+        metaContact = Stubs.create(MetaContact.class, metaContactResults);
+
+        writeHistories(accountID, contacts);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception
+    {
+        configService.storeConfiguration();
+        profile.delete();
+    }
+
+    /**
+     * Creates the services of a search, with nothing cached.
+     */
+    @Setup(Level.Invocation)
+    public void openServices()
+        throws Exception
+    {
+        historyService = new HistoryServiceImpl(
+            configService, profile.getFileAccessService());
+        messageHistoryService = new MessageHistoryServiceImpl();
+        messageHistoryService.setHistoryService(historyService);
+        messageHistoryService.setParallelQueries(parallel);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeServices()
+    {
+        messageHistoryService.setParallelQueries(false);
+        HistoryServices.stop(historyService);
+    }
+
+    @Benchmark
+    public int findLast()
+    {
+        return messageHistoryService.findLast(metaContact, LAST_COUNT).size();
+    }
+
+    @Benchmark
+    public int findByKeyword()
+    {
+        return messageHistoryService.findByKeyword(metaContact, KEYWORD)
+            .size();
+    }
+
+    /**
+     * Writes the histories of the sub-contacts, in the layout of the message
+     * history, with a service of their own.
+     *
+     * @param accountID the account of the sub-contacts
+     * @param contacts the sub-contacts
+     * @throws Exception if the histories could not be written
+     */
+    private void writeHistories(AccountID accountID, List<Contact> contacts)
+        throws Exception
+    {
+        HistoryRecordStructure structure = new HistoryRecordStructure(
+            MessageHistoryServiceImpl.STRUCTURE_NAMES);
+        SimpleDateFormat sdf = new SimpleDateFormat(HistoryService.DATE_FORMAT);
+        HistoryServiceImpl writingService = new HistoryServiceImpl(
+            configService, profile.getFileAccessService());
+        try
+        {
+            for (Contact contact : contacts)
+            {
+                HistoryWriter writer = writingService.createHistory(
+                    HistoryID.createFromRawID(
+                        new String[]
+                        {
+                            "messages",
+                            "default",
+                            accountID.getAccountUniqueID(),
+                            contact.getAddress()
+                        }),
+                    structure).getWriter();
+
+                for (int j = 0; j < messages; j++)
+                {
+                    Date date = new Date(START_TIME + j * MESSAGE_INTERVAL);
+                    String msg = "message " + j;
+                    if (j % KEYWORD_INTERVAL == 0)
+                        msg += " " + KEYWORD;
+
+                    writer.addRecord(
+                        new String[]
+                        {
+                            (j % 2 == 0) ? "in" : "out",
+                            msg,
+                            "text/plain",
+                            "UTF-8",
+                            "uid" + j,
+                            "",
+                            sdf.format(date),
+                            ""
+                        },
+                        date);
+                }
+            }
+        }
+        finally
+        {
+            HistoryServices.stop(writingService);
+        }
+    }
+}
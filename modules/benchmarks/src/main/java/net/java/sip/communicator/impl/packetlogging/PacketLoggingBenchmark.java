@@ -0,0 +1,148 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+
+import org.jitsi.service.packetlogging.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the <tt>PacketLoggingServiceImpl</tt> logging RTP packets of
+ * <tt>payloadSize</tt> bytes: the cost of logging a packet for the media
+ * threads, and the number of packets the saver thread writes to the pcap
+ * files per second.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar PacketLoggingBenchmark
+ * -p payloadSize=1200</tt>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class PacketLoggingBenchmark
+{
+    /**
+     * The number of packets logged by {@link #save()}, no more than the
+     * saver thread can be late by.
+     */
+    private static final int SAVED_PACKETS = 1000;
+
+    /**
+     * The size of a log file, so that the files are rotated during the
+     * benchmarks.
+     */
+    private static final long FILE_LIMIT = 16 * 1024 * 1024;
+
+    /**
+     * The size of the RTP packets.
+     */
+    @Param({"172", "1200"})
+    public int payloadSize;
+
+    private BenchmarkProfile profile;
+
+    private PacketLoggingServiceImpl service;
+
+    private final byte[] localAddress = { (byte) 192, (byte) 168, 0, 2 };
+
+    private final byte[] remoteAddress = { 10, 0, 0, 1 };
+
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws IOException
+    {
+        profile = new BenchmarkProfile();
+
+        PacketLoggingConfiguration configuration
+            = new PacketLoggingConfiguration();
+        configuration.setGlobalLoggingEnabled(true);
+        configuration.setRTPLoggingEnabled(true);
+        configuration.setLimit(FILE_LIMIT);
+        configuration.setLogfileCount(2);
+
+        service = new PacketLoggingServiceImpl(
+            profile.getFileAccessService(), configuration);
+        service.start();
+
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) i;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        service.stop();
+        profile.delete();
+    }
+
+    private void logPacket(boolean sender)
+    {
+        service.logPacket(
+            PacketLoggingService.ProtocolName.RTP,
+            sender ? localAddress : remoteAddress,
+            5000,
+            sender ? remoteAddress : localAddress,
+            5002,
+            PacketLoggingService.TransportName.UDP,
+            sender,
+            payload);
+    }
+
+    /**
+     * Logs packets from several media threads, which the saver thread drops
+     * when it cannot keep up.
+     */
+    @Benchmark
+    @Threads(4)
+    public void logPacket()
+    {
+        logPacket(true);
+    }
+
+    /**
+     * Logs {@link #SAVED_PACKETS} packets and waits for the saver thread to
+     * write them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAVED_PACKETS)
+    public long save()
+    {
+        long processed
+            = service.getSavedPacketCount() + service.getDroppedPacketCount();
+
+        for (int i = 0; i < SAVED_PACKETS; i++)
+            logPacket((i & 1) == 0);
+
+        long expected = processed + SAVED_PACKETS;
+        while (service.getSavedPacketCount() + service.getDroppedPacketCount()
+                < expected)
+        {
+            Thread.yield();
+        }
+        return service.getDroppedPacketCount();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.benchmarks.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of finding the provider a new request is dispatched to among
+ * <tt>providerCount</tt> simulated providers sharing the SIP stack, with the
+ * <tt>SipRoutingIndex</tt> of <tt>SipStackSharing</tt> and with the scan of
+ * all the providers it replaces. A fifth of the providers share their user ID
+ * with another one and are told apart by the custom parameter of their
+ * contact address.
+ * <p>
+ * Only the lookup of the candidates is measured, not
+ * <tt>SipStackSharing.findTargetFor</tt> as a whole: the candidates are not
+ * filtered by the connection the request came from with
+ * <tt>filterByAddress</tt>, and the ambiguous requests do not fall back on
+ * comparing the To header with <tt>getOurSipAddress</tt> of each candidate.
+ * Both need initialized providers and a SIP stack, and cost the same with the
+ * index as with the scan for the candidates it finds.
+ * <p>
+ * Run with e.g. <tt>java -jar benchmarks.jar SipRoutingBenchmark
+ * -p providerCount=500</tt>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class SipRoutingBenchmark
+{
+    /**
+     * The number of requests dispatched by an invocation.
+     */
+    private static final int REQUESTS = 1024;
+
+    @Param({"10", "500"})
+    public int providerCount;
+
+    private List<SimulatedProvider> providers;
+
+    private SipRoutingIndex<SimulatedProvider> index;
+
+    /**
+     * The providers the requests are sent to.
+     */
+    private SimulatedProvider[] requests;
+
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        providers = new ArrayList<>(providerCount);
+        for (int i = 0; i < providerCount; i++)
+        {
+            int user = (i % 5 == 4) ? i - 1 : i;
+
+            providers.add(
+                new SimulatedProvider(
+                    "user" + user, "registrar" + i + "_example_com"));
+        }
+        index = createIndex(providers);
+
+        int[] indexes
+            = BenchmarkProfile.randomIndexes(REQUESTS, providerCount, 42);
+
+        requests = new SimulatedProvider[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++)
+            requests[i] = providers.get(indexes[i]);
+    }
+
+    private static SipRoutingIndex<SimulatedProvider> createIndex(
+            Collection<SimulatedProvider> providers)
+    {
+        return new SipRoutingIndex<>(
+            providers,
+            provider -> provider.userId,
+            provider -> provider.customParam);
+    }
+
+    private SimulatedProvider nextRequest()
+    {
+        return requests[next++ & (REQUESTS - 1)];
+    }
+
+    /**
+     * Finds the target of a request by its user and custom parameter in the
+     * index.
+     */
+    @Benchmark
+    public SimulatedProvider indexLookup()
+    {
+        SimulatedProvider request = nextRequest();
+        List<SimulatedProvider> candidates = index.getTargets(request.userId);
+
+        if (candidates.size() == 1)
+            return candidates.get(0);
+        return index.getTarget(request.userId, request.customParam);
+    }
+
+    /**
+     * Finds the target of a request by going through all the providers, as
+     * <tt>SipStackSharing</tt> did before the index.
+     */
+    @Benchmark
+    public SimulatedProvider linearScan()
+    {
+        SimulatedProvider request = nextRequest();
+        List<SimulatedProvider> candidates = new ArrayList<>();
+
+        for (SimulatedProvider provider : new ArrayList<>(providers))
+        {
+            if (provider.userId.equals(request.userId))
+                candidates.add(provider);
+        }
+        if (candidates.size() == 1)
+            return candidates.get(0);
+        for (SimulatedProvider candidate : candidates)
+        {
+            if (candidate.customParam.equals(request.customParam))
+                return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds the index, as done when a provider registers or unregisters.
+     */
+    @Benchmark
+    public SipRoutingIndex<SimulatedProvider> rebuild()
+    {
+        return createIndex(providers);
+    }
+
+    /**
+     * The user ID and custom contact address parameter of a provider.
+     */
+    public static class SimulatedProvider
+    {
+        private final String userId;
+
+        private final String customParam;
+
+        private SimulatedProvider(String userId, String customParam)
+        {
+            this.userId = userId;
+            this.customParam = customParam;
+        }
+    }
+}
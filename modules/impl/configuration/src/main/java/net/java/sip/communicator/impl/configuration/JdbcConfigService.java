@@ -23,6 +23,7 @@
 import java.sql.Statement;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import org.apache.commons.lang3.*;
 import org.jitsi.service.configuration.*;
@@ -41,6 +42,38 @@
      */
     private final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(JdbcConfigService.class);
 
+    /**
+     * Time in milliseconds a changed property waits to be written to the
+     * database, so that the changes made together are written together.
+     */
+    private static final long WRITE_DELAY = 200;
+
+    /**
+     * Time in milliseconds before writing again changes which failed to be
+     * written. The delay doubles with each failure, up to
+     * {@link #MAX_WRITE_RETRY_DELAY}.
+     */
+    private static final long WRITE_RETRY_DELAY = 5000;
+
+    /**
+     * The maximum time in milliseconds between two writes of changes which
+     * failed to be written.
+     */
+    private static final long MAX_WRITE_RETRY_DELAY = 5 * 60 * 1000;
+
+    /**
+     * The number of times the changes which failed to be written are
+     * written again before giving up. The changes stay queued and are
+     * written with the next change or by {@link #storeConfiguration()}.
+     */
+    private static final int MAX_WRITE_RETRIES = 10;
+
+    /**
+     * The number of changed properties which are written without waiting
+     * for {@link #WRITE_DELAY}.
+     */
+    private static final int WRITE_BATCH_SIZE = 64;
+
     /**
      * Name of the file containing default properties.
      */
@@ -60,7 +93,7 @@
      * and attempts to do so will simply be ignored.
      * @see #defaultProperties
      */
-    private Map<String, String> immutableDefaultProperties
+    private final Map<String, String> immutableDefaultProperties
         = new HashMap<String, String>();
 
     /**
@@ -70,9 +103,72 @@
      * <tt>setProperty()</tt> methods. Still, re-setting one of these properties
      * to <tt>null</tt> would cause for its initial value to be restored.
      */
-    private Map<String, String> defaultProperties
+    private final Map<String, String> defaultProperties
         = new HashMap<String, String>();
 
+    /**
+     * The properties stored in the database, loaded at startup and kept in
+     * sync by the <tt>setProperty()</tt> methods, so that reads never query
+     * the database.
+     */
+    private final Map<String, String> properties
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The names of the stored properties, indexed for the prefix and suffix
+     * lookups.
+     */
+    private final PropertyNameIndex propertyNames = new PropertyNameIndex();
+
+    /**
+     * The changed properties not written to the database yet, by name, with
+     * a <tt>null</tt> value for the removed ones. Repeated changes of a
+     * property are written once, with the last value.
+     */
+    private final Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The scheduled write of {@link #pendingWrites}, if any.
+     */
+    private ScheduledFuture<?> scheduledWrite;
+
+    /**
+     * The number of writes which failed since the last successful one.
+     * Guarded by the lock of {@link #pendingWrites}.
+     */
+    private int writeFailures = 0;
+
+    /**
+     * Time in milliseconds a changed property waits to be written.
+     */
+    private final long writeDelay;
+
+    /**
+     * Time in milliseconds before the first retry of a failed write.
+     */
+    private final long writeRetryDelay;
+
+    /**
+     * Writes the changed properties to the database in the background.
+     */
+    private final ScheduledExecutorService writer
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ConfigurationWriter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Serializes the use of the database connection.
+     */
+    private final Object connectionLock = new Object();
+
     /**
      * Registered property change listeners that may veto a change.
      */
@@ -91,8 +187,6 @@
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -108,8 +202,29 @@
      * @throws Exception
      */
     public JdbcConfigService(FileAccessService fas) throws Exception
+    {
+        this(fas, WRITE_DELAY, WRITE_RETRY_DELAY);
+    }
+
+    /**
+     * Creates a new instance of this class writing the changes after the
+     * given delays.
+     *
+     * @param fas Reference to the {@link FileAccessService}.
+     * @param writeDelay the time in milliseconds a changed property waits to
+     * be written
+     * @param writeRetryDelay the time in milliseconds before the first retry
+     * of a failed write
+     * @throws Exception
+     */
+    JdbcConfigService(FileAccessService fas,
+                      long writeDelay,
+                      long writeRetryDelay)
+        throws Exception
     {
         this.fas = fas;
+        this.writeDelay = writeDelay;
+        this.writeRetryDelay = writeRetryDelay;
         File dataFile = fas.getPrivatePersistentFile(
             "props.hsql.script",
             FileCategory.PROFILE);
@@ -134,6 +249,7 @@ public JdbcConfigService(FileAccessService fas) throws Exception
         // open the connection
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
         checkConnection();
+        loadProperties();
 
         // then do the actual migration
         if (migrate)
@@ -141,14 +257,13 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            // written in a single transaction
+            writePendingChanges();
         }
 
         // and finally load the (mandatory) system properties
@@ -206,10 +321,6 @@ private void checkConnection() throws SQLException
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -221,6 +332,25 @@ private void checkConnection() throws SQLException
             "DELETE FROM Props WHERE k=?");
     }
 
+    /**
+     * Loads all the properties stored in the database in memory.
+     *
+     * @throws SQLException
+     */
+    private void loadProperties() throws SQLException
+    {
+        ResultSet q = this.selectAll.executeQuery();
+        while (q.next())
+        {
+            String value = q.getString(2);
+            if (value != null)
+            {
+                properties.put(q.getString(1), value);
+                propertyNames.add(q.getString(1));
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -269,28 +399,200 @@ public synchronized void setProperty(String propertyName, Object property,
                 return;
             }
 
-            try
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
+
+            // the change is visible at once, the database is written later
+            if (property == null)
             {
-                this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
+                properties.remove(propertyName);
+                propertyNames.remove(propertyName);
+                queueWrite(propertyName, null);
+            }
+            else
+            {
+                String value = property.toString();
+                properties.put(propertyName, value);
+                propertyNames.add(propertyName);
+                queueWrite(propertyName, value);
+            }
+
+            this.fireChange(propertyName, oldValue, property);
+        }
+    }
+
+    /**
+     * Queues a changed property to be written to the database.
+     *
+     * @param propertyName the name of the property
+     * @param value the new value or <tt>null</tt> if the property is removed
+     */
+    private void queueWrite(String propertyName, String value)
+    {
+        synchronized (pendingWrites)
+        {
+            pendingWrites.put(propertyName, value);
+
+            long delay = pendingWrites.size() >= WRITE_BATCH_SIZE
+                ? 0 : writeDelay;
+            scheduleWrite(delay);
+        }
+    }
+
+    /**
+     * Schedules the write of the queued changes, unless a write is already
+     * scheduled within <tt>delay</tt>. Must be called with the lock of
+     * {@link #pendingWrites}.
+     *
+     * @param delay the maximum time to wait before writing
+     */
+    private void scheduleWrite(long delay)
+    {
+        if (scheduledWrite != null)
+        {
+            if (scheduledWrite.getDelay(TimeUnit.MILLISECONDS) <= delay)
+                return;
+            scheduledWrite.cancel(false);
+        }
+
+        scheduledWrite = writer.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
                 {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
+                    writePendingChanges();
                 }
-                else
+                catch (SQLException e)
                 {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
+                    synchronized (pendingWrites)
+                    {
+                        scheduleRetry(e);
+                    }
                 }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-                this.fireChange(propertyName, oldValue, property);
+    /**
+     * Schedules the write of changes which failed to be written, waiting
+     * twice as long after each failure, unless it failed
+     * {@link #MAX_WRITE_RETRIES} times in a row. Only the first failure and
+     * the last retry are logged as errors. Must be called with the lock of
+     * {@link #pendingWrites}.
+     *
+     * @param cause the failure of the write
+     */
+    private void scheduleRetry(SQLException cause)
+    {
+        writeFailures++;
+        if (writeFailures > MAX_WRITE_RETRIES + 1)
+        {
+            logger.debug("Failed to write configuration changes", cause);
+            return;
+        }
+        if (writeFailures > MAX_WRITE_RETRIES)
+        {
+            logger.error("Failed to write configuration changes "
+                + writeFailures + " times, will retry with the next change",
+                cause);
+            return;
+        }
+
+        long delay = Math.min(
+            writeRetryDelay << (writeFailures - 1),
+            MAX_WRITE_RETRY_DELAY);
+        if (writeFailures == 1)
+        {
+            logger.error("Failed to write configuration changes,"
+                + " will retry", cause);
+        }
+        else
+        {
+            logger.debug("Failed to write configuration changes, will retry"
+                + " in " + delay + " ms", cause);
+        }
+        scheduleWrite(delay);
+    }
+
+    /**
+     * Writes the queued changes to the database in one transaction. If the
+     * write fails, the changes are queued again, unless changed meanwhile.
+     *
+     * @throws SQLException if the changes cannot be written
+     */
+    private void writePendingChanges() throws SQLException
+    {
+        synchronized (connectionLock)
+        {
+            Map<String, String> writes;
+            synchronized (pendingWrites)
+            {
+                if (scheduledWrite != null)
+                {
+                    scheduledWrite.cancel(false);
+                    scheduledWrite = null;
+                }
+
+                if (pendingWrites.isEmpty())
+                    return;
+
+                writes = new LinkedHashMap<String, String>(pendingWrites);
+                pendingWrites.clear();
+            }
+
+            try
+            {
+                checkConnection();
+                this.connection.setAutoCommit(false);
+                try
+                {
+                    for (Map.Entry<String, String> e : writes.entrySet())
+                    {
+                        if (e.getValue() == null)
+                        {
+                            this.delete.setString(1, e.getKey());
+                            this.delete.addBatch();
+                        }
+                        else
+                        {
+                            this.insertOrUpdate.setString(1, e.getKey());
+                            this.insertOrUpdate.setString(2, e.getValue());
+                            this.insertOrUpdate.addBatch();
+                        }
+                    }
+
+                    this.delete.executeBatch();
+                    this.insertOrUpdate.executeBatch();
+                    this.connection.commit();
+
+                    synchronized (pendingWrites)
+                    {
+                        writeFailures = 0;
+                    }
+                }
+                catch (SQLException e)
+                {
+                    this.connection.rollback();
+                    throw e;
+                }
+                finally
+                {
+                    this.connection.setAutoCommit(true);
+                }
             }
             catch (SQLException e)
             {
-                throw new RuntimeException(e);
+                synchronized (pendingWrites)
+                {
+                    for (Map.Entry<String, String> w : writes.entrySet())
+                    {
+                        if (!pendingWrites.containsKey(w.getKey()))
+                            pendingWrites.put(w.getKey(), w.getValue());
+                    }
+                }
+                throw e;
             }
         }
     }
@@ -305,21 +607,10 @@ public synchronized void setProperty(String propertyName, Object property,
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
-        {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
+        // the queued changes are written together
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -331,7 +622,7 @@ public synchronized void setProperties(Map<String, Object> properties)
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -339,22 +630,7 @@ public synchronized Object getProperty(String propertyName)
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error("SQL failure", e);
-            throw new RuntimeException(e);
-        }
-
+        value = properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -401,21 +677,7 @@ public List<String> getAllPropertyNames()
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error("SQL failure", e);
-            throw new RuntimeException(e);
-        }
-
+        data.addAll(properties.keySet());
         return data;
     }
 
@@ -430,46 +692,7 @@ public List<String> getAllPropertyNames()
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
-        {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-
-                if(exactPrefixMatch)
-                {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
-
-                    String keyPrefix = key.substring(0, ix);
-
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
-                {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-            }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return propertyNames.getByPrefix(prefix, exactPrefixMatch);
     }
 
     /*
@@ -482,26 +705,7 @@ public List<String> getPropertyNamesByPrefix(String prefix,
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return propertyNames.getBySuffix(suffix);
     }
 
     /*
@@ -768,17 +972,32 @@ public void removeVetoableChangeListener(String propertyName,
     @Override
     public void storeConfiguration() throws IOException
     {
-        try
-        {
-            this.connection.close();
-        }
-        catch (SQLException e)
-        {
-            logger.error("SQL failure", e);
-        }
-        finally
+        synchronized (connectionLock)
         {
-            this.connection = null;
+            try
+            {
+                writePendingChanges();
+            }
+            catch (SQLException e)
+            {
+                throw new IOException(e);
+            }
+            finally
+            {
+                try
+                {
+                    if (this.connection != null)
+                        this.connection.close();
+                }
+                catch (SQLException e)
+                {
+                    logger.error("SQL failure", e);
+                }
+                finally
+                {
+                    this.connection = null;
+                }
+            }
         }
     }
 
@@ -799,18 +1018,30 @@ public void reloadConfiguration() throws IOException
      * ()
      */
     @Override
-    public void purgeStoredConfiguration()
+    public synchronized void purgeStoredConfiguration()
     {
-        try
-        {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
-        }
-        catch (SQLException e)
+        // with the lock of the setProperty() methods, so that no change is
+        // queued between the clear of the queue and the one of the map
+        synchronized (connectionLock)
         {
-            logger.error("SQL failure", e);
-            throw new RuntimeException(e);
+            synchronized (pendingWrites)
+            {
+                pendingWrites.clear();
+            }
+
+            try
+            {
+                this.checkConnection();
+                Statement st = this.connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+                properties.clear();
+                propertyNames.clear();
+            }
+            catch (SQLException e)
+            {
+                logger.error("SQL failure", e);
+                throw new RuntimeException(e);
+            }
         }
     }
 
@@ -0,0 +1,169 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Indexes the names of the stored properties for the prefix and suffix
+ * lookups of the {@link JdbcConfigService}. The names are kept sorted, so
+ * that the properties starting with a prefix are a range of the set, and
+ * grouped by the part before and after their last dot, so that the direct
+ * children of a prefix and the properties with a given last segment are
+ * listed without looking at any other name.
+ * <p>
+ * Lookups may run concurrently with the updates, the updates are expected
+ * to be serialized by the caller.
+ */
+class PropertyNameIndex
+{
+    /**
+     * All the property names, sorted.
+     */
+    private final NavigableSet<String> names
+        = new ConcurrentSkipListSet<String>();
+
+    /**
+     * The property names by the part before their last dot.
+     */
+    private final Map<String, Set<String>> namesByParent
+        = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * The property names by the part after their last dot.
+     */
+    private final Map<String, Set<String>> namesByLastSegment
+        = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Adds a property name.
+     *
+     * @param name the property name
+     */
+    void add(String name)
+    {
+        if (!names.add(name))
+            return;
+
+        int ix = name.lastIndexOf('.');
+        if (ix != -1)
+        {
+            group(namesByParent, name.substring(0, ix)).add(name);
+            group(namesByLastSegment, name.substring(ix + 1)).add(name);
+        }
+    }
+
+    /**
+     * Removes a property name.
+     *
+     * @param name the property name
+     */
+    void remove(String name)
+    {
+        if (!names.remove(name))
+            return;
+
+        int ix = name.lastIndexOf('.');
+        if (ix != -1)
+        {
+            ungroup(namesByParent, name.substring(0, ix), name);
+            ungroup(namesByLastSegment, name.substring(ix + 1), name);
+        }
+    }
+
+    /**
+     * Removes all the property names.
+     */
+    void clear()
+    {
+        names.clear();
+        namesByParent.clear();
+        namesByLastSegment.clear();
+    }
+
+    /**
+     * Returns the property names starting with <tt>prefix</tt>, or if
+     * <tt>exactPrefixMatch</tt>, the names whose part before the last dot
+     * is <tt>prefix</tt>.
+     *
+     * @param prefix the prefix of the names
+     * @param exactPrefixMatch whether only the direct children of
+     * <tt>prefix</tt> are returned
+     * @return the matching property names
+     */
+    List<String> getByPrefix(String prefix, boolean exactPrefixMatch)
+    {
+        if (exactPrefixMatch)
+            return snapshot(namesByParent.get(prefix));
+
+        // all the names starting with the prefix sort right after it
+        List<String> result = new ArrayList<String>();
+        for (String name : names.tailSet(prefix, true))
+        {
+            if (!name.startsWith(prefix))
+                break;
+            result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the property names whose part after the last dot is
+     * <tt>suffix</tt>.
+     *
+     * @param suffix the last segment of the names
+     * @return the matching property names
+     */
+    List<String> getBySuffix(String suffix)
+    {
+        return snapshot(namesByLastSegment.get(suffix));
+    }
+
+    private static Set<String> group(Map<String, Set<String>> groups,
+                                     String key)
+    {
+        Set<String> group = groups.get(key);
+        if (group == null)
+        {
+            group = ConcurrentHashMap.newKeySet();
+            groups.put(key, group);
+        }
+        return group;
+    }
+
+    private static void ungroup(Map<String, Set<String>> groups,
+                                String key,
+                                String name)
+    {
+        Set<String> group = groups.get(key);
+        if (group != null)
+        {
+            group.remove(name);
+            if (group.isEmpty())
+                groups.remove(key);
+        }
+    }
+
+    private static List<String> snapshot(Set<String> group)
+    {
+        return group == null
+            ? new ArrayList<String>()
+            : new ArrayList<String>(group);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import org.jitsi.service.fileaccess.*;
+import org.junit.*;
+
+/**
+ * Tests that the configuration changes are written to the database in
+ * batches, at once when the configuration is stored, and again after a
+ * failed write. The database is checked through a connection of its own.
+ */
+public class TestJdbcConfigService
+{
+    /**
+     * A delay long enough for the changes never to be written because of
+     * it during a test.
+     */
+    private static final long NEVER = 60 * 60 * 1000;
+
+    /**
+     * The number of changes written without waiting.
+     */
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    private File directory;
+
+    private JdbcConfigService config;
+
+    private Connection database;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("configuration").toFile();
+        config = createService();
+        database = DriverManager.getConnection(
+            "jdbc:hsqldb:file:"
+                + new File(directory, "props.hsql").getAbsolutePath());
+    }
+
+    @After
+    public void tearDown()
+        throws SQLException
+    {
+        try
+        {
+            config.storeConfiguration();
+        }
+        catch (IOException e)
+        {
+        }
+        database.close();
+        delete(directory);
+    }
+
+    /**
+     * Tests that the changes wait to be written until enough of them are
+     * queued, and are then written together.
+     */
+    @Test
+    public void testBatchedWrites()
+        throws Exception
+    {
+        for (int i = 0; i < WRITE_BATCH_SIZE - 1; i++)
+            config.setProperty("p" + i, i);
+        Thread.sleep(100);
+        assertTrue(storedProperties().isEmpty());
+        assertEquals("0", config.getString("p0"));
+
+        config.setProperty("p" + (WRITE_BATCH_SIZE - 1), "last");
+        waitForStoredProperties(WRITE_BATCH_SIZE);
+        assertEquals("last",
+            storedProperties().get("p" + (WRITE_BATCH_SIZE - 1)));
+    }
+
+    /**
+     * Tests that storing the configuration writes the queued changes, last
+     * value of each property, and that they are loaded after a restart.
+     */
+    @Test
+    public void testStoreConfiguration()
+        throws Exception
+    {
+        config.setProperty("kept", "1");
+        config.setProperty("removed", "2");
+        config.storeConfiguration();
+
+        config.setProperty("kept", "3");
+        config.setProperty("kept", "4");
+        config.removeProperty("removed");
+        config.setProperty("added", "5");
+        assertEquals(2, storedProperties().size());
+
+        config.storeConfiguration();
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("kept", "4");
+        expected.put("added", "5");
+        assertEquals(expected, storedProperties());
+
+        JdbcConfigService restarted = createService();
+        assertEquals("4", restarted.getString("kept"));
+        assertNull(restarted.getString("removed"));
+        assertEquals("5", restarted.getString("added"));
+        restarted.storeConfiguration();
+    }
+
+    /**
+     * Tests that the changes which failed to be written are queued again,
+     * without overwriting the ones made meanwhile, and written by the next
+     * store.
+     */
+    @Test
+    public void testRequeueAfterFailedStore()
+        throws Exception
+    {
+        config.setProperty("a", "1");
+        config.setProperty("b", "2");
+        dropTable();
+
+        try
+        {
+            config.storeConfiguration();
+            fail();
+        }
+        catch (IOException expected)
+        {
+        }
+        config.setProperty("b", "3");
+
+        // the connection is opened again and creates the table
+        config.storeConfiguration();
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("a", "1");
+        expected.put("b", "3");
+        assertEquals(expected, storedProperties());
+    }
+
+    /**
+     * Tests that a write which failed in the background is retried until it
+     * succeeds.
+     */
+    @Test
+    public void testRetryAfterFailedWrite()
+        throws Exception
+    {
+        dropTable();
+        for (int i = 0; i < WRITE_BATCH_SIZE; i++)
+            config.setProperty("p" + i, i);
+        Thread.sleep(100);
+
+        createTable();
+        waitForStoredProperties(WRITE_BATCH_SIZE);
+    }
+
+    /**
+     * Tests that the purge drops the queued changes with the properties.
+     */
+    @Test
+    public void testPurge()
+        throws Exception
+    {
+        config.setProperty("stored", "1");
+        config.storeConfiguration();
+        config.setProperty("queued", "2");
+
+        config.purgeStoredConfiguration();
+        assertNull(config.getString("stored"));
+        assertNull(config.getString("queued"));
+
+        config.storeConfiguration();
+        assertTrue(storedProperties().isEmpty());
+    }
+
+    /**
+     * Creates a service of the database of the temporary directory, which
+     * writes the changes only by batches and retries the failed writes at
+     * once.
+     */
+    private JdbcConfigService createService()
+        throws Exception
+    {
+        FileAccessService fas = (FileAccessService) Proxy.newProxyInstance(
+            FileAccessService.class.getClassLoader(),
+            new Class<?>[] { FileAccessService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    return new File(directory, (String) args[0]);
+                }
+            });
+
+        return new JdbcConfigService(fas, NEVER, 10);
+    }
+
+    private Map<String, String> storedProperties()
+        throws SQLException
+    {
+        Map<String, String> properties = new HashMap<String, String>();
+
+        try (Statement st = database.createStatement();
+             ResultSet rs = st.executeQuery("SELECT k, v FROM Props"))
+        {
+            while (rs.next())
+                properties.put(rs.getString(1), rs.getString(2));
+        }
+        return properties;
+    }
+
+    /**
+     * Waits for the database to hold <tt>count</tt> properties.
+     */
+    private void waitForStoredProperties(int count)
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (storedProperties().size() != count)
+        {
+            if (System.currentTimeMillis() > deadline)
+                fail(storedProperties().size() + " properties stored");
+            Thread.sleep(10);
+        }
+    }
+
+    private void dropTable()
+        throws SQLException
+    {
+        try (Statement st = database.createStatement())
+        {
+            st.executeUpdate("DROP TABLE Props");
+        }
+    }
+
+    private void createTable()
+        throws SQLException
+    {
+        try (Statement st = database.createStatement())
+        {
+            st.executeUpdate(
+                "CREATE TABLE Props (k LONGVARCHAR UNIQUE, v LONGVARCHAR)");
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
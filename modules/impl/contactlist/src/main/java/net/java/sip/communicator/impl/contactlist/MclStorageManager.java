@@ -18,10 +18,12 @@
 package net.java.sip.communicator.impl.contactlist;
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 
-import javax.xml.parsers.*;
+import javax.xml.stream.*;
 
+import net.java.sip.communicator.impl.contactlist.StoredContactList.*;
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -31,7 +33,6 @@
 import org.jitsi.service.fileaccess.*;
 import org.jitsi.util.xml.*;
 import org.osgi.framework.*;
-import org.w3c.dom.*;
 
 /**
  * The class handles read / write operations over the file where a persistent
@@ -48,6 +49,11 @@
  * belonging to this new provider. Unresolved proto groups and contacts will be
  * created for every one of them.
  * <p>
+ * Once loaded, the contact list file is not rewritten after every change.
+ * The changes are appended to a journal next to it, which is replayed over
+ * the file on startup and compacted into it once it grows larger than the
+ * list itself.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -105,9 +111,10 @@
         "net.java.sip.communicator.CONTACTLIST_FILE_NAME";
 
     /**
-     * The XML Document containing the contact list file.
+     * The persistent copy of the contact list, as in the contact list file
+     * and its journal.
      */
-    private Document contactListDocument = null;
+    private StoredContactList storedContactList = null;
 
     /**
      * A reference to the file containing the locally stored meta contact list.
@@ -132,116 +139,38 @@
     private static final String DEFAULT_FILE_NAME = "contactlist.xml";
 
     /**
-     * The name of the node that represents the contact list root.
-     */
-    private static String DOCUMENT_ROOT_NAME = "sip-communicator";
-
-    /**
-     * The name of the XML node corresponding to a meta contact group.
-     */
-    private static final String GROUP_NODE_NAME = "group";
-
-    /**
-     * The name of the XML node corresponding to a collection of meta contact
-     * subgroups.
-     */
-    private static final String SUBGROUPS_NODE_NAME = "subgroups";
-
-    /**
-     * The name of the XML attribute that contains group names.
-     */
-    private static final String GROUP_NAME_ATTR_NAME = "name";
-
-    /**
-     * The name of the XML attribute that contains group UIDs.
-     */
-    private static final String GROUP_UID_ATTR_NAME = "uid";
-
-    /**
-     * The name of the XML node that contains protocol specific group
-     * descriptorS.
-     */
-    private static final String PROTO_GROUPS_NODE_NAME = "proto-groups";
-
-    /**
-     * The name of the XML node that contains A protocol specific group
-     * descriptor.
-     */
-    private static final String PROTO_GROUP_NODE_NAME = "proto-group";
-
-    /**
-     * The name of the XML attribute that contains unique identifiers
-     */
-    private static final String UID_ATTR_NAME = "uid";
-
-    /**
-     * The name of the XML attribute that contains unique identifiers for parent
-     * contact groups.
-     */
-    private static final String PARENT_PROTO_GROUP_UID_ATTR_NAME =
-        "parent-proto-group-uid";
-
-    /**
-     * The name of the XML attribute that contains account identifiers
-     * indicating proto group's and proto contacts' owning providers.
-     */
-    private static final String ACCOUNT_ID_ATTR_NAME = "account-id";
-
-    /**
-     * The name of the XML node that contains meta contact details.
-     */
-    private static final String META_CONTACT_NODE_NAME = "meta-contact";
-
-    /**
-     * The name of the XML node that contains meta contact display names.
-     */
-    private static final String META_CONTACT_DISPLAY_NAME_NODE_NAME =
-        "display-name";
-
-    /**
-     * The name of the XML attribute that contains true/false, whether
-     * this meta contact was renamed by user.
-     */
-    private static final String USER_DEFINED_DISPLAY_NAME_ATTR_NAME =
-        "user-defined";
-
-    /**
-     * The name of the XML node that contains meta contact detail.
+     * The suffix of the name of the journal of the contact list file.
      */
-    private static final String META_CONTACT_DETAIL_NAME_NODE_NAME = "detail";
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
 
     /**
-     * The name of the XML attribute that contains detail name.
+     * The number of journal records above the number of groups and meta
+     * contacts of the list after which the journal is compacted into the
+     * contact list file.
      */
-    private static final String DETAIL_NAME_ATTR_NAME = "name";
+    private static final int COMPACT_THRESHOLD = 1000;
 
     /**
-     * The name of the XML attribute that contains detail value.
+     * A reference to the journal of the changes made to the contact list
+     * since the contact list file was written.
      */
-    private static final String DETAIL_VALUE_ATTR_NAME = "value";
+    private File journalFile = null;
 
     /**
-     * The name of the XML node that contains information of a proto contact
+     * The journal records not yet written to the journal file.
      */
-    private static final String PROTO_CONTACT_NODE_NAME = "contact";
+    private final StringBuilder pendingRecords = new StringBuilder();
 
     /**
-     * The name of the XML node that contains information of a proto contact
+     * The number of records of the journal, including the pending ones.
      */
-    private static final String PROTO_CONTACT_ADDRESS_ATTR_NAME = "address";
+    private int journalRecords = 0;
 
     /**
-     * The name of the XML node that contains information that contacts or
-     * groups returned as persistent and that should be used when restoring a
-     * contact or a group.
+     * Indicates whether the contact list file has to be rewritten on the next
+     * storage, whatever the size of the journal.
      */
-    private static final String PERSISTENT_DATA_NODE_NAME = "persistent-data";
-
-    /**
-     * The name of the XML node that contains all meta contact nodes inside a
-     * group
-     */
-    private static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
+    private boolean snapshotRequired = false;
 
     /**
      * A lock that we use when storing the contact list to avoid being exited
@@ -331,6 +260,8 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
             throw new IOException("Failed to get a reference to the contact "
                 + "list file=" + fileName + ". error was:" + ex.getMessage());
         }
+        journalFile
+            = new File(contactlistFile.getPath() + JOURNAL_FILE_SUFFIX);
 
         multiTenantMode = configurationService.getBoolean(
             MULTI_TENANT_MODE_PROP, multiTenantMode);
@@ -351,47 +282,51 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
             logger.error("The contactlist file can't be found", e);
         }
 
-        try
+        // load the contact list
+        if (contactlistFile.length() != 0)
         {
-            // load the contact list
-            DocumentBuilder builder
-                = XMLUtils.newDocumentBuilderFactory().newDocumentBuilder();
-            if (contactlistFile.length() == 0)
-            {
-                // if the contact list does not exist - create it.
-                contactListDocument = builder.newDocument();
-                initVirginDocument(mclServImpl, contactListDocument);
-
-                // write the contact list so that it is there for the parser
-                storeContactList0();
-            }
-            else
+            try
             {
+                InputStream in
+                    = new BufferedInputStream(
+                            new FileInputStream(contactlistFile));
                 try
                 {
-                    contactListDocument = builder.parse(contactlistFile);
+                    storedContactList = StoredContactList.read(in);
                 }
-                catch (Throwable ex)
+                finally
                 {
-                    logger.error("Error parsing configuration file", ex);
-                    logger.error("Creating replacement file");
-
-                    // re-create and re-init the new document
-                    contactlistFile.delete();
-                    contactlistFile.createNewFile();
-                    contactListDocument = builder.newDocument();
-                    initVirginDocument(mclServImpl, contactListDocument);
-
-                    // write the contact list so that it is there for the parser
-                    storeContactList0();
+                    in.close();
                 }
             }
+            catch (Throwable ex)
+            {
+                logger.error("Error parsing configuration file", ex);
+                storedContactList = null;
+            }
+
+            // If there is no root, there is definitely something wrong
+            // really broken file will create it again
+            if (storedContactList != null
+                && !storedContactList.getRoot().uid.equals(
+                        mclServImpl.getRoot().getMetaUID()))
+            {
+                logger.error(
+                    "The contactlist file is recreated cause its broken");
+                storedContactList = null;
+            }
+        }
+
+        if (storedContactList == null)
+        {
+            // if the contact list does not exist - create it.
+            if (contactlistFile.length() != 0)
+                logger.error("Creating replacement file");
+            initVirginContactList(mclServImpl);
         }
-        catch (ParserConfigurationException ex)
+        else
         {
-            // it is not highly probable that this might happen - so lets just
-            // log it.
-            logger.error("Error finding configuration for default parsers", ex);
+            replayJournal();
         }
 
         mclServImpl.addMetaContactListListener(this);
@@ -400,6 +335,88 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
         this.launchStorageThread();
     }
 
+    /**
+     * Applies the records of the journal file to the contact list read from
+     * the contact list file. The contact list file is rewritten on the next
+     * storage if the journal is broken.
+     *
+     * @throws IOException if reading the journal fails.
+     */
+    private void replayJournal()
+        throws IOException
+    {
+        for (String record : readJournal(journalFile))
+        {
+            journalRecords++;
+            if (!storedContactList.apply(record))
+            {
+                logger.warn(
+                    "Ignoring contact list journal record "
+                        + journalRecords);
+                snapshotRequired = true;
+            }
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                "Replayed " + journalRecords
+                    + " contact list journal records");
+        }
+        if (snapshotRequired)
+            isModified = true;
+    }
+
+    /**
+     * Reads the complete records of a journal file. A record interrupted
+     * while being written, which does not end with a new line, is cut from
+     * the file so that it is neither applied nor continued by the next
+     * record appended to the journal.
+     *
+     * @param journalFile the journal file.
+     * @return the records, without their new lines.
+     * @throws IOException if reading or truncating the journal fails.
+     */
+    static List<String> readJournal(File journalFile)
+        throws IOException
+    {
+        if (!journalFile.exists() || journalFile.length() == 0)
+            return Collections.emptyList();
+
+        byte[] bytes = Files.readAllBytes(journalFile.toPath());
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n')
+            end--;
+
+        if (end < bytes.length)
+        {
+            logger.warn(
+                "Dropping the interrupted last record of the contact list"
+                    + " journal");
+
+            RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+            try
+            {
+                journal.setLength(end);
+            }
+            finally
+            {
+                journal.close();
+            }
+        }
+
+        List<String> records = new ArrayList<String>();
+        BufferedReader reader
+            = new BufferedReader(
+                    new InputStreamReader(
+                            new ByteArrayInputStream(bytes, 0, end),
+                            "UTF-8"));
+        String record;
+        while ((record = reader.readLine()) != null)
+            records.add(record);
+        return records;
+    }
+
     /**
      * Stores the contact list in its current state.
      *
@@ -418,7 +435,40 @@ private void scheduleContactListStorage() throws IOException
     }
 
     /**
-     * Writes the contact list on the hard disk.
+     * Adds records to the journal and schedules their storage. Must be
+     * called while holding <tt>contactListRWLock</tt>.
+     *
+     * @param records the records, each ending with a new line
+     * @param source the source of the change, for logging
+     */
+    private void journal(String records, Object source)
+    {
+        pendingRecords.append(records);
+        for (int i = 0; i < records.length(); i++)
+        {
+            if (records.charAt(i) == '\n')
+                journalRecords++;
+        }
+
+        try
+        {
+            scheduleContactListStorage();
+        }
+        catch (IOException ex)
+        {
+            /**
+             * given we're being invoked from an event dispatch thread that was
+             * probably triggered by a net operation - we could not do much. so
+             * ... log and @todo one day we'll have a global error dispatcher
+             */
+            logger.error("Writing CL failed after changing " + source, ex);
+        }
+    }
+
+    /**
+     * Writes the contact list on the hard disk: the changes are appended to
+     * the journal, which is compacted into the contact list file once it has
+     * more records than needed to rebuild the list.
      *
      * @throws IOException in case writing fails.
      */
@@ -430,33 +480,80 @@ private void storeContactList0() throws IOException
         if (logger.isTraceEnabled())
             logger.trace("storing contact list. because is modified =="
             + isModified);
-        if (isStarted())
+
+        if (snapshotRequired
+            || journalRecords > storedContactList.size() + COMPACT_THRESHOLD)
+        {
+            writeContactListFile();
+        }
+        else if (pendingRecords.length() != 0)
         {
-            // begin a new transaction
+            Writer writer
+                = new OutputStreamWriter(
+                        new FileOutputStream(journalFile, true), "UTF-8");
             try
             {
-                contactlistTrans.beginTransaction();
+                writer.write(pendingRecords.toString());
             }
-            catch (IllegalStateException e)
+            finally
             {
-                logger.error("the contactlist file is missing", e);
+                writer.close();
             }
+            pendingRecords.setLength(0);
+        }
+    }
+
+    /**
+     * Writes the whole contact list to the contact list file, and empties the
+     * journal.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void writeContactListFile() throws IOException
+    {
+        // begin a new transaction
+        try
+        {
+            contactlistTrans.beginTransaction();
+        }
+        catch (IllegalStateException e)
+        {
+            logger.error("the contactlist file is missing", e);
+        }
 
-            // really write the modification
-            OutputStream stream = new FileOutputStream(contactlistFile);
-            XMLUtils.indentedWriteXML(contactListDocument, stream);
+        // really write the modification
+        OutputStream stream
+            = new BufferedOutputStream(new FileOutputStream(contactlistFile));
+        try
+        {
+            storedContactList.write(stream);
+        }
+        catch (XMLStreamException ex)
+        {
+            throw new IOException("Failed to write the contact list", ex);
+        }
+        finally
+        {
             stream.close();
+        }
 
-            // commit the changes
-            try
-            {
-                contactlistTrans.commit();
-            }
-            catch (IllegalStateException e)
-            {
-                logger.error("the contactlist file is missing", e);
-            }
+        // commit the changes
+        try
+        {
+            contactlistTrans.commit();
+        }
+        catch (IllegalStateException e)
+        {
+            logger.error("the contactlist file is missing", e);
         }
+
+        // the file now contains all the records of the journal. if we are
+        // interrupted before truncating it, replaying it over the file does
+        // no harm.
+        new FileOutputStream(journalFile).close();
+        pendingRecords.setLength(0);
+        journalRecords = 0;
+        snapshotRequired = false;
     }
 
     /**
@@ -478,7 +575,7 @@ public void run()
                         while (isStarted())
                         {
                             contactListRWLock.wait(5000);
-                            if (isModified)
+                            if (isModified && isStarted())
                             {
                                 storeContactList0();
                                 isModified = false;
@@ -519,7 +616,11 @@ public void storeContactListAndStopStorageManager()
             // write the contact list ourselves before we go out..
             try
             {
-                storeContactList0();
+                if (isModified)
+                {
+                    storeContactList0();
+                    isModified = false;
+                }
             }
             catch (IOException ex)
             {
@@ -530,14 +631,17 @@ public void storeContactListAndStopStorageManager()
     }
 
     /**
-     * update persistent data in the dom object model for the given metacontact
-     * and its contacts
+     * Updates the stored persistent data of the contacts of the given meta
+     * contact.
      *
      * @param metaContact MetaContact target meta contact
+     * @param storedMetaContact the stored copy of <tt>metaContact</tt>
+     * @return <tt>true</tt> if the persistent data of a contact has changed
      */
-    private void updatePersistentDataForMetaContact(MetaContact metaContact)
+    private boolean updatePersistentDataForMetaContact(
+        MetaContact metaContact, StoredMetaContact storedMetaContact)
     {
-        Element metaContactNode = findMetaContactNode(metaContact.getMetaUID());
+        boolean isChanged = false;
 
         Iterator<Contact> iter = metaContact.getContacts();
         while (iter.hasNext())
@@ -546,59 +650,56 @@ private void updatePersistentDataForMetaContact(MetaContact metaContact)
             String persistentData = item.getPersistentData();
 
             /*
-             * TODO If persistentData is null and persistentDataNode exists and
-             * contains non-null text, will persistentDataNode be left without
+             * TODO If persistentData is null and the stored persistent data
+             * is not, will the stored persistent data be left without
              * updating?
              */
-            if (persistentData != null)
-            {
-                Element currentNode =
-                    XMLUtils.locateElement(metaContactNode,
-                        PROTO_CONTACT_NODE_NAME,
-                        PROTO_CONTACT_ADDRESS_ATTR_NAME, item.getAddress());
-
-                Element persistentDataNode =
-                    XMLUtils.findChild(currentNode, PERSISTENT_DATA_NODE_NAME);
-
-                // if node does not exist - create it
-                if (persistentDataNode == null)
-                {
-                    persistentDataNode =
-                        contactListDocument
-                            .createElement(PERSISTENT_DATA_NODE_NAME);
+            if (persistentData == null)
+                continue;
 
-                    currentNode.appendChild(persistentDataNode);
-                }
+            StoredProtoContact storedProtoContact
+                = storedMetaContact.findProtoContact(
+                    item.getAddress(),
+                    item.getProtocolProvider().getAccountID()
+                        .getAccountUniqueID());
 
-                XMLUtils.setText(persistentDataNode, persistentData);
+            if (storedProtoContact != null
+                && !persistentData.equals(storedProtoContact.persistentData))
+            {
+                storedProtoContact.persistentData = persistentData;
+                isChanged = true;
             }
         }
+        return isChanged;
     }
 
     /**
-     * Fills the document with the tags necessary for it to be filled properly
-     * as the meta contact list evolves.
+     * Creates the contact list with the root group only, which is written on
+     * the next storage.
      *
      * @param mclServImpl the meta contact list service to use when
-     *            initializing the document.
-     * @param contactListDoc the document to init.
+     *            initializing the contact list.
+     * @throws IOException if the journal of a previous contact list could not
+     *             be emptied.
      */
-    private void initVirginDocument(MetaContactListServiceImpl mclServImpl,
-        Document contactListDoc)
+    private void initVirginContactList(MetaContactListServiceImpl mclServImpl)
+        throws IOException
     {
-        Element root = contactListDoc.createElement(DOCUMENT_ROOT_NAME);
+        MetaContactGroup root = mclServImpl.getRoot();
 
-        contactListDoc.appendChild(root);
+        storedContactList
+            = new StoredContactList(root.getMetaUID(), root.getGroupName());
 
-        // create the rootGroup
-        Element rootGroup =
-            createMetaContactGroupNode(mclServImpl.getRoot());
+        // the journal of a previous contact list does not apply to this one
+        if (journalFile.exists())
+            new FileOutputStream(journalFile).close();
 
-        root.appendChild(rootGroup);
+        snapshotRequired = true;
+        isModified = true;
     }
 
     /**
-     * Parses the contact list file and calls corresponding "add" methods
+     * Goes through the contact list and calls corresponding "add" methods
      * belonging to <tt>mclServiceImpl</tt> for every meta contact and meta
      * contact group stored in the (contactlist.xml) file that correspond to a
      * provider caring the specified <tt>accountID</tt>.
@@ -622,36 +723,52 @@ void extractContactsForAccount(String accountID) throws XMLException
 
         try
         {
-            Element root =
-                findMetaContactGroupNode(mclServiceImpl.getRoot().getMetaUID());
-
-            if (root == null)
+            // work on a copy so that we don't hold the lock while creating
+            // the groups and contacts
+            StoredGroup root;
+            synchronized (contactListRWLock)
             {
-                // If there is no root, there is definitely something wrong
-                // really broken file will create it again
-                logger.error("The contactlist file is recreated cause its broken");
+                root = storedContactList.getRoot().copy();
+            }
 
-                DocumentBuilderFactory factory =
-                    DocumentBuilderFactory.newInstance();
-                DocumentBuilder builder = factory.newDocumentBuilder();
-                contactListDocument = builder.newDocument();
+            // parse the group and extract all its child groups and contacts
+            List<String> brokenGroups = new ArrayList<String>();
+            List<String> brokenMetaContacts = new ArrayList<String>();
 
-                initVirginDocument(mclServiceImpl, contactListDocument);
+            processStoredGroup(mclServiceImpl, accountID, root, null, null,
+                brokenGroups, brokenMetaContacts);
 
-                // write the contact list so that it is there for the parser
-                storeContactList0();
-            }
-            else
+            // remove the broken groups and contacts so that they don't cause
+            // us problems again
+            synchronized (contactListRWLock)
             {
-                // if there is root lets parse it
-                // parse the group node and extract all its child groups and
-                // contacts
-                processGroupXmlNode(mclServiceImpl, accountID, root, null, null);
+                StringBuilder records = new StringBuilder();
 
-                // now save the contact list in case it has changed
-                scheduleContactListStorage();
-            }
+                for (String uid : brokenGroups)
+                {
+                    StoredGroup group = storedContactList.findGroup(uid);
+                    if (group != null)
+                    {
+                        storedContactList.removeGroup(group);
+                        records.append(
+                            StoredContactList.groupRemovedRecord(uid));
+                    }
+                }
+                for (String uid : brokenMetaContacts)
+                {
+                    StoredMetaContact metaContact
+                        = storedContactList.findMetaContact(uid);
+                    if (metaContact != null)
+                    {
+                        storedContactList.removeMetaContact(metaContact);
+                        records.append(
+                            StoredContactList.metaContactRemovedRecord(uid));
+                    }
+                }
 
+                if (records.length() != 0)
+                    journal(records.toString(), accountID);
+            }
         }
         catch (Throwable exc)
         {
@@ -671,26 +788,30 @@ void extractContactsForAccount(String accountID) throws XMLException
     }
 
     /**
-     * Parses <tt>groupNode</tt> and all of its subnodes, creating corresponding
-     * instances through <tt>mclServiceImpl</tt> as children of
+     * Goes through <tt>group</tt> and all of its subgroups, creating
+     * corresponding instances through <tt>mclServiceImpl</tt> as children of
      * <tt>parentGroup</tt>
      *
      * @param mclServImpl the <tt>MetaContactListServiceImpl</tt> for
      *            creating new contacts and groups.
      * @param accountID a String identifier of the account whose contacts we're
      *            interested in.
-     * @param groupNode the XML <tt>Element</tt> that points to the group we're
-     *            currently parsing.
+     * @param group the stored group we're currently going through.
      * @param parentGroup the <tt>MetaContactGroupImpl</tt> where we should be
      *            creating children.
      * @param parentProtoGroups a Map containing all proto groups that could be
-     *            parents of any groups parsed from the specified groupNode. The
-     *            map binds UIDs to group references and may be null for top
-     *            level groups.
-     */
-    private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
-        String accountID, Element groupNode, MetaContactGroupImpl parentGroup,
-        Map<String, ContactGroup> parentProtoGroups)
+     *            parents of any groups of the specified group. The map binds
+     *            UIDs to group references and may be null for top level
+     *            groups.
+     * @param brokenGroups the list to add the UIDs of the groups that could
+     *            not be loaded to.
+     * @param brokenMetaContacts the list to add the UIDs of the meta contacts
+     *            that could not be loaded to.
+     */
+    private void processStoredGroup(MetaContactListServiceImpl mclServImpl,
+        String accountID, StoredGroup group, MetaContactGroupImpl parentGroup,
+        Map<String, ContactGroup> parentProtoGroups,
+        List<String> brokenGroups, List<String> brokenMetaContacts)
     {
         // first resolve the group itself.(unless this is the meta contact list
         // root which is already resolved)
@@ -708,64 +829,27 @@ private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
         }
         else
         {
-            String groupMetaUID =
-                XMLUtils.getAttribute(groupNode, GROUP_UID_ATTR_NAME);
-            String groupDisplayName =
-                XMLUtils.getAttribute(groupNode, GROUP_NAME_ATTR_NAME);
-
             // create the meta group
             if(!multiTenantMode)
             {
                 currentMetaGroup =
                     mclServImpl.loadStoredMetaContactGroup(parentGroup,
-                        groupMetaUID, groupDisplayName);
+                        group.uid, group.name);
             }
 
-            // extract and load one by one all proto groups in this meta group.
-            Node protoGroupsNode =
-                XMLUtils.findChild(groupNode, PROTO_GROUPS_NODE_NAME);
-
-            NodeList protoGroups = protoGroupsNode.getChildNodes();
-
-            for (int i = 0; i < protoGroups.getLength(); i++)
+            // load one by one all proto groups in this meta group.
+            for (StoredProtoGroup protoGroup : group.protoGroups)
             {
-                Node currentProtoGroupNode = protoGroups.item(i);
-
-                if (currentProtoGroupNode.getNodeType() != Node.ELEMENT_NODE)
-                    continue;
-
-                String groupAccountID =
-                    XMLUtils.getAttribute(currentProtoGroupNode,
-                        ACCOUNT_ID_ATTR_NAME);
-
-                if (!accountID.equals(groupAccountID))
+                if (!accountID.equals(protoGroup.accountID))
                     continue;
 
-                String protoGroupUID =
-                    XMLUtils.getAttribute(currentProtoGroupNode, UID_ATTR_NAME);
-
-                String parentProtoGroupUID =
-                    XMLUtils.getAttribute(currentProtoGroupNode,
-                        PARENT_PROTO_GROUP_UID_ATTR_NAME);
-
-                Element persistentDataNode =
-                    XMLUtils.findChild((Element) currentProtoGroupNode,
-                        PERSISTENT_DATA_NODE_NAME);
-
-                String persistentData = "";
-
-                if (persistentDataNode != null)
-                {
-                    persistentData = XMLUtils.getText(persistentDataNode);
-                }
-
                 // try to find the parent proto group for the one we're
                 // currently
                 // parsing.
                 ContactGroup parentProtoGroup = null;
                 if (parentProtoGroups != null && parentProtoGroups.size() > 0)
                     parentProtoGroup =
-                        parentProtoGroups.get(parentProtoGroupUID);
+                        parentProtoGroups.get(protoGroup.parentUID);
 
                 // create the meta group if it is not already created
                 if(multiTenantMode && currentMetaGroup == null)
@@ -775,16 +859,19 @@ private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
                     // existing providers
                     currentMetaGroup =
                         mclServImpl.loadStoredMetaContactGroup(parentGroup,
-                            groupMetaUID, groupDisplayName);
+                            group.uid, group.name);
                 }
 
                 // create the proto group
                 ContactGroup newProtoGroup =
                     mclServImpl.loadStoredContactGroup(currentMetaGroup,
-                        protoGroupUID, parentProtoGroup, persistentData,
+                        protoGroup.uid, parentProtoGroup,
+                        (protoGroup.persistentData == null)
+                            ? ""
+                            : protoGroup.persistentData,
                         accountID);
 
-                protoGroupsMap.put(protoGroupUID, newProtoGroup);
+                protoGroupsMap.put(protoGroup.uid, newProtoGroup);
             }
 
             // if this is not the meta contact list root and if it doesn't
@@ -795,45 +882,18 @@ private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
                 return;
         }
 
-        // we have parsed groups now go over the children
-        Node childContactsNode =
-            XMLUtils.findChild(groupNode, CHILD_CONTACTS_NODE_NAME);
-
-        NodeList childContacts =
-            (childContactsNode == null) ? null : childContactsNode
-                .getChildNodes();
-
         // go over every meta contact, extract its details and its encapsulated
         // proto contacts
-        for (int i = 0; childContacts != null && i < childContacts.getLength(); i++)
+        for (StoredMetaContact metaContact : group.childContacts.values())
         {
-            Node currentMetaContactNode = childContacts.item(i);
-
-            if (currentMetaContactNode.getNodeType() != Node.ELEMENT_NODE)
-                continue;
-
             try
             {
-                String uid =
-                    XMLUtils
-                        .getAttribute(currentMetaContactNode, UID_ATTR_NAME);
-
-                Element displayNameNode =
-                    XMLUtils.findChild((Element) currentMetaContactNode,
-                        META_CONTACT_DISPLAY_NAME_NODE_NAME);
-
-                String displayName = XMLUtils.getText(displayNameNode);
-
-                boolean isDisplayNameUserDefined =
-                    Boolean.valueOf(displayNameNode
-                            .getAttribute(USER_DEFINED_DISPLAY_NAME_ATTR_NAME));
-
-                // extract a map of all encapsulated proto contacts
+                // extract a list of all encapsulated proto contacts
                 List<MclStorageManager.StoredProtoContactDescriptor> protoContacts =
-                    extractProtoContacts((Element) currentMetaContactNode,
-                        accountID, protoGroupsMap);
+                    extractProtoContacts(metaContact, accountID,
+                        protoGroupsMap);
 
-                // if the size of the map is 0 then the meta contact does not
+                // if the size of the list is 0 then the meta contact does not
                 // contain any contacts matching the currently parsed account
                 // id.
                 if (protoContacts.size() < 1)
@@ -841,140 +901,72 @@ private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
 
                 // Extract contact details.
                 Map<String, List<String>> details = null;
-                try
+                if (metaContact.details.size() > 0)
                 {
-                    List<Element> detailsNodes =
-                        XMLUtils.findChildren((Element) currentMetaContactNode,
-                            META_CONTACT_DETAIL_NAME_NODE_NAME);
-                    if (detailsNodes.size() > 0)
+                    details = new Hashtable<String, List<String>>();
+                    for (Map.Entry<String, List<String>> detail
+                            : metaContact.details.entrySet())
                     {
-                        details = new Hashtable<String, List<String>>();
-                        for (Element e : detailsNodes)
-                        {
-                            String name = e.getAttribute(DETAIL_NAME_ATTR_NAME);
-                            String value
-                                = e.getAttribute(DETAIL_VALUE_ATTR_NAME);
-
-                            List<String> detailsObj = details.get(name);
-                            if (detailsObj == null)
-                            {
-                                List<String> ds = new ArrayList<String>();
-                                ds.add(value);
-                                details.put(name, ds);
-                            }
-                            else
-                                detailsObj.add(value);
-                        }
+                        details.put(
+                            detail.getKey(),
+                            new ArrayList<String>(detail.getValue()));
                     }
                 }
-                catch (Exception ex)
-                {
-                    // catch any exception from loading contacts
-                    // that will prevent loading the contact
-                    logger.error("Cannot load details for contact node "
-                        + currentMetaContactNode, ex);
-                }
 
-                // pass the parsed proto contacts to the mcl service
+                // pass the proto contacts to the mcl service
                 MetaContactImpl mc = mclServImpl.loadStoredMetaContact(
-                    currentMetaGroup, uid,
-                    displayName, details, protoContacts, accountID);
+                    currentMetaGroup, metaContact.uid,
+                    metaContact.displayName, details, protoContacts,
+                    accountID);
 
-                if(isDisplayNameUserDefined)
+                if(metaContact.displayNameUserDefined)
                     mc.setDisplayNameUserDefined(true);
             }
             catch (Throwable thr)
             {
-                // if we fail parsing a meta contact, we should remove it so
+                // if we fail loading a meta contact, we should remove it so
                 // that
                 // it stops causing trouble, and let other meta contacts load.
-                logger.warn("Failed to parse meta contact "
-                    + currentMetaContactNode
+                logger.warn("Failed to load meta contact "
+                    + metaContact.uid
                     + ". Will remove and continue with other contacts", thr);
 
-                // remove the node so that it doesn't cause us problems again
-                if (currentMetaContactNode.getParentNode() != null)
-                {
-                    try
-                    {
-                        currentMetaContactNode.getParentNode().removeChild(
-                            currentMetaContactNode);
-                    }
-                    catch (Throwable throwable)
-                    {
-                        // hmm, failed to remove the faulty node. we must be
-                        // in some kind of serious troble (but i don't see
-                        // what we can do about it)
-                        logger.error("Failed to remove meta contact node "
-                            + currentMetaContactNode, throwable);
-                    }
-                }
-
+                brokenMetaContacts.add(metaContact.uid);
             }
         }
 
         // now, last thing that's left to do - go over all subgroups if any
-        Node subgroupsNode = XMLUtils.findChild(groupNode, SUBGROUPS_NODE_NAME);
-
-        if (subgroupsNode == null)
-            return;
-
-        NodeList subgroups = subgroupsNode.getChildNodes();
-
-        // recurse for every sub meta group
-        for (int i = 0; i < subgroups.getLength(); i++)
+        for (StoredGroup subgroup : group.subgroups.values())
         {
-            Node currentGroupNode = subgroups.item(i);
-
-            if (currentGroupNode.getNodeType() != Node.ELEMENT_NODE
-                || !currentGroupNode.getNodeName().equals(GROUP_NODE_NAME))
-                continue;
-
             try
             {
-                processGroupXmlNode(mclServImpl, accountID,
-                    (Element) currentGroupNode, currentMetaGroup,
-                    protoGroupsMap);
+                processStoredGroup(mclServImpl, accountID, subgroup,
+                    currentMetaGroup, protoGroupsMap, brokenGroups,
+                    brokenMetaContacts);
             }
             catch (Throwable throwable)
             {
                 // catch everything and bravely continue with remaining groups
                 // and contacts
-                logger.error("Failed to process group node " + currentGroupNode
+                logger.error("Failed to process group " + subgroup.uid
                     + ". Removing.", throwable);
 
-                // remove the node so that it doesn't cause us problems again
-                if (currentGroupNode.getParentNode() != null)
-                {
-                    try
-                    {
-                        currentGroupNode.getParentNode().removeChild(
-                            currentGroupNode);
-                    }
-                    catch (Throwable thr)
-                    {
-                        // hmm, failed to remove the faulty node. we must be
-                        // in some kind of serious troble (but i don't see
-                        // what we can do about it)
-                        logger.error("Failed to remove group node "
-                            + currentGroupNode, thr);
-                    }
-                }
+                brokenGroups.add(subgroup.uid);
             }
         }
     }
 
     /**
-     * Returns all proto contacts that are encapsulated inside the meta contact
-     * represented by <tt>metaContactNode</tt> and that originate from the
-     * account with id - <tt>accountID</tt>. The returned list contains contact
+     * Returns all proto contacts that are encapsulated inside the stored meta
+     * contact <tt>metaContact</tt> and that originate from the account with
+     * id - <tt>accountID</tt>. The returned list contains contact
      * contact descriptors as elements. In case the meta contact does not
      * contain proto contacts originating from the specified account, an empty
      * list is returned.
      * <p>
      *
-     * @param metaContactNode the Element whose proto contacts we'd like to
-     *            extract.
+     * @param metaContact the stored meta contact whose proto contacts we'd
+     *            like to extract.
      * @param accountID the id of the account whose contacts we're interested
      *            in.
      * @param protoGroups a map binding proto group UIDs to protogroups, that
@@ -983,93 +975,41 @@ private void processGroupXmlNode(MetaContactListServiceImpl mclServImpl,
      * @return a java.util.List containing contact descriptors.
      */
     private List<MclStorageManager.StoredProtoContactDescriptor>
-                    extractProtoContacts(Element metaContactNode,
+                    extractProtoContacts(StoredMetaContact metaContact,
                                          String accountID,
                                          Map<String, ContactGroup> protoGroups)
     {
         if(logger.isTraceEnabled())
-            logger.trace("Extracting proto contacts for "
-                            + XMLUtils.getAttribute( metaContactNode, "uid"));
+            logger.trace("Extracting proto contacts for " + metaContact.uid);
         List<StoredProtoContactDescriptor> protoContacts =
             new LinkedList<StoredProtoContactDescriptor>();
 
-        NodeList children = metaContactNode.getChildNodes();
-        List<Node> duplicates = new LinkedList<Node>();
-
-        for (int i = 0; i < children.getLength(); i++)
+        // duplicates have been dropped when reading the contact list
+        for (StoredProtoContact protoContact : metaContact.protoContacts)
         {
-            Node currentNode = children.item(i);
-
-            //for some reason every now and then we would get a null nodename
-            //... go figure
-            if (currentNode.getNodeName() == null)
-                continue;
-
-            if (currentNode.getNodeType() != Node.ELEMENT_NODE
-                || !currentNode.getNodeName().equals(PROTO_CONTACT_NODE_NAME))
+            if (!accountID.equals(protoContact.accountID))
                 continue;
 
-            String contactAccountID =
-                XMLUtils.getAttribute(currentNode, ACCOUNT_ID_ATTR_NAME);
-
-            if (!accountID.equals(contactAccountID))
-                continue;
-
-            String contactAddress =
-                XMLUtils.getAttribute(currentNode,
-                    PROTO_CONTACT_ADDRESS_ATTR_NAME);
-
-            if (StoredProtoContactDescriptor.findContactInList(contactAddress,
-                protoContacts) != null)
-            {
-                // this is a duplicate. mark for removal and continue
-                duplicates.add(currentNode);
-                continue;
-            }
-
-            String protoGroupUID =
-                XMLUtils.getAttribute(currentNode,
-                    PARENT_PROTO_GROUP_UID_ATTR_NAME);
-            Element persistentDataNode =
-                XMLUtils.findChild((Element) currentNode,
-                    PERSISTENT_DATA_NODE_NAME);
-
-            String persistentData =
-                (persistentDataNode == null) ? "" : XMLUtils
-                    .getText(persistentDataNode);
-
-            protoContacts.add(new StoredProtoContactDescriptor(contactAddress,
-                persistentData, protoGroups.get(protoGroupUID)));
-        }
-
-        // remove all duplicates
-        for (Node node : duplicates)
-        {
-            metaContactNode.removeChild(node);
+            protoContacts.add(new StoredProtoContactDescriptor(
+                protoContact.address,
+                (protoContact.persistentData == null)
+                    ? ""
+                    : protoContact.persistentData,
+                protoGroups.get(protoContact.parentGroupUID)));
         }
         return protoContacts;
     }
 
     /**
-     * Creates a node element corresponding to <tt>protoContact</tt>. If
+     * Creates a stored contact corresponding to <tt>protoContact</tt>. If
      * required data is missing returns null.
      *
-     * @param protoContact the Contact whose element we'd like to create
-     * @return a XML Element corresponding to <tt>protoContact</tt>
+     * @param protoContact the Contact whose stored copy we'd like to create
+     * @return a stored contact corresponding to <tt>protoContact</tt>
      * or <tt>null</tt> if required data is not present.
      */
-    private Element createProtoContactNode(Contact protoContact)
+    private StoredProtoContact createStoredProtoContact(Contact protoContact)
     {
-        Element protoContactElement =
-            contactListDocument.createElement(PROTO_CONTACT_NODE_NAME);
-
-        // set attributes
-        protoContactElement.setAttribute(PROTO_CONTACT_ADDRESS_ATTR_NAME,
-            protoContact.getAddress());
-
-        protoContactElement.setAttribute(ACCOUNT_ID_ATTR_NAME, protoContact
-            .getProtocolProvider().getAccountID().getAccountUniqueID());
-
         if(logger.isInfoEnabled()
                         && protoContact.getParentContactGroup() == null)
         {
@@ -1082,189 +1022,121 @@ private Element createProtoContactNode(Contact protoContact)
         if(protoContact.getParentContactGroup() == null)
             return null;
 
-        protoContactElement.setAttribute(PARENT_PROTO_GROUP_UID_ATTR_NAME,
-            protoContact.getParentContactGroup().getUID());
-
-        // append persistent data child node
-        String persistentData = protoContact.getPersistentData();
-        if ((persistentData != null) && (persistentData.length() != 0))
-        {
-            Element persDataNode =
-                contactListDocument.createElement(PERSISTENT_DATA_NODE_NAME);
-
-            XMLUtils.setText(persDataNode, persistentData);
-
-            protoContactElement.appendChild(persDataNode);
-        }
-
-        return protoContactElement;
+        return new StoredProtoContact(
+            protoContact.getAddress(),
+            protoContact.getProtocolProvider().getAccountID()
+                .getAccountUniqueID(),
+            protoContact.getParentContactGroup().getUID(),
+            protoContact.getPersistentData());
     }
 
     /**
-     * Creates a new XML <code>Element</code> corresponding to
-     * <tt>protoGroup</tt> or <tt>null</tt> if <tt>protoGroup</tt> is not
-     * eligible for serialization in its current state.
+     * Creates a stored group corresponding to <tt>protoGroup</tt>.
      *
      * @param protoGroup
-     *            the <code>ContactGroup</code> which a corresponding XML
-     *            <code>Element</code> is to be created for
-     * @return a new XML <code>Element</code> corresponding to
-     *         <tt>protoGroup</tt> or <tt>null</tt> if <tt>protoGroup</tt> is
-     *         not eligible for serialization in its current state
+     *            the <code>ContactGroup</code> which a corresponding stored
+     *            group is to be created for
+     * @return a new stored group corresponding to <tt>protoGroup</tt>
      */
-    private Element createProtoContactGroupNode(ContactGroup protoGroup)
+    private StoredProtoGroup createStoredProtoGroup(ContactGroup protoGroup)
     {
-        Element protoGroupElement =
-            contactListDocument.createElement(PROTO_GROUP_NODE_NAME);
-
-        // set attributes
-        protoGroupElement.setAttribute(UID_ATTR_NAME, protoGroup.getUID());
-
-        protoGroupElement
-            .setAttribute(
-                ACCOUNT_ID_ATTR_NAME,
-                protoGroup
-                    .getProtocolProvider().getAccountID().getAccountUniqueID());
-
         /*
          * The Javadoc on ContactGroup#getParentContactGroup() states null may
          * be returned. Prevent a NullPointerException.
          */
         ContactGroup parentContactGroup = protoGroup.getParentContactGroup();
-        if (parentContactGroup != null)
-            protoGroupElement.setAttribute(
-                    PARENT_PROTO_GROUP_UID_ATTR_NAME,
-                    parentContactGroup.getUID());
-
-        // append persistent data child node
-        String persistentData = protoGroup.getPersistentData();
-        if ((persistentData != null) && (persistentData.length() != 0))
-        {
-            Element persDataNode =
-                contactListDocument.createElement(PERSISTENT_DATA_NODE_NAME);
-
-            XMLUtils.setText(persDataNode, persistentData);
 
-            protoGroupElement.appendChild(persDataNode);
-        }
-
-        return protoGroupElement;
+        return new StoredProtoGroup(
+            protoGroup.getUID(),
+            protoGroup.getProtocolProvider().getAccountID()
+                .getAccountUniqueID(),
+            (parentContactGroup == null) ? null : parentContactGroup.getUID(),
+            protoGroup.getPersistentData());
     }
 
     /**
-     * Creates a meta contact node element corresponding to <tt>metaContact</tt>
-     * .
-     *
+     * Creates a stored meta contact corresponding to <tt>metaContact</tt>,
+     * which is not part of the contact list. The details of a previously
+     * stored copy of the meta contact are kept.
      *
-     * @param metaContact the MetaContact that the new node is about
-     * @return the XML Element containing the persistent version of
-     *         <tt>metaContact</tt>
+     * @param metaContact the MetaContact that the new stored meta contact is
+     *            about
+     * @return the persistent version of <tt>metaContact</tt>
      */
-    private Element createMetaContactNode(MetaContact metaContact)
+    private StoredMetaContact createStoredMetaContact(MetaContact metaContact)
     {
-        Element metaContactElement =
-            this.contactListDocument.createElement(META_CONTACT_NODE_NAME);
+        StoredMetaContact storedMetaContact
+            = storedContactList.findMetaContact(metaContact.getMetaUID());
 
-        metaContactElement
-            .setAttribute(UID_ATTR_NAME, metaContact.getMetaUID());
+        storedMetaContact
+            = (storedMetaContact == null)
+                ? new StoredMetaContact(metaContact.getMetaUID())
+                : storedMetaContact.copy();
 
-        // create the display name node
-        Element displayNameNode =
-            contactListDocument
-                .createElement(META_CONTACT_DISPLAY_NAME_NODE_NAME);
-
-        displayNameNode.appendChild(contactListDocument
-            .createTextNode(metaContact.getDisplayName()));
-
-        if(((MetaContactImpl)metaContact).isDisplayNameUserDefined())
-            displayNameNode.setAttribute(USER_DEFINED_DISPLAY_NAME_ATTR_NAME,
-                                         Boolean.TRUE.toString());
-
-        metaContactElement.appendChild(displayNameNode);
+        storedMetaContact.displayName = metaContact.getDisplayName();
+        storedMetaContact.displayNameUserDefined
+            = ((MetaContactImpl)metaContact).isDisplayNameUserDefined();
+        storedMetaContact.protoContacts.clear();
 
         Iterator<Contact> contacts = metaContact.getContacts();
 
         while (contacts.hasNext())
         {
-            Contact contact = contacts.next();
-            Element contactElement = createProtoContactNode(contact);
+            StoredProtoContact protoContact
+                = createStoredProtoContact(contacts.next());
 
-            if(contactElement != null)
-                metaContactElement.appendChild(contactElement);
+            if(protoContact != null)
+                storedMetaContact.protoContacts.add(protoContact);
         }
 
-        return metaContactElement;
+        return storedMetaContact;
     }
 
     /**
-     * Creates a meta contact group node element corresponding to
-     * <tt>metaGroup</tt>.
+     * Creates a stored group corresponding to <tt>metaGroup</tt>, with its
+     * subgroups and child contacts, which is not part of the contact list.
      *
-     * @param metaGroup the MetaContactGroup that the new node is about
-     * @return the XML Element containing the persistent version of
-     *         <tt>metaGroup</tt>
+     * @param metaGroup the MetaContactGroup that the new stored group is about
+     * @return the persistent version of <tt>metaGroup</tt>
      */
-    private Element createMetaContactGroupNode(MetaContactGroup metaGroup)
+    private StoredGroup createStoredGroup(MetaContactGroup metaGroup)
     {
-        Element metaGroupElement =
-            this.contactListDocument.createElement(GROUP_NODE_NAME);
-
-        metaGroupElement.setAttribute(GROUP_NAME_ATTR_NAME, metaGroup
-            .getGroupName());
-
-        metaGroupElement.setAttribute(UID_ATTR_NAME, metaGroup.getMetaUID());
-
-        // create and fill the proto groups node
-        Element protoGroupsElement =
-            this.contactListDocument.createElement(PROTO_GROUPS_NODE_NAME);
-        metaGroupElement.appendChild(protoGroupsElement);
+        StoredGroup group
+            = new StoredGroup(metaGroup.getMetaUID(), metaGroup.getGroupName());
 
         Iterator<ContactGroup> protoGroups = metaGroup.getContactGroups();
 
         while (protoGroups.hasNext())
         {
-            ContactGroup group = protoGroups.next();
+            ContactGroup protoGroup = protoGroups.next();
 
             // ignore if the proto group is not persistent:
-            if (!group.isPersistent())
+            if (!protoGroup.isPersistent())
                 continue;
 
-            Element protoGroupEl = createProtoContactGroupNode(group);
-
-            protoGroupsElement.appendChild(protoGroupEl);
+            group.protoGroups.add(createStoredProtoGroup(protoGroup));
         }
 
-        // create and fill the sub groups node
-
-        Element subgroupsElement =
-            this.contactListDocument.createElement(SUBGROUPS_NODE_NAME);
-        metaGroupElement.appendChild(subgroupsElement);
-
         Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
 
         while (subgroups.hasNext())
         {
-            MetaContactGroup subgroup = subgroups.next();
-            Element subgroupEl = createMetaContactGroupNode(subgroup);
-            subgroupsElement.appendChild(subgroupEl);
+            StoredGroup subgroup = createStoredGroup(subgroups.next());
+            subgroup.parent = group;
+            group.subgroups.put(subgroup.uid, subgroup);
         }
 
-        // create and fill child contacts node
-
-        Element childContactsElement =
-            this.contactListDocument.createElement(CHILD_CONTACTS_NODE_NAME);
-        metaGroupElement.appendChild(childContactsElement);
-
         Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
 
         while (childContacts.hasNext())
         {
-            MetaContact metaContact = childContacts.next();
-            Element metaContactEl = createMetaContactNode(metaContact);
-            childContactsElement.appendChild(metaContactEl);
+            StoredMetaContact metaContact
+                = createStoredMetaContact(childContacts.next());
+            metaContact.group = group;
+            group.childContacts.put(metaContact.uid, metaContact);
         }
 
-        return metaGroupElement;
+        return group;
     }
 
     /**
@@ -1280,50 +1152,39 @@ public void metaContactAdded(MetaContactEvent evt)
         if(!evt.getParentGroup().isPersistent())
             return;
 
-        Element parentGroupNode =
-            findMetaContactGroupNode(evt.getParentGroup().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal
-        // err for now and that's all.
-        if (parentGroupNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Couldn't find parent of a newly added contact: "
-                + evt.getSourceMetaContact());
-            if(logger.isTraceEnabled())
-                logger.trace("The above exception occurred with the "
-                                + "following stack trace: ",
-                                new Exception());
-            return;
-        }
+            StoredGroup parentGroup
+                = storedContactList.findGroup(
+                    evt.getParentGroup().getMetaUID());
 
-        parentGroupNode =
-            XMLUtils.findChild(parentGroupNode, CHILD_CONTACTS_NODE_NAME);
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (parentGroup == null)
+            {
+                logger.error("Couldn't find parent of a newly added contact: "
+                    + evt.getSourceMetaContact());
+                if(logger.isTraceEnabled())
+                    logger.trace("The above exception occurred with the "
+                                    + "following stack trace: ",
+                                    new Exception());
+                return;
+            }
 
-        Element metaContactElement =
-            createMetaContactNode(evt.getSourceMetaContact());
+            StoredMetaContact metaContact
+                = createStoredMetaContact(evt.getSourceMetaContact());
 
-        parentGroupNode.appendChild(metaContactElement);
+            storedContactList.putMetaContact(parentGroup, metaContact);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContact(), ex);
+            journal(
+                StoredContactList.metaContactRecord(metaContact),
+                evt.getSourceMetaContact());
         }
     }
 
     /**
-     * Creates XML nodes for the source metacontact group, its child meta
-     * contacts and associated protogroups and adds them to the xml contact
-     * list.
+     * Creates stored copies of the source metacontact group, its child meta
+     * contacts and associated protogroups and adds them to the contact list.
      *
      * @param evt the MetaContactListEvent containing the corresponding contact
      */
@@ -1338,278 +1199,204 @@ public void metaContactGroupAdded(MetaContactGroupEvent evt)
         MetaContactGroup parentGroup =
             evt.getSourceMetaContactGroup().getParentMetaContactGroup();
 
-        Element parentGroupNode =
-            findMetaContactGroupNode(parentGroup.getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal
-        // err for now and that's all.
-        if (parentGroupNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Couldn't find parent of a newly added group: "
-                + parentGroup);
-            return;
-        }
+            StoredGroup storedParentGroup
+                = storedContactList.findGroup(parentGroup.getMetaUID());
 
-        Element newGroupElement =
-            createMetaContactGroupNode(evt.getSourceMetaContactGroup());
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (storedParentGroup == null)
+            {
+                logger.error("Couldn't find parent of a newly added group: "
+                    + parentGroup);
+                return;
+            }
 
-        Element subgroupsNode =
-            XMLUtils.findChild(parentGroupNode, SUBGROUPS_NODE_NAME);
+            StoredGroup group
+                = createStoredGroup(evt.getSourceMetaContactGroup());
 
-        subgroupsNode.appendChild(newGroupElement);
+            storedContactList.addGroup(storedParentGroup, group);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding contact "
-                + evt.getSourceMetaContactGroup(), ex);
+            StringBuilder records = new StringBuilder();
+            StoredContactList.appendGroupRecords(group, records);
+            journal(records.toString(), evt.getSourceMetaContactGroup());
         }
     }
 
     /**
-     * Removes the corresponding node from the xml document.
+     * Removes the corresponding group from the contact list.
      *
      * @param evt the MetaContactGroupEvent containing the corresponding contact
      */
     public void metaContactGroupRemoved(MetaContactGroupEvent evt)
     {
-        Element metaContactGroupNode =
-            findMetaContactGroupNode(evt.getSourceMetaContactGroup()
-                .getMetaUID());
-
-        // not sure what to do in case of null. we'll be loggin an internal err
-        // for now and that's all.
-        if (metaContactGroupNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after removing an MN group. Groupt not found: "
-                + evt.getSourceMetaContactGroup());
-            return;
-        }
+            StoredGroup group
+                = storedContactList.findGroup(
+                    evt.getSourceMetaContactGroup().getMetaUID());
 
-        // remove the meta contact node.
-        metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
+            // not sure what to do in case of null. we'll be loggin an internal
+            // err for now and that's all.
+            if (group == null)
+            {
+                logger.error("Save after removing an MN group. Groupt not found: "
+                    + evt.getSourceMetaContactGroup());
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing group "
-                + evt.getSourceMetaContactGroup(), ex);
+            // remove the group.
+            storedContactList.removeGroup(group);
+
+            journal(
+                StoredContactList.groupRemovedRecord(group.uid),
+                evt.getSourceMetaContactGroup());
         }
     }
 
     /**
-     * Moves the corresponding node from its old parent to the node
+     * Moves the corresponding meta contact from its old parent to the group
      * corresponding to the new parent meta group.
      *
      * @param evt the MetaContactListEvent containing the corresponding contact
      */
     public void metaContactMoved(MetaContactMovedEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
-        Element newParentNode =
-            findMetaContactGroupNode(evt.getNewParent().getMetaUID());
-
-        if (newParentNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after metacontact moved. new parent not found: "
-                + evt.getNewParent());
-            if(logger.isTraceEnabled())
-                logger.error("The above exception has occurred with the "
-                                +"following stack trace",
-                                new Exception());
-            return;
-        }
+            StoredMetaContact metaContact
+                = storedContactList.findMetaContact(
+                    evt.getSourceMetaContact().getMetaUID());
+            StoredGroup newParent
+                = storedContactList.findGroup(
+                    evt.getNewParent().getMetaUID());
 
-        // in case of null this is a case of moving from non persistent group
-        // to a persistent one.
-        if(metaContactNode == null)
-        {
-            // create new node
-            metaContactNode = createMetaContactNode(evt.getSourceMetaContact());
-        }
-        else
-        {
-            metaContactNode.getParentNode().removeChild(metaContactNode);
-        }
+            if (newParent == null)
+            {
+                logger.error(
+                    "Save after metacontact moved. new parent not found: "
+                        + evt.getNewParent());
+                if(logger.isTraceEnabled())
+                    logger.error("The above exception has occurred with the "
+                                    +"following stack trace",
+                                    new Exception());
+                return;
+            }
 
-        updateParentsForMetaContactNode(metaContactNode, evt.getNewParent());
+            // in case of null this is a case of moving from non persistent
+            // group to a persistent one.
+            if(metaContact == null)
+            {
+                // create new meta contact
+                metaContact
+                    = createStoredMetaContact(evt.getSourceMetaContact());
+            }
 
-        Element childContacts =
-            XMLUtils.findChild(newParentNode, CHILD_CONTACTS_NODE_NAME);
+            updateParentsForMetaContact(metaContact, evt.getNewParent());
 
-        childContacts.appendChild(metaContactNode);
+            storedContactList.putMetaContact(newParent, metaContact);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving "
-                + evt.getSourceMetaContact(), ex);
+            journal(
+                StoredContactList.metaContactRecord(metaContact),
+                evt.getSourceMetaContact());
         }
-
     }
 
     /**
-     * Traverses all contact elements of the metaContactNode argument and
-     * updates theirs parent proto group uid-s to point to the first contact
-     * group that is encapsulated by the newParent meta group and that belongs
-     * to the same account as the contact itself.
+     * Traverses all contacts of the metaContact argument and updates theirs
+     * parent proto group uid-s to point to the first contact group that is
+     * encapsulated by the newParent meta group and that belongs to the same
+     * account as the contact itself.
      *
-     * @param metaContactNode the meta contact node whose child contacts we're
+     * @param metaContact the stored meta contact whose child contacts we're
      *            to update.
      * @param newParent a reference to the <tt>MetaContactGroup</tt> where
-     *            metaContactNode was moved.
+     *            metaContact was moved.
      */
-    private void updateParentsForMetaContactNode(Element metaContactNode,
+    private void updateParentsForMetaContact(StoredMetaContact metaContact,
         MetaContactGroup newParent)
     {
-        NodeList children = metaContactNode.getChildNodes();
-
-        for (int i = 0; i < children.getLength(); i++)
+        for (StoredProtoContact protoContact : metaContact.protoContacts)
         {
-            Node currentNode = children.item(i);
-
-            if (currentNode.getNodeType() != Node.ELEMENT_NODE
-                || !currentNode.getNodeName().equals(PROTO_CONTACT_NODE_NAME))
-                continue;
-
-            Element contactElement = (Element) currentNode;
-
-            String attribute =
-                contactElement.getAttribute(PARENT_PROTO_GROUP_UID_ATTR_NAME);
+            String attribute = protoContact.parentGroupUID;
 
             if (attribute == null || attribute.trim().length() == 0)
                 continue;
 
-            String contactAccountID =
-                contactElement.getAttribute(ACCOUNT_ID_ATTR_NAME);
-
             // find the first protogroup originating from the same account as
             // the one that the current contact belongs to.
             Iterator<ContactGroup> possibleParents =
-                newParent.getContactGroupsForAccountID(contactAccountID);
-
-            String newParentUID = possibleParents.next().getUID();
+                newParent.getContactGroupsForAccountID(protoContact.accountID);
 
-            contactElement.setAttribute(PARENT_PROTO_GROUP_UID_ATTR_NAME,
-                newParentUID);
+            protoContact.parentGroupUID = possibleParents.next().getUID();
         }
     }
 
     /**
-     * Removes the corresponding node from the xml document.
+     * Removes the corresponding meta contact from the contact list.
      *
      * @param evt the MetaContactListEvent containing the corresponding contact
      */
     public void metaContactRemoved(MetaContactEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
-
-        // not sure what to do in case of null. we'll be loggin an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after metacontact removed. Contact not found: "
-                + evt.getSourceMetaContact());
-            return;
-        }
+            StoredMetaContact metaContact
+                = storedContactList.findMetaContact(
+                    evt.getSourceMetaContact().getMetaUID());
 
-        // remove the meta contact node.
-        metaContactNode.getParentNode().removeChild(metaContactNode);
+            // not sure what to do in case of null. we'll be loggin an internal
+            // err for now and that's all.
+            if (metaContact == null)
+            {
+                logger.error("Save after metacontact removed. Contact not found: "
+                    + evt.getSourceMetaContact());
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing "
-                + evt.getSourceMetaContact(), ex);
+            // remove the meta contact.
+            storedContactList.removeMetaContact(metaContact);
+
+            journal(
+                StoredContactList.metaContactRemovedRecord(metaContact.uid),
+                evt.getSourceMetaContact());
         }
     }
 
     /**
-     * Changes the display name attribute of the specified meta contact node.
+     * Changes the display name of the specified meta contact.
      *
      * @param evt the MetaContactListEvent containing the corresponding contact
      */
     public void metaContactRenamed(MetaContactRenamedEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
-
-        // not sure what to do in case of null. we'll be loggin an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after renam failed. Contact not found: "
-                + evt.getSourceMetaContact());
-            return;
-        }
+            StoredMetaContact metaContact
+                = storedContactList.findMetaContact(
+                    evt.getSourceMetaContact().getMetaUID());
 
-        Element displayNameNode =
-            XMLUtils.findChild(metaContactNode,
-                META_CONTACT_DISPLAY_NAME_NODE_NAME);
-
-        if(((MetaContactImpl)evt.getSourceMetaContact())
-                .isDisplayNameUserDefined())
-        {
-            displayNameNode.setAttribute(USER_DEFINED_DISPLAY_NAME_ATTR_NAME,
-                                         Boolean.TRUE.toString());
-        }
-        else
-        {
-            displayNameNode.removeAttribute(
-                USER_DEFINED_DISPLAY_NAME_ATTR_NAME);
-        }
+            // not sure what to do in case of null. we'll be loggin an internal
+            // err for now and that's all.
+            if (metaContact == null)
+            {
+                logger.error("Save after renam failed. Contact not found: "
+                    + evt.getSourceMetaContact());
+                return;
+            }
 
-        XMLUtils.setText(displayNameNode, evt.getNewDisplayName());
+            metaContact.displayNameUserDefined
+                = ((MetaContactImpl)evt.getSourceMetaContact())
+                    .isDisplayNameUserDefined();
+            metaContact.displayName = evt.getNewDisplayName();
 
-        updatePersistentDataForMetaContact(evt.getSourceMetaContact());
+            updatePersistentDataForMetaContact(
+                evt.getSourceMetaContact(), metaContact);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
+            journal(
+                StoredContactList.metaContactRecord(metaContact),
+                evt.getSourceMetaContact());
         }
     }
 
@@ -1620,36 +1407,30 @@ public void metaContactRenamed(MetaContactRenamedEvent evt)
      */
     public void protoContactModified(ProtoContactEvent evt)
     {
-        Element metaContactNode =
-            findMetaContactNode(evt.getParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after proto contact modification failed. "
-                + "Contact not found: " + evt.getParent());
-            return;
-        }
+            StoredMetaContact metaContact
+                = storedContactList.findMetaContact(
+                    evt.getParent().getMetaUID());
 
-        updatePersistentDataForMetaContact(evt.getParent());
-
-        // i don't think we could do anything else in addition to updating the
-        // persistent data.
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (metaContact == null)
+            {
+                logger.error("Save after proto contact modification failed. "
+                    + "Contact not found: " + evt.getParent());
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after rename of " + evt.getParent(), ex);
+            // i don't think we could do anything else in addition to updating
+            // the persistent data.
+            if (updatePersistentDataForMetaContact(
+                    evt.getParent(), metaContact))
+            {
+                journal(
+                    StoredContactList.metaContactRecord(metaContact),
+                    evt.getParent());
+            }
         }
     }
 
@@ -1663,184 +1444,136 @@ public void metaContactModified(MetaContactModifiedEvent evt)
     {
         String name = evt.getModificationName();
 
-        Element metaContactNode =
-            findMetaContactNode(evt.getSourceMetaContact().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (metaContactNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Save after rename failed. Contact not found: "
-                + evt.getSourceMetaContact());
-            return;
-        }
+            StoredMetaContact metaContact
+                = storedContactList.findMetaContact(
+                    evt.getSourceMetaContact().getMetaUID());
 
-        Object oldValue = evt.getOldValue();
-        Object newValue = evt.getNewValue();
-
-        boolean isChanged = false;
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (metaContact == null)
+            {
+                logger.error("Save after rename failed. Contact not found: "
+                    + evt.getSourceMetaContact());
+                return;
+            }
 
-        if (oldValue == null && newValue != null)
-        {
-            // indicates add
+            Object oldValue = evt.getOldValue();
+            Object newValue = evt.getNewValue();
+            List<String> values = metaContact.details.get(name);
 
-            if (!(newValue instanceof String))
-                return;
+            boolean isChanged = false;
 
-            Element detailElement =
-                contactListDocument
-                    .createElement(META_CONTACT_DETAIL_NAME_NODE_NAME);
+            if (oldValue == null && newValue != null)
+            {
+                // indicates add
 
-            detailElement.setAttribute(DETAIL_NAME_ATTR_NAME, name);
-            detailElement.setAttribute(DETAIL_VALUE_ATTR_NAME,
-                (String) newValue);
+                if (!(newValue instanceof String))
+                    return;
 
-            metaContactNode.appendChild(detailElement);
-            isChanged = true;
-        }
-        else if (oldValue != null && newValue == null)
-        {
-            // indicates remove
-            if (oldValue instanceof List<?>)
+                metaContact.addDetail(name, (String) newValue);
+                isChanged = true;
+            }
+            else if (values == null)
             {
-                List<?> valuesToRemove = (List<?>) oldValue;
-                // indicates removing multiple values at one time
-                List<Element> nodes =
-                    XMLUtils.locateElements(metaContactNode,
-                        META_CONTACT_DETAIL_NAME_NODE_NAME,
-                        DETAIL_NAME_ATTR_NAME, name);
-
-                List<Element> nodesToRemove = new ArrayList<Element>();
-                for (Element e : nodes)
+                // nothing to remove or change
+                return;
+            }
+            else if (oldValue != null && newValue == null)
+            {
+                // indicates remove
+                if (oldValue instanceof List<?>)
                 {
-                    if (valuesToRemove
-                            .contains(e.getAttribute(DETAIL_VALUE_ATTR_NAME)))
-                    {
-                        nodesToRemove.add(e);
-                    }
+                    // indicates removing multiple values at one time
+                    isChanged = values.removeAll((List<?>) oldValue);
                 }
-
-                for (Element e : nodesToRemove)
+                else if (oldValue instanceof String)
                 {
-                    metaContactNode.removeChild(e);
+                    // removing one value only
+                    isChanged = values.remove(oldValue);
                 }
-                if (nodesToRemove.size() > 0)
-                    isChanged = true;
+
+                if (values.isEmpty())
+                    metaContact.details.remove(name);
             }
-            else if (oldValue instanceof String)
+            else if (oldValue != null && newValue != null)
             {
-                // removing one value only
-                List<Element> nodes =
-                    XMLUtils.locateElements(metaContactNode,
-                        META_CONTACT_DETAIL_NAME_NODE_NAME,
-                        DETAIL_NAME_ATTR_NAME, name);
-
-                Element elementToRemove = null;
-                for (Element e : nodes)
-                {
-                    if (e.getAttribute(DETAIL_VALUE_ATTR_NAME).equals(oldValue))
-                    {
-                        elementToRemove = e;
-                        break;
-                    }
-                }
+                // indicates change
+                int index = values.indexOf(oldValue);
 
-                if (elementToRemove == null)
+                if (index == -1)
                     return;
 
-                metaContactNode.removeChild(elementToRemove);
-
+                values.set(index, (String) newValue);
                 isChanged = true;
             }
-        }
-        else if (oldValue != null && newValue != null)
-        {
-            // indicates change
-            List<Element> nodes =
-                XMLUtils.locateElements(metaContactNode,
-                    META_CONTACT_DETAIL_NAME_NODE_NAME, DETAIL_NAME_ATTR_NAME,
-                    name);
-
-            Element changedElement = null;
-            for (Element e : nodes)
-            {
-                if (e.getAttribute(DETAIL_VALUE_ATTR_NAME).equals(oldValue))
-                {
-                    changedElement = e;
-                    break;
-                }
-            }
 
-            if (changedElement == null)
+            if (!isChanged)
                 return;
 
-            changedElement.setAttribute(DETAIL_VALUE_ATTR_NAME,
-                (String) newValue);
-
-            isChanged = true;
-        }
-
-        if (!isChanged)
-            return;
-
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after rename of "
-                + evt.getSourceMetaContact(), ex);
+            journal(
+                StoredContactList.metaContactRecord(metaContact),
+                evt.getSourceMetaContact());
         }
     }
 
     /**
-     * Removes the corresponding node from the xml contact list.
+     * Removes the corresponding contact from the contact list.
      *
      * @param evt a reference to the corresponding <tt>ProtoContactEvent</tt>
      */
     public void protoContactRemoved(ProtoContactEvent evt)
     {
-        Element oldMcNode =
-            findMetaContactNode(evt.getOldParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (oldMcNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Failed to find meta contact (old parent): "
-                + oldMcNode);
-            return;
-        }
+            StoredMetaContact oldMetaContact
+                = storedContactList.findMetaContact(
+                    evt.getOldParent().getMetaUID());
 
-        Element protoNode =
-            XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
-                PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
-                    .getAddress());
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (oldMetaContact == null)
+            {
+                logger.error("Failed to find meta contact (old parent): "
+                    + evt.getOldParent());
+                return;
+            }
 
-        protoNode.getParentNode().removeChild(protoNode);
+            if (removeStoredProtoContact(oldMetaContact, evt.getProtoContact())
+                    == null)
+            {
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing proto contact "
-                + evt.getProtoContact(), ex);
+            journal(
+                StoredContactList.metaContactRecord(oldMetaContact),
+                evt.getProtoContact());
         }
     }
 
+    /**
+     * Removes the stored copy of a protocol specific contact from a stored
+     * meta contact.
+     *
+     * @param metaContact the stored meta contact
+     * @param protoContact the protocol specific contact
+     * @return the removed stored contact, <tt>null</tt> if none
+     */
+    private StoredProtoContact removeStoredProtoContact(
+        StoredMetaContact metaContact, Contact protoContact)
+    {
+        StoredProtoContact storedProtoContact
+            = metaContact.findProtoContact(
+                protoContact.getAddress(),
+                protoContact.getProtocolProvider().getAccountID()
+                    .getAccountUniqueID());
+
+        if (storedProtoContact != null)
+            metaContact.protoContacts.remove(storedProtoContact);
+        return storedProtoContact;
+    }
+
     /**
      * We simply ignore - we're not interested in this kind of events.
      *
@@ -1861,78 +1594,49 @@ public void childContactsReordered(MetaContactGroupEvent evt)
     public void metaContactGroupModified(MetaContactGroupEvent evt)
     {
         MetaContactGroup mcGroup = evt.getSourceMetaContactGroup();
-        Element mcGroupNode = findMetaContactGroupNode(mcGroup.getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (mcGroupNode == null)
-        {
-            logger.error("Failed to find meta contact group: " + mcGroup);
-            if (logger.isTraceEnabled())
-                logger.trace(
-                    "The above error occurred with the following stack trace: ",
-                    new Exception());
-            return;
-        }
 
-        switch (evt.getEventID())
+        synchronized (contactListRWLock)
         {
-        case MetaContactGroupEvent.CONTACT_GROUP_RENAMED_IN_META_GROUP:
-        case MetaContactGroupEvent.CONTACT_GROUP_REMOVED_FROM_META_GROUP:
-        case MetaContactGroupEvent.CONTACT_GROUP_ADDED_TO_META_GROUP:
-            // the fact that a contact group was added or removed to a
-            // meta group may imply substantial changes in the child contacts
-            // and the layout of any possible subgroups, so
-            // to make things simple, we'll remove the existing meta contact
-            // group node and re-create it according to its current state.
-            Node parentNode = mcGroupNode.getParentNode();
-
-            parentNode.removeChild(mcGroupNode);
-
-            Element newGroupElement = createMetaContactGroupNode(mcGroup);
-
-            parentNode.appendChild(newGroupElement);
+            StoredGroup group
+                = storedContactList.findGroup(mcGroup.getMetaUID());
 
-            try
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (group == null)
             {
-                scheduleContactListStorage();
+                logger.error("Failed to find meta contact group: " + mcGroup);
+                if (logger.isTraceEnabled())
+                    logger.trace(
+                        "The above error occurred with the following stack"
+                            + " trace: ",
+                        new Exception());
+                return;
             }
-            catch (IOException ex)
+
+            switch (evt.getEventID())
             {
-                /**
-                 * given we're being invoked from an event dispatch thread that
-                 * was probably triggered by a net operation - we could not do
-                 * much. so ... log and @todo one day we'll have a global error
-                 * dispatcher
-                 */
-                logger.error(
-                    "Writing CL failed after adding contact " + mcGroup,
-                    ex);
+            case MetaContactGroupEvent.CONTACT_GROUP_RENAMED_IN_META_GROUP:
+            case MetaContactGroupEvent.CONTACT_GROUP_REMOVED_FROM_META_GROUP:
+            case MetaContactGroupEvent.CONTACT_GROUP_ADDED_TO_META_GROUP:
+                // the fact that a contact group was added or removed to a
+                // meta group may imply substantial changes in the child
+                // contacts and the layout of any possible subgroups, so
+                // to make things simple, we'll replace the existing stored
+                // group by one created according to its current state.
+                StringBuilder records = new StringBuilder();
+
+                storedContactList.replaceGroup(
+                    group, createStoredGroup(mcGroup), records);
+
+                journal(records.toString(), mcGroup);
+                break;
+            case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
+                group.name = mcGroup.getGroupName();
+
+                journal(StoredContactList.groupRecord(group), mcGroup);
+                break;
             }
-            break;
-        case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
-            mcGroupNode
-                .setAttribute(GROUP_NAME_ATTR_NAME, mcGroup.getGroupName());
-            break;
-        }
-
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error(
-                "Writing CL failed after removing proto group "
-                    + mcGroup.getGroupName(),
-                ex);
         }
-
     }
 
     /**
@@ -1944,42 +1648,37 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
      */
     public void protoContactAdded(ProtoContactEvent evt)
     {
-        Element mcNode = findMetaContactNode(evt.getParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (mcNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Failed to find meta contact: " + evt.getParent());
-            return;
-        }
+            StoredMetaContact metaContact
+                = storedContactList.findMetaContact(
+                    evt.getParent().getMetaUID());
 
-        Element protoNode = createProtoContactNode(evt.getProtoContact());
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (metaContact == null)
+            {
+                logger.error("Failed to find meta contact: " + evt.getParent());
+                return;
+            }
 
-        if(protoNode == null)
-        {
-            logger.error("Failed to create proto contact node for: "
-                + evt.getProtoContact());
-            return;
-        }
+            StoredProtoContact protoContact
+                = createStoredProtoContact(evt.getProtoContact());
 
-        mcNode.appendChild(protoNode);
+            if(protoContact == null)
+            {
+                logger.error("Failed to create proto contact node for: "
+                    + evt.getProtoContact());
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after adding proto contact "
-                + evt.getProtoContact(), ex);
-        }
+            removeStoredProtoContact(metaContact, evt.getProtoContact());
+            metaContact.protoContacts.add(protoContact);
 
+            journal(
+                StoredContactList.metaContactRecord(metaContact),
+                evt.getProtoContact());
+        }
     }
 
     /**
@@ -1990,89 +1689,48 @@ public void protoContactAdded(ProtoContactEvent evt)
      */
     public void protoContactMoved(ProtoContactEvent evt)
     {
-        Element newMcNode =
-            findMetaContactNode(evt.getNewParent().getMetaUID());
-        Element oldMcNode =
-            findMetaContactNode(evt.getOldParent().getMetaUID());
-
-        // not sure what to do in case of null. we'll be logging an internal err
-        // for now and that's all.
-        if (oldMcNode == null)
-        {
-            logger.error("Failed to find meta contact (old parent): "
-                + oldMcNode);
-            return;
-        }
-
-        if (newMcNode == null)
+        synchronized (contactListRWLock)
         {
-            logger.error("Failed to find meta contact (old parent): "
-                + newMcNode);
-            return;
-        }
-
-        Element protoNode =
-            XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
-                PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
-                    .getAddress());
+            StoredMetaContact newMetaContact
+                = storedContactList.findMetaContact(
+                    evt.getNewParent().getMetaUID());
+            StoredMetaContact oldMetaContact
+                = storedContactList.findMetaContact(
+                    evt.getOldParent().getMetaUID());
 
-        protoNode.getParentNode().removeChild(protoNode);
-
-        // update parent attr and append the contact to its new parent node.
-        protoNode.setAttribute(PARENT_PROTO_GROUP_UID_ATTR_NAME, evt
-            .getProtoContact().getParentContactGroup().getUID());
-        newMcNode.appendChild(protoNode);
+            // not sure what to do in case of null. we'll be logging an
+            // internal err for now and that's all.
+            if (oldMetaContact == null)
+            {
+                logger.error("Failed to find meta contact (old parent): "
+                    + evt.getOldParent());
+                return;
+            }
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after moving proto contact "
-                + evt.getProtoContact(), ex);
-        }
-    }
+            if (newMetaContact == null)
+            {
+                logger.error("Failed to find meta contact (new parent): "
+                    + evt.getNewParent());
+                return;
+            }
 
-    /**
-     * Returns the node corresponding to the meta contact with the specified uid
-     * or null if no such node was found.
-     *
-     * @param metaContactUID the UID String of the meta contact whose node we
-     *            are looking for.
-     * @return the node corresponding to the meta contact with the specified UID
-     *         or null if no such contact was found in the meta contact list
-     *         file.
-     */
-    private Element findMetaContactNode(String metaContactUID)
-    {
-        Element root = (Element) contactListDocument.getFirstChild();
+            StoredProtoContact protoContact
+                = removeStoredProtoContact(
+                    oldMetaContact, evt.getProtoContact());
 
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
-    }
+            if (protoContact == null)
+                return;
 
-    /**
-     * Returns the node corresponding to the meta contact with the specified uid
-     * or null if no such node was found.
-     *
-     * @param metaContactGroupUID the UID String of the meta contact whose node
-     *            we are looking for.
-     * @return the node corresponding to the meta contact group with the
-     *         specified UID or null if no such group was found in the meta
-     *         contact list file.
-     */
-    private Element findMetaContactGroupNode(String metaContactGroupUID)
-    {
-        Element root = (Element) contactListDocument.getFirstChild();
+            // update parent and add the contact to its new parent.
+            protoContact.parentGroupUID
+                = evt.getProtoContact().getParentContactGroup().getUID();
+            newMetaContact.protoContacts.add(protoContact);
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+            journal(
+                StoredContactList.metaContactRecord(oldMetaContact)
+                    + StoredContactList.metaContactRecord(newMetaContact),
+                evt.getProtoContact());
+        }
     }
 
     /**
@@ -2081,6 +1739,7 @@ private Element findMetaContactGroupNode(String metaContactGroupUID)
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        this.journalFile.delete();
     }
 
     /**
@@ -46,10 +46,12 @@
                                         = new TreeSet<MetaContactGroupImpl>();
 
     /**
-     * A list containing all child contacts.
+     * All child contacts, in the order of <tt>MetaContactImpl.compareTo</tt>.
+     * The readers see snapshots of the tree, without locking, and the
+     * position of a contact is found in logarithmic time.
      */
-    private final Set<MetaContactImpl> childContacts
-                                            = new TreeSet<MetaContactImpl>();
+    private final OrderStatisticTree<MetaContact> childContacts
+                                    = new OrderStatisticTree<MetaContact>();
 
     /**
      * A list of the contact groups encapsulated by this MetaContactGroup
@@ -66,14 +68,6 @@
      */
     private String groupName = null;
 
-    /**
-     * We use this copy for returning iterators and searching over the list
-     * in order to avoid creating it upon each query. The copy is updated upon
-     * each modification
-     */
-    private List<MetaContact> childContactsOrderedCopy
-                                            = new LinkedList<MetaContact>();
-
     /**
      * We use this copy for returning iterators and searching over the list
      * in order to avoid creating it upon each query. The copy is updated upon
@@ -263,7 +257,7 @@ public int countSubgroups()
      */
     public Iterator<MetaContact> getChildContacts()
     {
-        return childContactsOrderedCopy.iterator();
+        return childContacts.iterator();
     }
 
     /**
@@ -301,6 +295,18 @@ public MetaContact getMetaContact(String metaContactID)
      */
     public int indexOf(MetaContact metaContact)
     {
+        if (metaContact.getParentMetaContactGroup() != this)
+            return -1;
+
+        if (metaContact instanceof MetaContactImpl)
+        {
+            int index = childContacts.indexOf(metaContact);
+
+            // the contact may have changed without being moved yet
+            if (index != -1 && childContacts.get(index) == metaContact)
+                return index;
+        }
+
         int i = 0;
 
         Iterator<MetaContact> childrenIter = getChildContacts();
@@ -438,10 +444,11 @@ public MetaContactGroup findMetaContactGroupByMetaUID(String metaUID)
             MetaContactGroupImpl mGroup
                 = (MetaContactGroupImpl) groupsIter.next();
 
-            if (metaUID.equals(mGroup.getMetaUID()))
-                return mGroup;
-            else
-                mGroup.findMetaContactByMetaUID(metaUID);
+            MetaContactGroup group
+                = mGroup.findMetaContactGroupByMetaUID(metaUID);
+
+            if (group != null)
+                return group;
         }
 
         return null;
@@ -694,7 +701,7 @@ public MetaContactGroupImpl findMetaContactGroupByContactGroup(
     public MetaContact getMetaContact(int index) throws
         IndexOutOfBoundsException
     {
-        return this.childContactsOrderedCopy.get(index);
+        return childContacts.get(index);
     }
 
     /**
@@ -708,6 +715,9 @@ void addMetaContact(MetaContactImpl metaContact)
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        if (isInContactList())
+            mclServiceImpl.index.addMetaContact(metaContact);
     }
 
     /**
@@ -724,11 +734,8 @@ int lightAddMetaContact(MetaContactImpl metaContact)
     {
         synchronized(childContacts)
         {
-            this.childContacts.add(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                = new LinkedList<MetaContact>(childContacts);
-            return childContactsOrderedCopy.indexOf(metaContact);
+            childContacts.add(metaContact);
+            return childContacts.indexOf(metaContact);
         }
     }
 
@@ -737,22 +744,14 @@ int lightAddMetaContact(MetaContactImpl metaContact)
       * contacts without unsetting its parent contact and without any
       * synchronization. This method is meant for use _PRIMARILY_ by the
       * <tt>MetaContact</tt> itself upon change in its encapsulated protocol
-      * specific contacts. The method would also regenerate the ordered copy
-      * used for generating iterators and performing search operations over
-      * the group.
+      * specific contacts.
       *
       * @param metaContact the <tt>MetaContact</tt> to remove from the local
       * vector.
       */
     void lightRemoveMetaContact(MetaContactImpl metaContact)
     {
-        synchronized(childContacts)
-        {
-            this.childContacts.remove(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                            = new LinkedList<MetaContact>(childContacts);
-        }
+        childContacts.remove(metaContact);
     }
 
 
@@ -765,6 +764,10 @@ void removeMetaContact(MetaContactImpl metaContact)
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+
+        // unless already added to another group
+        if (metaContact.getParentGroup() == null)
+            mclServiceImpl.index.removeMetaContact(metaContact);
     }
 
     /**
@@ -836,10 +839,8 @@ public MetaContactGroup getMetaContactSubgroupByUID(String grpUID)
      */
     public boolean contains(MetaContact contact)
     {
-        synchronized (childContacts)
-        {
-            return this.childContacts.contains(contact);
-        }
+        return (contact instanceof MetaContactImpl)
+            && childContacts.contains(contact);
     }
 
     /**
@@ -975,6 +976,9 @@ void addSubgroup(MetaContactGroup subgroup)
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        if (isInContactList())
+            mclServiceImpl.index.addGroup((MetaContactGroupImpl) subgroup);
     }
 
     /**
@@ -988,7 +992,10 @@ MetaContactGroupImpl removeSubgroup(int index)
             (MetaContactGroupImpl)subgroupsOrderedCopy.get(index);
 
         if (subgroups.remove(subgroup))
+        {
             subgroup.parentMetaContactGroup = null;
+            mclServiceImpl.index.removeGroup(subgroup);
+        }
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
@@ -1014,6 +1021,21 @@ boolean removeSubgroup(MetaContactGroup group)
         }
     }
 
+    /**
+     * Determines whether this group is attached to the root of the contact
+     * list, i.e. whether it and its children are indexed.
+     *
+     * @return <tt>true</tt> if this group is the root of the contact list or
+     * one of its descendants
+     */
+    boolean isInContactList()
+    {
+        MetaContactGroupImpl group = this;
+        while (group.parentMetaContactGroup != null)
+            group = group.parentMetaContactGroup;
+        return group == mclServiceImpl.rootMetaGroup;
+    }
+
     /**
      * Returns the implementation of the <tt>MetaContactListService</tt>, to
      * which this group belongs.
@@ -696,6 +696,10 @@ void addProtoContact(Contact contact)
 
             this.protoContacts.add(contact);
 
+            MetaContactListIndex index = getIndex();
+            if (index != null)
+                index.addContact(this, contact);
+
             // Re-init the default contact.
             defaultContact = null;
 
@@ -794,6 +798,10 @@ void removeProtoContact(Contact contact)
             contactsOnline -= contact.getPresenceStatus().isOnline() ? 1 : 0;
             this.protoContacts.remove(contact);
 
+            MetaContactListIndex index = getIndex();
+            if (index != null)
+                index.removeContact(this, contact);
+
             if (defaultContact == contact)
                 defaultContact = null;
 
@@ -845,6 +853,10 @@ boolean removeContactsForProvider(ProtocolProviderService provider)
             {
                 contactsIter.remove();
                 modified = true;
+
+                MetaContactListIndex index = getIndex();
+                if (index != null)
+                    index.removeContact(this, contact);
             }
         }
 
@@ -878,6 +890,10 @@ boolean removeContactsForGroup(ContactGroup protoGroup)
             {
                 contactsIter.remove();
                 modified = true;
+
+                MetaContactListIndex index = getIndex();
+                if (index != null)
+                    index.removeContact(this, contact);
             }
         }
 
@@ -1166,6 +1182,22 @@ private void addCapabilities(   Contact contact,
         }
     }
 
+    /**
+     * Returns the index of the contact list, if this meta contact is in the
+     * contact list.
+     *
+     * @return the index of the contact list, <tt>null</tt> if this meta
+     * contact is not in the contact list
+     */
+    private MetaContactListIndex getIndex()
+    {
+        MetaContactGroupImpl parentGroup = this.parentGroup;
+
+        return (parentGroup != null && parentGroup.isInContactList())
+            ? parentGroup.getMclServiceImpl().index
+            : null;
+    }
+
     /**
      * Gets the sync lock for use when modifying {@link #parentGroup}.
      *
@@ -0,0 +1,356 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Hash indexes of the meta contact list, so that the meta contacts and groups
+ * are found without walking the tree: the meta contacts by the address and
+ * provider, or account, of their protocol contacts and by meta UID, and the
+ * groups by meta UID.
+ * <p>
+ * The index covers the groups and meta contacts attached to the root of the
+ * list. It is updated by the <tt>MetaContactGroupImpl</tt> and
+ * <tt>MetaContactImpl</tt> methods which add and remove meta contacts,
+ * subgroups and protocol contacts, and read without locking.
+ */
+class MetaContactListIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(MetaContactListIndex.class);
+
+    /**
+     * (provider, address) of a protocol contact -> its meta contact.
+     */
+    private final Map<ContactKey, MetaContactImpl> byProvider
+        = new ConcurrentHashMap<ContactKey, MetaContactImpl>();
+
+    /**
+     * (account unique ID, address) of a protocol contact -> its meta contact.
+     */
+    private final Map<ContactKey, MetaContactImpl> byAccount
+        = new ConcurrentHashMap<ContactKey, MetaContactImpl>();
+
+    /**
+     * meta UID -> meta contact.
+     */
+    private final Map<String, MetaContactImpl> metaContacts
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * meta UID -> meta contact group.
+     */
+    private final Map<String, MetaContactGroupImpl> groups
+        = new ConcurrentHashMap<String, MetaContactGroupImpl>();
+
+    /**
+     * Returns the meta contact of a protocol contact with the address and the
+     * provider of <tt>contact</tt>.
+     *
+     * @param contact the protocol contact
+     * @return the meta contact, <tt>null</tt> if none
+     */
+    MetaContact findMetaContactByContact(Contact contact)
+    {
+        return byProvider.get(new ContactKey(
+            contact.getProtocolProvider(), contact.getAddress()));
+    }
+
+    /**
+     * Returns the meta contact of a protocol contact.
+     *
+     * @param contactAddress the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the meta contact, <tt>null</tt> if none
+     */
+    MetaContact findMetaContactByContact(String contactAddress,
+                                         String accountID)
+    {
+        return byAccount.get(new ContactKey(accountID, contactAddress));
+    }
+
+    /**
+     * Returns the meta contact with a meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta contact, <tt>null</tt> if none
+     */
+    MetaContact findMetaContactByMetaUID(String metaUID)
+    {
+        return metaContacts.get(metaUID);
+    }
+
+    /**
+     * Returns the meta contact group with a meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta contact group, <tt>null</tt> if none
+     */
+    MetaContactGroup findMetaContactGroupByMetaUID(String metaUID)
+    {
+        return groups.get(metaUID);
+    }
+
+    /**
+     * Indexes a group attached to the list, with its meta contacts and
+     * subgroups.
+     *
+     * @param group the group
+     */
+    void addGroup(MetaContactGroupImpl group)
+    {
+        addGroup(group, byProvider, byAccount, metaContacts, groups);
+    }
+
+    /**
+     * Removes a group detached from the list, with its meta contacts and
+     * subgroups.
+     *
+     * @param group the group
+     */
+    void removeGroup(MetaContactGroupImpl group)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+            removeMetaContact((MetaContactImpl) contacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeGroup((MetaContactGroupImpl) subgroups.next());
+
+        groups.remove(group.getMetaUID(), group);
+    }
+
+    /**
+     * Indexes a meta contact added to a group of the list, with its protocol
+     * contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    void addMetaContact(MetaContactImpl metaContact)
+    {
+        addMetaContact(metaContact, byProvider, byAccount, metaContacts);
+    }
+
+    /**
+     * Removes a meta contact removed from a group of the list, with its
+     * protocol contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    void removeMetaContact(MetaContactImpl metaContact)
+    {
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            removeContact(metaContact, contacts.next());
+
+        metaContacts.remove(metaContact.getMetaUID(), metaContact);
+    }
+
+    /**
+     * Indexes a protocol contact added to a meta contact of the list.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    void addContact(MetaContactImpl metaContact, Contact contact)
+    {
+        addContact(metaContact, contact, byProvider, byAccount);
+    }
+
+    /**
+     * Removes a protocol contact removed from a meta contact of the list. The
+     * contact is kept if indexed for another meta contact, which it was
+     * added to before being removed from this one.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    void removeContact(MetaContactImpl metaContact, Contact contact)
+    {
+        ProtocolProviderService provider = contact.getProtocolProvider();
+
+        byProvider.remove(
+            new ContactKey(provider, contact.getAddress()), metaContact);
+        byAccount.remove(
+            new ContactKey(
+                provider.getAccountID().getAccountUniqueID(),
+                contact.getAddress()),
+            metaContact);
+    }
+
+    /**
+     * Checks the index against the list, and rebuilds it if they differ. The
+     * differences are logged, as they are missed updates.
+     *
+     * @param root the root of the list
+     * @return <tt>true</tt> if the index was consistent with the list
+     */
+    synchronized boolean check(MetaContactGroupImpl root)
+    {
+        Map<ContactKey, MetaContactImpl> expectedByProvider
+            = new HashMap<ContactKey, MetaContactImpl>();
+        Map<ContactKey, MetaContactImpl> expectedByAccount
+            = new HashMap<ContactKey, MetaContactImpl>();
+        Map<String, MetaContactImpl> expectedMetaContacts
+            = new HashMap<String, MetaContactImpl>();
+        Map<String, MetaContactGroupImpl> expectedGroups
+            = new HashMap<String, MetaContactGroupImpl>();
+
+        addGroup(
+            root,
+            expectedByProvider, expectedByAccount,
+            expectedMetaContacts, expectedGroups);
+
+        boolean consistent
+            = check("contacts by provider", byProvider, expectedByProvider)
+            & check("contacts by account", byAccount, expectedByAccount)
+            & check("meta contacts", metaContacts, expectedMetaContacts)
+            & check("groups", groups, expectedGroups);
+        return consistent;
+    }
+
+    /**
+     * Checks one of the maps of the index, and replaces its content if it
+     * differs from the expected one.
+     */
+    private static <K, V> boolean check(String name,
+                                        Map<K, V> actual,
+                                        Map<K, V> expected)
+    {
+        if (actual.equals(expected))
+            return true;
+
+        int missing = 0;
+        for (Map.Entry<K, V> e : expected.entrySet())
+        {
+            if (actual.get(e.getKey()) != e.getValue())
+                missing++;
+        }
+        int stale = 0;
+        for (K key : actual.keySet())
+        {
+            if (!expected.containsKey(key))
+                stale++;
+        }
+        logger.warn(
+            "Rebuilding the index of the " + name + " of the contact list: "
+                + missing + " missing or wrong, " + stale + " stale");
+
+        actual.keySet().retainAll(expected.keySet());
+        actual.putAll(expected);
+        return false;
+    }
+
+    private static void addGroup(
+        MetaContactGroupImpl group,
+        Map<ContactKey, MetaContactImpl> byProvider,
+        Map<ContactKey, MetaContactImpl> byAccount,
+        Map<String, MetaContactImpl> metaContacts,
+        Map<String, MetaContactGroupImpl> groups)
+    {
+        groups.put(group.getMetaUID(), group);
+
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+        {
+            addMetaContact(
+                (MetaContactImpl) contacts.next(),
+                byProvider, byAccount, metaContacts);
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+        {
+            addGroup(
+                (MetaContactGroupImpl) subgroups.next(),
+                byProvider, byAccount, metaContacts, groups);
+        }
+    }
+
+    private static void addMetaContact(
+        MetaContactImpl metaContact,
+        Map<ContactKey, MetaContactImpl> byProvider,
+        Map<ContactKey, MetaContactImpl> byAccount,
+        Map<String, MetaContactImpl> metaContacts)
+    {
+        metaContacts.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            addContact(metaContact, contacts.next(), byProvider, byAccount);
+    }
+
+    private static void addContact(
+        MetaContactImpl metaContact,
+        Contact contact,
+        Map<ContactKey, MetaContactImpl> byProvider,
+        Map<ContactKey, MetaContactImpl> byAccount)
+    {
+        ProtocolProviderService provider = contact.getProtocolProvider();
+
+        byProvider.put(
+            new ContactKey(provider, contact.getAddress()), metaContact);
+        byAccount.put(
+            new ContactKey(
+                provider.getAccountID().getAccountUniqueID(),
+                contact.getAddress()),
+            metaContact);
+    }
+
+    /**
+     * The key of a protocol contact: its address and its provider, or the
+     * unique ID of its account.
+     */
+    private static class ContactKey
+    {
+        private final Object owner;
+
+        private final String address;
+
+        private ContactKey(Object owner, String address)
+        {
+            this.owner = owner;
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof ContactKey))
+                return false;
+
+            ContactKey key = (ContactKey) o;
+            return owner.equals(key.owner) && address.equals(key.address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * owner.hashCode() + address.hashCode();
+        }
+    }
+}
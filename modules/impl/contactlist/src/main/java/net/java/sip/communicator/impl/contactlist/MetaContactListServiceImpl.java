@@ -66,6 +66,12 @@
      */
     final MetaContactGroupImpl rootMetaGroup;
 
+    /**
+     * The indexes of the meta contacts and groups of the list, by protocol
+     * contact and by meta UID.
+     */
+    final MetaContactListIndex index = new MetaContactListIndex();
+
     /**
      * The event handler that will be handling our subscription events.
      */
@@ -134,6 +140,7 @@ public MetaContactListServiceImpl(ResourceManagementService res)
             = new MetaContactGroupImpl(
                     this, res.getI18NString(
                         "service.gui.CONTACTS"), "RootMetaContactGroup");
+        index.addGroup(rootMetaGroup);
     }
 
     /**
@@ -1644,7 +1651,7 @@ private void locallyRemoveAllContactsForProvider(
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        return index.findMetaContactByContact(contact);
     }
 
     /**
@@ -1667,8 +1674,7 @@ public MetaContact findMetaContactByContact(Contact contact)
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        return index.findMetaContactByContact(contactAddress, accountID);
     }
 
     /**
@@ -1681,8 +1687,7 @@ public MetaContact findMetaContactByContact(String contactAddress,
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return index.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -1696,7 +1701,7 @@ public MetaContact findMetaContactByMetaUID(String metaContactID)
      */
     public MetaContactGroup findMetaContactGroupByMetaUID(String metaGroupID)
     {
-        return rootMetaGroup.findMetaContactGroupByMetaUID(metaGroupID);
+        return index.findMetaContactGroupByMetaUID(metaGroupID);
     }
 
     /**
@@ -2050,6 +2055,8 @@ private synchronized void handleProviderAdded(
         {
             capOpSet.addContactCapabilitiesListener(this);
         }
+
+        index.check(rootMetaGroup);
     }
 
     /**
@@ -2115,6 +2122,8 @@ private void handleProviderRemoved(
 
         if (capOpSet != null)
             capOpSet.removeContactCapabilitiesListener(this);
+
+        index.check(rootMetaGroup);
     }
 
     /**
@@ -0,0 +1,362 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+/**
+ * A sorted set which also finds its elements by position, and the position of
+ * its elements, in logarithmic time: an AVL tree whose nodes count the
+ * elements of their subtree.
+ * <p>
+ * The tree is persistent. An update copies the path to the updated node and
+ * publishes the new root, so that the readers never lock and always see a
+ * consistent snapshot of the set, e.g. while iterating. The updates are
+ * synchronized on the tree.
+ * <p>
+ * Like a <tt>TreeSet</tt>, the set relies on the order of its elements not
+ * changing while they are in the set. An element whose order changes has to
+ * be removed before the change and added again after it.
+ *
+ * @param <E> the type of the elements
+ */
+class OrderStatisticTree<E extends Comparable<? super E>>
+    implements Iterable<E>
+{
+    /**
+     * The root of the current snapshot, <tt>null</tt> when empty.
+     */
+    private volatile Node<E> root = null;
+
+    /**
+     * Adds an element.
+     *
+     * @param e the element
+     * @return <tt>true</tt> if the set did not already contain the element
+     */
+    synchronized boolean add(E e)
+    {
+        Node<E> newRoot = add(root, e);
+        if (newRoot == root)
+            return false;
+
+        root = newRoot;
+        return true;
+    }
+
+    /**
+     * Removes an element.
+     *
+     * @param e the element
+     * @return <tt>true</tt> if the set contained the element
+     */
+    synchronized boolean remove(E e)
+    {
+        Node<E> newRoot = remove(root, e);
+        if (newRoot == root)
+            return false;
+
+        root = newRoot;
+        return true;
+    }
+
+    /**
+     * Returns the number of elements.
+     *
+     * @return the number of elements
+     */
+    int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * Determines whether the set contains an element.
+     *
+     * @param e the element
+     * @return <tt>true</tt> if the set contains the element
+     */
+    boolean contains(E e)
+    {
+        return indexOf(e) != -1;
+    }
+
+    /**
+     * Returns the element at a position.
+     *
+     * @param index the position of the element, in ascending order
+     * @return the element
+     * @throws IndexOutOfBoundsException if <tt>index</tt> is not a valid
+     * position
+     */
+    E get(int index)
+    {
+        Node<E> node = root;
+        if (index < 0 || index >= size(node))
+        {
+            throw new IndexOutOfBoundsException(
+                "Index: " + index + ", Size: " + size(node));
+        }
+
+        while (true)
+        {
+            int leftSize = size(node.left);
+            if (index < leftSize)
+            {
+                node = node.left;
+            }
+            else if (index == leftSize)
+            {
+                return node.value;
+            }
+            else
+            {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of an element.
+     *
+     * @param e the element
+     * @return the position of the element, in ascending order, or -1 if the
+     * set does not contain the element
+     */
+    int indexOf(E e)
+    {
+        Node<E> node = root;
+        int index = 0;
+
+        while (node != null)
+        {
+            int c = e.compareTo(node.value);
+            if (c < 0)
+            {
+                node = node.left;
+            }
+            else if (c == 0)
+            {
+                return index + size(node.left);
+            }
+            else
+            {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the set, in ascending order.
+     *
+     * @return an iterator over the elements
+     */
+    public Iterator<E> iterator()
+    {
+        final Deque<Node<E>> path = new ArrayDeque<Node<E>>();
+        for (Node<E> node = root; node != null; node = node.left)
+            path.push(node);
+
+        return new Iterator<E>()
+        {
+            public boolean hasNext()
+            {
+                return !path.isEmpty();
+            }
+
+            public E next()
+            {
+                if (path.isEmpty())
+                    throw new NoSuchElementException();
+
+                Node<E> node = path.pop();
+                for (Node<E> n = node.right; n != null; n = n.left)
+                    path.push(n);
+                return node.value;
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns a snapshot of the set, in ascending order.
+     *
+     * @return a list of the elements
+     */
+    List<E> toList()
+    {
+        Node<E> node = root;
+        List<E> list = new ArrayList<E>(size(node));
+        addAll(node, list);
+        return list;
+    }
+
+    private static <E> void addAll(Node<E> node, List<E> list)
+    {
+        while (node != null)
+        {
+            addAll(node.left, list);
+            list.add(node.value);
+            node = node.right;
+        }
+    }
+
+    private static <E extends Comparable<? super E>> Node<E> add(
+        Node<E> node, E e)
+    {
+        if (node == null)
+            return new Node<E>(e, null, null);
+
+        int c = e.compareTo(node.value);
+        if (c < 0)
+        {
+            Node<E> left = add(node.left, e);
+            return (left == node.left)
+                ? node : balance(node.value, left, node.right);
+        }
+        else if (c > 0)
+        {
+            Node<E> right = add(node.right, e);
+            return (right == node.right)
+                ? node : balance(node.value, node.left, right);
+        }
+        return node;
+    }
+
+    private static <E extends Comparable<? super E>> Node<E> remove(
+        Node<E> node, E e)
+    {
+        if (node == null)
+            return null;
+
+        int c = e.compareTo(node.value);
+        if (c < 0)
+        {
+            Node<E> left = remove(node.left, e);
+            return (left == node.left)
+                ? node : balance(node.value, left, node.right);
+        }
+        else if (c > 0)
+        {
+            Node<E> right = remove(node.right, e);
+            return (right == node.right)
+                ? node : balance(node.value, node.left, right);
+        }
+
+        if (node.left == null)
+            return node.right;
+        if (node.right == null)
+            return node.left;
+
+        // replace by the successor
+        Node<E> successor = node.right;
+        while (successor.left != null)
+            successor = successor.left;
+        return balance(
+            successor.value, node.left, removeFirst(node.right));
+    }
+
+    private static <E> Node<E> removeFirst(Node<E> node)
+    {
+        if (node.left == null)
+            return node.right;
+        return balance(node.value, removeFirst(node.left), node.right);
+    }
+
+    /**
+     * Creates a node whose subtrees differ in height by at most two, and
+     * rotates it so that they differ by at most one.
+     */
+    private static <E> Node<E> balance(E value, Node<E> left, Node<E> right)
+    {
+        int diff = height(left) - height(right);
+        if (diff > 1)
+        {
+            if (height(left.left) < height(left.right))
+                left = rotateLeft(left.value, left.left, left.right);
+            return rotateRight(value, left, right);
+        }
+        if (diff < -1)
+        {
+            if (height(right.right) < height(right.left))
+                right = rotateRight(right.value, right.left, right.right);
+            return rotateLeft(value, left, right);
+        }
+        return new Node<E>(value, left, right);
+    }
+
+    private static <E> Node<E> rotateRight(E value, Node<E> left, Node<E> right)
+    {
+        return new Node<E>(
+            left.value, left.left, new Node<E>(value, left.right, right));
+    }
+
+    private static <E> Node<E> rotateLeft(E value, Node<E> left, Node<E> right)
+    {
+        return new Node<E>(
+            right.value, new Node<E>(value, left, right.left), right.right);
+    }
+
+    private static int size(Node<?> node)
+    {
+        return (node == null) ? 0 : node.size;
+    }
+
+    private static int height(Node<?> node)
+    {
+        return (node == null) ? 0 : node.height;
+    }
+
+    /**
+     * An immutable node of the tree.
+     */
+    private static class Node<E>
+    {
+        private final E value;
+
+        private final Node<E> left;
+
+        private final Node<E> right;
+
+        /**
+         * The height of the subtree of this node.
+         */
+        private final int height;
+
+        /**
+         * The number of elements of the subtree of this node.
+         */
+        private final int size;
+
+        private Node(E value, Node<E> left, Node<E> right)
+        {
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+}
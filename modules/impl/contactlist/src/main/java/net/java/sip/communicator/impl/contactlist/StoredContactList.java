@@ -0,0 +1,1251 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+/**
+ * The persistent copy of the meta contact list, as stored by the
+ * <tt>MclStorageManager</tt>: the groups, meta contacts and protocol specific
+ * groups and contacts of all the accounts, with the data they are restored
+ * from. The groups and meta contacts are found by UID.
+ * <p>
+ * The list is read from and written to the contact list file (the snapshot)
+ * with streaming XML readers and writers. The changes made to the list since
+ * the snapshot are kept in a journal of records, each of which holds the
+ * whole state of a group or meta contact, or its removal. Replaying a record
+ * twice has no effect, so that the journal can be replayed over a snapshot
+ * which already contains some of its records.
+ * <p>
+ * The list is not thread safe.
+ */
+class StoredContactList
+{
+    /**
+     * The logger for this class.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(StoredContactList.class);
+
+    /**
+     * The name of the node that represents the contact list root.
+     */
+    private static final String DOCUMENT_ROOT_NAME = "sip-communicator";
+
+    /**
+     * The name of the XML node corresponding to a meta contact group.
+     */
+    private static final String GROUP_NODE_NAME = "group";
+
+    /**
+     * The name of the XML node corresponding to a collection of meta contact
+     * subgroups.
+     */
+    private static final String SUBGROUPS_NODE_NAME = "subgroups";
+
+    /**
+     * The name of the XML attribute that contains group names.
+     */
+    private static final String GROUP_NAME_ATTR_NAME = "name";
+
+    /**
+     * The name of the XML node that contains protocol specific group
+     * descriptorS.
+     */
+    private static final String PROTO_GROUPS_NODE_NAME = "proto-groups";
+
+    /**
+     * The name of the XML node that contains A protocol specific group
+     * descriptor.
+     */
+    private static final String PROTO_GROUP_NODE_NAME = "proto-group";
+
+    /**
+     * The name of the XML attribute that contains unique identifiers
+     */
+    private static final String UID_ATTR_NAME = "uid";
+
+    /**
+     * The name of the XML attribute that contains unique identifiers for parent
+     * contact groups.
+     */
+    private static final String PARENT_PROTO_GROUP_UID_ATTR_NAME =
+        "parent-proto-group-uid";
+
+    /**
+     * The name of the XML attribute that contains account identifiers
+     * indicating proto group's and proto contacts' owning providers.
+     */
+    private static final String ACCOUNT_ID_ATTR_NAME = "account-id";
+
+    /**
+     * The name of the XML node that contains meta contact details.
+     */
+    private static final String META_CONTACT_NODE_NAME = "meta-contact";
+
+    /**
+     * The name of the XML node that contains meta contact display names.
+     */
+    private static final String META_CONTACT_DISPLAY_NAME_NODE_NAME =
+        "display-name";
+
+    /**
+     * The name of the XML attribute that contains true/false, whether
+     * this meta contact was renamed by user.
+     */
+    private static final String USER_DEFINED_DISPLAY_NAME_ATTR_NAME =
+        "user-defined";
+
+    /**
+     * The name of the XML node that contains meta contact detail.
+     */
+    private static final String META_CONTACT_DETAIL_NAME_NODE_NAME = "detail";
+
+    /**
+     * The name of the XML attribute that contains detail name.
+     */
+    private static final String DETAIL_NAME_ATTR_NAME = "name";
+
+    /**
+     * The name of the XML attribute that contains detail value.
+     */
+    private static final String DETAIL_VALUE_ATTR_NAME = "value";
+
+    /**
+     * The name of the XML node that contains information of a proto contact
+     */
+    private static final String PROTO_CONTACT_NODE_NAME = "contact";
+
+    /**
+     * The name of the XML node that contains information of a proto contact
+     */
+    private static final String PROTO_CONTACT_ADDRESS_ATTR_NAME = "address";
+
+    /**
+     * The name of the XML node that contains information that contacts or
+     * groups returned as persistent and that should be used when restoring a
+     * contact or a group.
+     */
+    private static final String PERSISTENT_DATA_NODE_NAME = "persistent-data";
+
+    /**
+     * The name of the XML node that contains all meta contact nodes inside a
+     * group
+     */
+    private static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
+
+    /**
+     * The first field of the journal records of groups.
+     */
+    private static final String GROUP_RECORD = "G";
+
+    /**
+     * The first field of the journal records of removed groups.
+     */
+    private static final String GROUP_REMOVED_RECORD = "g";
+
+    /**
+     * The first field of the journal records of meta contacts.
+     */
+    private static final String META_CONTACT_RECORD = "M";
+
+    /**
+     * The first field of the journal records of removed meta contacts.
+     */
+    private static final String META_CONTACT_REMOVED_RECORD = "m";
+
+    /**
+     * The factory of the readers of the contact list file.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY
+        = XMLInputFactory.newInstance();
+
+    static
+    {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * The factory of the writers of the contact list file.
+     */
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY
+        = XMLOutputFactory.newInstance();
+
+    /**
+     * The root group of the list.
+     */
+    private final StoredGroup root;
+
+    /**
+     * The groups of the list, including the root, by UID.
+     */
+    private final Map<String, StoredGroup> groups
+        = new HashMap<String, StoredGroup>();
+
+    /**
+     * The meta contacts of the list, by UID.
+     */
+    private final Map<String, StoredMetaContact> metaContacts
+        = new HashMap<String, StoredMetaContact>();
+
+    /**
+     * Creates an empty list.
+     *
+     * @param rootUID the UID of the root group
+     * @param rootName the name of the root group
+     */
+    StoredContactList(String rootUID, String rootName)
+    {
+        root = new StoredGroup(rootUID, rootName);
+        groups.put(rootUID, root);
+    }
+
+    /**
+     * Returns the root group of the list.
+     *
+     * @return the root group
+     */
+    StoredGroup getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Returns the group with a UID.
+     *
+     * @param uid the UID of the group
+     * @return the group, <tt>null</tt> if none
+     */
+    StoredGroup findGroup(String uid)
+    {
+        return groups.get(uid);
+    }
+
+    /**
+     * Returns the meta contact with a UID.
+     *
+     * @param uid the UID of the meta contact
+     * @return the meta contact, <tt>null</tt> if none
+     */
+    StoredMetaContact findMetaContact(String uid)
+    {
+        return metaContacts.get(uid);
+    }
+
+    /**
+     * Returns the number of groups and meta contacts of the list, which is
+     * the number of records of a journal rebuilding the list.
+     *
+     * @return the number of groups and meta contacts
+     */
+    int size()
+    {
+        return groups.size() + metaContacts.size();
+    }
+
+    /**
+     * Adds a group, with its subgroups and meta contacts, to another group.
+     * A group with the same UID is replaced.
+     *
+     * @param parent the group to add the group to
+     * @param group the group
+     */
+    void addGroup(StoredGroup parent, StoredGroup group)
+    {
+        StoredGroup existing = groups.get(group.uid);
+        if (existing != null)
+            removeGroup(existing);
+
+        group.parent = parent;
+        parent.subgroups.put(group.uid, group);
+        register(group);
+    }
+
+    private void register(StoredGroup group)
+    {
+        groups.put(group.uid, group);
+        for (StoredMetaContact metaContact : group.childContacts.values())
+        {
+            StoredMetaContact existing = metaContacts.put(
+                metaContact.uid, metaContact);
+            if (existing != null && existing != metaContact)
+                existing.group.childContacts.remove(existing.uid);
+        }
+        for (StoredGroup subgroup : group.subgroups.values())
+            register(subgroup);
+    }
+
+    /**
+     * Removes a group with its subgroups and meta contacts.
+     *
+     * @param group the group
+     */
+    void removeGroup(StoredGroup group)
+    {
+        if (group.parent != null)
+            group.parent.subgroups.remove(group.uid);
+        unregister(group);
+    }
+
+    private void unregister(StoredGroup group)
+    {
+        groups.remove(group.uid);
+        for (StoredMetaContact metaContact : group.childContacts.values())
+            metaContacts.remove(metaContact.uid);
+        for (StoredGroup subgroup : group.subgroups.values())
+            unregister(subgroup);
+    }
+
+    /**
+     * Adds a meta contact to a group, or moves it there. A different meta
+     * contact with the same UID is replaced.
+     *
+     * @param group the group
+     * @param metaContact the meta contact
+     */
+    void putMetaContact(StoredGroup group, StoredMetaContact metaContact)
+    {
+        StoredMetaContact existing = metaContacts.put(
+            metaContact.uid, metaContact);
+        if (existing != null)
+            existing.group.childContacts.remove(existing.uid);
+
+        metaContact.group = group;
+        group.childContacts.put(metaContact.uid, metaContact);
+    }
+
+    /**
+     * Removes a meta contact.
+     *
+     * @param metaContact the meta contact
+     */
+    void removeMetaContact(StoredMetaContact metaContact)
+    {
+        metaContacts.remove(metaContact.uid);
+        metaContact.group.childContacts.remove(metaContact.uid);
+    }
+
+    /**
+     * Replaces a group of the list, with its subgroups and meta contacts, by
+     * a group with the same UID which is not part of the list, and appends
+     * the journal records of the replacement.
+     *
+     * @param group the group of the list
+     * @param replacement the group replacing it
+     * @param records the records to append to
+     */
+    void replaceGroup(StoredGroup group,
+                      StoredGroup replacement,
+                      StringBuilder records)
+    {
+        if (group != root)
+        {
+            // the removal drops the subgroups and meta contacts that are not
+            // in the replacement when the journal is replayed
+            records.append(groupRemovedRecord(group.uid));
+            addGroup(group.parent, replacement);
+            appendGroupRecords(replacement, records);
+            return;
+        }
+
+        // the root group cannot be removed, so its content is
+        for (StoredGroup subgroup : new ArrayList<StoredGroup>(
+                root.subgroups.values()))
+        {
+            records.append(groupRemovedRecord(subgroup.uid));
+            removeGroup(subgroup);
+        }
+        for (StoredMetaContact metaContact : new ArrayList<StoredMetaContact>(
+                root.childContacts.values()))
+        {
+            records.append(metaContactRemovedRecord(metaContact.uid));
+            removeMetaContact(metaContact);
+        }
+
+        root.name = replacement.name;
+        root.protoGroups.clear();
+        root.protoGroups.addAll(replacement.protoGroups);
+        for (StoredGroup subgroup : replacement.subgroups.values())
+            addGroup(root, subgroup);
+        for (StoredMetaContact metaContact
+                : replacement.childContacts.values())
+        {
+            putMetaContact(root, metaContact);
+        }
+        appendGroupRecords(root, records);
+    }
+
+    /**
+     * Reads a contact list file.
+     *
+     * @param in the content of the file
+     * @return the list, <tt>null</tt> if the file has no root group
+     * @throws XMLStreamException if the file cannot be parsed
+     */
+    static StoredContactList read(InputStream in)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader;
+        synchronized (XML_INPUT_FACTORY)
+        {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        }
+
+        try
+        {
+            while (reader.hasNext())
+            {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                    && GROUP_NODE_NAME.equals(reader.getLocalName()))
+                {
+                    StoredContactList list = new StoredContactList(
+                        reader.getAttributeValue(null, UID_ATTR_NAME),
+                        reader.getAttributeValue(null, GROUP_NAME_ATTR_NAME));
+                    list.readGroup(reader, list.root);
+                    return list;
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the content of a group node into <tt>group</tt>, which is
+     * already in the list.
+     */
+    private void readGroup(XMLStreamReader reader, StoredGroup group)
+        throws XMLStreamException
+    {
+        while (nextChild(reader))
+        {
+            String name = reader.getLocalName();
+            if (PROTO_GROUPS_NODE_NAME.equals(name))
+            {
+                while (nextChild(reader))
+                {
+                    if (PROTO_GROUP_NODE_NAME.equals(reader.getLocalName()))
+                        group.protoGroups.add(readProtoGroup(reader));
+                    else
+                        skip(reader);
+                }
+            }
+            else if (SUBGROUPS_NODE_NAME.equals(name))
+            {
+                while (nextChild(reader))
+                {
+                    String uid = reader.getAttributeValue(null, UID_ATTR_NAME);
+                    if (!GROUP_NODE_NAME.equals(reader.getLocalName())
+                        || uid == null)
+                    {
+                        skip(reader);
+                    }
+                    else if (groups.containsKey(uid))
+                    {
+                        logger.warn("Ignoring duplicate group " + uid);
+                        skip(reader);
+                    }
+                    else
+                    {
+                        StoredGroup subgroup = new StoredGroup(
+                            uid,
+                            reader.getAttributeValue(
+                                null, GROUP_NAME_ATTR_NAME));
+                        addGroup(group, subgroup);
+                        readGroup(reader, subgroup);
+                    }
+                }
+            }
+            else if (CHILD_CONTACTS_NODE_NAME.equals(name))
+            {
+                while (nextChild(reader))
+                {
+                    if (!META_CONTACT_NODE_NAME.equals(reader.getLocalName()))
+                    {
+                        skip(reader);
+                        continue;
+                    }
+
+                    StoredMetaContact metaContact = readMetaContact(reader);
+                    if (metaContact.uid == null)
+                        continue;
+                    if (metaContacts.containsKey(metaContact.uid))
+                    {
+                        logger.warn(
+                            "Ignoring duplicate meta contact "
+                                + metaContact.uid);
+                        continue;
+                    }
+                    putMetaContact(group, metaContact);
+                }
+            }
+            else
+            {
+                skip(reader);
+            }
+        }
+    }
+
+    private static StoredProtoGroup readProtoGroup(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        StoredProtoGroup protoGroup = new StoredProtoGroup(
+            reader.getAttributeValue(null, UID_ATTR_NAME),
+            reader.getAttributeValue(null, ACCOUNT_ID_ATTR_NAME),
+            reader.getAttributeValue(null, PARENT_PROTO_GROUP_UID_ATTR_NAME),
+            readPersistentData(reader));
+        return protoGroup;
+    }
+
+    private static StoredMetaContact readMetaContact(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        StoredMetaContact metaContact = new StoredMetaContact(
+            reader.getAttributeValue(null, UID_ATTR_NAME));
+
+        while (nextChild(reader))
+        {
+            String name = reader.getLocalName();
+            if (META_CONTACT_DISPLAY_NAME_NODE_NAME.equals(name))
+            {
+                metaContact.displayNameUserDefined = Boolean.valueOf(
+                    reader.getAttributeValue(
+                        null, USER_DEFINED_DISPLAY_NAME_ATTR_NAME));
+                metaContact.displayName = reader.getElementText();
+            }
+            else if (PROTO_CONTACT_NODE_NAME.equals(name))
+            {
+                StoredProtoContact protoContact = new StoredProtoContact(
+                    reader.getAttributeValue(
+                        null, PROTO_CONTACT_ADDRESS_ATTR_NAME),
+                    reader.getAttributeValue(null, ACCOUNT_ID_ATTR_NAME),
+                    reader.getAttributeValue(
+                        null, PARENT_PROTO_GROUP_UID_ATTR_NAME),
+                    readPersistentData(reader));
+
+                // duplicates are dropped
+                if (metaContact.findProtoContact(
+                        protoContact.address, protoContact.accountID)
+                    == null)
+                {
+                    metaContact.protoContacts.add(protoContact);
+                }
+            }
+            else if (META_CONTACT_DETAIL_NAME_NODE_NAME.equals(name))
+            {
+                metaContact.addDetail(
+                    reader.getAttributeValue(null, DETAIL_NAME_ATTR_NAME),
+                    reader.getAttributeValue(null, DETAIL_VALUE_ATTR_NAME));
+                skip(reader);
+            }
+            else
+            {
+                skip(reader);
+            }
+        }
+        return metaContact;
+    }
+
+    /**
+     * Reads the persistent data child of the current node, and moves to the
+     * end of the node.
+     */
+    private static String readPersistentData(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        String persistentData = "";
+        while (nextChild(reader))
+        {
+            if (PERSISTENT_DATA_NODE_NAME.equals(reader.getLocalName()))
+                persistentData = reader.getElementText();
+            else
+                skip(reader);
+        }
+        return persistentData;
+    }
+
+    /**
+     * Moves to the next child node of the current node.
+     *
+     * @return <tt>true</tt> if the reader is at the start of a child node,
+     * <tt>false</tt> if it is at the end of the current node
+     */
+    private static boolean nextChild(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        while (true)
+        {
+            switch (reader.next())
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                return true;
+            case XMLStreamConstants.END_ELEMENT:
+            case XMLStreamConstants.END_DOCUMENT:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves to the end of the current node.
+     */
+    private static void skip(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        while (nextChild(reader))
+            skip(reader);
+    }
+
+    /**
+     * Writes the list in the format of the contact list file.
+     *
+     * @param out the stream to write the list to, left open
+     * @throws XMLStreamException if the list could not be written
+     */
+    void write(OutputStream out)
+        throws XMLStreamException
+    {
+        XMLStreamWriter writer;
+        synchronized (XML_OUTPUT_FACTORY)
+        {
+            writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        }
+
+        writer.writeStartDocument("UTF-8", "1.0");
+        indent(writer, 0);
+        writer.writeStartElement(DOCUMENT_ROOT_NAME);
+        writeGroup(writer, root, 1);
+        indent(writer, 0);
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+        writer.close();
+    }
+
+    private static void writeGroup(XMLStreamWriter writer,
+                                   StoredGroup group,
+                                   int depth)
+        throws XMLStreamException
+    {
+        indent(writer, depth);
+        writer.writeStartElement(GROUP_NODE_NAME);
+        writeAttribute(writer, GROUP_NAME_ATTR_NAME, group.name);
+        writeAttribute(writer, UID_ATTR_NAME, group.uid);
+
+        indent(writer, depth + 1);
+        writer.writeStartElement(PROTO_GROUPS_NODE_NAME);
+        for (StoredProtoGroup protoGroup : group.protoGroups)
+        {
+            indent(writer, depth + 2);
+            writer.writeStartElement(PROTO_GROUP_NODE_NAME);
+            writeAttribute(writer, UID_ATTR_NAME, protoGroup.uid);
+            writeAttribute(
+                writer, ACCOUNT_ID_ATTR_NAME, protoGroup.accountID);
+            writeAttribute(
+                writer, PARENT_PROTO_GROUP_UID_ATTR_NAME, protoGroup.parentUID);
+            writePersistentData(writer, protoGroup.persistentData, depth + 3);
+            writer.writeEndElement();
+        }
+        indent(writer, depth + 1);
+        writer.writeEndElement();
+
+        indent(writer, depth + 1);
+        writer.writeStartElement(SUBGROUPS_NODE_NAME);
+        for (StoredGroup subgroup : group.subgroups.values())
+            writeGroup(writer, subgroup, depth + 2);
+        indent(writer, depth + 1);
+        writer.writeEndElement();
+
+        indent(writer, depth + 1);
+        writer.writeStartElement(CHILD_CONTACTS_NODE_NAME);
+        for (StoredMetaContact metaContact : group.childContacts.values())
+            writeMetaContact(writer, metaContact, depth + 2);
+        indent(writer, depth + 1);
+        writer.writeEndElement();
+
+        indent(writer, depth);
+        writer.writeEndElement();
+    }
+
+    private static void writeMetaContact(XMLStreamWriter writer,
+                                         StoredMetaContact metaContact,
+                                         int depth)
+        throws XMLStreamException
+    {
+        indent(writer, depth);
+        writer.writeStartElement(META_CONTACT_NODE_NAME);
+        writeAttribute(writer, UID_ATTR_NAME, metaContact.uid);
+
+        indent(writer, depth + 1);
+        writer.writeStartElement(META_CONTACT_DISPLAY_NAME_NODE_NAME);
+        if (metaContact.displayNameUserDefined)
+        {
+            writer.writeAttribute(
+                USER_DEFINED_DISPLAY_NAME_ATTR_NAME, Boolean.TRUE.toString());
+        }
+        writer.writeCharacters(metaContact.displayName);
+        writer.writeEndElement();
+
+        for (StoredProtoContact protoContact : metaContact.protoContacts)
+        {
+            indent(writer, depth + 1);
+            writer.writeStartElement(PROTO_CONTACT_NODE_NAME);
+            writeAttribute(
+                writer, PROTO_CONTACT_ADDRESS_ATTR_NAME, protoContact.address);
+            writeAttribute(
+                writer, ACCOUNT_ID_ATTR_NAME, protoContact.accountID);
+            writeAttribute(
+                writer,
+                PARENT_PROTO_GROUP_UID_ATTR_NAME,
+                protoContact.parentGroupUID);
+            writePersistentData(
+                writer, protoContact.persistentData, depth + 2);
+            writer.writeEndElement();
+        }
+
+        for (Map.Entry<String, List<String>> detail
+                : metaContact.details.entrySet())
+        {
+            for (String value : detail.getValue())
+            {
+                indent(writer, depth + 1);
+                writer.writeEmptyElement(META_CONTACT_DETAIL_NAME_NODE_NAME);
+                writeAttribute(writer, DETAIL_NAME_ATTR_NAME, detail.getKey());
+                writeAttribute(writer, DETAIL_VALUE_ATTR_NAME, value);
+            }
+        }
+
+        indent(writer, depth);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes a persistent data node, unless there is no persistent data, and
+     * the indentation of the end of the parent node.
+     */
+    private static void writePersistentData(XMLStreamWriter writer,
+                                            String persistentData,
+                                            int depth)
+        throws XMLStreamException
+    {
+        if (persistentData == null || persistentData.length() == 0)
+            return;
+
+        indent(writer, depth);
+        writer.writeStartElement(PERSISTENT_DATA_NODE_NAME);
+        writer.writeCharacters(persistentData);
+        writer.writeEndElement();
+        indent(writer, depth - 1);
+    }
+
+    private static void writeAttribute(XMLStreamWriter writer,
+                                       String name,
+                                       String value)
+        throws XMLStreamException
+    {
+        if (value != null)
+            writer.writeAttribute(name, value);
+    }
+
+    private static void indent(XMLStreamWriter writer, int depth)
+        throws XMLStreamException
+    {
+        StringBuilder indent = new StringBuilder(1 + 4 * depth).append('\n');
+        for (int i = 0; i < depth; i++)
+            indent.append("    ");
+        writer.writeCharacters(indent.toString());
+    }
+
+    /**
+     * Returns the journal record of the current state of a group, without
+     * its subgroups and meta contacts.
+     *
+     * @param group the group
+     * @return the record, ending with a new line
+     */
+    static String groupRecord(StoredGroup group)
+    {
+        StringBuilder record = new StringBuilder(GROUP_RECORD);
+        appendField(record, group.uid);
+        appendField(record, (group.parent == null) ? null : group.parent.uid);
+        appendField(record, group.name);
+        appendField(record, Integer.toString(group.protoGroups.size()));
+        for (StoredProtoGroup protoGroup : group.protoGroups)
+        {
+            appendField(record, protoGroup.uid);
+            appendField(record, protoGroup.accountID);
+            appendField(record, protoGroup.parentUID);
+            appendField(record, protoGroup.persistentData);
+        }
+        return record.append('\n').toString();
+    }
+
+    /**
+     * Returns the journal records of a group, its subgroups and meta
+     * contacts.
+     *
+     * @param group the group
+     * @param records the records to append to
+     */
+    static void appendGroupRecords(StoredGroup group, StringBuilder records)
+    {
+        records.append(groupRecord(group));
+        for (StoredMetaContact metaContact : group.childContacts.values())
+            records.append(metaContactRecord(metaContact));
+        for (StoredGroup subgroup : group.subgroups.values())
+            appendGroupRecords(subgroup, records);
+    }
+
+    /**
+     * Returns the journal record of the removal of a group.
+     *
+     * @param uid the UID of the group
+     * @return the record, ending with a new line
+     */
+    static String groupRemovedRecord(String uid)
+    {
+        StringBuilder record = new StringBuilder(GROUP_REMOVED_RECORD);
+        appendField(record, uid);
+        return record.append('\n').toString();
+    }
+
+    /**
+     * Returns the journal record of the current state of a meta contact.
+     *
+     * @param metaContact the meta contact
+     * @return the record, ending with a new line
+     */
+    static String metaContactRecord(StoredMetaContact metaContact)
+    {
+        StringBuilder record = new StringBuilder(META_CONTACT_RECORD);
+        appendField(record, metaContact.uid);
+        appendField(record, metaContact.group.uid);
+        appendField(record, metaContact.displayName);
+        appendField(
+            record, Boolean.toString(metaContact.displayNameUserDefined));
+        appendField(
+            record, Integer.toString(metaContact.protoContacts.size()));
+        for (StoredProtoContact protoContact : metaContact.protoContacts)
+        {
+            appendField(record, protoContact.address);
+            appendField(record, protoContact.accountID);
+            appendField(record, protoContact.parentGroupUID);
+            appendField(record, protoContact.persistentData);
+        }
+        for (Map.Entry<String, List<String>> detail
+                : metaContact.details.entrySet())
+        {
+            for (String value : detail.getValue())
+            {
+                appendField(record, detail.getKey());
+                appendField(record, value);
+            }
+        }
+        return record.append('\n').toString();
+    }
+
+    /**
+     * Returns the journal record of the removal of a meta contact.
+     *
+     * @param uid the UID of the meta contact
+     * @return the record, ending with a new line
+     */
+    static String metaContactRemovedRecord(String uid)
+    {
+        StringBuilder record = new StringBuilder(META_CONTACT_REMOVED_RECORD);
+        appendField(record, uid);
+        return record.append('\n').toString();
+    }
+
+    /**
+     * Applies a journal record to the list.
+     *
+     * @param record the record, without its new line
+     * @return <tt>false</tt> if the record is broken or does not apply to
+     * the list
+     */
+    boolean apply(String record)
+    {
+        String[] fields = record.split("\t", -1);
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = unescape(fields[i]);
+
+        try
+        {
+            if (GROUP_RECORD.equals(fields[0]))
+                return applyGroupRecord(fields);
+            if (META_CONTACT_RECORD.equals(fields[0]))
+                return applyMetaContactRecord(fields);
+
+            if (GROUP_REMOVED_RECORD.equals(fields[0]))
+            {
+                StoredGroup group = groups.get(fields[1]);
+                if (group != null && group != root)
+                    removeGroup(group);
+                return true;
+            }
+            if (META_CONTACT_REMOVED_RECORD.equals(fields[0]))
+            {
+                StoredMetaContact metaContact = metaContacts.get(fields[1]);
+                if (metaContact != null)
+                    removeMetaContact(metaContact);
+                return true;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // an index or a number out of bounds
+            logger.debug("Broken contact list journal record", e);
+        }
+        return false;
+    }
+
+    private boolean applyGroupRecord(String[] fields)
+    {
+        String uid = fields[1];
+        int protoGroupCount = Integer.parseInt(fields[4]);
+        if (uid == null || fields.length != 5 + 4 * protoGroupCount)
+            return false;
+
+        StoredGroup group = groups.get(uid);
+        if (group != root)
+        {
+            StoredGroup parent = groups.get(fields[2]);
+            if (parent == null)
+                return false;
+
+            if (group == null)
+            {
+                group = new StoredGroup(uid, fields[3]);
+                addGroup(parent, group);
+            }
+            else if (group.parent != parent)
+            {
+                // with its subgroups and meta contacts
+                removeGroup(group);
+                addGroup(parent, group);
+            }
+        }
+
+        group.name = fields[3];
+        group.protoGroups.clear();
+        for (int i = 5; i < fields.length; i += 4)
+        {
+            group.protoGroups.add(new StoredProtoGroup(
+                fields[i], fields[i + 1], fields[i + 2], fields[i + 3]));
+        }
+        return true;
+    }
+
+    private boolean applyMetaContactRecord(String[] fields)
+    {
+        String uid = fields[1];
+        StoredGroup group = groups.get(fields[2]);
+        int protoContactCount = Integer.parseInt(fields[5]);
+        int detailsStart = 6 + 4 * protoContactCount;
+        if (uid == null
+            || group == null
+            || fields.length < detailsStart
+            || (fields.length - detailsStart) % 2 != 0)
+        {
+            return false;
+        }
+
+        StoredMetaContact metaContact = new StoredMetaContact(uid);
+        metaContact.displayName = (fields[3] == null) ? "" : fields[3];
+        metaContact.displayNameUserDefined = Boolean.valueOf(fields[4]);
+        for (int i = 6; i < detailsStart; i += 4)
+        {
+            metaContact.protoContacts.add(new StoredProtoContact(
+                fields[i], fields[i + 1], fields[i + 2], fields[i + 3]));
+        }
+        for (int i = detailsStart; i < fields.length; i += 2)
+            metaContact.addDetail(fields[i], fields[i + 1]);
+
+        putMetaContact(group, metaContact);
+        return true;
+    }
+
+    /**
+     * Appends a field to a journal record. <tt>null</tt> is written as an
+     * empty field, and read back as <tt>null</tt>.
+     */
+    private static void appendField(StringBuilder record, String value)
+    {
+        record.append('\t');
+        if (value == null)
+            return;
+
+        if (value.length() == 0)
+        {
+            record.append("\\e");
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\')
+                record.append("\\\\");
+            else if (c == '\t')
+                record.append("\\t");
+            else if (c == '\n')
+                record.append("\\n");
+            else if (c == '\r')
+                record.append("\\r");
+            else
+                record.append(c);
+        }
+    }
+
+    private static String unescape(String s)
+    {
+        if (s.length() == 0)
+            return null;
+        if (s.indexOf('\\') == -1)
+            return s;
+
+        StringBuilder result = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length())
+            {
+                c = s.charAt(++i);
+                if (c == 'e')
+                    continue;
+                else if (c == 't')
+                    c = '\t';
+                else if (c == 'n')
+                    c = '\n';
+                else if (c == 'r')
+                    c = '\r';
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    /**
+     * A stored meta contact group.
+     */
+    static class StoredGroup
+    {
+        final String uid;
+
+        String name;
+
+        /**
+         * The parent group, <tt>null</tt> for the root group.
+         */
+        StoredGroup parent = null;
+
+        final List<StoredProtoGroup> protoGroups
+            = new ArrayList<StoredProtoGroup>();
+
+        final Map<String, StoredGroup> subgroups
+            = new LinkedHashMap<String, StoredGroup>();
+
+        final Map<String, StoredMetaContact> childContacts
+            = new LinkedHashMap<String, StoredMetaContact>();
+
+        StoredGroup(String uid, String name)
+        {
+            this.uid = uid;
+            this.name = name;
+        }
+
+        /**
+         * Returns a copy of this group, with copies of its subgroups and meta
+         * contacts, which is not part of a list.
+         *
+         * @return the copy
+         */
+        StoredGroup copy()
+        {
+            StoredGroup copy = new StoredGroup(uid, name);
+            copy.protoGroups.addAll(protoGroups);
+            for (StoredGroup subgroup : subgroups.values())
+            {
+                StoredGroup subgroupCopy = subgroup.copy();
+                subgroupCopy.parent = copy;
+                copy.subgroups.put(subgroupCopy.uid, subgroupCopy);
+            }
+            for (StoredMetaContact metaContact : childContacts.values())
+            {
+                StoredMetaContact metaContactCopy = metaContact.copy();
+                metaContactCopy.group = copy;
+                copy.childContacts.put(metaContactCopy.uid, metaContactCopy);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * A stored protocol specific group.
+     */
+    static class StoredProtoGroup
+    {
+        final String uid;
+
+        final String accountID;
+
+        final String parentUID;
+
+        final String persistentData;
+
+        StoredProtoGroup(String uid,
+                         String accountID,
+                         String parentUID,
+                         String persistentData)
+        {
+            this.uid = uid;
+            this.accountID = accountID;
+            this.parentUID = parentUID;
+            this.persistentData = persistentData;
+        }
+    }
+
+    /**
+     * A stored meta contact.
+     */
+    static class StoredMetaContact
+    {
+        final String uid;
+
+        /**
+         * The group of the meta contact.
+         */
+        StoredGroup group = null;
+
+        String displayName = "";
+
+        boolean displayNameUserDefined = false;
+
+        final List<StoredProtoContact> protoContacts
+            = new ArrayList<StoredProtoContact>();
+
+        /**
+         * The values of the details of the meta contact, by name.
+         */
+        final Map<String, List<String>> details
+            = new LinkedHashMap<String, List<String>>();
+
+        StoredMetaContact(String uid)
+        {
+            this.uid = uid;
+        }
+
+        /**
+         * Returns a protocol specific contact of this meta contact.
+         *
+         * @param address the address of the contact
+         * @param accountID the unique ID of the account of the contact
+         * @return the contact, <tt>null</tt> if none
+         */
+        StoredProtoContact findProtoContact(String address, String accountID)
+        {
+            for (StoredProtoContact protoContact : protoContacts)
+            {
+                if (protoContact.address.equals(address)
+                    && protoContact.accountID.equals(accountID))
+                {
+                    return protoContact;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds a value of a detail.
+         *
+         * @param name the name of the detail
+         * @param value the value
+         */
+        void addDetail(String name, String value)
+        {
+            List<String> values = details.get(name);
+            if (values == null)
+            {
+                values = new ArrayList<String>();
+                details.put(name, values);
+            }
+            values.add(value);
+        }
+
+        /**
+         * Returns a copy of this meta contact, which is not part of a list.
+         *
+         * @return the copy
+         */
+        StoredMetaContact copy()
+        {
+            StoredMetaContact copy = new StoredMetaContact(uid);
+            copy.displayName = displayName;
+            copy.displayNameUserDefined = displayNameUserDefined;
+            for (StoredProtoContact protoContact : protoContacts)
+            {
+                copy.protoContacts.add(new StoredProtoContact(
+                    protoContact.address,
+                    protoContact.accountID,
+                    protoContact.parentGroupUID,
+                    protoContact.persistentData));
+            }
+            for (Map.Entry<String, List<String>> detail : details.entrySet())
+            {
+                copy.details.put(
+                    detail.getKey(), new ArrayList<String>(detail.getValue()));
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * A stored protocol specific contact.
+     */
+    static class StoredProtoContact
+    {
+        final String address;
+
+        final String accountID;
+
+        String parentGroupUID;
+
+        String persistentData;
+
+        StoredProtoContact(String address,
+                           String accountID,
+                           String parentGroupUID,
+                           String persistentData)
+        {
+            this.address = address;
+            this.accountID = accountID;
+            this.parentGroupUID = parentGroupUID;
+            this.persistentData = persistentData;
+        }
+    }
+}
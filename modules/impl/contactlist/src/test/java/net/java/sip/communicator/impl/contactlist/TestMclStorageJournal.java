@@ -0,0 +1,134 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.impl.contactlist.StoredContactList.*;
+
+import org.junit.*;
+
+/**
+ * Tests replaying the contact list journal.
+ */
+public class TestMclStorageJournal
+{
+    private File journalFile;
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        journalFile = File.createTempFile("contactlist", ".journal");
+    }
+
+    @After
+    public void tearDown()
+    {
+        journalFile.delete();
+    }
+
+    /**
+     * Tests that a record cut off while being written is neither applied
+     * nor continued by the next record appended to the journal.
+     */
+    @Test
+    public void testReplayCutOffJournal()
+        throws IOException
+    {
+        StoredContactList list = new StoredContactList("root", "Root");
+        StoredMetaContact alice = metaContact(list, "alice", "Alice");
+        StoredMetaContact bob = metaContact(list, "bob", "Bob");
+        bob.addDetail("phone", "123");
+        bob.addDetail("email", "bob@example.com");
+
+        String bobRecord = StoredContactList.metaContactRecord(bob);
+        // without its last detail the record would still apply
+        String cutOff = bobRecord.substring(
+            0, bobRecord.indexOf("\temail"));
+        append(StoredContactList.metaContactRecord(alice) + cutOff);
+
+        List<String> records = MclStorageManager.readJournal(journalFile);
+        assertEquals(1, records.size());
+        assertEquals(
+            StoredContactList.metaContactRecord(alice).length(),
+            journalFile.length());
+
+        StoredContactList replayed = new StoredContactList("root", "Root");
+        for (String record : records)
+            assertTrue(replayed.apply(record));
+        assertEquals("Alice", replayed.findMetaContact("alice").displayName);
+        assertNull(replayed.findMetaContact("bob"));
+
+        // the next record starts on its own line
+        append(bobRecord);
+        records = MclStorageManager.readJournal(journalFile);
+        assertEquals(2, records.size());
+        for (String record : records)
+            assertTrue(replayed.apply(record));
+        assertEquals(
+            Arrays.asList("bob@example.com"),
+            replayed.findMetaContact("bob").details.get("email"));
+    }
+
+    /**
+     * Tests that a journal ending with a complete record is read whole.
+     */
+    @Test
+    public void testReplayCompleteJournal()
+        throws IOException
+    {
+        StoredContactList list = new StoredContactList("root", "Root");
+        String records
+            = StoredContactList.metaContactRecord(
+                    metaContact(list, "alice", "Alice"))
+                + StoredContactList.metaContactRemovedRecord("alice");
+        append(records);
+
+        assertEquals(2, MclStorageManager.readJournal(journalFile).size());
+        assertEquals(records.length(), journalFile.length());
+    }
+
+    private static StoredMetaContact metaContact(
+            StoredContactList list, String uid, String displayName)
+    {
+        StoredMetaContact metaContact = new StoredMetaContact(uid);
+        metaContact.displayName = displayName;
+        list.putMetaContact(list.getRoot(), metaContact);
+        return metaContact;
+    }
+
+    private void append(String records)
+        throws IOException
+    {
+        Writer writer
+            = new OutputStreamWriter(
+                    new FileOutputStream(journalFile, true), "UTF-8");
+        try
+        {
+            writer.write(records);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.protocol.*;
+
+import org.jitsi.service.resources.*;
+import org.junit.*;
+
+/**
+ * Tests that the index of the meta contact list follows the groups, meta
+ * contacts and protocol contacts added to and removed from the list.
+ */
+public class TestMetaContactListIndex
+{
+    private static final PresenceStatus OFFLINE
+        = new PresenceStatus(0, "Offline")
+        {
+        };
+
+    private MetaContactListServiceImpl mcl;
+
+    private MetaContactListIndex index;
+
+    private MetaContactGroupImpl root;
+
+    private ProtocolProviderService provider;
+
+    @Before
+    public void setUp()
+    {
+        mcl = new MetaContactListServiceImpl(
+            stub(ResourceManagementService.class,
+                Collections.<String, Object>singletonMap(
+                    "getI18NString", "Contacts")));
+        index = mcl.index;
+        root = mcl.rootMetaGroup;
+        provider = provider("alice@example.com");
+    }
+
+    /**
+     * Tests that the meta contacts are found by their protocol contacts and
+     * meta UID, whether the protocol contacts were added before or after the
+     * meta contacts were added to the list.
+     */
+    @Test
+    public void testFindAddedContacts()
+    {
+        MetaContactGroupImpl friends = group("friends");
+        root.addSubgroup(friends);
+
+        Contact bob = contact(provider, "bob@example.com");
+        MetaContactImpl bobMeta = metaContact("bob", bob);
+        friends.addMetaContact(bobMeta);
+
+        Contact carol = contact(provider, "carol@example.com");
+        MetaContactImpl carolMeta = metaContact("carol");
+        friends.addMetaContact(carolMeta);
+        carolMeta.addProtoContact(carol);
+
+        assertSame(bobMeta, index.findMetaContactByContact(bob));
+        assertSame(carolMeta, index.findMetaContactByContact(carol));
+        assertSame(
+            carolMeta,
+            index.findMetaContactByContact(
+                "carol@example.com", accountUID(provider)));
+        assertSame(bobMeta, index.findMetaContactByMetaUID("bob"));
+        assertSame(friends, index.findMetaContactGroupByMetaUID("friends"));
+        assertSame(root, index.findMetaContactGroupByMetaUID(
+            root.getMetaUID()));
+        assertTrue(index.check(root));
+    }
+
+    /**
+     * Tests that the contacts with the same address are told apart by their
+     * account.
+     */
+    @Test
+    public void testSameAddressOnTwoAccounts()
+    {
+        ProtocolProviderService otherProvider = provider("dave@example.org");
+        Contact bob = contact(provider, "bob@example.com");
+        Contact otherBob = contact(otherProvider, "bob@example.com");
+        MetaContactImpl bobMeta = metaContact("bob", bob);
+        MetaContactImpl otherBobMeta = metaContact("other bob", otherBob);
+        root.addMetaContact(bobMeta);
+        root.addMetaContact(otherBobMeta);
+
+        assertSame(bobMeta, index.findMetaContactByContact(bob));
+        assertSame(otherBobMeta, index.findMetaContactByContact(otherBob));
+        assertSame(
+            otherBobMeta,
+            index.findMetaContactByContact(
+                "bob@example.com", accountUID(otherProvider)));
+        assertNull(
+            index.findMetaContactByContact(
+                "bob@example.com", "unknown account"));
+    }
+
+    /**
+     * Tests that a group is indexed with its subgroups and meta contacts only
+     * once it is attached to the list, and is removed with them when it is
+     * detached.
+     */
+    @Test
+    public void testAttachAndDetachGroup()
+    {
+        MetaContactGroupImpl work = group("work");
+        MetaContactGroupImpl team = group("team");
+        work.addSubgroup(team);
+
+        Contact bob = contact(provider, "bob@example.com");
+        Contact carol = contact(provider, "carol@example.com");
+        work.addMetaContact(metaContact("bob", bob));
+        team.addMetaContact(metaContact("carol", carol));
+
+        assertNull(index.findMetaContactGroupByMetaUID("work"));
+        assertNull(index.findMetaContactByContact(carol));
+
+        root.addSubgroup(work);
+        assertSame(team, index.findMetaContactGroupByMetaUID("team"));
+        assertNotNull(index.findMetaContactByContact(bob));
+        assertNotNull(index.findMetaContactByMetaUID("carol"));
+        assertNotNull(index.findMetaContactByContact(carol));
+
+        root.removeSubgroup(work);
+        assertNull(index.findMetaContactGroupByMetaUID("work"));
+        assertNull(index.findMetaContactGroupByMetaUID("team"));
+        assertNull(index.findMetaContactByContact(bob));
+        assertNull(index.findMetaContactByMetaUID("carol"));
+        assertNull(index.findMetaContactByContact(carol));
+        assertTrue(index.check(root));
+    }
+
+    /**
+     * Tests that the removed protocol contacts and meta contacts are not
+     * found anymore.
+     */
+    @Test
+    public void testRemoveContacts()
+    {
+        Contact bob = contact(provider, "bob@example.com");
+        Contact bobAtWork = contact(provider, "bob@example.net");
+        MetaContactImpl bobMeta = metaContact("bob", bob, bobAtWork);
+        root.addMetaContact(bobMeta);
+
+        bobMeta.removeProtoContact(bobAtWork);
+        assertNull(index.findMetaContactByContact(bobAtWork));
+        assertSame(bobMeta, index.findMetaContactByContact(bob));
+
+        root.removeMetaContact(bobMeta);
+        assertNull(index.findMetaContactByContact(bob));
+        assertNull(index.findMetaContactByMetaUID("bob"));
+        assertTrue(index.check(root));
+    }
+
+    /**
+     * Tests that the protocol contacts and meta contacts moved by adding
+     * them to their new place before removing them from the old one are
+     * found at their new place.
+     */
+    @Test
+    public void testMoveContacts()
+    {
+        MetaContactGroupImpl friends = group("friends");
+        MetaContactGroupImpl work = group("work");
+        root.addSubgroup(friends);
+        root.addSubgroup(work);
+
+        Contact bob = contact(provider, "bob@example.com");
+        MetaContactImpl bobMeta = metaContact("bob", bob);
+        MetaContactImpl robertMeta = metaContact("robert");
+        friends.addMetaContact(bobMeta);
+        friends.addMetaContact(robertMeta);
+
+        robertMeta.addProtoContact(bob);
+        bobMeta.removeProtoContact(bob);
+        assertSame(robertMeta, index.findMetaContactByContact(bob));
+
+        work.addMetaContact(robertMeta);
+        friends.removeMetaContact(robertMeta);
+        assertSame(robertMeta, index.findMetaContactByMetaUID("robert"));
+        assertSame(robertMeta, index.findMetaContactByContact(bob));
+        assertTrue(index.check(root));
+    }
+
+    /**
+     * Tests that the check of the index finds the missed and stale entries,
+     * and rebuilds the index.
+     */
+    @Test
+    public void testCheckRebuildsIndex()
+    {
+        Contact bob = contact(provider, "bob@example.com");
+        MetaContactImpl bobMeta = metaContact("bob", bob);
+        root.addMetaContact(bobMeta);
+
+        Contact carol = contact(provider, "carol@example.com");
+        MetaContactImpl carolMeta = metaContact("carol", carol);
+
+        // an update missed and a meta contact indexed outside of the list
+        index.removeContact(bobMeta, bob);
+        index.addMetaContact(carolMeta);
+        assertNull(index.findMetaContactByContact(bob));
+
+        assertFalse(index.check(root));
+        assertSame(bobMeta, index.findMetaContactByContact(bob));
+        assertNull(index.findMetaContactByContact(carol));
+        assertNull(index.findMetaContactByMetaUID("carol"));
+        assertTrue(index.check(root));
+    }
+
+    private MetaContactGroupImpl group(String metaUID)
+    {
+        return new MetaContactGroupImpl(mcl, metaUID, metaUID);
+    }
+
+    private static MetaContactImpl metaContact(String metaUID,
+                                               Contact... contacts)
+    {
+        MetaContactImpl metaContact = new MetaContactImpl(metaUID, null);
+        for (Contact contact : contacts)
+            metaContact.addProtoContact(contact);
+        return metaContact;
+    }
+
+    private static String accountUID(ProtocolProviderService provider)
+    {
+        return provider.getAccountID().getAccountUniqueID();
+    }
+
+    /**
+     * Creates a protocol provider of an account without operation sets.
+     */
+    private static ProtocolProviderService provider(String userID)
+    {
+        AccountID accountID = new AccountID(
+            userID, new HashMap<String, String>(), "Mock", "example.com")
+        {
+        };
+
+        return stub(ProtocolProviderService.class,
+            Collections.<String, Object>singletonMap(
+                "getAccountID", accountID));
+    }
+
+    private static Contact contact(ProtocolProviderService provider,
+                                   String address)
+    {
+        Map<String, Object> results = new HashMap<String, Object>();
+        results.put("getAddress", address);
+        results.put("getDisplayName", address);
+        results.put("getPresenceStatus", OFFLINE);
+        results.put("getProtocolProvider", provider);
+        return stub(Contact.class, results);
+    }
+
+    /**
+     * Creates a stub returning the results of its methods by name,
+     * <tt>null</tt> for the other methods, and equal only to itself.
+     */
+    private static <T> T stub(Class<T> type,
+                              final Map<String, Object> results)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("equals"))
+                        return proxy == args[0];
+                    if (name.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (name.equals("toString"))
+                        return String.valueOf(results.get("getAddress"));
+                    return results.get(name);
+                }
+            }));
+    }
+}
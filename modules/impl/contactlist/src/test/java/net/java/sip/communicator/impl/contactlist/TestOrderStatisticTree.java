@@ -0,0 +1,176 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the sorted set of the meta contacts of a group, which finds the
+ * position of its elements, against a <tt>TreeSet</tt>.
+ */
+public class TestOrderStatisticTree
+{
+    private final OrderStatisticTree<Integer> tree
+        = new OrderStatisticTree<Integer>();
+
+    /**
+     * Tests the positions of the elements through random additions and
+     * removals.
+     */
+    @Test
+    public void testRandomOperations()
+    {
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 5000; i++)
+        {
+            Integer e = random.nextInt(500);
+            if (random.nextInt(3) == 0)
+                assertEquals(expected.remove(e), tree.remove(e));
+            else
+                assertEquals(expected.add(e), tree.add(e));
+
+            assertEquals(expected.size(), tree.size());
+            assertEquals(expected.contains(e), tree.contains(e));
+            if (i % 100 == 0)
+                assertSameElements(expected);
+        }
+        assertSameElements(expected);
+    }
+
+    /**
+     * Tests the positions of the elements added in ascending order, which
+     * unbalance a tree without rotations.
+     */
+    @Test
+    public void testAscendingAdditions()
+    {
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int i = 0; i < 1000; i++)
+        {
+            expected.add(i);
+            tree.add(i);
+        }
+        assertSameElements(expected);
+
+        for (int i = 0; i < 1000; i += 2)
+        {
+            expected.remove(i);
+            tree.remove(i);
+        }
+        assertSameElements(expected);
+    }
+
+    /**
+     * Tests the positions of an empty set and of missing elements.
+     */
+    @Test
+    public void testMissingElements()
+    {
+        assertEquals(0, tree.size());
+        assertFalse(tree.iterator().hasNext());
+        assertTrue(tree.toList().isEmpty());
+        assertFalse(tree.remove(1));
+
+        tree.add(10);
+        tree.add(20);
+        assertEquals(-1, tree.indexOf(5));
+        assertEquals(-1, tree.indexOf(15));
+        assertEquals(-1, tree.indexOf(25));
+        assertFalse(tree.contains(15));
+
+        try
+        {
+            tree.get(2);
+            fail();
+        }
+        catch (IndexOutOfBoundsException expected)
+        {
+        }
+        try
+        {
+            tree.get(-1);
+            fail();
+        }
+        catch (IndexOutOfBoundsException expected)
+        {
+        }
+    }
+
+    /**
+     * Tests that an iterator returns the elements the set had when it was
+     * created, while the set is changed.
+     */
+    @Test
+    public void testIteratorSnapshot()
+    {
+        for (int i = 0; i < 10; i++)
+            tree.add(i);
+
+        Iterator<Integer> iterator = tree.iterator();
+        assertEquals(Integer.valueOf(0), iterator.next());
+
+        tree.remove(5);
+        tree.add(20);
+
+        List<Integer> rest = new ArrayList<Integer>();
+        while (iterator.hasNext())
+            rest.add(iterator.next());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9), rest);
+
+        try
+        {
+            iterator.next();
+            fail();
+        }
+        catch (NoSuchElementException expected)
+        {
+        }
+        try
+        {
+            tree.iterator().remove();
+            fail();
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+    }
+
+    private void assertSameElements(TreeSet<Integer> expected)
+    {
+        List<Integer> list = new ArrayList<Integer>(expected);
+
+        assertEquals(list, tree.toList());
+
+        List<Integer> iterated = new ArrayList<Integer>();
+        for (Iterator<Integer> i = tree.iterator(); i.hasNext();)
+            iterated.add(i.next());
+        assertEquals(list, iterated);
+
+        for (int i = 0; i < list.size(); i++)
+        {
+            assertEquals(list.get(i), tree.get(i));
+            assertEquals(i, tree.indexOf(list.get(i)));
+        }
+    }
+}
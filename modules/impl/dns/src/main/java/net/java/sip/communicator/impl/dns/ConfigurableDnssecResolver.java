@@ -25,6 +25,7 @@
 import java.time.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 import javax.swing.*;
 
@@ -500,4 +501,15 @@ public void reset()
 
         logger.trace("Loaded trust anchors {}", sb);
     }
+
+    /**
+     * The validating resolver sends its queries from the calling thread.
+     *
+     * @return <tt>null</tt>
+     */
+    @Override
+    public Executor getQueryExecutor()
+    {
+        return null;
+    }
 }
@@ -0,0 +1,569 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+/**
+ * A cache of the responses of a resolver, keyed by the name, type and class
+ * of their question. Unlike the default cache of dnsjava's <tt>Lookup</tt>,
+ * which is dropped whenever the resolver configuration is reloaded, it is
+ * kept across network changes: only the responses which may no longer be
+ * valid on the new network are dropped.
+ * <p>
+ * Positive responses are kept for the smallest TTL of their answers, and
+ * negative ones (NXDOMAIN and NODATA) for the smallest of the TTL and the
+ * minimum of the SOA record of their authority section, as in RFC 2308.
+ * Responses are returned with their TTLs decreased by the time they spent in
+ * the cache. Concurrent identical queries are sent only once.
+ */
+public class DnsResultCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DnsResultCache</tt> class and its
+     * instances for logging output.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(DnsResultCache.class);
+
+    /**
+     * The maximum number of responses in the cache. The least recently used
+     * ones are dropped first.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    /**
+     * The maximum number of seconds a response is kept, whatever its TTL.
+     */
+    private static final long MAX_TTL = 24 * 60 * 60;
+
+    /**
+     * The sections of a message whose records have a TTL.
+     */
+    private static final int[] SECTIONS
+        = { Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL };
+
+    /**
+     * The cached responses, in access order.
+     */
+    private final Map<Key, Entry> entries
+        = new LinkedHashMap<Key, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    /**
+     * The responses being resolved, which concurrent identical queries wait
+     * for.
+     */
+    private final ConcurrentMap<Key, CompletableFuture<Message>> inFlight
+        = new ConcurrentHashMap<>();
+
+    /**
+     * The number of queries answered from the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of queries that were not in the cache and were sent.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of queries that were not in the cache and waited for an
+     * identical query being sent.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Returns the current time in milliseconds.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Creates an empty cache.
+     */
+    public DnsResultCache()
+    {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * Creates an empty cache reading the time from <tt>clock</tt>.
+     *
+     * @param clock returns the current time in milliseconds
+     */
+    DnsResultCache(LongSupplier clock)
+    {
+        this.clock = clock;
+    }
+
+    /**
+     * Resolves a query with the response in the cache, if any, or with a
+     * resolution which is then cached.
+     *
+     * @param query the query
+     * @param resolution the resolution of the query if it is not in the
+     * cache
+     * @return the response
+     * @throws IOException if the resolution of the query failed
+     */
+    public Message send(Message query, Resolution resolution)
+        throws IOException
+    {
+        Record question = query.getQuestion();
+        if (question == null)
+            return resolution.resolve(query).response;
+
+        Key key = new Key(question);
+        Message response = get(key, query);
+        if (response != null)
+        {
+            hits.incrementAndGet();
+            return response;
+        }
+
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        CompletableFuture<Message> pending = inFlight.putIfAbsent(key, future);
+        if (pending != null)
+        {
+            coalesced.incrementAndGet();
+            return withID(await(pending), query);
+        }
+
+        misses.incrementAndGet();
+        try
+        {
+            Answer answer = resolution.resolve(query);
+            put(key, answer);
+            future.complete(answer.response);
+            return answer.response;
+        }
+        catch (IOException | RuntimeException | Error e)
+        {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Waits for the response of an identical query.
+     */
+    private static Message await(CompletableFuture<Message> pending)
+        throws IOException
+    {
+        try
+        {
+            return pending.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting for a DNS response");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Returns a copy of the cached response to a query, if any, with the TTLs
+     * of its records decreased by the time it spent in the cache.
+     */
+    private Message get(Key key, Message query)
+    {
+        Entry entry;
+        long now = clock.getAsLong();
+        synchronized (entries)
+        {
+            entry = entries.get(key);
+            if (entry == null)
+                return null;
+            if (entry.expires <= now)
+            {
+                entries.remove(key);
+                return null;
+            }
+        }
+
+        long elapsed = (now - entry.created) / 1000;
+        Message response = withID(entry.response, query);
+        for (int section : SECTIONS)
+        {
+            List<Record> records
+                = new ArrayList<>(response.getSection(section));
+            response.removeAllRecords(section);
+            for (Record record : records)
+            {
+                // the TTL of OPT records holds flags
+                if (record.getType() != Type.OPT)
+                {
+                    record = record.withDClass(
+                        record.getDClass(),
+                        Math.max(0, record.getTTL() - elapsed));
+                }
+                response.addRecord(record, section);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Caches a response, unless it has no TTL.
+     */
+    private void put(Key key, Answer answer)
+    {
+        long ttl = getTTL(answer.response);
+        if (ttl <= 0)
+            return;
+
+        long now = clock.getAsLong();
+        Entry entry
+            = new Entry(
+                answer.response.clone(),
+                answer.servers,
+                now,
+                now + Math.min(ttl, MAX_TTL) * 1000);
+        synchronized (entries)
+        {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Returns the number of seconds a response can be cached for.
+     *
+     * @param response the response
+     * @return the number of seconds, <tt>0</tt> if the response cannot be
+     * cached
+     */
+    private static long getTTL(Message response)
+    {
+        int rcode = response.getRcode();
+        List<Record> answers = response.getSection(Section.ANSWER);
+
+        if (rcode == Rcode.NOERROR && !answers.isEmpty())
+        {
+            long ttl = Long.MAX_VALUE;
+            for (Record record : answers)
+                ttl = Math.min(ttl, record.getTTL());
+            return ttl;
+        }
+
+        if (rcode == Rcode.NOERROR || rcode == Rcode.NXDOMAIN)
+        {
+            for (Record record : response.getSection(Section.AUTHORITY))
+            {
+                if (record instanceof SOARecord)
+                {
+                    return Math.min(
+                        record.getTTL(), ((SOARecord) record).getMinimum());
+                }
+            }
+        }
+
+        // a failure or a negative response without SOA
+        return 0;
+    }
+
+    /**
+     * Returns a copy of a response with the ID of a query.
+     */
+    private static Message withID(Message response, Message query)
+    {
+        Message copy = response.clone();
+        copy.getHeader().setID(query.getHeader().getID());
+        return copy;
+    }
+
+    /**
+     * Drops the responses which may not be valid after a network change:
+     * the negative responses, which may be caused by the loss of the
+     * network, and the responses of servers which are not in use anymore or
+     * which have local addresses, since a local address may belong to
+     * another server on the new network.
+     *
+     * @param servers the servers in use after the change
+     */
+    public void networkChanged(Collection<InetSocketAddress> servers)
+    {
+        int removed = 0;
+        int kept;
+        synchronized (entries)
+        {
+            Iterator<Entry> iter = entries.values().iterator();
+            while (iter.hasNext())
+            {
+                Entry entry = iter.next();
+                if (!entry.isValidAfterNetworkChange(servers))
+                {
+                    iter.remove();
+                    removed++;
+                }
+            }
+            kept = entries.size();
+        }
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Network changed, dropped " + removed
+                + " and kept " + kept + " DNS responses. " + this);
+        }
+    }
+
+    /**
+     * Drops all the responses.
+     */
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of queries answered from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of queries that were not in the cache and were sent.
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of queries that were not in the cache and waited for
+     * the response of an identical query instead of being sent.
+     *
+     * @return the number of coalesced queries
+     */
+    public long getCoalesced()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the ratio of the queries which were not sent to the total
+     * number of queries.
+     *
+     * @return the hit rate, between <tt>0</tt> and <tt>1</tt>
+     */
+    public double getHitRate()
+    {
+        long hits = getHits() + getCoalesced();
+        long total = hits + getMisses();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of responses in the cache, including expired ones.
+     *
+     * @return the number of responses
+     */
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DnsResultCache[size=" + size()
+            + ", hits=" + getHits()
+            + ", misses=" + getMisses()
+            + ", coalesced=" + getCoalesced()
+            + ", hitRate=" + String.format("%.2f", getHitRate()) + "]";
+    }
+
+    /**
+     * The resolution of a query which is not in the cache.
+     */
+    public interface Resolution
+    {
+        /**
+         * Resolves a query.
+         *
+         * @param query the query
+         * @return the response, with the servers that sent it
+         * @throws IOException if the query could not be resolved
+         */
+        Answer resolve(Message query)
+            throws IOException;
+    }
+
+    /**
+     * A response and the servers that sent it.
+     */
+    public static class Answer
+    {
+        final Message response;
+
+        final Collection<InetSocketAddress> servers;
+
+        /**
+         * Creates an answer.
+         *
+         * @param response the response
+         * @param servers the servers that sent the response
+         */
+        public Answer(Message response, Collection<InetSocketAddress> servers)
+        {
+            this.response = response;
+            this.servers = servers;
+        }
+    }
+
+    /**
+     * The name, type and class of the question of a query.
+     */
+    private static class Key
+    {
+        private final String name;
+
+        private final int type;
+
+        private final int dclass;
+
+        Key(Record question)
+        {
+            name = question.getName().toString().toLowerCase(Locale.ROOT);
+            type = question.getType();
+            dclass = question.getDClass();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return name.equals(other.name)
+                && type == other.type
+                && dclass == other.dclass;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (name.hashCode() * 31 + type) * 31 + dclass;
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    private static class Entry
+    {
+        final Message response;
+
+        /**
+         * The servers that sent the response.
+         */
+        final Collection<InetSocketAddress> servers;
+
+        /**
+         * The time the response was received, in milliseconds.
+         */
+        final long created;
+
+        /**
+         * The time the response expires, in milliseconds.
+         */
+        final long expires;
+
+        Entry(Message response,
+              Collection<InetSocketAddress> servers,
+              long created,
+              long expires)
+        {
+            this.response = response;
+            this.servers = servers;
+            this.created = created;
+            this.expires = expires;
+        }
+
+        /**
+         * Determines whether this response may still be used after a network
+         * change.
+         *
+         * @param currentServers the servers in use after the change
+         * @return <tt>true</tt> if this response may be kept
+         */
+        boolean isValidAfterNetworkChange(
+            Collection<InetSocketAddress> currentServers)
+        {
+            if (response.getSection(Section.ANSWER).isEmpty()
+                || servers.isEmpty())
+            {
+                return false;
+            }
+
+            for (InetSocketAddress server : servers)
+            {
+                InetAddress address = server.getAddress();
+                if (address == null
+                    || address.isLoopbackAddress()
+                    || address.isLinkLocalAddress()
+                    || address.isSiteLocalAddress()
+                    || !currentServers.contains(server))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
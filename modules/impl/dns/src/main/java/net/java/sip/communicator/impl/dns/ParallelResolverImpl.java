@@ -101,9 +101,20 @@
      */
     private ExtendedResolver backupResolver;
 
+    /**
+     * The addresses of the backup resolvers.
+     */
+    private List<InetSocketAddress> backupServers = Collections.emptyList();
+
     /** Thread pool that processes the backup queries. */
     private final ExecutorService backupQueriesPool;
 
+    /**
+     * The responses of the default and backup resolvers, which are kept across
+     * resets unlike the default cache of <tt>Lookup</tt>.
+     */
+    private final DnsResultCache resultCache = new DnsResultCache();
+
     private final ConfigurationService configService;
 
     /**
@@ -202,10 +213,13 @@ private void setBackupServers(InetSocketAddress[] backupServers)
                     "The impossible just happened: we could not initialize our"
                         + " backup DNS resolver.");
         }
+        this.backupServers
+            = Collections.unmodifiableList(Arrays.asList(backupServers));
     }
 
     /**
-     * Sends a message and waits for a response.
+     * Sends a message and waits for a response, unless the response to the
+     * same question is in the cache.
      *
      * @param query The query to send.
      * @return The response
@@ -214,6 +228,21 @@ private void setBackupServers(InetSocketAddress[] backupServers)
      */
     public Message send(Message query)
         throws IOException
+    {
+        return resultCache.send(query, this::resolve);
+    }
+
+    /**
+     * Sends a message to the default resolver, and to the backup resolvers if
+     * we are in redundant mode, and waits for a response.
+     *
+     * @param query The query to send.
+     * @return The response and the servers of the resolver that sent it
+     *
+     * @throws IOException An error occurred while sending or receiving.
+     */
+    private DnsResultCache.Answer resolve(Message query)
+        throws IOException
     {
         ParallelResolution resolution = new ParallelResolution(query);
         resolution.sendFirstQuery();
@@ -225,7 +254,7 @@ public Message send(Message query)
             if(resolution.waitForResponse(currentDnsPatience))
             {
                 //we are done.
-                return resolution.returnResponseOrThrowUp();
+                return resolution.returnAnswerOrThrowUp();
             }
             else
             {
@@ -270,7 +299,7 @@ public Message send(Message query)
             }
         }
 
-        return resolution.returnResponseOrThrowUp();
+        return resolution.returnAnswerOrThrowUp();
     }
 
     /**
@@ -348,6 +377,7 @@ public void setTimeout(Duration timeout)
     public final void reset()
     {
         Lookup.refreshDefault();
+        resultCache.networkChanged(getServers());
 
         // populate with new servers after refreshing configuration
         Lookup.setDefaultResolver(this);
@@ -356,6 +386,42 @@ public final void reset()
         defaultResolver = temp;
     }
 
+    /**
+     * Returns the addresses of the default and backup resolvers.
+     *
+     * @return the addresses of all the resolvers in use.
+     */
+    private List<InetSocketAddress> getServers()
+    {
+        List<InetSocketAddress> servers = new ArrayList<>(backupServers);
+        ResolverConfig config = ResolverConfig.getCurrentConfig();
+        if (config != null && config.servers() != null)
+            servers.addAll(config.servers());
+        return servers;
+    }
+
+    /**
+     * Returns the cache of the responses of this resolver.
+     *
+     * @return the cache of this resolver.
+     */
+    public DnsResultCache getResultCache()
+    {
+        return resultCache;
+    }
+
+    /**
+     * Returns the pool that processes the queries to the default and backup
+     * resolvers.
+     *
+     * @return the pool of this resolver.
+     */
+    @Override
+    public Executor getQueryExecutor()
+    {
+        return backupQueriesPool;
+    }
+
     /**
      * Determines if <tt>response</tt> can be considered a satisfactory DNS
      * response and returns accordingly.
@@ -590,8 +656,8 @@ public boolean waitForResponse(long waitFor)
 
         /**
          * Waits for resolution to complete (if necessary) and then either
-         * returns the response we received or throws whatever exception we
-         * saw.
+         * returns the response we received, along with the servers of the
+         * resolver that sent it, or throws whatever exception we saw.
          *
          * @return the response {@link Message} we received from the DNS.
          *
@@ -602,7 +668,7 @@ public boolean waitForResponse(long waitFor)
          * @throws IllegalArgumentException if something unexpected happened
          * during resolution or if there was no response.
          */
-        public Message returnResponseOrThrowUp()
+        public DnsResultCache.Answer returnAnswerOrThrowUp()
             throws IOException, RuntimeException, IllegalArgumentException
         {
             if(!done)
@@ -610,7 +676,16 @@ public Message returnResponseOrThrowUp()
 
             if(response != null)
             {
-                return response;
+                ResolverConfig config = ResolverConfig.getCurrentConfig();
+                List<InetSocketAddress> servers
+                    = primaryResolverRespondedFirst
+                        ? (config == null ? null : config.servers())
+                        : backupServers;
+                return new DnsResultCache.Answer(
+                    response,
+                    servers == null
+                        ? Collections.<InetSocketAddress>emptyList()
+                        : servers);
             }
             else if (exception instanceof SocketTimeoutException)
             {
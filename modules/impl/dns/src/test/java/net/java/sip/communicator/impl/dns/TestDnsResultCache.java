@@ -0,0 +1,335 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
+
+/**
+ * Tests the cache of the DNS responses: their TTLs, the negative responses,
+ * the coalescing of identical queries and the responses dropped after a
+ * network change. The time is a fake clock.
+ */
+public class TestDnsResultCache
+{
+    private static final InetSocketAddress PUBLIC_SERVER
+        = new InetSocketAddress(address(8, 8, 8, 8), 53);
+
+    private static final InetSocketAddress LOCAL_SERVER
+        = new InetSocketAddress(address(192, 168, 1, 1), 53);
+
+    /**
+     * The current time of the cache in milliseconds.
+     */
+    private long time = 1500000000000L;
+
+    private final DnsResultCache cache = new DnsResultCache(() -> time);
+
+    /**
+     * The number of queries resolved, which were not in the cache.
+     */
+    private final AtomicInteger resolved = new AtomicInteger();
+
+    /**
+     * Tests that a cached response is returned with the ID of the query and
+     * with its TTLs decreased by the time it spent in the cache, until it
+     * expires.
+     */
+    @Test
+    public void testPositiveResponse()
+        throws IOException
+    {
+        DnsResultCache.Resolution resolution
+            = answer(Rcode.NOERROR, 300, PUBLIC_SERVER);
+
+        Message response = cache.send(query("example.com.", 1), resolution);
+        assertEquals(1, response.getHeader().getID());
+        assertEquals(300, response.getSection(Section.ANSWER).get(0).getTTL());
+
+        time += 100 * 1000;
+        response = cache.send(query("example.com.", 2), resolution);
+        assertEquals(1, resolved.get());
+        assertEquals(2, response.getHeader().getID());
+        assertEquals(200, response.getSection(Section.ANSWER).get(0).getTTL());
+        assertEquals(
+            address(93, 184, 216, 34),
+            ((ARecord) response.getSection(Section.ANSWER).get(0))
+                .getAddress());
+
+        time += 200 * 1000;
+        cache.send(query("example.com.", 3), resolution);
+        assertEquals(2, resolved.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * Tests that the names of the questions are compared ignoring their
+     * case, and that their types are not.
+     */
+    @Test
+    public void testKey()
+        throws IOException
+    {
+        DnsResultCache.Resolution resolution
+            = answer(Rcode.NOERROR, 300, PUBLIC_SERVER);
+
+        cache.send(query("example.com.", 1), resolution);
+        cache.send(query("Example.COM.", 2), resolution);
+        assertEquals(1, resolved.get());
+
+        cache.send(
+            Message.newQuery(
+                Record.newRecord(
+                    Name.fromString("example.com."), Type.AAAA, DClass.IN)),
+            resolution);
+        assertEquals(2, resolved.get());
+    }
+
+    /**
+     * Tests that a negative response is kept for the smaller of the TTL and
+     * the minimum of its SOA record, and not at all without one.
+     */
+    @Test
+    public void testNegativeResponse()
+        throws IOException
+    {
+        DnsResultCache.Resolution nxdomain
+            = answer(Rcode.NXDOMAIN, 0, PUBLIC_SERVER);
+
+        cache.send(query("missing.example.com.", 1), nxdomain);
+        time += 59 * 1000;
+        Message response = cache.send(query("missing.example.com.", 2),
+            nxdomain);
+        assertEquals(1, resolved.get());
+        assertEquals(Rcode.NXDOMAIN, response.getRcode());
+
+        time += 1000;
+        cache.send(query("missing.example.com.", 3), nxdomain);
+        assertEquals(2, resolved.get());
+
+        DnsResultCache.Resolution withoutSOA = query ->
+        {
+            resolved.incrementAndGet();
+            return new DnsResultCache.Answer(
+                response(query, Rcode.NXDOMAIN),
+                Collections.singletonList(PUBLIC_SERVER));
+        };
+        cache.send(query("other.example.com.", 1), withoutSOA);
+        cache.send(query("other.example.com.", 2), withoutSOA);
+        assertEquals(4, resolved.get());
+    }
+
+    /**
+     * Tests that the failures and the failed resolutions are not cached.
+     */
+    @Test
+    public void testFailures()
+        throws IOException
+    {
+        DnsResultCache.Resolution servfail
+            = answer(Rcode.SERVFAIL, 0, PUBLIC_SERVER);
+        cache.send(query("example.com.", 1), servfail);
+        cache.send(query("example.com.", 2), servfail);
+        assertEquals(2, resolved.get());
+
+        DnsResultCache.Resolution timeout = query ->
+        {
+            resolved.incrementAndGet();
+            throw new SocketTimeoutException();
+        };
+        for (int i = 0; i < 2; i++)
+        {
+            try
+            {
+                cache.send(query("example.org.", i), timeout);
+                fail();
+            }
+            catch (SocketTimeoutException expected)
+            {
+            }
+        }
+        assertEquals(4, resolved.get());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that a query identical to one being resolved waits for its
+     * response instead of being sent.
+     */
+    @Test
+    public void testCoalescing()
+        throws Exception
+    {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DnsResultCache.Resolution resolution
+            = answer(Rcode.NOERROR, 300, PUBLIC_SERVER);
+        DnsResultCache.Resolution slow = query ->
+        {
+            sent.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+            return resolution.resolve(query);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<Message> first = executor.submit(
+                () -> cache.send(query("example.com.", 1), slow));
+            assertTrue(sent.await(10, TimeUnit.SECONDS));
+
+            Future<Message> second = executor.submit(
+                () -> cache.send(query("example.com.", 2), slow));
+            while (cache.getCoalesced() == 0)
+                Thread.sleep(1);
+            release.countDown();
+
+            assertEquals(1, first.get(10, TimeUnit.SECONDS)
+                .getHeader().getID());
+            assertEquals(2, second.get(10, TimeUnit.SECONDS)
+                .getHeader().getID());
+            assertEquals(1, resolved.get());
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getCoalesced());
+            assertEquals(0.5, cache.getHitRate(), 0);
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a network change keeps only the positive responses of
+     * public servers still in use.
+     */
+    @Test
+    public void testNetworkChanged()
+        throws IOException
+    {
+        InetSocketAddress otherServer
+            = new InetSocketAddress(address(1, 1, 1, 1), 53);
+
+        cache.send(query("public.example.com.", 1),
+            answer(Rcode.NOERROR, 300, PUBLIC_SERVER));
+        cache.send(query("other.example.com.", 1),
+            answer(Rcode.NOERROR, 300, otherServer));
+        cache.send(query("local.example.com.", 1),
+            answer(Rcode.NOERROR, 300, LOCAL_SERVER));
+        cache.send(query("missing.example.com.", 1),
+            answer(Rcode.NXDOMAIN, 0, PUBLIC_SERVER));
+        assertEquals(4, cache.size());
+
+        cache.networkChanged(Arrays.asList(PUBLIC_SERVER, LOCAL_SERVER));
+        assertEquals(1, cache.size());
+
+        cache.send(query("public.example.com.", 2),
+            answer(Rcode.NOERROR, 300, PUBLIC_SERVER));
+        assertEquals(4, resolved.get());
+    }
+
+    /**
+     * Creates a query of the A record of a name.
+     */
+    private static Message query(String name, int id)
+        throws TextParseException
+    {
+        Message query = Message.newQuery(
+            Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+        query.getHeader().setID(id);
+        return query;
+    }
+
+    /**
+     * Creates a resolution answering with an A record of <tt>ttl</tt>
+     * seconds if <tt>rcode</tt> is <tt>NOERROR</tt>, and with an SOA record
+     * with a minimum of a minute if it is <tt>NXDOMAIN</tt>.
+     */
+    private DnsResultCache.Resolution answer(final int rcode,
+                                             final long ttl,
+                                             final InetSocketAddress server)
+    {
+        return query ->
+        {
+            resolved.incrementAndGet();
+
+            Message response = response(query, rcode);
+            Name name = query.getQuestion().getName();
+            if (rcode == Rcode.NOERROR)
+            {
+                response.addRecord(
+                    new ARecord(
+                        name, DClass.IN, ttl, address(93, 184, 216, 34)),
+                    Section.ANSWER);
+            }
+            else if (rcode == Rcode.NXDOMAIN)
+            {
+                Name zone = Name.fromString("example.com.");
+                response.addRecord(
+                    new SOARecord(
+                        zone, DClass.IN, 3600,
+                        Name.fromString("ns.example.com."),
+                        Name.fromString("admin.example.com."),
+                        1, 7200, 900, 86400, 60),
+                    Section.AUTHORITY);
+            }
+            return new DnsResultCache.Answer(
+                response, Collections.singletonList(server));
+        };
+    }
+
+    private static Message response(Message query, int rcode)
+    {
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setRcode(rcode);
+        response.addRecord(query.getQuestion(), Section.QUESTION);
+        return response;
+    }
+
+    private static InetAddress address(int a, int b, int c, int d)
+    {
+        try
+        {
+            return InetAddress.getByAddress(
+                new byte[] { (byte) a, (byte) b, (byte) c, (byte) d });
+        }
+        catch (UnknownHostException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
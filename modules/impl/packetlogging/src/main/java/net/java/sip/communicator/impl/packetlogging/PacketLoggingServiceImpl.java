@@ -18,8 +18,11 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-
-import com.google.common.collect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.packetlogging.*;
@@ -39,17 +42,77 @@
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The max size of the <tt>EvictingQueue</tt> that the saver thread
-     * is using.
+     * The number of packets the saver thread can be late by. When it is full,
+     * the oldest packets are dropped.
      *
      * TODO this needs to be configurable eventually.
      */
-    private static final int EVICTING_QUEUE_MAX_SIZE = 1000;
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * The maximum number of packets written to the file at once.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * The minimum capacity of the buffers of the packets, which is enough for
+     * most RTP and ICE packets.
+     */
+    private static final int MIN_BUFFER_CAPACITY = 2048;
+
+    /**
+     * The number of milliseconds the service waits for the saver thread to
+     * write the queued packets when it stops.
+     */
+    private static final long STOP_TIMEOUT = 1000;
+
+    /**
+     * The length of the pcap header of every packet.
+     */
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    /**
+     * The pcap file global header.
+     */
+    private static final byte[] globalHeader =
+        new byte[]{
+                (byte)0xd4, (byte)0xc3, (byte)0xb2, (byte)0xa1, // magic number(swapped)
+                (byte)0x02, (byte)0x00, // major version number
+                (byte)0x04, (byte)0x00, // minor version number
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // GMT to local correction
+                (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, // accuracy of timestamps
+                (byte)0xff, (byte)0xff, (byte)0x00, (byte)0x00, // max length of captured packets, in octets
+                (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x00  // data link type(ethernet)
+        };
+
+    /**
+     * The channel of the file we are currently writing to.
+     */
+    private FileChannel fileChannel = null;
+
+    /**
+     * The packets to be written to the file, as pcap records.
+     */
+    private final RingBuffer<ByteBuffer> packets
+        = new RingBuffer<>(QUEUE_CAPACITY);
+
+    /**
+     * The buffers of the packets which have been written, reused for new
+     * packets.
+     */
+    private final RingBuffer<ByteBuffer> bufferPool
+        = new RingBuffer<>(QUEUE_CAPACITY);
+
+    /**
+     * The number of packets written to the file.
+     */
+    private final AtomicLong savedPacketCount = new AtomicLong();
 
     /**
-     * The OutputStream we are currently writing to.
+     * The number of packets dropped because the saver thread could not keep
+     * up or failed to write them.
      */
-    private FileOutputStream outputStream = null;
+    private final AtomicLong droppedPacketCount = new AtomicLong();
 
     /**
      * The thread that queues packets and saves them to file.
@@ -61,6 +124,11 @@
      */
     private PacketLoggingConfiguration packetLoggingConfiguration = null;
 
+    /**
+     * The service giving access to the files we write to.
+     */
+    private final FileAccessService fileAccessService;
+
     /**
      * The fake ethernet header we use as template.
      */
@@ -168,6 +236,31 @@
      */
     private File[] files;
 
+    /**
+     * Creates the packet logging service of the <tt>FileAccessService</tt>
+     * and the configuration of the bundle.
+     */
+    public PacketLoggingServiceImpl()
+    {
+        this(PacketLoggingActivator.getFileAccessService(), null);
+    }
+
+    /**
+     * Creates a packet logging service.
+     *
+     * @param fileAccessService the service giving access to the files to
+     * write to.
+     * @param configuration the configuration of the service, or
+     * <tt>null</tt> to load it from the configuration service.
+     */
+    PacketLoggingServiceImpl(
+            FileAccessService fileAccessService,
+            PacketLoggingConfiguration configuration)
+    {
+        this.fileAccessService = fileAccessService;
+        this.packetLoggingConfiguration = configuration;
+    }
+
     /**
      * Starting the packet logger. Generating the files we can use,
      * rotate any previous files and open the current file for writing.
@@ -190,8 +283,7 @@ private void getFileNames()
         for(int i = 0; i < fileCount; i++)
         {
             files[i]
-                = PacketLoggingActivator.getFileAccessService()
-                    .getPrivatePersistentFile(
+                = fileAccessService.getPrivatePersistentFile(
                         new File(PacketLoggingActivator.LOGGING_DIR_NAME,
                             "jitsi" + i + ".pcap").toString(),
                         FileCategory.LOG);
@@ -206,10 +298,10 @@ private void getFileNames()
     private void rotateFiles()
         throws IOException
     {
-        if(outputStream != null)
+        if(fileChannel != null)
         {
-            outputStream.flush();
-            outputStream.close();
+            fileChannel.close();
+            fileChannel = null;
         }
 
         for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
@@ -225,32 +317,48 @@ private void rotateFiles()
             }
         }
 
-        outputStream = new FileOutputStream(files[0]);
+        fileChannel = FileChannel.open(
+                files[0].toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
         written = 0;
         createGlobalHeader();
     }
 
     /**
-     * Stops the packet logging.
+     * Stops the packet logging, after writing the packets which are still
+     * queued.
      */
     public void stop()
     {
         saverThread.stopRunning();
 
-        if(outputStream != null)
+        try
         {
-            try
-            {
-                outputStream.flush();
-                outputStream.close();
-            }
-            catch(IOException e)
-            {
-                e.printStackTrace();
-            }
-            finally
+            saverThread.join(STOP_TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized(this)
+        {
+            if(fileChannel != null)
             {
-                outputStream = null;
+                try
+                {
+                    fileChannel.close();
+                }
+                catch(IOException e)
+                {
+                    logger.error("Error closing the packet log file", e);
+                }
+                finally
+                {
+                    fileChannel = null;
+                }
             }
         }
     }
@@ -262,43 +370,10 @@ public void stop()
     private void createGlobalHeader()
             throws IOException
     {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        ByteBuffer header = ByteBuffer.wrap(globalHeader);
+
+        while (header.hasRemaining())
+            fileChannel.write(header);
     }
 
     /**
@@ -375,7 +450,9 @@ public void logPacket(
     }
 
     /**
-     * Log a packet with all the required information.
+     * Log a packet with all the required information. The packet is copied
+     * with its pcap headers to a pooled buffer, so <tt>packetContent</tt>
+     * can be reused as soon as this method returns.
      *
      * @param protocol the source protocol that logs this packet.
      * @param sourceAddress the source address of the packet.
@@ -400,17 +477,19 @@ public void logPacket(
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
-                       sourceAddress,
-                       sourcePort,
-                       destinationAddress,
-                       destinationPort,
-                       transport,
-                       sender,
-                       packetContent,
-                       packetOffset,
-                       packetLength));
+        ByteBuffer record
+            = createRecord(
+                sourceAddress != null ? sourceAddress : new byte[4],
+                sourcePort,
+                destinationAddress != null ? destinationAddress : new byte[4],
+                destinationPort,
+                transport,
+                sender,
+                packetContent,
+                packetOffset,
+                packetLength);
+
+        saverThread.queueRecord(record);
     }
 
     /**
@@ -427,242 +506,250 @@ public PacketLoggingConfiguration getConfiguration()
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Returns the number of packets written to the log files since the
+     * service was created.
      *
-     * @param packet the packet ot save.
-     * @throws Exception when error occurs saving to file stream or when
-     *  rotating files.
+     * @return the number of packets saved.
      */
-    private void savePacket(Packet packet)
-        throws Exception
+    public long getSavedPacketCount()
+    {
+        return savedPacketCount.get();
+    }
+
+    /**
+     * Returns the number of packets which were logged but not written to the
+     * log files, because they were logged faster than they could be written
+     * or because writing them failed.
+     *
+     * @return the number of packets dropped.
+     */
+    public long getDroppedPacketCount()
+    {
+        return droppedPacketCount.get();
+    }
+
+    /**
+     * Returns a buffer from the pool, or a new one if none of the pool can
+     * hold <tt>length</tt> bytes.
+     *
+     * @param length the number of bytes the buffer must be able to hold.
+     * @return an empty buffer.
+     */
+    private ByteBuffer acquireBuffer(int length)
+    {
+        ByteBuffer buffer = bufferPool.poll();
+
+        if(buffer == null || buffer.capacity() < length)
+        {
+            buffer = ByteBuffer.allocateDirect(
+                    Math.max(length, MIN_BUFFER_CAPACITY));
+        }
+        else
+            buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool, unless the pool is full.
+     *
+     * @param buffer the buffer which is not used anymore.
+     */
+    private void releaseBuffer(ByteBuffer buffer)
+    {
+        bufferPool.offer(buffer);
+    }
+
+    /**
+     * Creates the pcap record of a packet: the record header, the fake
+     * ethernet, ip and transport headers and the packet content.
+     *
+     * @return the record, ready to be written.
+     */
+    private ByteBuffer createRecord(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            TransportName transport,
+            boolean sender,
+            byte[] packetContent,
+            int packetOffset,
+            int packetLength)
     {
         // if one of the addresses is ipv4 we are using ipv4,
         // local udp addresses come as 0.0.0.0.0....0.0.0 when
         // ipv6 is enabled in the underlying os
-        boolean isIPv4 = packet.sourceAddress.length == 4
-                || packet.destinationAddress.length == 4;
+        boolean isIPv4 = sourceAddress.length == 4
+                || destinationAddress.length == 4;
+        boolean isUDP = transport == TransportName.UDP;
+
+        int ipHeaderLength = isIPv4
+                ? ipHeaderTemplate.length
+                : ip6HeaderTemplate.length;
+        int transportHeaderLength = isUDP
+                ? udpHeaderTemplate.length
+                : tcpHeaderTemplate.length;
+        short len = (short)(packetLength + transportHeaderLength);
+        int feakHeaderLen = fakeEthernetHeader.length +
+                ipv4EtherType.length + ipHeaderLength + transportHeaderLength;
+        int inclLen = packetLength + feakHeaderLen;
+        int origLen = inclLen;
+
+        ByteBuffer record = acquireBuffer(RECORD_HEADER_LENGTH + inclLen);
 
-        byte[] ipHeader;
+        // the pcap headers are little endian, as the magic number tells
+        long current = System.currentTimeMillis();
+        record.putInt(Integer.reverseBytes((int)(current/1000)));
+        record.putInt(Integer.reverseBytes((int)((current%1000) * 1000)));
+        record.putInt(Integer.reverseBytes(inclLen));
+        record.putInt(Integer.reverseBytes(origLen));
+
+        record.put(fakeEthernetHeader);
+        record.put(isIPv4 ? ipv4EtherType : ipv6EtherType);
 
+        int ipHeaderOffset = record.position();
+        byte protocol = isUDP ? (byte)0x11 : (byte)0x06;
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
-            System.arraycopy(
-                    ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
-                    0,
-                    ipHeader,
-                    12,
-                    4);
-            System.arraycopy(packet.destinationAddress,
-                    0,
-                    ipHeader,
-                    16,
-                    4);
+            record.put(ipHeaderTemplate, 0, 2);
+            record.putShort((short)(len + ipHeaderLength)); // total length
+            record.put(ipHeaderTemplate, 4, 5);
+            record.put(protocol);
+            record.putShort((short)0); // check sum
+            record.put(sourceAddress, 0, 4);
+            record.put(destinationAddress, 0, 4);
+
+            record.putShort(
+                    ipHeaderOffset + 10,
+                    (short) computeChecksum(
+                            record, ipHeaderOffset, ipHeaderLength));
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
-            System.arraycopy(
-                    ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
-                    0,
-                    ipHeader,
-                    8,
-                    16);
-
-            System.arraycopy(packet.destinationAddress,
-                    0,
-                    ipHeader,
-                    24,
-                    16);
+            record.put(ip6HeaderTemplate, 0, 4);
+            record.putShort(len); // payload length
+            record.put(protocol); // next header
+            record.put(ip6HeaderTemplate, 7, 1);
+            record.put(sourceAddress, 0, 16);
+            record.put(destinationAddress, 0, 16);
         }
 
-        byte[] transportHeader;
-        short len;
-        if(packet.transport == TransportName.UDP)
+        if(isUDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
-            transportHeader = udpHeader;
-            System.arraycopy(udpHeaderTemplate, 0,
-                    udpHeader, 0, udpHeader.length);
-
-            writeShort(packet.sourcePort, udpHeader, 0);
-            writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
-            writeShort(len, udpHeader, 4);
+            record.putShort((short) sourcePort);
+            record.putShort((short) destinationPort);
+            record.putShort(len);
+            record.putShort((short)0); // checksum
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
-            System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
-                   0, transportHeader.length);
-
-            writeShort(packet.sourcePort, transportHeader, 0);
-            writeShort(packet.destinationPort, transportHeader, 2);
-
-            len = (short)(packet.packetLength + transportHeader.length);
-
-            if(packet.sender)
+            long seqnum;
+            long acknum;
+            synchronized(tcpCounterLock)
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
+                if(sender)
                 {
                     seqnum = srcCount;
-                    srcCount += packet.packetLength;
+                    srcCount += packetLength;
                     acknum = dstCount;
                 }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
-            }
-            else
-            {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
+                else
                 {
                     seqnum = dstCount;
-                    dstCount += packet.packetLength;
+                    dstCount += packetLength;
                     acknum = srcCount;
                 }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
             }
-        }
 
-        // now set ip header total length
-        if(isIPv4)
-        {
-            short ipTotalLen = (short)(len + ipHeader.length);
-            writeShort(ipTotalLen, ipHeader, 2);
+            record.putShort((short) sourcePort);
+            record.putShort((short) destinationPort);
+            record.putInt((int)(seqnum & 0xffffffff));
+            record.putInt((int)(acknum & 0xffffffff));
+            record.put(tcpHeaderTemplate, 12, tcpHeaderTemplate.length - 12);
+        }
 
-            if(packet.transport == TransportName.UDP)
-                ipHeader[9] = (byte)0x11;
-            else
-                ipHeader[9] = (byte)0x06;
+        record.put(packetContent, packetOffset, packetLength);
+        record.flip();
+        return record;
+    }
 
-           int chk2 = computeChecksum(ipHeader);
-           ipHeader[10] = (byte) (chk2 >> 8);
-           ipHeader[11] = (byte) (chk2 & 0xff);
-        }
-        else
+    /**
+     * Writes pcap records to the output file, rotating the files when they
+     * reach the configured limit. The records between two rotations are
+     * written with a single gathering write.
+     *
+     * @param records the records to write.
+     * @param count the number of records to write.
+     * @throws Exception when error occurs writing to the file or when
+     *  rotating files.
+     */
+    private synchronized void saveRecords(ByteBuffer[] records, int count)
+        throws Exception
+    {
+        // open files only if needed
+        if(fileChannel == null)
         {
-            writeShort(len, ipHeader, 4);
-
-            if(packet.transport == TransportName.UDP)
-                ipHeader[6] = (byte)0x11;
-            else
-                ipHeader[6] = (byte)0x06;
+            getFileNames();
+            rotateFiles();// this one opens the file for write
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
-        int feakHeaderLen = fakeEthernetHeader.length +
-                (isIPv4 ? ipv4EtherType : ipv6EtherType).length +
-                ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
+        long limit = getConfiguration().getLimit();
+        int start = 0;
 
-        synchronized(this)
+        for(int i = 0; i < count; i++)
         {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
-
-            long limit = getConfiguration().getLimit();
-
             if((limit > 0) && (written > limit))
+            {
+                write(records, start, i - start);
+                start = i;
                 rotateFiles();
-
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(isIPv4 ? ipv4EtherType : ipv6EtherType);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
+            }
+            written += records[i].remaining();
         }
+        write(records, start, count - start);
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
+     * Writes records to the output file.
+     *
+     * @param records the records.
+     * @param offset the index of the first record to write.
+     * @param length the number of records to write.
+     * @throws IOException when error occurs writing to the file.
      */
-    private void addInt(int d)
+    private void write(ByteBuffer[] records, int offset, int length)
         throws IOException
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
-    }
+        if(length == 0)
+            return;
 
-    /**
-     * Converts a 32-bit word representation of an IPv4 address to a
-     * byte array.
-     *
-     * @param address The 32-bit word representation of the IPv4 address.
-     * @param data The byte array in which to store the IPv4 data.
-     * @param offset The offset into the array where the data start.
-     */
-    private static final void intToBytes(int address, byte[] data,
-                                       int offset)
-    {
-        data[offset] = (byte)(0xff & (address >>> 24));
-        data[offset + 1] = (byte)(0xff & (address >>> 16));
-        data[offset + 2] = (byte)(0xff & (address >>> 8));
-        data[offset + 3] = (byte)(0xff & address);
-    }
+        ByteBuffer last = records[offset + length - 1];
+        while(last.hasRemaining())
+            fileChannel.write(records, offset, length);
 
-    /**
-     * Puts the short value to the array.
-     * @param value value to convert to bytes.
-     * @param data destination data
-     * @param offset offset in the data
-     */
-    private static void writeShort(int value, byte[] data, int offset)
-    {
-        data[offset] = (byte) (value >> 8);
-        data[offset + 1] = (byte) value;
+        savedPacketCount.addAndGet(length);
     }
 
     /**
      * Calculates checksums assuming the checksum is a 16-bit header field.
      */
-    private int computeChecksum(byte[] data)
+    private static int computeChecksum(ByteBuffer data, int offset, int length)
     {
         int total = 0;
-        int i = 0;
+        int i = offset;
+        int end = offset + length;
 
         // Don't Skip existing checksum cause its set to 0000
-        int imax = data.length - (data.length % 2);
+        int imax = end - (length % 2);
 
         while(i < imax)
-            total+=(((data[i++] & 0xff) << 8) | (data[i++] & 0xff));
+        {
+            total += ((data.get(i) & 0xff) << 8) | (data.get(i + 1) & 0xff);
+            i += 2;
+        }
 
-        if(i < data.length)
-            total+=((data[i] & 0xff) << 8);
+        if(i < end)
+            total += ((data.get(i) & 0xff) << 8);
 
         // Fold to 16 bits
         while((total & 0xffff0000) != 0)
@@ -673,102 +760,6 @@ private int computeChecksum(byte[] data)
         return total;
     }
 
-    /**
-     * The data we receive and that we will dump in a file.
-     */
-    private static class Packet
-    {
-        /**
-         * The protocol logging this packet.
-         */
-        ProtocolName protocol;
-
-        /**
-         * The source address of the packet.
-         */
-        byte[] sourceAddress;
-
-        /**
-         * The source port of the packet.
-         */
-        int sourcePort;
-
-        /**
-         * The destination address of the packet.
-         */
-        byte[] destinationAddress;
-
-        /**
-         * The destination port of the packet.
-         */
-        int destinationPort;
-
-        /**
-         * Is the packet a udp one.
-         */
-        TransportName transport;
-
-        /**
-         * Are we sending the packet, or false if we are receiving.
-         */
-        boolean sender;
-
-        /**
-         * Array containing packet content.
-         */
-        byte[] packetContent;
-
-        /**
-         * The offset in the packetContent where packet content is.
-         */
-        int packetOffset;
-
-        /**
-         * The length of the packet content.
-         */
-        int packetLength;
-
-        /**
-         * Creates a packet with the needed data.
-         * @param protocol the source protocol that logs this packet.
-         * @param sourceAddress The source address of the packet.
-         * @param sourcePort The source port of the packet.
-         * @param destinationAddress The destination address of the packet.
-         * @param destinationPort The destination port of the packet.
-         * @param transport the transport this packet uses.
-         * @param sender Are we sending the packet,
-         *  or false if we are receiving.
-         * @param packetContent Array containing packet content.
-         * @param packetOffset The offset in the packetContent
-         *  where packet content is.
-         * @param packetLength The length of the packet content.
-         */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
-        {
-            this.protocol = protocol;
-            this.sourceAddress
-                = sourceAddress != null ? sourceAddress : new byte[4];
-            this.sourcePort = sourcePort;
-            this.destinationAddress
-                = destinationAddress != null ? destinationAddress : new byte[4];
-            this.destinationPort = destinationPort;
-            this.transport = transport;
-            this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
-        }
-    }
-
     /**
      * Dumps packet in separate thread so we don't block
      * our calling thread.
@@ -779,13 +770,13 @@ private Packet(ProtocolName protocol,
         /**
          * start/stop indicator.
          */
-        private boolean stopped = true;
+        private volatile boolean stopped = false;
 
         /**
-         * List of packets queued to be written in the file.
+         * Indicates that this thread is about to wait for packets and must be
+         * woken up when one is queued.
          */
-        private final EvictingQueue<Packet> pktsToSave
-            = EvictingQueue.create(EVICTING_QUEUE_MAX_SIZE);
+        private volatile boolean waiting = false;
 
         /**
          * Initializes a new <tt>SaverThread</tt>.
@@ -793,82 +784,119 @@ private Packet(ProtocolName protocol,
         SaverThread()
         {
             setName(PacketLoggingServiceImpl.class.getName() + " SaverThread");
+            setDaemon(true);
         }
 
         /**
-         * Sends instant messages in separate thread so we don't block
-         * our calling thread.
+         * Writes the queued packets in batches until we are stopped, and then
+         * the packets which were queued when we were stopped.
          */
         @Override
         public void run()
         {
-            stopped = false;
+            ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+
             while(!stopped)
             {
-                Packet pktToSave;
-
-                synchronized(this)
+                if(saveBatch(batch) == 0)
                 {
-                    if(pktsToSave.isEmpty())
-                    {
-                        try
-                        {
-                            wait();
-                        }
-                        catch (InterruptedException iex)
-                        {
-                            Thread.currentThread().interrupt();
-                            break;
-                        }
-                        continue;
-                    }
+                    waiting = true;
+                    if(packets.isEmpty() && !stopped)
+                        LockSupport.park(this);
+                    waiting = false;
 
-                    pktToSave = pktsToSave.poll();
+                    if(Thread.interrupted())
+                        break;
                 }
+            }
 
-                if(pktToSave != null)
+            for(int i = packets.capacity(); i > 0;)
+            {
+                int count = saveBatch(batch);
+                if(count == 0)
+                    break;
+                i -= count;
+            }
+        }
+
+        /**
+         * Writes the packets at the head of the queue.
+         *
+         * @param batch the array receiving the records to write.
+         * @return the number of packets taken from the queue.
+         */
+        private int saveBatch(ByteBuffer[] batch)
+        {
+            int count = packets.drainTo(batch);
+            if(count == 0)
+                return 0;
+
+            try
+            {
+                saveRecords(batch, count);
+            }
+            catch(Throwable t)
+            {
+                /*
+                 * XXX ThreadDeath must be rethrown; otherwise, the
+                 * related Thread will not die.
+                 */
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                else
                 {
-                    try
-                    {
-                        savePacket(pktToSave);
-                    }
-                    catch(Throwable t)
-                    {
-                        /*
-                         * XXX ThreadDeath must be rethrown; otherwise, the
-                         * related Thread will not die.
-                         */
-                        if (t instanceof ThreadDeath)
-                            throw (ThreadDeath) t;
-                        else
-                            logger.error("Error writing packet to file", t);
-                    }
+                    droppedPacketCount.addAndGet(count);
+                    logger.error("Error writing packets to file", t);
+                }
+            }
+            finally
+            {
+                for(int i = 0; i < count; i++)
+                {
+                    releaseBuffer(batch[i]);
+                    batch[i] = null;
                 }
             }
+            return count;
         }
 
         /**
          * Interrupts this sender so that it would no longer send messages.
          */
-        public synchronized void stopRunning()
+        public void stopRunning()
         {
             stopped = true;
-            notifyAll();
+            LockSupport.unpark(this);
         }
 
         /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
+         * Schedule new packet for save, dropping the oldest queued packet if
+         * the queue is full.
+         *
+         * @param record the pcap record of the packet.
          */
-        public synchronized void queuePacket(Packet packet)
+        public void queueRecord(ByteBuffer record)
         {
-            if (EVICTING_QUEUE_MAX_SIZE - pktsToSave.size() == 0)
+            while(!packets.offer(record))
             {
-                logger.warn("Queue is full, packets are being evicted.");
+                ByteBuffer evicted = packets.poll();
+
+                if(evicted != null)
+                {
+                    long dropped = droppedPacketCount.incrementAndGet();
+
+                    // log the first drops, and less and less often after
+                    if((dropped & (dropped - 1)) == 0)
+                    {
+                        logger.warn("Queue is full, packets are being evicted"
+                            + " (" + dropped + " so far).");
+                    }
+                    releaseBuffer(evicted);
+                }
             }
 
-            pktsToSave.add(packet);
-            notifyAll();
+            if(waiting)
+                LockSupport.unpark(this);
         }
     }
 }
@@ -0,0 +1,183 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded lock-free queue which any number of threads may offer elements
+ * to and poll elements from. Every slot of the ring has a sequence number
+ * telling whether it is free for the producer or filled for the consumer of
+ * a given position, so a thread only competes with the others for the
+ * position it claims.
+ *
+ * @param <E> the type of the elements
+ */
+class RingBuffer<E>
+{
+    /**
+     * The elements, by position modulo the capacity.
+     */
+    private final AtomicReferenceArray<E> elements;
+
+    /**
+     * The sequence numbers of the slots: the position of the next element
+     * the slot can receive, or that position plus one once it is filled.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask of the positions, the capacity minus one.
+     */
+    private final int mask;
+
+    /**
+     * The position of the next element to poll.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The position of the next element to offer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param capacity the minimum number of elements of the ring, rounded up
+     * to a power of two
+     */
+    RingBuffer(int capacity)
+    {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity: " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the number of elements the ring can hold.
+     *
+     * @return the capacity of the ring
+     */
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Adds an element at the tail of the ring, unless it is full.
+     *
+     * @param element the element to add
+     * @return <tt>true</tt> if the element was added, <tt>false</tt> if the
+     * ring is full
+     */
+    boolean offer(E element)
+    {
+        long position = tail.get();
+        while (true)
+        {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    elements.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if (difference < 0)
+            {
+                // the slot still holds the element of the previous lap
+                return false;
+            }
+            position = tail.get();
+        }
+    }
+
+    /**
+     * Removes the element at the head of the ring.
+     *
+     * @return the element, or <tt>null</tt> if the ring is empty
+     */
+    E poll()
+    {
+        long position = head.get();
+        while (true)
+        {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0)
+            {
+                if (head.compareAndSet(position, position + 1))
+                {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+            }
+            else if (difference < 0)
+            {
+                // the slot has not been filled yet
+                return null;
+            }
+            position = head.get();
+        }
+    }
+
+    /**
+     * Removes as many elements as the ring holds and <tt>batch</tt> can
+     * receive.
+     *
+     * @param batch the array receiving the elements from its start
+     * @return the number of elements removed
+     */
+    int drainTo(E[] batch)
+    {
+        int count = 0;
+        E element;
+
+        while (count < batch.length && (element = poll()) != null)
+            batch[count++] = element;
+        return count;
+    }
+
+    /**
+     * Determines whether the ring is empty. An element being added may be
+     * counted although it cannot be polled yet.
+     *
+     * @return <tt>true</tt> if the ring is empty
+     */
+    boolean isEmpty()
+    {
+        return head.get() >= tail.get();
+    }
+}
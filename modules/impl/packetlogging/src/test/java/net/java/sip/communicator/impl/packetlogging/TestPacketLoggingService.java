@@ -0,0 +1,264 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.jitsi.service.fileaccess.*;
+import org.jitsi.service.packetlogging.*;
+import org.junit.*;
+
+/**
+ * Tests the queue of the packets logged by the service: the oldest packets
+ * dropped when it is full, the counters of the saved and dropped packets and
+ * the content of the pooled buffers written to the pcap file.
+ */
+public class TestPacketLoggingService
+{
+    /**
+     * The number of packets the queue of the service holds.
+     */
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * The length of the pcap global header.
+     */
+    private static final int GLOBAL_HEADER_LENGTH = 24;
+
+    /**
+     * The length of the pcap record header and of the fake ethernet, IPv4
+     * and UDP headers before the content of a packet.
+     */
+    private static final int HEADERS_LENGTH = 16 + 14 + 20 + 8;
+
+    private static final byte[] LOCAL_ADDRESS
+        = { (byte) 192, (byte) 168, 0, 2 };
+
+    private static final byte[] REMOTE_ADDRESS = { 10, 0, 0, 1 };
+
+    private File directory;
+
+    private File logDirectory;
+
+    private PacketLoggingServiceImpl service;
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        directory = Files.createTempDirectory("packetlogging").toFile();
+        logDirectory
+            = new File(directory, PacketLoggingActivator.LOGGING_DIR_NAME);
+        logDirectory.mkdirs();
+        service = createService(false);
+    }
+
+    @After
+    public void tearDown()
+    {
+        service.stop();
+
+        File[] children = logDirectory.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                child.delete();
+        }
+        logDirectory.delete();
+        directory.delete();
+    }
+
+    /**
+     * Tests that the oldest packets are dropped and counted when the saver
+     * thread falls behind, and that the newest ones are written in order.
+     */
+    @Test
+    public void testFullQueueDropsOldest()
+        throws IOException
+    {
+        int count = QUEUE_CAPACITY + 10;
+        for (int i = 0; i < count; i++)
+            logPacket(0, i);
+        assertEquals(10, service.getDroppedPacketCount());
+        assertEquals(0, service.getSavedPacketCount());
+
+        service.start();
+        service.stop();
+        assertEquals(QUEUE_CAPACITY, service.getSavedPacketCount());
+        assertEquals(10, service.getDroppedPacketCount());
+
+        List<int[]> packets = readPackets();
+        assertEquals(QUEUE_CAPACITY, packets.size());
+        for (int i = 0; i < packets.size(); i++)
+            assertEquals(10 + i, packets.get(i)[1]);
+    }
+
+    /**
+     * Tests that the packets logged by several threads are all either saved
+     * or dropped, and that the saved ones are intact although their buffers
+     * are reused for packets of other lengths.
+     */
+    @Test
+    public void testConcurrentLogging()
+        throws Exception
+    {
+        final int threads = 4;
+        final int packetsPerThread = 5000;
+        Thread[] loggers = new Thread[threads];
+
+        service.start();
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            loggers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < packetsPerThread; i++)
+                        logPacket(thread, i);
+                }
+            };
+            loggers[t].start();
+        }
+        for (Thread logger : loggers)
+            logger.join();
+        service.stop();
+
+        assertEquals(
+            threads * packetsPerThread,
+            service.getSavedPacketCount() + service.getDroppedPacketCount());
+
+        List<int[]> packets = readPackets();
+        assertEquals(service.getSavedPacketCount(), packets.size());
+
+        int[] last = new int[threads];
+        Arrays.fill(last, -1);
+        for (int[] packet : packets)
+        {
+            assertTrue(packet[1] > last[packet[0]]);
+            last[packet[0]] = packet[1];
+        }
+    }
+
+    /**
+     * Tests that the packets which cannot be written are counted as dropped.
+     */
+    @Test
+    public void testWriteFailure()
+    {
+        service = createService(true);
+        for (int i = 0; i < 5; i++)
+            logPacket(0, i);
+
+        service.start();
+        service.stop();
+        assertEquals(0, service.getSavedPacketCount());
+        assertEquals(5, service.getDroppedPacketCount());
+    }
+
+    /**
+     * Creates a service writing a single file without limit to the temporary
+     * directory, or failing to open it.
+     */
+    private PacketLoggingServiceImpl createService(final boolean failing)
+    {
+        PacketLoggingConfiguration configuration
+            = new PacketLoggingConfiguration();
+        configuration.setGlobalLoggingEnabled(true);
+        configuration.setLimit(0);
+        configuration.setLogfileCount(1);
+
+        FileAccessService fileAccessService
+            = (FileAccessService) Proxy.newProxyInstance(
+                FileAccessService.class.getClassLoader(),
+                new Class<?>[] { FileAccessService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                        Object[] args)
+                        throws IOException
+                    {
+                        if (failing)
+                            throw new IOException("no file");
+                        return new File(directory, (String) args[0]);
+                    }
+                });
+
+        return new PacketLoggingServiceImpl(fileAccessService, configuration);
+    }
+
+    /**
+     * Logs a packet holding the number of the thread logging it and its
+     * number, padded to a length depending on its number so that the
+     * packets do not all fit in the minimum capacity of the pooled buffers.
+     */
+    private void logPacket(int thread, int number)
+    {
+        ByteBuffer content = ByteBuffer.allocate(8 + (number % 7) * 500);
+
+        content.putInt(thread);
+        content.putInt(number);
+        while (content.hasRemaining())
+            content.put((byte) number);
+
+        service.logPacket(
+            PacketLoggingService.ProtocolName.RTP,
+            LOCAL_ADDRESS, 5000,
+            REMOTE_ADDRESS, 5002,
+            PacketLoggingService.TransportName.UDP,
+            true,
+            content.array());
+    }
+
+    /**
+     * Reads the packets of the pcap file, checking their content.
+     *
+     * @return the number of the thread logging each packet and its number.
+     */
+    private List<int[]> readPackets()
+        throws IOException
+    {
+        ByteBuffer file = ByteBuffer.wrap(
+            Files.readAllBytes(
+                new File(logDirectory, "jitsi0.pcap").toPath()));
+        List<int[]> packets = new ArrayList<int[]>();
+
+        file.position(GLOBAL_HEADER_LENGTH);
+        while (file.hasRemaining())
+        {
+            int start = file.position();
+            int length = Integer.reverseBytes(file.getInt(start + 8))
+                + 16 - HEADERS_LENGTH;
+
+            file.position(start + HEADERS_LENGTH);
+            int[] packet = { file.getInt(), file.getInt() };
+            assertEquals(8 + (packet[1] % 7) * 500, length);
+            for (int i = 8; i < length; i++)
+                assertEquals((byte) packet[1], file.get());
+            packets.add(packet);
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+/**
+ * Tests the lock-free queue of the packets to log, alone and with several
+ * threads offering and polling elements at once.
+ */
+public class TestRingBuffer
+{
+    /**
+     * The number of elements each producer offers in the concurrent tests.
+     */
+    private static final int ELEMENTS_PER_PRODUCER = 200000;
+
+    /**
+     * Tests that the capacity is rounded up to a power of two and that the
+     * invalid capacities are rejected.
+     */
+    @Test
+    public void testCapacity()
+    {
+        assertEquals(1, new RingBuffer<Integer>(1).capacity());
+        assertEquals(8, new RingBuffer<Integer>(5).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8).capacity());
+        assertEquals(1024, new RingBuffer<Integer>(1000).capacity());
+
+        for (int capacity : new int[] { 0, -1, (1 << 30) + 1 })
+        {
+            try
+            {
+                new RingBuffer<Integer>(capacity);
+                fail();
+            }
+            catch (IllegalArgumentException expected)
+            {
+            }
+        }
+    }
+
+    /**
+     * Tests that the elements are polled in the order they were offered and
+     * that a full ring refuses elements, over several laps of the ring.
+     */
+    @Test
+    public void testFullAndEmpty()
+    {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(4);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+
+        int next = 0;
+        int expected = 0;
+        for (int lap = 0; lap < 5; lap++)
+        {
+            while (ring.offer(next))
+                next++;
+            assertEquals(expected + 4, next);
+            assertFalse(ring.isEmpty());
+            assertFalse(ring.offer(-1));
+
+            assertEquals(Integer.valueOf(expected++), ring.poll());
+            assertTrue(ring.offer(next++));
+            assertFalse(ring.offer(-1));
+
+            Integer element;
+            while ((element = ring.poll()) != null)
+                assertEquals(Integer.valueOf(expected++), element);
+            assertEquals(next, expected);
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    /**
+     * Tests that a drain takes no more elements than the ring holds or the
+     * batch can receive.
+     */
+    @Test
+    public void testDrainTo()
+    {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(8);
+        Integer[] batch = new Integer[3];
+
+        assertEquals(0, ring.drainTo(batch));
+        for (int i = 0; i < 5; i++)
+            ring.offer(i);
+
+        assertEquals(3, ring.drainTo(batch));
+        assertArrayEquals(new Integer[] { 0, 1, 2 }, batch);
+        assertEquals(2, ring.drainTo(batch));
+        assertEquals(Integer.valueOf(3), batch[0]);
+        assertEquals(Integer.valueOf(4), batch[1]);
+        assertTrue(ring.isEmpty());
+    }
+
+    /**
+     * Tests that the elements offered by several threads are polled exactly
+     * once by several other threads.
+     */
+    @Test
+    public void testConcurrentOfferAndPoll()
+        throws Exception
+    {
+        final int producers = 4;
+        final int consumers = 4;
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(64);
+        final AtomicIntegerArray polled
+            = new AtomicIntegerArray(producers * ELEMENTS_PER_PRODUCER);
+        final AtomicInteger remaining
+            = new AtomicInteger(producers * ELEMENTS_PER_PRODUCER);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int p = 0; p < producers; p++)
+            tasks.add(producer(ring, p));
+        for (int c = 0; c < consumers; c++)
+        {
+            tasks.add(new Callable<Void>()
+            {
+                public Void call()
+                {
+                    while (remaining.get() > 0)
+                    {
+                        Integer element = ring.poll();
+                        if (element == null)
+                            Thread.yield();
+                        else
+                        {
+                            polled.incrementAndGet(element);
+                            remaining.decrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        for (int i = 0; i < polled.length(); i++)
+            assertEquals("element " + i, 1, polled.get(i));
+        assertTrue(ring.isEmpty());
+    }
+
+    /**
+     * Tests that a thread draining the ring gets the elements of every
+     * producer exactly once and in the order they were offered.
+     */
+    @Test
+    public void testConcurrentOfferAndDrain()
+        throws Exception
+    {
+        final int producers = 4;
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(64);
+        final int[] next = new int[producers];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (int p = 0; p < producers; p++)
+        {
+            next[p] = p * ELEMENTS_PER_PRODUCER;
+            tasks.add(producer(ring, p));
+        }
+        tasks.add(new Callable<Void>()
+        {
+            public Void call()
+            {
+                Integer[] batch = new Integer[16];
+                int remaining = producers * ELEMENTS_PER_PRODUCER;
+
+                while (remaining > 0)
+                {
+                    int count = ring.drainTo(batch);
+                    if (count == 0)
+                        Thread.yield();
+                    for (int i = 0; i < count; i++)
+                    {
+                        int producer = batch[i] / ELEMENTS_PER_PRODUCER;
+                        assertEquals(next[producer]++, batch[i].intValue());
+                    }
+                    remaining -= count;
+                }
+                return null;
+            }
+        });
+        runAll(tasks);
+
+        for (int p = 0; p < producers; p++)
+            assertEquals((p + 1) * ELEMENTS_PER_PRODUCER, next[p]);
+        assertTrue(ring.isEmpty());
+    }
+
+    /**
+     * Creates a task offering the elements of a producer, in order, waiting
+     * while the ring is full.
+     */
+    private static Callable<Void> producer(final RingBuffer<Integer> ring,
+                                           final int producer)
+    {
+        return new Callable<Void>()
+        {
+            public Void call()
+            {
+                int start = producer * ELEMENTS_PER_PRODUCER;
+
+                for (int i = start; i < start + ELEMENTS_PER_PRODUCER; i++)
+                {
+                    while (!ring.offer(i))
+                        Thread.yield();
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Runs tasks at the same time and rethrows their failures. The tasks not
+     * done within a minute are cancelled and fail the test.
+     */
+    private static void runAll(List<Callable<Void>> tasks)
+        throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try
+        {
+            List<Future<Void>> futures
+                = executor.invokeAll(tasks, 1, TimeUnit.MINUTES);
+
+            for (Future<Void> future : futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof Error)
+                        throw (Error) e.getCause();
+                    throw e;
+                }
+                catch (CancellationException e)
+                {
+                    fail("a task did not finish");
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -991,7 +991,7 @@ protected abstract byte[] createNotifyContent(
      * <tt>Subscription</tt> when its subscription duration expires.
      */
     private class SubscriptionTimeoutTask
-        extends TimerTask
+        extends SipTimerTask
     {
 
         /**
@@ -56,6 +56,12 @@
      */
     private final SipMessageFactory messageFactory;
 
+    /**
+     * The pacer of the subscription refreshes, <tt>null</tt> if they are sent
+     * as soon as they are due.
+     */
+    private final SubscriptionPacer pacer;
+
     /**
      * Initializes a new <tt>EventPackageSubscriber</tt> instance which is
      * to provide subscriber support according to RFC 3265 to a specific SIP
@@ -91,6 +97,56 @@ public EventPackageSubscriber(
         String contentSubType,
         TimerScheduler timer,
         int refreshMargin)
+    {
+        this(
+            protocolProvider,
+            eventPackage,
+            subscriptionDuration,
+            contentSubType,
+            timer,
+            refreshMargin,
+            null);
+    }
+
+    /**
+     * Initializes a new <tt>EventPackageSubscriber</tt> instance whose
+     * subscription refreshes are paced by a specific
+     * <tt>SubscriptionPacer</tt>, which also learns when the server is
+     * overloaded from the responses to the SUBSCRIBE requests.
+     *
+     * @param protocolProvider
+     *            the SIP <tt>ProtocolProviderService</tt> implementation
+     *            for which the new instance is to provide subscriber support
+     *            for a specific event package
+     * @param eventPackage
+     *            the name of the event package the new instance is to implement
+     *            and carry in the Event and Allow-Events headers
+     * @param subscriptionDuration
+     *            the duration of each subscription to be managed by the new
+     *            instance and to be carried in the Expires headers
+     * @param contentSubType
+     *            the sub-type of the content type of the NOTIFY bodies to be
+     *            announced, expected and supported by the subscriptions to be
+     *            managed by the new instance
+     * @param timer
+     *            the <tt>Timer</tt> support which is to refresh the
+     *            subscriptions to be managed by the new instance
+     * @param refreshMargin
+     *            the number of seconds before a subscription to be managed by
+     *            the new instance expires that the new instance should attempt
+     *            to refresh it
+     * @param pacer
+     *            the pacer of the subscription refreshes, or <tt>null</tt> to
+     *            send them as soon as they are due
+     */
+    public EventPackageSubscriber(
+        ProtocolProviderServiceSipImpl protocolProvider,
+        String eventPackage,
+        int subscriptionDuration,
+        String contentSubType,
+        TimerScheduler timer,
+        int refreshMargin,
+        SubscriptionPacer pacer)
     {
         super(
             protocolProvider,
@@ -101,6 +157,7 @@ public EventPackageSubscriber(
 
         this.refreshMargin = refreshMargin;
         this.messageFactory = protocolProvider.getMessageFactory();
+        this.pacer = pacer;
     }
 
     /**
@@ -469,6 +526,21 @@ protected void populateSubscribeRequest(
                     e);
         }
         req.setHeader(expHeader);
+
+        // event package-specific headers
+        try
+        {
+            subscription.addSubscribeHeaders(req, headerFactory);
+        }
+        catch (ParseException e)
+        {
+            logger.error("wrong subscription header", e);
+            throw new OperationFailedException(
+                    "An unexpected error occurred while"
+                    + "constructing the subscription headers",
+                    OperationFailedException.INTERNAL_ERROR,
+                    e);
+        }
     }
 
     /**
@@ -575,7 +647,9 @@ public boolean processRequest(RequestEvent requestEvent)
         ContentTypeHeader ctheader
             = (ContentTypeHeader) request.getHeader(ContentTypeHeader.NAME);
         if ((ctheader != null)
-                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType))
+                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType)
+                && ((subscription == null)
+                        || !subscription.isContentTypeSupported(ctheader)))
         {
             // send a 415 response (rfc3261)
             Response response;
@@ -740,6 +814,10 @@ public boolean processResponse(ResponseEvent responseEvent)
         ExpiresHeader expHeader = response.getExpires();
         int statusCode = response.getStatusCode();
         SipProvider sourceProvider = (SipProvider) responseEvent.getSource();
+
+        // slow down if the server is overloaded
+        if (pacer != null)
+            pacer.processResponse(response);
         if (((expHeader != null) && (expHeader.getExpires() == 0))
                 || (subscription == null)) // this handle the unsubscription
                                            // case where we removed the contact
@@ -794,7 +872,7 @@ else if ((statusCode != Response.OK)
                  // try to keep a margin if the refresh delay allows it
                  if (refreshDelay >= (2*refreshMargin))
                      refreshDelay -= refreshMargin;
-                 timer.schedule(refreshTask, refreshDelay * 1000);
+                 timer.scheduleWithJitter(refreshTask, refreshDelay * 1000);
 
                  // do it to remember the dialog in case of a polling
                  // subscription (which means no call to finalizeSubscription)
@@ -1257,6 +1335,40 @@ protected abstract void processSuccessResponse(
         protected abstract void processTerminatedRequest(
             RequestEvent requestEvent,
             String reasonCode);
+
+        /**
+         * Adds the headers specific to this <tt>Subscription</tt> to a
+         * SUBSCRIBE <tt>Request</tt> populated with the headers of its event
+         * package. Does nothing by default.
+         *
+         * @param req the SUBSCRIBE <tt>Request</tt> describing this
+         * <tt>Subscription</tt>
+         * @param headerFactory the <tt>HeaderFactory</tt> to create the
+         * headers with
+         * @throws ParseException if a header cannot be created
+         */
+        protected void addSubscribeHeaders(
+            Request req,
+            HeaderFactory headerFactory)
+            throws ParseException
+        {
+        }
+
+        /**
+         * Determines whether this <tt>Subscription</tt> processes NOTIFY
+         * bodies of a specific content type in addition to the content
+         * sub-type of its event package.
+         *
+         * @param contentTypeHeader the Content-Type header of a NOTIFY
+         * <tt>Request</tt> of this <tt>Subscription</tt>
+         * @return <tt>true</tt> if this <tt>Subscription</tt> processes the
+         * body of the NOTIFY <tt>Request</tt>; <tt>false</tt> by default
+         */
+        protected boolean isContentTypeSupported(
+            ContentTypeHeader contentTypeHeader)
+        {
+            return false;
+        }
     }
 
     /**
@@ -1264,7 +1376,7 @@ protected abstract void processTerminatedRequest(
      * <tt>Subscription</tt>.
      */
     private class SubscriptionRefreshTask
-        extends TimerTask
+        extends SipTimerTask
     {
 
         /**
@@ -1288,10 +1400,22 @@ public SubscriptionRefreshTask(Subscription subscription)
 
         /**
          * Refreshes the <tt>Subscription</tt> associated with this
-         * <tt>TimerTask</tt>.
+         * <tt>TimerTask</tt>, when the pacer allows it if there is one.
          */
         @Override
         public void run()
+        {
+            if (pacer == null)
+                refresh();
+            else
+                pacer.submit(subscription, 0, this::refresh);
+        }
+
+        /**
+         * Refreshes the <tt>Subscription</tt> associated with this
+         * <tt>TimerTask</tt>.
+         */
+        private void refresh()
         {
             Dialog dialog = subscription.getDialog();
 
@@ -1304,6 +1428,11 @@ public void run()
                 return;
             }
 
+            // the subscription may have been removed while it was paced
+            if (getSubscription(dialog.getCallId().getCallId())
+                    != subscription)
+                return;
+
             ClientTransaction transac = null;
             try
             {
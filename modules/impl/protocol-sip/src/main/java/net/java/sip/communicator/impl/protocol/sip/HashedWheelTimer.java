@@ -0,0 +1,558 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * A timer shared by all the SIP accounts, which runs their refresh, timeout
+ * and polling tasks. The tasks are kept in a wheel of buckets, one per tick:
+ * a single thread advances the wheel every tick, so scheduling and canceling
+ * a task is cheap whatever the number of tasks.
+ * <p>
+ * The wheel only dispatches the expired tasks. Each task runs in the
+ * <tt>Lane</tt> of its scheduler, where the tasks run one at a time as with
+ * a <tt>Timer</tt> per scheduler. The lanes borrow their thread from a pool
+ * which grows with the number of lanes having tasks to run, so a task
+ * blocking in one account, e.g. on a DNS lookup, does not delay the tasks
+ * of the other accounts, and no thread is kept per account.
+ * <p>
+ * The tasks run up to a tick late, which is fine for tasks scheduled in
+ * seconds.
+ */
+final class HashedWheelTimer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>HashedWheelTimer</tt> class for
+     * logging output.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private static final long TICK_DURATION
+        = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The number of buckets of the wheel, a power of two. A task scheduled
+     * further than a turn of the wheel stays in its bucket for several turns.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The time in seconds after which an idle thread of the pool stops.
+     */
+    private static final long WORKER_KEEP_ALIVE = 60;
+
+    /**
+     * The timer shared by all the accounts.
+     */
+    private static HashedWheelTimer instance;
+
+    /**
+     * The buckets of the wheel, only accessed by the ticker thread.
+     */
+    private final List<Set<Timeout>> wheel = new ArrayList<>(WHEEL_SIZE);
+
+    /**
+     * The timeouts scheduled since the last tick, which the ticker thread
+     * puts in their buckets.
+     */
+    private final Queue<Timeout> pendingTimeouts
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The timeouts canceled since the last tick, which the ticker thread
+     * removes from their buckets.
+     */
+    private final Queue<Timeout> cancelledTimeouts
+        = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The threads running the lanes with expired tasks.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The thread advancing the wheel, <tt>null</tt> if the wheel is advanced
+     * by calls to {@link #expireTimeouts()}.
+     */
+    private final Thread ticker;
+
+    /**
+     * The clock of the wheel, in nanoseconds.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * The time the wheel started, in nanoseconds.
+     */
+    private final long startTime;
+
+    /**
+     * The number of ticks since the wheel started.
+     */
+    private long tick = 0;
+
+    /**
+     * Returns the timer shared by all the accounts, starting it if necessary.
+     *
+     * @return the shared timer.
+     */
+    static synchronized HashedWheelTimer getInstance()
+    {
+        if (instance == null)
+            instance = new HashedWheelTimer();
+        return instance;
+    }
+
+    /**
+     * Stops the shared timer, if it is started. Its scheduled tasks will
+     * never run.
+     */
+    static synchronized void stopInstance()
+    {
+        if (instance != null)
+        {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    /**
+     * Creates a timer and starts its threads.
+     */
+    private HashedWheelTimer()
+    {
+        this(System::nanoTime, true);
+    }
+
+    /**
+     * Creates a timer without the thread advancing its wheel, which is
+     * advanced by calls to {@link #expireTimeouts()}.
+     *
+     * @param clock the clock of the wheel, in nanoseconds.
+     */
+    HashedWheelTimer(LongSupplier clock)
+    {
+        this(clock, false);
+    }
+
+    /**
+     * Creates a timer.
+     *
+     * @param clock the clock of the wheel, in nanoseconds.
+     * @param startTicker whether to start the thread advancing the wheel.
+     */
+    private HashedWheelTimer(LongSupplier clock, boolean startTicker)
+    {
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(new HashSet<Timeout>());
+
+        AtomicInteger workerCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE,
+            WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            r ->
+            {
+                Thread thread = new Thread(r,
+                    "SIP timer worker " + workerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        if (startTicker)
+        {
+            ticker = new Thread(this::runTicker, "SIP timer");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+        else
+        {
+            ticker = null;
+        }
+    }
+
+    /**
+     * Stops the threads of this timer. Its scheduled tasks will never run.
+     */
+    void stop()
+    {
+        if (ticker != null)
+            ticker.interrupt();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Schedules a task for execution after a delay and, if <tt>period</tt>
+     * is positive, for repeated executions separated by <tt>period</tt>.
+     *
+     * @param task the task to run.
+     * @param delay the delay in milliseconds before the first execution.
+     * @param period the time in milliseconds between the end of an execution
+     * and the start of the next one, or <tt>0</tt> to run the task once.
+     * @param lane the lane of the scheduler of the task, where it runs.
+     * @return the timeout which cancels the task.
+     */
+    Timeout schedule(Runnable task, long delay, long period, Lane lane)
+    {
+        Timeout timeout
+            = new Timeout(
+                task,
+                lane,
+                now() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)),
+                TimeUnit.MILLISECONDS.toNanos(Math.max(period, 0)));
+
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Returns the time since the wheel started, in nanoseconds.
+     */
+    private long now()
+    {
+        return clock.getAsLong() - startTime;
+    }
+
+    /**
+     * Advances the wheel every tick until the thread is interrupted.
+     */
+    private void runTicker()
+    {
+        while (true)
+        {
+            long sleepTime = (tick + 1) * TICK_DURATION - now();
+
+            if (sleepTime > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+
+            expireTimeouts();
+        }
+    }
+
+    /**
+     * Advances the wheel by the ticks which have passed, dispatching the
+     * expired tasks to their lanes.
+     */
+    void expireTimeouts()
+    {
+        while ((tick + 1) * TICK_DURATION <= now())
+        {
+            removeCancelledTimeouts();
+            transferPendingTimeouts();
+            expireTimeouts(wheel.get((int) (tick & (WHEEL_SIZE - 1))));
+            tick++;
+        }
+    }
+
+    /**
+     * Removes the timeouts canceled since the last tick from their buckets.
+     */
+    private void removeCancelledTimeouts()
+    {
+        Timeout timeout;
+
+        while ((timeout = cancelledTimeouts.poll()) != null)
+        {
+            if (timeout.bucket != null)
+            {
+                timeout.bucket.remove(timeout);
+                timeout.bucket = null;
+            }
+        }
+    }
+
+    /**
+     * Puts the timeouts scheduled since the last tick in the buckets of their
+     * deadlines.
+     */
+    private void transferPendingTimeouts()
+    {
+        Timeout timeout;
+
+        while ((timeout = pendingTimeouts.poll()) != null)
+        {
+            if (timeout.isCancelled())
+                continue;
+
+            // the timeouts which are already due expire with this tick
+            long ticks = Math.max(timeout.deadline / TICK_DURATION, tick);
+
+            timeout.remainingRounds = (ticks - tick) / WHEEL_SIZE;
+            timeout.bucket = wheel.get((int) (ticks & (WHEEL_SIZE - 1)));
+            timeout.bucket.add(timeout);
+        }
+    }
+
+    /**
+     * Dispatches the timeouts of a bucket which expire with this turn of the
+     * wheel to their lanes.
+     *
+     * @param bucket the bucket of the current tick.
+     */
+    private void expireTimeouts(Set<Timeout> bucket)
+    {
+        Iterator<Timeout> iter = bucket.iterator();
+
+        while (iter.hasNext())
+        {
+            Timeout timeout = iter.next();
+
+            if (timeout.remainingRounds > 0)
+            {
+                timeout.remainingRounds--;
+                continue;
+            }
+
+            iter.remove();
+            timeout.bucket = null;
+            if (!timeout.isCancelled())
+            {
+                try
+                {
+                    timeout.lane.execute(timeout, workers);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // the timer is being stopped
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The tasks of a scheduler, which run one at a time in the order they
+     * expire, on a thread of the pool of the timer while there are tasks to
+     * run.
+     */
+    static final class Lane
+    {
+        /**
+         * The expired tasks waiting for the previous ones to complete.
+         */
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        /**
+         * Whether a thread is running the tasks of this lane.
+         */
+        private boolean running = false;
+
+        /**
+         * Runs a task after the tasks already waiting in this lane.
+         *
+         * @param task the task to run.
+         * @param workers the pool lending a thread to this lane.
+         * @throws RejectedExecutionException if the pool is shut down.
+         */
+        private void execute(Runnable task, Executor workers)
+        {
+            synchronized (this)
+            {
+                tasks.add(task);
+                if (running)
+                    return;
+                running = true;
+            }
+
+            try
+            {
+                workers.execute(this::runTasks);
+            }
+            catch (RejectedExecutionException e)
+            {
+                synchronized (this)
+                {
+                    tasks.clear();
+                    running = false;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Runs the tasks of this lane until there is none left.
+         */
+        private void runTasks()
+        {
+            while (true)
+            {
+                Runnable task;
+
+                synchronized (this)
+                {
+                    task = tasks.poll();
+                    if (task == null)
+                    {
+                        running = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    final class Timeout
+        implements Runnable
+    {
+        private static final int SCHEDULED = 0;
+
+        private static final int RUNNING = 1;
+
+        private static final int CANCELLED = 2;
+
+        /**
+         * The task to run.
+         */
+        private final Runnable task;
+
+        /**
+         * The lane the task runs in.
+         */
+        private final Lane lane;
+
+        /**
+         * The period of the task in nanoseconds, <tt>0</tt> if it runs once.
+         */
+        private final long period;
+
+        /**
+         * The state of this timeout.
+         */
+        private final AtomicInteger state = new AtomicInteger(SCHEDULED);
+
+        /**
+         * The time of the next execution since the wheel started, in
+         * nanoseconds.
+         */
+        private volatile long deadline;
+
+        /**
+         * The number of turns of the wheel before this timeout expires, only
+         * accessed by the ticker thread.
+         */
+        private long remainingRounds;
+
+        /**
+         * The bucket this timeout is in, only accessed by the ticker thread.
+         */
+        private Set<Timeout> bucket;
+
+        private Timeout(Runnable task, Lane lane, long deadline, long period)
+        {
+            this.task = task;
+            this.lane = lane;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * Cancels the task. It will not run anymore, but it may be running.
+         *
+         * @return <tt>true</tt> if this call prevented an execution of the
+         * task.
+         */
+        boolean cancel()
+        {
+            while (true)
+            {
+                int current = state.get();
+
+                if (current == CANCELLED)
+                    return false;
+                if (state.compareAndSet(current, CANCELLED))
+                {
+                    if (current == SCHEDULED)
+                    {
+                        cancelledTimeouts.add(this);
+                        return true;
+                    }
+                    // a periodic task will not run again
+                    return period > 0;
+                }
+            }
+        }
+
+        /**
+         * Determines whether the task was canceled.
+         *
+         * @return <tt>true</tt> if the task was canceled.
+         */
+        boolean isCancelled()
+        {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Runs the task, unless it was canceled while waiting in its lane,
+         * and, if it is periodic and was not canceled, schedules its next
+         * execution.
+         */
+        @Override
+        public void run()
+        {
+            if (!state.compareAndSet(SCHEDULED, RUNNING))
+                return;
+
+            try
+            {
+                task.run();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("Error running SIP timer task " + task, t);
+            }
+
+            if (period > 0)
+            {
+                deadline = now() + period;
+                if (state.compareAndSet(RUNNING, SCHEDULED))
+                    pendingTimeouts.add(this);
+            }
+            else
+            {
+                state.compareAndSet(RUNNING, CANCELLED);
+            }
+        }
+    }
+}
@@ -125,6 +125,42 @@
      */
     private PollOfflineContactsTask pollingTask = null;
 
+    /**
+     * The default maximum number of SUBSCRIBE requests per second of an
+     * account.
+     */
+    private static final int DEFAULT_MAX_SUBSCRIBE_RATE = 10;
+
+    /**
+     * The status code of the responses of an overloaded server to a client
+     * which sends too many requests (RFC 6585).
+     */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Paces our presence polls and subscription refreshes.
+     */
+    private final SubscriptionPacer pacer;
+
+    /**
+     * The URI of the resource list (RFC 4662) whose presence we subscribe to
+     * instead of subscribing to each contact, <tt>null</tt> if none is
+     * configured.
+     */
+    private final String resourceListUri;
+
+    /**
+     * The subscription to the resource list, <tt>null</tt> if we are not
+     * subscribed to it and subscribe to each contact.
+     */
+    private volatile ResourceListSubscription resourceListSubscription = null;
+
+    /**
+     * The contacts whose presence the resource list server notifies us of.
+     */
+    private final ResourceListCoverage<ContactSipImpl> resourceListContacts
+        = new ResourceListCoverage<ContactSipImpl>();
+
     /**
      * If we should be totally silenced, just doing local operations
      */
@@ -306,11 +342,25 @@ public OperationSetPresenceSipImpl(
 
         this.presenceEnabled = presenceEnabled;
 
+        String resourceListUri = provider.getAccountID()
+            .getAccountPropertyString(SipAccountID.RESOURCE_LIST_URI);
+        this.resourceListUri
+            = (resourceListUri == null || resourceListUri.trim().length() == 0)
+                ? null
+                : resourceListUri.trim();
+
         this.subscriptionDuration
             = (subscriptionExpiration > 0)
                 ? subscriptionExpiration
                 : PRESENCE_DEFAULT_EXPIRE;
 
+        this.pacer
+            = new SubscriptionPacer(
+                    this.timer,
+                    provider.getAccountID().getAccountPropertyInt(
+                            SipAccountID.MAX_SUBSCRIBE_RATE,
+                            DEFAULT_MAX_SUBSCRIBE_RATE));
+
         if (this.presenceEnabled)
         {
             // Subscriber part of the presence event package
@@ -321,7 +371,8 @@ public OperationSetPresenceSipImpl(
                         this.subscriptionDuration,
                         PIDF_XML,
                         this.timer,
-                        REFRESH_MARGIN);
+                        REFRESH_MARGIN,
+                        this.pacer);
             this.notifier
                 = new EventPackageNotifier(this.parentProvider, "presence",
                         PRESENCE_DEFAULT_EXPIRE, PIDF_XML, this.timer)
@@ -1285,7 +1336,8 @@ public boolean processResponse(ResponseEvent responseEvent)
                 // try to keep a margin if the refresh delay allows it
                 if (republishDelay >= (2*REFRESH_MARGIN))
                     republishDelay -= REFRESH_MARGIN;
-                timer.schedule(this.republishTask, republishDelay * 1000);
+                timer.scheduleWithJitter(
+                    this.republishTask, republishDelay * 1000);
 
             // UNAUTHORIZED (401/407)
             }
@@ -2886,28 +2938,273 @@ else if (curPriority < priority)
      }
 
      /**
-      * Forces the poll of a contact to update its current state.
+      * Forces the poll of a contact to update its current state, as soon as
+      * the pacer of our SUBSCRIBE requests allows it.
       *
       * @param contact the contact to poll
       */
      public void forcePollContact(ContactSipImpl contact)
      {
-         if (this.presenceEnabled == false
-             || !contact.isResolvable()
-             || !contact.isPersistent())
+         pollContact(contact, 0);
+     }
+
+     /**
+      * Polls a contact after a delay, when the pacer of our SUBSCRIBE
+      * requests allows it.
+      *
+      * @param contact the contact to poll
+      * @param delay the delay in milliseconds before polling the contact
+      */
+     private void pollContact(final ContactSipImpl contact, long delay)
+     {
+         if (!canPollContact(contact) || isSubscribed(contact))
              return;
 
-         // Attempt to subscribe.
+         pacer.submit(contact, delay, () ->
+         {
+             // the contact may have changed while the poll was queued
+             if (!canPollContact(contact))
+                 return;
+
+             // Attempt to subscribe.
+             try
+             {
+                 subscriber.poll(new PresenceSubscriberSubscription(contact));
+             }
+             catch (OperationFailedException ex)
+             {
+                 logger.error("Failed to create and send the subcription", ex);
+             }
+         });
+     }
+
+     /**
+      * Determines whether we are subscribed to the presence of a contact, in
+      * which case polling it does nothing.
+      *
+      * @param contact the contact
+      * @return <tt>true</tt> if we are subscribed to <tt>contact</tt>
+      */
+     private boolean isSubscribed(ContactSipImpl contact)
+     {
          try
          {
-             subscriber.poll(new PresenceSubscriberSubscription(contact));
+             return subscriber.getSubscription(getAddress(contact), null)
+                 != null;
          }
          catch (OperationFailedException ex)
          {
-             logger.error("Failed to create and send the subcription", ex);
+             return false;
          }
      }
 
+     /**
+      * Determines whether we may subscribe to the presence of a contact.
+      *
+      * @param contact the contact
+      * @return <tt>true</tt> if we may poll <tt>contact</tt>
+      */
+     private boolean canPollContact(ContactSipImpl contact)
+     {
+         return this.presenceEnabled
+             && contact.isResolvable()
+             && contact.isPersistent()
+             && !isNotifiedByResourceList(contact);
+     }
+
+     /**
+      * Returns the number of SUBSCRIBE requests, presence polls and
+      * subscription refreshes, waiting for the pacer to send them.
+      *
+      * @return the number of paced SUBSCRIBE requests.
+      */
+     public int getPacedSubscribeCount()
+     {
+         return pacer.getQueueDepth();
+     }
+
+    /**
+     * Subscribes to the presence of the resource list of this account, if
+     * one is configured, instead of subscribing to each contact.
+     *
+     * @return <tt>true</tt> if the subscription to the resource list was
+     * sent; <tt>false</tt> if we should subscribe to each contact.
+     */
+    private boolean subscribeToResourceList()
+    {
+        if (!presenceEnabled || resourceListUri == null)
+            return false;
+
+        try
+        {
+            ResourceListSubscription subscription
+                = new ResourceListSubscription(
+                        parentProvider.parseAddressString(resourceListUri));
+
+            // before sending it, the NOTIFY may come before the response
+            ResourceListSubscription previous = resourceListSubscription;
+
+            resourceListSubscription = subscription;
+            try
+            {
+                subscriber.subscribe(subscription);
+            }
+            catch (OperationFailedException ex)
+            {
+                resourceListSubscription = previous;
+                throw ex;
+            }
+            return true;
+        }
+        catch (ParseException ex)
+        {
+            logger.error("Invalid resource list URI " + resourceListUri, ex);
+        }
+        catch (OperationFailedException ex)
+        {
+            logger.error("Failed to subscribe to the resource list", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether the resource list server notifies us of the
+     * presence of a specific contact, in which case we don't subscribe to
+     * it.
+     *
+     * @param contact the contact
+     * @return <tt>true</tt> if we are subscribed to a resource list which
+     * contains <tt>contact</tt>, or which hasn't told us its contacts yet.
+     */
+    private boolean isNotifiedByResourceList(ContactSipImpl contact)
+    {
+        ResourceListSubscription subscription = resourceListSubscription;
+
+        return (subscription != null)
+            && (!subscription.notified
+                    || resourceListContacts.contains(contact));
+    }
+
+    /**
+     * Stops relying on a subscription to the resource list and subscribes to
+     * each contact instead, e.g. because the server doesn't support resource
+     * lists.
+     *
+     * @param subscription the subscription to the resource list.
+     * @param unsubscribe <tt>true</tt> to terminate the subscription,
+     * <tt>false</tt> if it is already terminated.
+     */
+    private void fallBackToContactSubscriptions(
+            ResourceListSubscription subscription,
+            boolean unsubscribe)
+    {
+        synchronized (resourceListContacts)
+        {
+            if (resourceListSubscription != subscription)
+                return;
+            resourceListSubscription = null;
+            resourceListContacts.clear();
+        }
+
+        if (unsubscribe)
+        {
+            try
+            {
+                subscriber.unsubscribe(subscription.getAddress(), false);
+            }
+            catch (OperationFailedException ex)
+            {
+                logger.error("Failed to unsubscribe from the resource list", ex);
+            }
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Subscribing to each contact instead of the resource "
+                + "list " + resourceListUri);
+
+        for (ContactSipImpl contact : ssContactList
+                .getAllContacts(ssContactList.getRootGroup()))
+        {
+            forcePollContact(contact);
+        }
+    }
+
+    /**
+     * Updates the contacts notified in a NOTIFY request of the resource list
+     * server.
+     *
+     * @param notification the content of the NOTIFY request.
+     * @return the contacts the resource list doesn't cover anymore.
+     */
+    private Set<ContactSipImpl> processResourceListNotification(
+            ResourceListNotification notification)
+    {
+        // a full state notification lists all the contacts it notifies us of
+        resourceListContacts.startNotification(notification.isFullState());
+
+        for (ResourceListNotification.Resource resource
+                : notification.getResources())
+        {
+            ContactSipImpl contact = resolveContactID(resource.getUri());
+
+            if (contact == null)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("no contact for the resource "
+                        + resource.getUri());
+                continue;
+            }
+
+            String subscriptionState = SubscriptionStateHeader.TERMINATED;
+            String reason = null;
+
+            for (ResourceListNotification.Instance instance
+                    : resource.getInstances())
+            {
+                if (ResourceListNotification.STATE_ACTIVE.equals(
+                        instance.getState()))
+                {
+                    subscriptionState = SubscriptionStateHeader.ACTIVE;
+                    if (instance.getContent() != null)
+                        setPidfPresenceStatus(instance.getContent());
+                }
+                else if (ResourceListNotification.STATE_PENDING.equals(
+                        instance.getState()))
+                {
+                    if (!SubscriptionStateHeader.ACTIVE.equals(
+                            subscriptionState))
+                        subscriptionState = SubscriptionStateHeader.PENDING;
+                }
+                else
+                {
+                    reason = instance.getReason();
+                }
+            }
+
+            if (SubscriptionStateHeader.TERMINATED.equals(subscriptionState))
+            {
+                // the server doesn't watch this contact anymore
+                resourceListContacts.remove(contact);
+                terminateSubscription(contact);
+
+                // as this contact is rejected we mark it as not resolvable
+                // so we won't subscribe again (in offline poll task)
+                if (SubscriptionStateHeader.REJECTED.equals(reason))
+                    contact.setResolvable(false);
+            }
+            else
+            {
+                resourceListContacts.add(contact);
+                if (SubscriptionStateHeader.ACTIVE.equals(subscriptionState)
+                        && !contact.isResolved())
+                    finalizeSubscription(contact);
+            }
+            contact.setSubscriptionState(subscriptionState);
+        }
+
+        return resourceListContacts.endNotification();
+    }
+
     /**
      * Unsubscribe to every contact.
      */
@@ -2938,6 +3235,23 @@ public void unsubscribeToAllContact()
      */
     private void unsubscribeToAllEventSubscribers()
     {
+        ResourceListSubscription listSubscription = resourceListSubscription;
+
+        if (listSubscription != null)
+        {
+            resourceListSubscription = null;
+            resourceListContacts.clear();
+            try
+            {
+                subscriber.unsubscribe(listSubscription.getAddress(), false);
+            }
+            catch (Throwable ex)
+            {
+                logger.error("Failed to send the unsubscription " +
+                        "for the resource list.", ex);
+            }
+        }
+
         if(this.watcherInfoSubscriber != null)
         {
             try
@@ -3004,12 +3318,13 @@ private void cancelTimer()
              pollingTask = null;
 
          timer.cancel();
+         pacer.clear();
      }
 
      /**
       * A <tt>TimerTask</tt> handling refresh of PUBLISH requests.
       */
-     private class RePublishTask extends TimerTask
+     private class RePublishTask extends SipTimerTask
      {
          /**
           * Send a new PUBLISH request to refresh the publication
@@ -3064,14 +3379,20 @@ public void run()
      /**
       * A task handling polling of offline contacts.
       */
-     private class PollOfflineContactsTask extends TimerTask
+     private class PollOfflineContactsTask extends SipTimerTask
      {
          /**
-          * Check if we can't subscribe to this contact now
+          * Check if we can't subscribe to this contact now. The polls are
+          * spread randomly over the polling period, so that they don't reach
+          * the proxy all at once.
           */
          @Override
         public void run()
          {
+             if (logger.isDebugEnabled())
+                 logger.debug("polling offline contacts, "
+                     + pacer.getQueueDepth() + " SUBSCRIBE requests queued");
+
              // send a subscription for every contact
              Iterator<Contact> rootContactsIter
                 = getServerStoredContactListRoot().contacts();
@@ -3082,7 +3403,7 @@ public void run()
                     (ContactSipImpl) rootContactsIter.next();
 
                  // poll this contact
-                 forcePollContact(contact);
+                 pollContact(contact, getPollDelay());
              }
 
              Iterator<ContactGroup> groupsIter
@@ -3099,10 +3420,20 @@ public void run()
                          = (ContactSipImpl) contactsIter.next();
 
                      // poll this contact
-                     forcePollContact(contact);
+                     pollContact(contact, getPollDelay());
                  }
              }
          }
+
+         /**
+          * Returns a random delay within the polling period.
+          *
+          * @return the delay in milliseconds before polling a contact.
+          */
+         private long getPollDelay()
+         {
+             return ThreadLocalRandom.current().nextLong(pollingTaskPeriod);
+         }
      }
 
      /**
@@ -3194,11 +3525,14 @@ else if (evt.getNewState().equals(RegistrationState.REGISTERED))
                 return;
             }
 
-            // Subcribe to each contact in the list
-            for (ContactSipImpl contact : ssContactList
-                    .getAllContacts(ssContactList.getRootGroup()))
+            // Subcribe to the resource list or to each contact in the list
+            if (!subscribeToResourceList())
             {
-                forcePollContact(contact);
+                for (ContactSipImpl contact : ssContactList
+                        .getAllContacts(ssContactList.getRootGroup()))
+                {
+                    forcePollContact(contact);
+                }
             }
 
             // create the new polling task
@@ -3268,6 +3602,16 @@ else if (evt.getNewState().equals(RegistrationState.CONNECTION_FAILED)
                         , oldContactStatus);
             }
 
+            ResourceListSubscription listSubscription
+                = resourceListSubscription;
+
+            if (listSubscription != null)
+            {
+                resourceListSubscription = null;
+                resourceListContacts.clear();
+                subscriber.removeSubscription(listSubscription.getAddress());
+            }
+
             if(this.useDistantPA)
             {
                 try
@@ -3549,9 +3893,12 @@ protected void processFailureResponse(
                         ? SipStatusEnum.OFFLINE
                         : SipStatusEnum.UNKNOWN));
 
-            // we'll never be able to resolve this contact
+            // we'll never be able to resolve this contact, unless the
+            // server is only overloaded (the pacer slows us down)
             if ((Response.UNAUTHORIZED != statusCode)
-                    && (Response.PROXY_AUTHENTICATION_REQUIRED != statusCode))
+                    && (Response.PROXY_AUTHENTICATION_REQUIRED != statusCode)
+                    && (Response.SERVICE_UNAVAILABLE != statusCode)
+                    && (TOO_MANY_REQUESTS != statusCode))
                 contact.setResolvable(false);
         }
 
@@ -3663,6 +4010,194 @@ protected void processTerminatedRequest(
         }
     }
 
+    /**
+     * Represents a subscription to the presence event package of a resource
+     * list (RFC 4662), whose NOTIFY requests carry the presence of all the
+     * contacts of the list.
+     */
+    private class ResourceListSubscription
+        extends EventPackageSubscriber.Subscription
+    {
+        /**
+         * Whether we received a NOTIFY request listing the contacts of the
+         * resource list.
+         */
+        private volatile boolean notified = false;
+
+        /**
+         * The version of the last RLMI document we processed.
+         */
+        private int version = -1;
+
+        /**
+         * Initializes a new <tt>ResourceListSubscription</tt> to a resource
+         * list.
+         *
+         * @param toAddress the URI of the resource list.
+         */
+        public ResourceListSubscription(Address toAddress)
+        {
+            super(toAddress);
+        }
+
+        /**
+         * Tells the server that we support resource lists and their
+         * <tt>multipart/related</tt> RLMI notifications.
+         */
+        @Override
+        protected void addSubscribeHeaders(
+                Request req,
+                HeaderFactory headerFactory)
+            throws ParseException
+        {
+            req.setHeader(headerFactory.createSupportedHeader(
+                    ResourceListNotification.EVENTLIST_OPTION_TAG));
+            req.addHeader(headerFactory.createAcceptHeader(
+                    "application",
+                    ResourceListNotification.RLMI_CONTENT_SUB_TYPE));
+            req.addHeader(headerFactory.createAcceptHeader(
+                    ResourceListNotification.MULTIPART_CONTENT_TYPE,
+                    ResourceListNotification.RELATED_CONTENT_SUB_TYPE));
+        }
+
+        /**
+         * Accepts the <tt>multipart/related</tt> notifications.
+         */
+        @Override
+        protected boolean isContentTypeSupported(
+                ContentTypeHeader contentTypeHeader)
+        {
+            return ResourceListNotification.isResourceListContent(
+                contentTypeHeader.getContentType(),
+                contentTypeHeader.getContentSubType());
+        }
+
+        /*
+         * Implements
+         * EventPackageSubscriber.Subscription#processActiveRequest(RequestEvent
+         * , byte[]).
+         */
+        @Override
+        protected void processActiveRequest(
+            RequestEvent requestEvent,
+            byte[] rawContent)
+        {
+            ContentTypeHeader contentTypeHeader
+                = (ContentTypeHeader) requestEvent.getRequest()
+                        .getHeader(ContentTypeHeader.NAME);
+
+            if ((rawContent == null) || (contentTypeHeader == null))
+                return;
+
+            if (!isContentTypeSupported(contentTypeHeader))
+            {
+                // the server handled the URI as the one of a presentity
+                fallBackToContactSubscriptions(this, true);
+                return;
+            }
+
+            ResourceListNotification notification;
+            try
+            {
+                notification
+                    = ResourceListNotification.parse(
+                        contentTypeHeader,
+                        rawContent);
+            }
+            catch (ParseException ex)
+            {
+                logger.error("Invalid resource list notification", ex);
+                return;
+            }
+
+            Set<ContactSipImpl> droppedContacts;
+
+            synchronized (resourceListContacts)
+            {
+                if (resourceListSubscription != this)
+                    return;
+
+                // ignore the notifications received out of order
+                if (!notification.isFullState()
+                        && (notification.getVersion() <= version))
+                {
+                    if (logger.isDebugEnabled())
+                        logger.debug("ignoring the resource list version "
+                            + notification.getVersion());
+                    return;
+                }
+                version = notification.getVersion();
+                notified = true;
+
+                droppedContacts = processResourceListNotification(notification);
+            }
+
+            // the server doesn't notify us of these contacts anymore
+            for (ContactSipImpl contact : droppedContacts)
+                forcePollContact(contact);
+        }
+
+        /*
+         * Implements
+         * EventPackageSubscriber.Subscription#processFailureResponse(
+         * ResponseEvent, int).
+         */
+        @Override
+        protected void processFailureResponse(
+            ResponseEvent responseEvent,
+            int statusCode)
+        {
+            fallBackToContactSubscriptions(this, false);
+        }
+
+        /*
+         * Implements
+         * EventPackageSubscriber.Subscription#processSuccessResponse(
+         * ResponseEvent, int).
+         */
+        @Override
+        protected void processSuccessResponse(
+            ResponseEvent responseEvent,
+            int statusCode)
+        {
+            // a server supporting resource lists requires eventlist
+            ListIterator<?> requireHeaders
+                = responseEvent.getResponse().getHeaders(RequireHeader.NAME);
+
+            while ((requireHeaders != null) && requireHeaders.hasNext())
+            {
+                RequireHeader requireHeader
+                    = (RequireHeader) requireHeaders.next();
+
+                if (ResourceListNotification.EVENTLIST_OPTION_TAG
+                        .equalsIgnoreCase(requireHeader.getOptionTag()))
+                    return;
+            }
+
+            fallBackToContactSubscriptions(this, true);
+        }
+
+        /*
+         * Implements
+         * EventPackageSubscriber.Subscription#processTerminatedRequest(
+         * RequestEvent, String).
+         */
+        @Override
+        protected void processTerminatedRequest(
+            RequestEvent requestEvent,
+            String reasonCode)
+        {
+            // we may subscribe again right away to these reasons (RFC 3265)
+            if ((SubscriptionStateHeader.DEACTIVATED.equals(reasonCode)
+                        || SubscriptionStateHeader.TIMEOUT.equals(reasonCode))
+                    && (resourceListSubscription == this)
+                    && subscribeToResourceList())
+                return;
+
+            fallBackToContactSubscriptions(this, false);
+        }
+    }
+
     /**
      * Represents a subscription to the presence.winfo event package.
      *
@@ -24,6 +24,7 @@
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.sip.*;
 import javax.sip.address.*;
@@ -102,10 +103,12 @@
     /**
      * A table mapping SIP methods to method processors (every processor must
      * implement the SipListener interface). Whenever a new message arrives we
-     * extract its method and hand it to the processor instance registered
+     * extract its method and hand it to the processor instance registered.
+     * The lists are copied on write so that messages are dispatched without
+     * locking.
      */
-    private final Hashtable<String, List<MethodProcessor>> methodProcessors =
-        new Hashtable<String, List<MethodProcessor>>();
+    private final Map<String, List<MethodProcessor>> methodProcessors =
+        new ConcurrentHashMap<String, List<MethodProcessor>>();
 
     /**
      * The name of the property under which the user may specify a transport
@@ -1951,51 +1954,44 @@ public TransportProtocol getTransportProtocol()
     public void registerMethodProcessor(String method,
         MethodProcessor methodProcessor)
     {
-        List<MethodProcessor> processors = methodProcessors.get(method);
-        if (processors == null)
-        {
-            processors = new LinkedList<MethodProcessor>();
-            methodProcessors.put(method, processors);
-        }
-        else
+        /*
+         * EventPackageSupport and its extenders provide a generic mechanizm
+         * for building support for a specific event package so allow them
+         * to register multiple instances of one and the same class as long
+         * as they are handling different event packages.
+         */
+        Class<? extends MethodProcessor> methodProcessorClass
+            = methodProcessor.getClass();
+        String eventPackage
+            = (methodProcessor instanceof EventPackageSupport)
+                ? ((EventPackageSupport) methodProcessor).getEventPackage()
+                : null;
+
+        synchronized (methodProcessors)
         {
-            /*
-             * Prevent the registering of multiple instances of one and the same
-             * OperationSet class and take only the latest registration into
-             * account.
-             */
-            Iterator<MethodProcessor> processorIter = processors.iterator();
-            Class<? extends MethodProcessor> methodProcessorClass
-                = methodProcessor.getClass();
-            /*
-             * EventPackageSupport and its extenders provide a generic mechanizm
-             * for building support for a specific event package so allow them
-             * to register multiple instances of one and the same class as long
-             * as they are handling different event packages.
-             */
-            String eventPackage
-                = (methodProcessor instanceof EventPackageSupport)
-                    ? ((EventPackageSupport) methodProcessor).getEventPackage()
-                    : null;
-
-            while (processorIter.hasNext())
+            List<MethodProcessor> processors = methodProcessors.get(method);
+            if (processors == null)
             {
-                MethodProcessor processor = processorIter.next();
-
-                if (!processor.getClass().equals(methodProcessorClass))
-                    continue;
-                if ((eventPackage != null)
-                        && (processor instanceof EventPackageSupport)
-                        && !eventPackage
-                                .equals(
+                processors = new CopyOnWriteArrayList<MethodProcessor>();
+                methodProcessors.put(method, processors);
+            }
+            else
+            {
+                /*
+                 * Prevent the registering of multiple instances of one and the
+                 * same OperationSet class and take only the latest
+                 * registration into account.
+                 */
+                processors.removeIf(processor ->
+                    processor.getClass().equals(methodProcessorClass)
+                        && ((eventPackage == null)
+                            || !(processor instanceof EventPackageSupport)
+                            || eventPackage.equals(
                                     ((EventPackageSupport) processor)
-                                        .getEventPackage()))
-                    continue;
-
-                processorIter.remove();
+                                        .getEventPackage())));
             }
+            processors.add(methodProcessor);
         }
-        processors.add(methodProcessor);
     }
 
     /**
@@ -2011,11 +2007,14 @@ public void registerMethodProcessor(String method,
     public void unregisterMethodProcessor(String method,
         MethodProcessor methodProcessor)
     {
-        List<MethodProcessor> processors = methodProcessors.get(method);
-        if ((processors != null) && processors.remove(methodProcessor)
-            && (processors.size() <= 0))
+        synchronized (methodProcessors)
         {
-            methodProcessors.remove(method);
+            List<MethodProcessor> processors = methodProcessors.get(method);
+            if ((processors != null) && processors.remove(methodProcessor)
+                && (processors.size() <= 0))
+            {
+                methodProcessors.remove(method);
+            }
         }
     }
 
@@ -0,0 +1,130 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The contacts whose presence a resource list server notifies us of (RFC
+ * 4662), as listed by the NOTIFY requests of the subscription to the list. A
+ * full state notification lists all the contacts the list covers, so the
+ * contacts it doesn't list anymore have to be polled one by one again. A
+ * partial notification only lists the contacts whose state changed.
+ * <p>
+ * The notifications are processed with the lock of the
+ * <tt>ResourceListCoverage</tt> held.
+ *
+ * @param <T> the type of the contacts.
+ */
+public class ResourceListCoverage<T>
+{
+    /**
+     * The contacts the resource list covers.
+     */
+    private final Set<T> contacts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The contacts covered before the full state notification being
+     * processed and not listed in it so far, <tt>null</tt> when no full
+     * state notification is being processed.
+     */
+    private Set<T> unlisted = null;
+
+    /**
+     * Determines whether the resource list covers a contact.
+     *
+     * @param contact the contact.
+     * @return <tt>true</tt> if we are notified of the presence of
+     * <tt>contact</tt> by the resource list server.
+     */
+    public boolean contains(T contact)
+    {
+        return contacts.contains(contact);
+    }
+
+    /**
+     * Forgets all the contacts, e.g. when the subscription to the resource
+     * list ends.
+     */
+    public void clear()
+    {
+        contacts.clear();
+        unlisted = null;
+    }
+
+    /**
+     * Starts processing a notification.
+     *
+     * @param fullState <tt>true</tt> if the notification lists all the
+     * contacts the resource list covers.
+     */
+    public void startNotification(boolean fullState)
+    {
+        if (fullState)
+        {
+            unlisted = new LinkedHashSet<T>(contacts);
+            contacts.clear();
+        }
+        else
+            unlisted = null;
+    }
+
+    /**
+     * Records that the notification being processed lists a contact the
+     * resource list watches.
+     *
+     * @param contact the contact.
+     */
+    public void add(T contact)
+    {
+        contacts.add(contact);
+        if (unlisted != null)
+            unlisted.remove(contact);
+    }
+
+    /**
+     * Records that the notification being processed lists a contact the
+     * resource list doesn't watch anymore, e.g. because its subscription
+     * was rejected.
+     *
+     * @param contact the contact.
+     */
+    public void remove(T contact)
+    {
+        contacts.remove(contact);
+        if (unlisted != null)
+            unlisted.remove(contact);
+    }
+
+    /**
+     * Ends processing a notification.
+     *
+     * @return the contacts covered before the notification which a full
+     * state notification doesn't list, and which we have to poll ourselves.
+     */
+    public Set<T> endNotification()
+    {
+        Set<T> dropped = (unlisted == null)
+            ? Collections.<T>emptySet()
+            : unlisted;
+
+        unlisted = null;
+        return dropped;
+    }
+}
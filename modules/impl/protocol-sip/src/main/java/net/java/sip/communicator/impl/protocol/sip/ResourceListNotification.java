@@ -0,0 +1,796 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+
+import javax.sip.header.*;
+
+import org.jitsi.util.xml.*;
+import org.w3c.dom.*;
+
+/**
+ * The content of a NOTIFY request sent by a resource list server (RFC 4662):
+ * a <tt>multipart/related</tt> body whose root part is an RLMI document
+ * listing the resources of the list, and whose other parts are the event
+ * documents (e.g. PIDF) of these resources, referenced by their Content-ID.
+ * The resources of the nested lists are flattened in the resources of the
+ * notification.
+ */
+public final class ResourceListNotification
+{
+    /**
+     * The <tt>Supported</tt>/<tt>Require</tt> option tag of RFC 4662.
+     */
+    public static final String EVENTLIST_OPTION_TAG = "eventlist";
+
+    /**
+     * The content type of the NOTIFY bodies sent by a resource list server.
+     */
+    public static final String MULTIPART_CONTENT_TYPE = "multipart";
+
+    /**
+     * The content sub-type of the NOTIFY bodies sent by a resource list
+     * server.
+     */
+    public static final String RELATED_CONTENT_SUB_TYPE = "related";
+
+    /**
+     * The content sub-type of the root part of these bodies.
+     */
+    public static final String RLMI_CONTENT_SUB_TYPE = "rlmi+xml";
+
+    /**
+     * The state of an instance for which the resource list server receives
+     * notifications.
+     */
+    public static final String STATE_ACTIVE = "active";
+
+    /**
+     * The state of an instance whose subscription is not yet accepted.
+     */
+    public static final String STATE_PENDING = "pending";
+
+    /**
+     * The state of an instance whose subscription is terminated.
+     */
+    public static final String STATE_TERMINATED = "terminated";
+
+    private static final String RLMI_NS_VALUE = "urn:ietf:params:xml:ns:rlmi";
+
+    private static final String LIST_ELEMENT = "list";
+
+    private static final String RESOURCE_ELEMENT = "resource";
+
+    private static final String INSTANCE_ELEMENT = "instance";
+
+    private static final String URI_ATTRIBUTE = "uri";
+
+    private static final String VERSION_ATTRIBUTE = "version";
+
+    private static final String FULL_STATE_ATTRIBUTE = "fullState";
+
+    private static final String ID_ATTRIBUTE = "id";
+
+    private static final String STATE_ATTRIBUTE = "state";
+
+    private static final String REASON_ATTRIBUTE = "reason";
+
+    private static final String CID_ATTRIBUTE = "cid";
+
+    private static final String CONTENT_ID_HEADER = "content-id";
+
+    private static final String CONTENT_TYPE_HEADER = "content-type";
+
+    /**
+     * The URI of the list.
+     */
+    private final String uri;
+
+    /**
+     * The version of the RLMI document.
+     */
+    private final int version;
+
+    /**
+     * Whether the notification contains the state of all the resources of
+     * the list or only the ones which changed.
+     */
+    private final boolean fullState;
+
+    /**
+     * The resources of the list, including the ones of its nested lists.
+     */
+    private final List<Resource> resources;
+
+    private ResourceListNotification(
+            String uri,
+            int version,
+            boolean fullState,
+            List<Resource> resources)
+    {
+        this.uri = uri;
+        this.version = version;
+        this.fullState = fullState;
+        this.resources = Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * Returns the URI of the list.
+     *
+     * @return the URI of the list.
+     */
+    public String getUri()
+    {
+        return uri;
+    }
+
+    /**
+     * Returns the version of the RLMI document, which increases with every
+     * notification of a subscription.
+     *
+     * @return the version of the RLMI document.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Determines whether this notification contains the state of all the
+     * resources of the list, or only the ones which changed.
+     *
+     * @return <tt>true</tt> if this notification contains the state of all
+     * the resources of the list.
+     */
+    public boolean isFullState()
+    {
+        return fullState;
+    }
+
+    /**
+     * Returns the resources of the list, including the ones of its nested
+     * lists.
+     *
+     * @return the resources of the list.
+     */
+    public List<Resource> getResources()
+    {
+        return resources;
+    }
+
+    /**
+     * Determines whether a content type is the one of the NOTIFY bodies sent
+     * by a resource list server.
+     *
+     * @param contentType the type of the content.
+     * @param contentSubType the sub-type of the content.
+     * @return <tt>true</tt> if the content is <tt>multipart/related</tt>.
+     */
+    public static boolean isResourceListContent(
+            String contentType,
+            String contentSubType)
+    {
+        return MULTIPART_CONTENT_TYPE.equalsIgnoreCase(contentType)
+            && RELATED_CONTENT_SUB_TYPE.equalsIgnoreCase(contentSubType);
+    }
+
+    /**
+     * Parses the <tt>multipart/related</tt> body of a NOTIFY request sent by
+     * a resource list server.
+     *
+     * @param contentTypeHeader the Content-Type header of the request.
+     * @param content the body of the request.
+     * @return the parsed notification.
+     * @throws ParseException if the body is not a valid RLMI notification.
+     */
+    public static ResourceListNotification parse(
+            ContentTypeHeader contentTypeHeader,
+            byte[] content)
+        throws ParseException
+    {
+        StringBuilder contentType
+            = new StringBuilder(contentTypeHeader.getContentType())
+                .append('/')
+                .append(contentTypeHeader.getContentSubType());
+        Iterator<?> names = contentTypeHeader.getParameterNames();
+
+        while (names.hasNext())
+        {
+            String name = (String) names.next();
+            String value = contentTypeHeader.getParameter(name);
+
+            if (value == null)
+                continue;
+            if (value.length() > 1
+                    && value.startsWith("\"")
+                    && value.endsWith("\""))
+                value = value.substring(1, value.length() - 1);
+            contentType.append(';').append(name)
+                .append("=\"").append(value).append('"');
+        }
+        return parse(contentType.toString(), content);
+    }
+
+    /**
+     * Parses the <tt>multipart/related</tt> body of a NOTIFY request sent by
+     * a resource list server.
+     *
+     * @param contentType the value of the Content-Type header of the request,
+     * with its <tt>boundary</tt> and optional <tt>start</tt> parameters.
+     * @param content the body of the request.
+     * @return the parsed notification.
+     * @throws ParseException if the body is not a valid RLMI notification.
+     */
+    public static ResourceListNotification parse(
+            String contentType,
+            byte[] content)
+        throws ParseException
+    {
+        if (content == null)
+            throw new ParseException("No content", 0);
+
+        // each byte is a char, the parts are decoded once split
+        return parse(
+            contentType,
+            new String(content, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Parses a <tt>multipart/related</tt> body of which each char is a byte.
+     *
+     * @param contentType the content type of the body.
+     * @param content the body.
+     * @return the parsed notification.
+     * @throws ParseException if the body is not a valid RLMI notification.
+     */
+    private static ResourceListNotification parse(
+            String contentType,
+            String content)
+        throws ParseException
+    {
+        String boundary = getParameter(contentType, "boundary");
+
+        if (boundary == null)
+            throw new ParseException("No boundary in " + contentType, 0);
+
+        List<Part> parts = splitParts(content, boundary);
+
+        if (parts.isEmpty())
+            throw new ParseException("No part in the content", 0);
+
+        // the root is the start part, or the first one
+        String start = unquoteId(getParameter(contentType, "start"));
+        Part root = null;
+        Map<String, Part> partsById = new HashMap<>();
+
+        for (Part part : parts)
+        {
+            if (part.id != null)
+            {
+                partsById.put(part.id, part);
+                if (part.id.equals(start))
+                    root = part;
+            }
+        }
+        if (root == null)
+            root = parts.get(0);
+        if (!RLMI_CONTENT_SUB_TYPE.equalsIgnoreCase(
+                getContentSubType(root.contentType)))
+        {
+            throw new ParseException(
+                "The root part is not RLMI: " + root.contentType, 0);
+        }
+
+        return parseRlmi(root.getText(), partsById);
+    }
+
+    /**
+     * Parses the RLMI document of a notification and gets the contents of
+     * its resources in the other parts of the notification.
+     *
+     * @param rlmi the RLMI document.
+     * @param partsById the parts of the notification by Content-ID.
+     * @return the parsed notification.
+     * @throws ParseException if the RLMI document is not valid.
+     */
+    private static ResourceListNotification parseRlmi(
+            String rlmi,
+            Map<String, Part> partsById)
+        throws ParseException
+    {
+        Element list;
+
+        try
+        {
+            list = XMLUtils.createDocument(rlmi).getDocumentElement();
+        }
+        catch (Exception e)
+        {
+            ParseException pe
+                = new ParseException("Invalid RLMI document", 0);
+            pe.initCause(e);
+            throw pe;
+        }
+        if (!LIST_ELEMENT.equals(list.getLocalName())
+                || !RLMI_NS_VALUE.equals(list.getNamespaceURI()))
+        {
+            throw new ParseException("No RLMI list element", 0);
+        }
+
+        int version;
+
+        try
+        {
+            version = Integer.parseInt(list.getAttribute(VERSION_ATTRIBUTE));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new ParseException(
+                "Invalid RLMI version " + list.getAttribute(VERSION_ATTRIBUTE),
+                0);
+        }
+
+        List<Resource> resources = new ArrayList<>();
+        NodeList resourceNodes = list.getChildNodes();
+
+        for (int i = 0; i < resourceNodes.getLength(); i++)
+        {
+            Node resourceNode = resourceNodes.item(i);
+
+            if (!isRlmiElement(resourceNode, RESOURCE_ELEMENT))
+                continue;
+
+            Element resourceElement = (Element) resourceNode;
+            List<Instance> instances = new ArrayList<>();
+            NodeList instanceNodes = resourceElement.getChildNodes();
+
+            for (int j = 0; j < instanceNodes.getLength(); j++)
+            {
+                Node instanceNode = instanceNodes.item(j);
+
+                if (!isRlmiElement(instanceNode, INSTANCE_ELEMENT))
+                    continue;
+
+                Element instance = (Element) instanceNode;
+                Part part = partsById.get(getAttribute(instance, CID_ATTRIBUTE));
+
+                if (part != null
+                        && isResourceListContent(
+                            getContentType(part.contentType),
+                            getContentSubType(part.contentType)))
+                {
+                    // a nested list
+                    resources.addAll(
+                        parse(part.contentType, part.content).getResources());
+                    continue;
+                }
+
+                instances.add(
+                    new Instance(
+                        getAttribute(instance, ID_ATTRIBUTE),
+                        getAttribute(instance, STATE_ATTRIBUTE),
+                        getAttribute(instance, REASON_ATTRIBUTE),
+                        (part == null) ? null : part.contentType,
+                        (part == null) ? null : part.getText()));
+            }
+
+            String uri = getAttribute(resourceElement, URI_ATTRIBUTE);
+
+            if (uri != null && !instances.isEmpty())
+                resources.add(new Resource(uri, instances));
+        }
+
+        return
+            new ResourceListNotification(
+                getAttribute(list, URI_ATTRIBUTE),
+                version,
+                Boolean.parseBoolean(list.getAttribute(FULL_STATE_ATTRIBUTE)),
+                resources);
+    }
+
+    /**
+     * Splits a multipart body in its parts.
+     *
+     * @param content the multipart body.
+     * @param boundary the boundary of the parts.
+     * @return the parts of the body.
+     * @throws ParseException if the body has no closing delimiter.
+     */
+    private static List<Part> splitParts(String content, String boundary)
+        throws ParseException
+    {
+        String delimiter = "--" + boundary;
+        List<Part> parts = new ArrayList<>();
+        int index = content.startsWith(delimiter)
+            ? 0
+            : content.indexOf("\n" + delimiter);
+
+        while (index != -1)
+        {
+            if (content.charAt(index) == '\n')
+                index++;
+
+            int delimiterEnd = index + delimiter.length();
+
+            // the close delimiter
+            if (content.startsWith("--", delimiterEnd))
+                return parts;
+
+            int partStart = content.indexOf('\n', delimiterEnd);
+
+            if (partStart == -1)
+                break;
+            partStart++;
+
+            int partEnd = content.indexOf("\n" + delimiter, partStart);
+
+            if (partEnd == -1)
+                break;
+
+            // the CRLF before a delimiter belongs to the delimiter
+            int end = partEnd;
+
+            if (end > partStart && content.charAt(end - 1) == '\r')
+                end--;
+            parts.add(parsePart(content.substring(partStart, end)));
+            index = partEnd;
+        }
+        throw new ParseException("No close delimiter " + delimiter + "--", 0);
+    }
+
+    /**
+     * Parses the headers of a part of a multipart body.
+     *
+     * @param part the part with its headers.
+     * @return the parsed part.
+     */
+    private static Part parsePart(String part)
+    {
+        String id = null;
+        String contentType = null;
+        int index = 0;
+
+        while (index < part.length())
+        {
+            int lineEnd = part.indexOf('\n', index);
+
+            if (lineEnd == -1)
+                lineEnd = part.length();
+
+            String line = part.substring(index, lineEnd).trim();
+
+            index = lineEnd + 1;
+
+            // the empty line after the headers
+            if (line.length() == 0)
+                break;
+
+            int colon = line.indexOf(':');
+
+            if (colon == -1)
+                continue;
+
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+
+            if (CONTENT_ID_HEADER.equalsIgnoreCase(name))
+                id = unquoteId(value);
+            else if (CONTENT_TYPE_HEADER.equalsIgnoreCase(name))
+                contentType = value;
+        }
+
+        return
+            new Part(
+                id,
+                contentType,
+                (index < part.length()) ? part.substring(index) : "");
+    }
+
+    /**
+     * Returns the value of a parameter of a content type.
+     *
+     * @param contentType the content type and its parameters.
+     * @param name the name of the parameter.
+     * @return the value of the parameter, <tt>null</tt> if it is absent.
+     */
+    private static String getParameter(String contentType, String name)
+    {
+        if (contentType == null)
+            return null;
+
+        int index = contentType.indexOf(';');
+
+        while (index != -1)
+        {
+            int equals = contentType.indexOf('=', index);
+
+            if (equals == -1)
+                return null;
+
+            String paramName = contentType.substring(index + 1, equals).trim();
+            String value;
+            int valueStart = equals + 1;
+
+            while (valueStart < contentType.length()
+                    && contentType.charAt(valueStart) == ' ')
+                valueStart++;
+
+            if (contentType.startsWith("\"", valueStart))
+            {
+                int valueEnd = contentType.indexOf('"', valueStart + 1);
+
+                if (valueEnd == -1)
+                    return null;
+                value = contentType.substring(valueStart + 1, valueEnd);
+                index = contentType.indexOf(';', valueEnd);
+            }
+            else
+            {
+                index = contentType.indexOf(';', valueStart);
+                value
+                    = contentType.substring(
+                        valueStart,
+                        (index == -1) ? contentType.length() : index).trim();
+            }
+
+            if (paramName.equalsIgnoreCase(name))
+                return value;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the type of a content type, e.g. <tt>multipart</tt>.
+     *
+     * @param contentType the content type and its parameters.
+     * @return the type of the content.
+     */
+    private static String getContentType(String contentType)
+    {
+        if (contentType == null)
+            return null;
+
+        int slash = contentType.indexOf('/');
+
+        return (slash == -1) ? null : contentType.substring(0, slash).trim();
+    }
+
+    /**
+     * Returns the sub-type of a content type, e.g. <tt>related</tt>.
+     *
+     * @param contentType the content type and its parameters.
+     * @return the sub-type of the content.
+     */
+    private static String getContentSubType(String contentType)
+    {
+        if (contentType == null)
+            return null;
+
+        int slash = contentType.indexOf('/');
+
+        if (slash == -1)
+            return null;
+
+        int semicolon = contentType.indexOf(';', slash);
+
+        return
+            contentType.substring(
+                slash + 1,
+                (semicolon == -1) ? contentType.length() : semicolon).trim();
+    }
+
+    /**
+     * Removes the angle brackets of a Content-ID.
+     *
+     * @param id the Content-ID.
+     * @return the Content-ID without its angle brackets.
+     */
+    private static String unquoteId(String id)
+    {
+        if (id != null && id.startsWith("<") && id.endsWith(">"))
+            return id.substring(1, id.length() - 1);
+        return id;
+    }
+
+    /**
+     * Returns the value of an attribute of an element.
+     *
+     * @param element the element.
+     * @param name the name of the attribute.
+     * @return the value of the attribute, <tt>null</tt> if it is absent.
+     */
+    private static String getAttribute(Element element, String name)
+    {
+        return element.hasAttribute(name) ? element.getAttribute(name) : null;
+    }
+
+    /**
+     * Determines whether a node is an RLMI element with a specific name.
+     *
+     * @param node the node.
+     * @param name the local name of the element.
+     * @return <tt>true</tt> if <tt>node</tt> is an RLMI <tt>name</tt>
+     * element.
+     */
+    private static boolean isRlmiElement(Node node, String name)
+    {
+        return node.getNodeType() == Node.ELEMENT_NODE
+            && name.equals(node.getLocalName())
+            && RLMI_NS_VALUE.equals(node.getNamespaceURI());
+    }
+
+    /**
+     * A resource of the list.
+     */
+    public static final class Resource
+    {
+        private final String uri;
+
+        private final List<Instance> instances;
+
+        private Resource(String uri, List<Instance> instances)
+        {
+            this.uri = uri;
+            this.instances = Collections.unmodifiableList(instances);
+        }
+
+        /**
+         * Returns the URI of the resource.
+         *
+         * @return the URI of the resource.
+         */
+        public String getUri()
+        {
+            return uri;
+        }
+
+        /**
+         * Returns the subscriptions of the resource list server to the
+         * resource.
+         *
+         * @return the instances of the resource.
+         */
+        public List<Instance> getInstances()
+        {
+            return instances;
+        }
+    }
+
+    /**
+     * A subscription of the resource list server to a resource of the list.
+     */
+    public static final class Instance
+    {
+        private final String id;
+
+        private final String state;
+
+        private final String reason;
+
+        private final String contentType;
+
+        private final String content;
+
+        private Instance(
+                String id,
+                String state,
+                String reason,
+                String contentType,
+                String content)
+        {
+            this.id = id;
+            this.state = state;
+            this.reason = reason;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        /**
+         * Returns the id of the instance.
+         *
+         * @return the id of the instance.
+         */
+        public String getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the state of the subscription to the resource, one of
+         * {@link #STATE_ACTIVE}, {@link #STATE_PENDING} and
+         * {@link #STATE_TERMINATED}.
+         *
+         * @return the state of the instance.
+         */
+        public String getState()
+        {
+            return state;
+        }
+
+        /**
+         * Returns the reason of the termination of a terminated instance.
+         *
+         * @return the reason of the termination, <tt>null</tt> if there is
+         * none.
+         */
+        public String getReason()
+        {
+            return reason;
+        }
+
+        /**
+         * Returns the content type of the event document of the resource.
+         *
+         * @return the content type of the event document, <tt>null</tt> if
+         * there is no document.
+         */
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        /**
+         * Returns the event document of the resource, e.g. its PIDF document.
+         *
+         * @return the event document, <tt>null</tt> if the notification does
+         * not carry one for this instance.
+         */
+        public String getContent()
+        {
+            return content;
+        }
+    }
+
+    /**
+     * A part of a multipart body.
+     */
+    private static class Part
+    {
+        private final String id;
+
+        private final String contentType;
+
+        /**
+         * The content of the part, of which each char is a byte.
+         */
+        private final String content;
+
+        private Part(String id, String contentType, String content)
+        {
+            this.id = id;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        /**
+         * Decodes the content of the part as UTF-8 text.
+         *
+         * @return the text of the part.
+         */
+        private String getText()
+        {
+            return
+                new String(
+                    content.getBytes(StandardCharsets.ISO_8859_1),
+                    StandardCharsets.UTF_8);
+        }
+    }
+}
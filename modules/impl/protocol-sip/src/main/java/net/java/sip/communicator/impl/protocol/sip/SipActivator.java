@@ -347,6 +347,8 @@ public void stop(BundleContext context) throws Exception
             uriHandlerSipImpl = null;
         }
 
+        HashedWheelTimer.stopInstance();
+
         configurationService = null;
         networkAddressManagerService = null;
         mediaService = null;
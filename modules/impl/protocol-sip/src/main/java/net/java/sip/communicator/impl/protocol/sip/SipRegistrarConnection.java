@@ -93,7 +93,7 @@
     /**
     * The timer we use for rescheduling registrations.
     */
-    private Timer reRegisterTimer = new Timer();
+    private final TimerScheduler reRegisterTimer = new TimerScheduler();
 
     /**
     * A copy of our last sent register request. (used when unregistering)
@@ -744,7 +744,7 @@ public void setRegistrationState(RegistrationState newState,
     * it will resend the REGISTER request.
     */
     private class ReRegisterTask
-        extends TimerTask
+        extends SipTimerTask
     {
         /**
         * Creates a new instance of the ReRegister task prepared to reregister
@@ -782,9 +782,6 @@ public void run()
     private void cancelPendingRegistrations()
     {
         reRegisterTimer.cancel();
-        reRegisterTimer = null;
-
-        reRegisterTimer = new Timer();
     }
 
     /**
@@ -804,8 +801,9 @@ private void scheduleReRegistration(int expires)
         //seconds
         //bug report and fix by Willem Romijn (romijn at lucent.com)
         //We keep a margin of 10% when sending re-registrations (1000
-        //becomes 900)
-        reRegisterTimer.schedule(reRegisterTask, expires * 900);
+        //becomes 900), and spread the re-registrations of the accounts
+        //registered at the same time over another 10%
+        reRegisterTimer.scheduleWithJitter(reRegisterTask, expires * 900);
     }
 
     /**
@@ -0,0 +1,138 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * An immutable index of the providers sharing the SIP stack, by the user
+ * part of their address and by the custom parameter of their contact
+ * address, so that dispatching a request doesn't go through all the
+ * providers. <tt>SipStackSharing</tt> builds a new index whenever a provider
+ * registers or unregisters.
+ *
+ * @param <T> the type of the indexed providers.
+ */
+final class SipRoutingIndex<T>
+{
+    /**
+     * All the indexed providers.
+     */
+    private final List<T> targets;
+
+    /**
+     * The providers by user ID.
+     */
+    private final Map<String, List<T>> targetsByUser;
+
+    /**
+     * The providers by user ID and custom contact address parameter.
+     */
+    private final Map<String, T> targetsByUserAndParam;
+
+    /**
+     * Indexes providers.
+     *
+     * @param targets the providers to index.
+     * @param userIdFunction returns the user ID of a provider.
+     * @param customParamFunction returns the value of the custom parameter
+     * of the contact address of a provider, or <tt>null</tt> if it has none.
+     */
+    SipRoutingIndex(
+            Collection<T> targets,
+            Function<T, String> userIdFunction,
+            Function<T, String> customParamFunction)
+    {
+        Map<String, List<T>> targetsByUser = new HashMap<>();
+        Map<String, T> targetsByUserAndParam = new HashMap<>();
+
+        for (T target : targets)
+        {
+            String userId = userIdFunction.apply(target);
+
+            targetsByUser
+                .computeIfAbsent(userId, k -> new ArrayList<>(1))
+                .add(target);
+
+            String customParam = customParamFunction.apply(target);
+
+            if (customParam != null)
+            {
+                targetsByUserAndParam.putIfAbsent(
+                    getKey(userId, customParam),
+                    target);
+            }
+        }
+
+        this.targets = Collections.unmodifiableList(new ArrayList<>(targets));
+        this.targetsByUser = targetsByUser;
+        this.targetsByUserAndParam = targetsByUserAndParam;
+    }
+
+    /**
+     * Returns all the indexed providers.
+     *
+     * @return the indexed providers.
+     */
+    List<T> getTargets()
+    {
+        return targets;
+    }
+
+    /**
+     * Returns the providers with a specific user ID.
+     *
+     * @param userId the user part of the Request-URI.
+     * @return the providers with this user ID, an empty list if there are
+     * none.
+     */
+    List<T> getTargets(String userId)
+    {
+        List<T> targets = targetsByUser.get(userId);
+
+        return (targets == null)
+            ? Collections.<T>emptyList()
+            : Collections.unmodifiableList(targets);
+    }
+
+    /**
+     * Returns the provider with a specific user ID and custom contact
+     * address parameter.
+     *
+     * @param userId the user part of the Request-URI.
+     * @param customParam the value of the custom parameter of the
+     * Request-URI.
+     * @return the provider with this user ID and parameter, <tt>null</tt> if
+     * there is none.
+     */
+    T getTarget(String userId, String customParam)
+    {
+        if (customParam == null)
+            return null;
+        return targetsByUserAndParam.get(getKey(userId, customParam));
+    }
+
+    /**
+     * Returns the key of a provider in <tt>targetsByUserAndParam</tt>.
+     */
+    private static String getKey(String userId, String customParam)
+    {
+        return userId + '\n' + customParam;
+    }
+}
@@ -23,6 +23,8 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import javax.net.ssl.*;
 
 import javax.sip.*;
@@ -85,12 +87,29 @@
     /**
      * The candidate recipients to choose from when dispatching messages
      * received from one the JAIN-SIP <tt>SipProvider</tt>-s. for thread safety
-     * issues reasons, better iterate on a copy of that set using
-     * <tt>getSipListeners()</tt>.
+     * issues reasons, better iterate on the immutable <tt>routingIndex</tt>.
      */
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The index of the <tt>listeners</tt> used to dispatch new requests,
+     * rebuilt whenever a listener is added or removed.
+     */
+    private volatile SipRoutingIndex<ProtocolProviderServiceSipImpl>
+        routingIndex = createRoutingIndex(
+            Collections.<ProtocolProviderServiceSipImpl>emptySet());
+
+    /**
+     * The number of new requests dispatched with <tt>findTargetFor()</tt>.
+     */
+    private final LongAdder dispatchCount = new LongAdder();
+
+    /**
+     * The total time in nanoseconds spent in <tt>findTargetFor()</tt>.
+     */
+    private final LongAdder dispatchTime = new LongAdder();
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -198,6 +217,7 @@ public void addSipListener(ProtocolProviderServiceSipImpl listener)
             if(this.listeners.size() == 0)
                 startListening();
             this.listeners.add(listener);
+            routingIndex = createRoutingIndex(this.listeners);
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -215,6 +235,7 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
         synchronized(this.listeners)
         {
             this.listeners.remove(listener);
+            routingIndex = createRoutingIndex(this.listeners);
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -225,16 +246,45 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
     }
 
     /**
-     * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
+     * Indexes the candidate recipients by their user ID and the custom
+     * parameter of their contact address.
      *
-     * @return a copy of the <tt>listeners</tt> set.
+     * @param listeners the candidate recipients.
+     * @return the index of <tt>listeners</tt>.
      */
-    private Set<ProtocolProviderServiceSipImpl> getSipListeners()
+    static SipRoutingIndex<ProtocolProviderServiceSipImpl>
+        createRoutingIndex(Set<ProtocolProviderServiceSipImpl> listeners)
     {
-        synchronized(this.listeners)
-        {
-            return new HashSet<ProtocolProviderServiceSipImpl>(this.listeners);
-        }
+        return new SipRoutingIndex<ProtocolProviderServiceSipImpl>(
+            listeners,
+            listener -> listener.getAccountID().getUserID(),
+            ProtocolProviderServiceSipImpl::getContactAddressCustomParamValue);
+    }
+
+    /**
+     * Returns the number of new requests dispatched to a candidate recipient
+     * looked up by their Request-URI.
+     *
+     * @return the number of dispatched new requests.
+     */
+    public long getDispatchCount()
+    {
+        return dispatchCount.sum();
+    }
+
+    /**
+     * Returns the average time spent looking up the candidate recipient of a
+     * new request.
+     *
+     * @return the average dispatch time in microseconds.
+     */
+    public double getAverageDispatchTime()
+    {
+        long count = dispatchCount.sum();
+
+        return (count == 0)
+            ? 0
+            : (dispatchTime.sum() / 1000.0) / count;
     }
 
     /**
@@ -700,7 +750,18 @@ public void processRequest(RequestEvent event)
             }
             else
             {
-                service = findTargetFor(request);
+                long startTime = System.nanoTime();
+
+                service = findTargetFor(routingIndex, request);
+
+                long time = System.nanoTime() - startTime;
+
+                dispatchCount.increment();
+                dispatchTime.add(time);
+                if (logger.isTraceEnabled())
+                    logger.trace("Found the target of " + request.getMethod()
+                        + " in " + TimeUnit.NANOSECONDS.toMicros(time)
+                        + " us");
                 if (service == null)
                 {
                     logger.error(
@@ -894,10 +955,13 @@ public void processTransactionTerminated(TransactionTerminatedEvent event)
      * <tt>ServerTransaction</tt>, because sometimes <tt>RequestEvent</tt>s
      * have no associated <tt>ServerTransaction</tt>.
      *
+     * @param routingIndex the index of the candidate recipients.
      * @param request the <tt>Request</tt> to find a recipient for.
      * @return a suitable <tt>ProtocolProviderServiceSipImpl</tt>.
      */
-    private ProtocolProviderServiceSipImpl findTargetFor(Request request)
+    static ProtocolProviderServiceSipImpl findTargetFor(
+            SipRoutingIndex<ProtocolProviderServiceSipImpl> routingIndex,
+            Request request)
     {
         if(request == null)
         {
@@ -905,16 +969,7 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
-
-        if(currentListenersCopy.size() == 0)
+        if(routingIndex.getTargets().isEmpty())
         {
             logger.error("no listeners");
             return null;
@@ -926,23 +981,16 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
         {
             String requestUser = ((SipURI) requestURI).getUser();
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
-
             // check if the Request-URI username is
             // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
-            {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
-                {
-                    if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
-                }
-            }
+            List<ProtocolProviderServiceSipImpl> candidates
+                = new ArrayList<ProtocolProviderServiceSipImpl>(
+                        routingIndex.getTargets(requestUser));
+
+            // Let's narrow down candidate choice by comparing
+            // addresses and ports (no point in delivering to a provider with a
+            // non matching IP address  since they will reject it anyway).
+            filterByAddress(candidates, request);
 
             // the perfect match
             // every other case is approximation
@@ -961,21 +1009,19 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             {
                 // check if a custom param exists in the contact
                 // address (set for registrar accounts)
-                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                String hostValue = ((SipURI) requestURI).getParameter(
+                        SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+                ProtocolProviderServiceSipImpl candidate
+                    = findTargetByCustomParam(
+                            routingIndex, candidates, requestUser, hostValue);
+
+                if (candidate != null)
                 {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
-                        continue;
-                    if (hostValue.equals(candidate
-                                .getContactAddressCustomParamValue()))
-                    {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "\" the custom param was set");
-                        return candidate;
-                    }
+                    if (logger.isTraceEnabled())
+                        logger.trace("Will dispatch to \""
+                                + candidate.getAccountID() + "\" because "
+                                + "\" the custom param was set");
+                    return candidate;
                 }
 
                 // Past this point, our guess is not reliable. We try to find
@@ -983,30 +1029,30 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
 
                 // check if the To header field host part
                 // matches any of our SIP hosts
-                for(ProtocolProviderServiceSipImpl candidate : candidates)
+                URI fromURI = ((FromHeader) request
+                        .getHeader(FromHeader.NAME)).getAddress().getURI();
+                URI toURI = ((ToHeader) request
+                        .getHeader(ToHeader.NAME)).getAddress().getURI();
+
+                if(fromURI.isSipURI() && toURI.isSipURI())
                 {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
-                    SipURI ourURI = (SipURI) candidate
-                        .getOurSipAddress((SipURI) fromURI).getURI();
-                    String ourHost = ourURI.getHost();
-
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
                     String toHost = ((SipURI) toURI).getHost();
 
-                    //logger.trace(toHost + "***" + ourHost);
-                    if(toHost.equals(ourHost))
+                    for(ProtocolProviderServiceSipImpl c : candidates)
                     {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "host in the To: is the same as in our AOR");
-                        return candidate;
+                        SipURI ourURI = (SipURI) c
+                            .getOurSipAddress((SipURI) fromURI).getURI();
+                        String ourHost = ourURI.getHost();
+
+                        if(toHost.equals(ourHost))
+                        {
+                            if (logger.isTraceEnabled())
+                                logger.trace("Will dispatch to \""
+                                        + c.getAccountID() + "\" because "
+                                        + "host in the To: is the same as in "
+                                        + "our AOR");
+                            return c;
+                        }
                     }
                 }
 
@@ -1023,6 +1069,17 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             }
 
             // fallback on any account
+            List<ProtocolProviderServiceSipImpl> currentListenersCopy
+                = new ArrayList<ProtocolProviderServiceSipImpl>(
+                        routingIndex.getTargets());
+
+            filterByAddress(currentListenersCopy, request);
+            if(currentListenersCopy.size() == 0)
+            {
+                logger.error("no listeners");
+                return null;
+            }
+
             ProtocolProviderServiceSipImpl target =
                 currentListenersCopy.iterator().next();
             if (logger.isDebugEnabled())
@@ -1041,6 +1098,47 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
         return null;
     }
 
+    /**
+     * Returns the candidate whose contact address has a specific custom
+     * parameter.
+     *
+     * @param routingIndex the index of the candidate recipients.
+     * @param candidates the candidates with the user ID of the Request-URI.
+     * @param requestUser the user part of the Request-URI.
+     * @param hostValue the value of the custom parameter of the
+     * Request-URI, or <tt>null</tt> if it has none.
+     * @return the candidate with <tt>hostValue</tt> as custom parameter, or
+     * <tt>null</tt> if there is none.
+     */
+    private static ProtocolProviderServiceSipImpl findTargetByCustomParam(
+            SipRoutingIndex<ProtocolProviderServiceSipImpl> routingIndex,
+            List<ProtocolProviderServiceSipImpl> candidates,
+            String requestUser,
+            String hostValue)
+    {
+        if (hostValue == null)
+            return null;
+
+        ProtocolProviderServiceSipImpl candidate
+            = routingIndex.getTarget(requestUser, hostValue);
+
+        if ((candidate != null)
+                && candidates.contains(candidate)
+                && hostValue.equals(
+                        candidate.getContactAddressCustomParamValue()))
+        {
+            return candidate;
+        }
+
+        // the registrar of an account may have changed since it was indexed
+        for (ProtocolProviderServiceSipImpl c : candidates)
+        {
+            if (hostValue.equals(c.getContactAddressCustomParamValue()))
+                return c;
+        }
+        return null;
+    }
+
     /**
      * Removes from the specified list of candidates providers connected to a
      * registrar that does not match the IP address that we are receiving a
@@ -1049,7 +1147,7 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
      * @param candidates the list of providers we've like to filter.
      * @param request the request that we are currently dispatching
      */
-    private void filterByAddress(
+    private static void filterByAddress(
                     List<ProtocolProviderServiceSipImpl> candidates,
                     Request                              request)
     {
@@ -1298,6 +1396,12 @@ private boolean applyNonConformanceHacks(RequestEvent event)
     Map<String, TimerTask> resetListeningPointsTimers
             = new HashMap<String, TimerTask>();
 
+    /**
+     * The scheduler of the tasks resetting the listening points.
+     */
+    private final TimerScheduler resetListeningPointsScheduler
+            = new TimerScheduler();
+
     /**
      * Listens for network changes and if we have a down interface
      * and we have a tcp/tls provider which is staying for 20 seconds in
@@ -1348,7 +1452,7 @@ public void configurationChanged(ChangeEvent event)
      * to wrong interfaces. So we will replace them.
      */
     private class ResetListeningPoint
-            extends TimerTask
+            extends SipTimerTask
             implements RegistrationStateChangeListener
     {
         /**
@@ -1378,7 +1482,8 @@ public void registrationStateChanged(RegistrationStateChangeEvent evt)
         {
             if(evt.getNewState() == RegistrationState.UNREGISTERING)
             {
-                new Timer().schedule(this, TIME_FOR_PP_TO_UNREGISTER);
+                resetListeningPointsScheduler.schedule(
+                    this, TIME_FOR_PP_TO_UNREGISTER);
             }
             else
             {
@@ -0,0 +1,97 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+/**
+ * A <tt>TimerTask</tt> scheduled by a <tt>TimerScheduler</tt> on the timer
+ * shared by all the SIP accounts. As with a <tt>Timer</tt>, canceling the
+ * task prevents its next executions, and a task can only be scheduled once.
+ */
+public abstract class SipTimerTask
+    extends TimerTask
+{
+    /**
+     * The scheduler of this task, <tt>null</tt> if it is not scheduled.
+     */
+    private TimerScheduler scheduler;
+
+    /**
+     * The timeout of this task on the shared timer.
+     */
+    private HashedWheelTimer.Timeout timeout;
+
+    /**
+     * Indicates whether this task was canceled.
+     */
+    private boolean cancelled = false;
+
+    /**
+     * Remembers the timeout of this task once it is scheduled.
+     *
+     * @param scheduler the scheduler of this task.
+     * @param timeout the timeout of this task.
+     * @throws IllegalStateException if this task was already scheduled or
+     * canceled.
+     */
+    synchronized void scheduled(
+            TimerScheduler scheduler,
+            HashedWheelTimer.Timeout timeout)
+    {
+        if (this.timeout != null || cancelled)
+        {
+            timeout.cancel();
+            throw new IllegalStateException(
+                    "Task already scheduled or cancelled");
+        }
+
+        this.scheduler = scheduler;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Cancels this task. If it is running, it completes its current
+     * execution.
+     *
+     * @return <tt>true</tt> if this call prevented an execution of this task.
+     */
+    @Override
+    public boolean cancel()
+    {
+        TimerScheduler scheduler;
+        HashedWheelTimer.Timeout timeout;
+
+        synchronized (this)
+        {
+            if (cancelled)
+                return false;
+
+            cancelled = true;
+            scheduler = this.scheduler;
+            timeout = this.timeout;
+        }
+        super.cancel();
+
+        if (timeout == null)
+            return false;
+
+        scheduler.removed(this);
+        return timeout.cancel();
+    }
+}
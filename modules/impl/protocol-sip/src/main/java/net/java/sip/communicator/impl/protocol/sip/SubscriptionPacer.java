@@ -0,0 +1,461 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import javax.sip.header.*;
+import javax.sip.message.*;
+
+/**
+ * Paces the SUBSCRIBE requests of an account, i.e. its presence polls and
+ * subscription refreshes, so that the proxy doesn't receive them in bursts.
+ * The requests are sent from a queue at the rate allowed by a token bucket,
+ * and not at all for a while after the server answers that it is overloaded
+ * (503 or 429).
+ */
+public class SubscriptionPacer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SubscriptionPacer</tt> class for
+     * logging output.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(SubscriptionPacer.class);
+
+    /**
+     * The status code of the responses to the requests of a client which
+     * sends too many of them (RFC 6585).
+     */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The first delay in milliseconds for which we stop sending requests
+     * after an overload response without a Retry-After header.
+     */
+    private static final long MIN_BACKOFF = 1000;
+
+    /**
+     * The maximum delay in milliseconds for which we stop sending requests
+     * after an overload response.
+     */
+    private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+    /**
+     * The scheduler of the task sending the queued requests.
+     */
+    private final TimerScheduler timer;
+
+    /**
+     * Returns the current time in milliseconds.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * The number of requests per millisecond we may send, <tt>0</tt> if they
+     * are not limited.
+     */
+    private final double rate;
+
+    /**
+     * The number of requests we may send at once.
+     */
+    private final double burst;
+
+    /**
+     * The number of requests we may send now.
+     */
+    private double tokens;
+
+    /**
+     * The time in milliseconds when <tt>tokens</tt> were last refilled.
+     */
+    private long refillTime;
+
+    /**
+     * The queued requests, by time.
+     */
+    private final PriorityQueue<PacedRequest> queue = new PriorityQueue<>();
+
+    /**
+     * The queued requests, by key.
+     */
+    private final Map<Object, PacedRequest> queuedRequests = new HashMap<>();
+
+    /**
+     * The number of requests queued so far, which orders the requests queued
+     * for the same time.
+     */
+    private long sequence = 0;
+
+    /**
+     * The time in milliseconds until which we don't send requests because
+     * the server is overloaded.
+     */
+    private long backOffTime = 0;
+
+    /**
+     * The last delay in milliseconds for which we stopped sending requests,
+     * <tt>0</tt> if the last response was not an overload response.
+     */
+    private long backOff = 0;
+
+    /**
+     * The task sending the queued requests, if it is scheduled.
+     */
+    private SendTask sendTask;
+
+    /**
+     * The time in milliseconds when <tt>sendTask</tt> runs.
+     */
+    private long sendTime;
+
+    /**
+     * Creates a pacer sending at most <tt>maxRequestsPerSecond</tt> requests
+     * per second.
+     *
+     * @param timer the scheduler of the task sending the queued requests.
+     * @param maxRequestsPerSecond the maximum number of requests per second,
+     * or <tt>0</tt> not to limit them.
+     */
+    public SubscriptionPacer(TimerScheduler timer, int maxRequestsPerSecond)
+    {
+        this(
+            timer,
+            maxRequestsPerSecond,
+            () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    /**
+     * Creates a pacer sending at most <tt>maxRequestsPerSecond</tt> requests
+     * per second, reading the time from <tt>clock</tt>.
+     *
+     * @param timer the scheduler of the task sending the queued requests.
+     * @param maxRequestsPerSecond the maximum number of requests per second,
+     * or <tt>0</tt> not to limit them.
+     * @param clock returns the current time in milliseconds.
+     */
+    SubscriptionPacer(
+            TimerScheduler timer,
+            int maxRequestsPerSecond,
+            LongSupplier clock)
+    {
+        this.timer = timer;
+        this.clock = clock;
+        this.rate = Math.max(maxRequestsPerSecond, 0) / 1000.0;
+        this.burst = Math.max(maxRequestsPerSecond, 1);
+        this.tokens = burst;
+        this.refillTime = now();
+    }
+
+    /**
+     * Queues a request to send after a delay. If a request with the same key
+     * is already queued, <tt>request</tt> is dropped, but the queued request
+     * is moved forward if it was to be sent later.
+     *
+     * @param key identifies the request, e.g. the contact it polls.
+     * @param delay the delay in milliseconds before the request may be sent.
+     * @param request sends the request.
+     * @return <tt>true</tt> if the request was queued, <tt>false</tt> if a
+     * request with the same key was already queued.
+     */
+    public boolean submit(Object key, long delay, Runnable request)
+    {
+        List<Runnable> requests;
+        PacedRequest queued;
+
+        synchronized (this)
+        {
+            long now = now();
+            long time = now + Math.max(delay, 0);
+
+            queued = queuedRequests.get(key);
+            if (queued != null)
+            {
+                if (queued.time <= time)
+                    return false;
+                queue.remove(queued);
+                request = queued.request;
+            }
+
+            PacedRequest pacedRequest
+                = new PacedRequest(key, request, time, sequence++);
+
+            queue.add(pacedRequest);
+            queuedRequests.put(key, pacedRequest);
+
+            // send it right away if we can
+            if (delay > 0)
+            {
+                scheduleSendTask(now);
+                return (queued == null);
+            }
+            requests = pollRequests(now);
+            scheduleSendTask(now);
+        }
+        runRequests(requests);
+        return (queued == null);
+    }
+
+    /**
+     * Stops sending requests for a while if a response tells that the server
+     * is overloaded.
+     *
+     * @param response a response to a request we sent.
+     */
+    public void processResponse(Response response)
+    {
+        int statusCode = response.getStatusCode();
+
+        if ((statusCode != Response.SERVICE_UNAVAILABLE)
+                && (statusCode != TOO_MANY_REQUESTS))
+        {
+            if (statusCode < Response.BAD_REQUEST)
+                synchronized (this)
+                {
+                    backOff = 0;
+                }
+            return;
+        }
+
+        RetryAfterHeader retryAfterHeader
+            = (RetryAfterHeader) response.getHeader(RetryAfterHeader.NAME);
+        long delay;
+
+        synchronized (this)
+        {
+            if ((retryAfterHeader != null)
+                    && (retryAfterHeader.getRetryAfter() > 0))
+            {
+                delay
+                    = Math.min(
+                        retryAfterHeader.getRetryAfter() * 1000L,
+                        MAX_BACKOFF);
+            }
+            else
+            {
+                // double the delay, randomized so that the accounts behind
+                // the same proxy don't all come back at once
+                backOff = Math.min(Math.max(backOff * 2, MIN_BACKOFF),
+                        MAX_BACKOFF);
+                delay
+                    = backOff / 2
+                        + ThreadLocalRandom.current().nextLong(backOff / 2 + 1);
+            }
+
+            long now = now();
+
+            backOffTime = Math.max(backOffTime, now + delay);
+            scheduleSendTask(now);
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Server overloaded (" + statusCode + "), pausing "
+                + getQueueDepth() + " SUBSCRIBE requests for " + delay + " ms");
+    }
+
+    /**
+     * Returns the number of requests waiting to be sent.
+     *
+     * @return the number of queued requests.
+     */
+    public synchronized int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Drops the queued requests, e.g. because the account is unregistered.
+     * Must be called when the tasks of the <tt>TimerScheduler</tt> of this
+     * pacer are canceled.
+     */
+    public void clear()
+    {
+        SendTask sendTask;
+
+        synchronized (this)
+        {
+            queue.clear();
+            queuedRequests.clear();
+            sendTask = this.sendTask;
+            this.sendTask = null;
+        }
+        if (sendTask != null)
+            sendTask.cancel();
+    }
+
+    /**
+     * Removes from the queue the requests which may be sent now.
+     *
+     * @param now the current time in milliseconds.
+     * @return the requests to send.
+     */
+    private List<Runnable> pollRequests(long now)
+    {
+        if (now < backOffTime)
+            return Collections.emptyList();
+
+        if (rate > 0)
+        {
+            tokens = Math.min(burst, tokens + (now - refillTime) * rate);
+            refillTime = now;
+        }
+
+        List<Runnable> requests = new ArrayList<>();
+        PacedRequest next;
+
+        while ((next = queue.peek()) != null
+                && next.time <= now
+                && (rate == 0 || tokens >= 1))
+        {
+            queue.poll();
+            queuedRequests.remove(next.key);
+            requests.add(next.request);
+            if (rate > 0)
+                tokens--;
+        }
+        return requests;
+    }
+
+    /**
+     * Schedules the task sending the queued requests for the time the next
+     * one may be sent, if it is not scheduled earlier.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void scheduleSendTask(long now)
+    {
+        PacedRequest next = queue.peek();
+
+        if (next == null)
+            return;
+
+        long time = Math.max(next.time, backOffTime);
+
+        if (rate > 0 && tokens < 1)
+            time = Math.max(time, now + (long) Math.ceil((1 - tokens) / rate));
+
+        if (sendTask != null)
+        {
+            if (sendTime <= time)
+                return;
+            sendTask.cancel();
+        }
+
+        sendTask = new SendTask();
+        sendTime = time;
+        timer.schedule(sendTask, time - now);
+    }
+
+    /**
+     * Sends requests, outside of the lock of this pacer.
+     *
+     * @param requests the requests to send.
+     */
+    private void runRequests(List<Runnable> requests)
+    {
+        for (Runnable request : requests)
+        {
+            try
+            {
+                request.run();
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("Failed to send a paced request", t);
+            }
+        }
+    }
+
+    /**
+     * Returns the current time in milliseconds.
+     */
+    private long now()
+    {
+        return clock.getAsLong();
+    }
+
+    /**
+     * A queued request.
+     */
+    private static class PacedRequest
+        implements Comparable<PacedRequest>
+    {
+        private final Object key;
+
+        private final Runnable request;
+
+        /**
+         * The time in milliseconds from which the request may be sent.
+         */
+        private final long time;
+
+        private final long sequence;
+
+        private PacedRequest(
+                Object key,
+                Runnable request,
+                long time,
+                long sequence)
+        {
+            this.key = key;
+            this.request = request;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PacedRequest other)
+        {
+            int result = Long.compare(time, other.time);
+
+            return (result != 0) ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Sends the queued requests which may be sent, and schedules the next
+     * ones.
+     */
+    private class SendTask
+        extends SipTimerTask
+    {
+        @Override
+        public void run()
+        {
+            List<Runnable> requests;
+
+            synchronized (SubscriptionPacer.this)
+            {
+                if (sendTask != this)
+                    return;
+                sendTask = null;
+
+                long now = now();
+
+                requests = pollRequests(now);
+                scheduleSendTask(now);
+            }
+            runRequests(requests);
+        }
+    }
+}
@@ -18,82 +18,167 @@
 package net.java.sip.communicator.impl.protocol.sip;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
- * Represents an analogy of <code>Timer</code> which does not have the
- * disadvantage of <code>Timer</code> to always create its thread at
- * construction time. It also allows the currently scheduled
- * <code>TimerTask</code>s to be canceled while still being able to schedule new
- * <code>TimerTask</code>s later on.
+ * Schedules <code>SipTimerTask</code>s on the timer shared by all the SIP
+ * accounts, so that no thread is created per account. It allows the
+ * currently scheduled tasks to be canceled while still being able to
+ * schedule new tasks later on. The tasks of a scheduler run one at a time,
+ * apart from the tasks of the other schedulers.
  *
  * @author Lubomir Marinov
  */
 public class TimerScheduler
 {
+    /**
+     * The fraction of the delay of a refresh by which
+     * {@link #scheduleWithJitter(SipTimerTask, long)} may advance it, so that
+     * the refreshes of accounts registered at the same time are spread.
+     */
+    private static final double JITTER = 0.1;
+
+    /**
+     * The tasks scheduled by this scheduler which may still run.
+     */
+    private final Set<SipTimerTask> tasks = new HashSet<>();
+
+    /**
+     * The lane where the tasks of this scheduler run.
+     */
+    private final HashedWheelTimer.Lane lane = new HashedWheelTimer.Lane();
 
     /**
-     * The timer which will handle all scheduled tasks.
+     * Returns the timer to schedule the tasks on.
      */
-    private Timer timer;
+    private final Supplier<HashedWheelTimer> timer;
 
     /**
-     * Discarding any currently scheduled <code>TimerTask</code>s.
+     * Creates a scheduler of tasks on the timer shared by all the SIP
+     * accounts.
      */
-    public synchronized void cancel()
+    public TimerScheduler()
     {
-       if (timer != null)
-       {
-           timer.cancel();
-           timer = null;
-       }
+        this(HashedWheelTimer::getInstance);
     }
 
     /**
-     * Gets the timer which handles all scheduled tasks. If it still doesn't
-     * exists, a new <tt>Timer</tt> is created.
+     * Creates a scheduler of tasks on a timer.
      *
-     * @return the <tt>Timer</tt> which handles all scheduled tasks
+     * @param timer returns the timer to schedule the tasks on.
      */
-    private synchronized Timer getTimer()
+    TimerScheduler(Supplier<HashedWheelTimer> timer)
     {
-       if (timer == null)
-           timer = new Timer(true);
-       return timer;
+        this.timer = timer;
     }
 
     /**
-     * Schedules the specified <code>TimerTask</code> for execution after the
-     * specified delay.
+     * Discarding any currently scheduled <code>SipTimerTask</code>s.
+     */
+    public void cancel()
+    {
+        List<SipTimerTask> cancelled;
+
+        synchronized (this)
+        {
+            cancelled = new ArrayList<>(tasks);
+            tasks.clear();
+        }
+        for (SipTimerTask task : cancelled)
+            task.cancel();
+    }
+
+    /**
+     * Schedules the specified <code>SipTimerTask</code> for execution after
+     * the specified delay.
      *
      * @param task
-     *            the <code>TimerTask</code> to be executed after the specified
-     *            delay
+     *            the <code>SipTimerTask</code> to be executed after the
+     *            specified delay
      * @param delay
      *            the delay in milliseconds before the specified
-     *            <code>TimerTask</code> is executed
+     *            <code>SipTimerTask</code> is executed
      */
-    public synchronized void schedule(TimerTask task, long delay)
+    public void schedule(SipTimerTask task, long delay)
     {
-        getTimer().schedule(task, delay);
+        schedule(task, delay, 0);
     }
 
     /**
-     * Schedules the specified <code>TimerTask</code> for repeated fixed-delay
-     * execution, beginning after the specified delay. Subsequent executions
-     * take place at approximately regular intervals separated by the specified
-     * period.
+     * Schedules the specified <code>SipTimerTask</code> for execution after a
+     * random delay between the specified delay and 10% less, so that the
+     * refreshes which are scheduled at the same time do not all happen at
+     * the same time.
      *
      * @param task
-     *            the <code>TimerTask</code> to be scheduled
+     *            the <code>SipTimerTask</code> to be executed
+     * @param delay
+     *            the maximum delay in milliseconds before the specified
+     *            <code>SipTimerTask</code> is executed
+     */
+    public void scheduleWithJitter(SipTimerTask task, long delay)
+    {
+        long jitter = (long) (delay * JITTER);
+
+        if (jitter > 0)
+            delay -= ThreadLocalRandom.current().nextLong(jitter + 1);
+        schedule(task, delay, 0);
+    }
+
+    /**
+     * Schedules the specified <code>SipTimerTask</code> for repeated
+     * fixed-delay execution, beginning after the specified delay. Subsequent
+     * executions take place at approximately regular intervals separated by
+     * the specified period.
+     *
+     * @param task
+     *            the <code>SipTimerTask</code> to be scheduled
      * @param delay
      *            the delay in milliseconds before the specified
-     *            <code>TimerTask</code> is executed
+     *            <code>SipTimerTask</code> is executed
      * @param period
      *            the time in milliseconds between successive executions of the
-     *            specified <code>TimerTask</code>
+     *            specified <code>SipTimerTask</code>
+     */
+    public void schedule(SipTimerTask task, long delay, long period)
+    {
+        Runnable runnable = task;
+
+        if (period <= 0)
+        {
+            runnable = () ->
+            {
+                removed(task);
+                task.run();
+            };
+        }
+
+        synchronized (this)
+        {
+            if (!tasks.add(task))
+                throw new IllegalStateException("Task already scheduled");
+        }
+        try
+        {
+            task.scheduled(
+                    this,
+                    timer.get().schedule(runnable, delay, period, lane));
+        }
+        catch (IllegalStateException e)
+        {
+            removed(task);
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets a task which was canceled or which will not run anymore.
+     *
+     * @param task the task.
      */
-    public synchronized void schedule(TimerTask task, long delay, long period)
+    synchronized void removed(SipTimerTask task)
     {
-        getTimer().schedule(task, delay, period);
+        tasks.remove(task);
     }
 }
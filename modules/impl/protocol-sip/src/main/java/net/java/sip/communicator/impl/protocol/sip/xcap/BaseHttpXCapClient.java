@@ -22,6 +22,8 @@
 import java.net.URI;
 
 import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import javax.sip.address.*;
 
@@ -38,6 +40,7 @@
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.util.*;
 
 /**
  * Base HTTP XCAP client implementation.
@@ -99,6 +102,20 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private boolean connected;
 
+    /**
+     * The HTTP client used while connected, which keeps a pool of connections
+     * to the server alive between the requests.
+     */
+    private CloseableHttpClient httpClient;
+
+    /**
+     * The resources got from the server with an ETag, by URI. They are
+     * revalidated with If-None-Match and kept when reconnecting to the same
+     * server, so that unchanged documents cost a 304 response.
+     */
+    private final Map<URI, XCapHttpResponse> resourceCache
+        = new ConcurrentHashMap<>();
+
     /**
      * Connects user to XCap server.
      *
@@ -115,6 +132,12 @@ public void connect(URI uri, Address userAddress, String username, String passwo
         {
             throw new IllegalArgumentException("Address must contains SipUri");
         }
+        // a 304 response is as good for another user name, so only drop the
+        // resources of other servers
+        String server = uri.toString();
+        resourceCache.keySet().removeIf(
+            resourceUri -> !isUnder(resourceUri, server));
+
         this.uri = uri;
         this.userAddress = (Address) userAddress.clone();
         this.username = username;
@@ -141,6 +164,7 @@ public void disconnect()
         this.userAddress = null;
         this.password = null;
         connected = false;
+        closeHttpClient();
     }
 
     /**
@@ -168,13 +192,36 @@ public XCapHttpResponse get(XCapResourceId resourceId)
     protected XCapHttpResponse get(URI uri)
             throws XCapException
     {
-        try (CloseableHttpClient httpClient = createHttpClient())
+        XCapHttpResponse cached = resourceCache.get(uri);
+        HttpGet getMethod = new HttpGet(uri);
+
+        if (cached != null)
+            getMethod.setHeader(HEADER_IF_NONE_MATCH, cached.getETag());
+
+        try (CloseableHttpResponse response
+                = getHttpClient().execute(getMethod))
         {
-            HttpGet getMethod = new HttpGet(uri);
-            getMethod.setHeader("Connection", "close");
+            if (cached != null
+                    && response.getStatusLine().getStatusCode()
+                        == HttpStatus.SC_NOT_MODIFIED)
+            {
+                EntityUtils.consume(response.getEntity());
+                if (logger.isDebugEnabled())
+                    logger.debug("Resource " + uri + " not modified");
+                // the callers may change the content they get
+                return cached.copy();
+            }
 
-            HttpResponse response = httpClient.execute(getMethod);
             XCapHttpResponse result = createResponse(response);
+            if (result.getHttpCode() == HttpStatus.SC_OK
+                    && result.getETag() != null)
+            {
+                resourceCache.put(uri, result.copy());
+            }
+            else
+            {
+                resourceCache.remove(uri);
+            }
             if (logger.isDebugEnabled())
             {
                 byte[] contentBytes = result.getContent();
@@ -257,11 +304,12 @@ static void showError(Exception ex, String title, String message)
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
     {
-        try (CloseableHttpClient httpClient = createHttpClient())
+        URI resourceUri = getResourceURI(resource.getId());
+        HttpPut putMethod = new HttpPut(resourceUri);
+
+        invalidate(resource.getId());
+        try
         {
-            URI resourceUri = getResourceURI(resource.getId());
-            HttpPut putMethod = new HttpPut(resourceUri);
-            putMethod.setHeader("Connection", "close");
             StringEntity stringEntity = new StringEntity(resource.getContent());
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
@@ -276,8 +324,11 @@ public XCapHttpResponse put(XCapResource resource)
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(putMethod);
-            return createResponse(response);
+            try (CloseableHttpResponse response
+                    = getHttpClient().execute(putMethod))
+            {
+                return createResponse(response);
+            }
         }
         catch (IOException e)
         {
@@ -300,11 +351,11 @@ public XCapHttpResponse delete(XCapResourceId resourceId)
             throws XCapException
     {
         assertConnected();
-        try (CloseableHttpClient httpClient = createHttpClient())
+        invalidate(resourceId);
+        try
         {
             URI resourceUri = getResourceURI(resourceId);
             HttpDelete deleteMethod = new HttpDelete(resourceUri);
-            deleteMethod.setHeader("Connection", "close");
 
             if (logger.isDebugEnabled())
             {
@@ -314,8 +365,11 @@ public XCapHttpResponse delete(XCapResourceId resourceId)
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(deleteMethod);
-            return createResponse(response);
+            try (CloseableHttpResponse response
+                    = getHttpClient().execute(deleteMethod))
+            {
+                return createResponse(response);
+            }
         }
         catch (IOException e)
         {
@@ -380,24 +434,98 @@ protected URI getResourceURI(XCapResourceId resourceId)
     }
 
     /**
-     * Creates HTTP client with special parameters.
+     * Gets the HTTP client used while connected, creating it with special
+     * parameters if needed.
      *
      * @return the HTTP client.
      */
-    private CloseableHttpClient createHttpClient()
+    private synchronized CloseableHttpClient getHttpClient()
         throws IOException
     {
-        XCapCredentialsProvider credentialsProvider
-            = new XCapCredentialsProvider();
-        credentialsProvider.setCredentials(
-            AuthScope.ANY,
-            new UsernamePasswordCredentials(getUserName(), password));
+        if (httpClient == null)
+        {
+            XCapCredentialsProvider credentialsProvider
+                = new XCapCredentialsProvider();
+            credentialsProvider.setCredentials(
+                AuthScope.ANY,
+                new UsernamePasswordCredentials(getUserName(), password));
 
+            httpClient = createHttpClient(credentialsProvider);
+        }
+        return httpClient;
+    }
+
+    /**
+     * Creates the HTTP client used while connected.
+     *
+     * @param credentialsProvider the provider of the credentials of the user.
+     * @return the HTTP client.
+     */
+    CloseableHttpClient createHttpClient(
+            CredentialsProvider credentialsProvider)
+        throws IOException
+    {
         return HttpUtils.getHttpClient(
             null , null, uri.getHost(),
             new AtomicReference<>(credentialsProvider));
     }
 
+    /**
+     * Closes the HTTP client and its connections to the server.
+     */
+    private synchronized void closeHttpClient()
+    {
+        if (httpClient == null)
+            return;
+
+        try
+        {
+            httpClient.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Failed to close the XCAP HTTP client", e);
+        }
+        httpClient = null;
+    }
+
+    /**
+     * Removes from the cache the resources of the document of a resource
+     * which is modified.
+     *
+     * @param resourceId the identifier of the modified resource.
+     */
+    private void invalidate(XCapResourceId resourceId)
+    {
+        String documentUri
+            = getResourceURI(new XCapResourceId(resourceId.getDocument()))
+                .toString();
+
+        resourceCache.keySet().removeIf(
+            resourceUri -> isUnder(resourceUri, documentUri));
+    }
+
+    /**
+     * Determines whether a resource is the one of a URI or one below it,
+     * comparing whole path segments: <tt>.../index2</tt> is not below
+     * <tt>.../index</tt>.
+     *
+     * @param resourceUri the URI of the resource.
+     * @param parentUri the URI of the parent resource.
+     * @return <tt>true</tt> if the resource is the parent resource or one of
+     * its descendants.
+     */
+    static boolean isUnder(URI resourceUri, String parentUri)
+    {
+        String resource = resourceUri.toString();
+
+        if (!resource.startsWith(parentUri))
+            return false;
+        return resource.length() == parentUri.length()
+            || parentUri.endsWith("/")
+            || resource.charAt(parentUri.length()) == '/';
+    }
+
     /**
      * Creates XCAP response from HTTP response.
      * If HTTP code is 200, 201 or 409 the HTTP content would be read.
@@ -424,6 +552,11 @@ private XCapHttpResponse createResponse(HttpResponse response)
             xcapHttpResponse.setContent(content);
             xcapHttpResponse.setETag(eTag);
         }
+        else
+        {
+            // release the connection to the pool
+            EntityUtils.consume(response.getEntity());
+        }
         xcapHttpResponse.setHttpCode(statusCode);
         return xcapHttpResponse;
     }
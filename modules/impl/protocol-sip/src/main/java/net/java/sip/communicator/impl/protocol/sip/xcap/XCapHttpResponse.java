@@ -123,4 +123,19 @@ void setETag(String eTag)
     {
         this.eTag = eTag;
     }
+
+    /**
+     * Creates a copy of this response with a copy of its content.
+     *
+     * @return the copy.
+     */
+    XCapHttpResponse copy()
+    {
+        XCapHttpResponse copy = new XCapHttpResponse();
+        copy.httpCode = httpCode;
+        copy.contentType = contentType;
+        copy.content = content == null ? null : content.clone();
+        copy.eTag = eTag;
+        return copy;
+    }
 }
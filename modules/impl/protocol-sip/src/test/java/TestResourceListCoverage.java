@@ -0,0 +1,108 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
+
+/**
+ * Contains tests of following the contacts covered by a resource list
+ * through its full state and partial notifications (RFC 4662).
+ */
+public class TestResourceListCoverage extends TestCase
+{
+    private final ResourceListCoverage<String> coverage
+        = new ResourceListCoverage<String>();
+
+    /**
+     * Tests that the contacts a full state notification doesn't list
+     * anymore are returned to be polled, including the ones added by a
+     * partial notification.
+     */
+    public void testFullStateDropsUnlistedContacts()
+    {
+        notify(true, "alice", "bob", "carol");
+        assertTrue(coverage.contains("bob"));
+
+        assertEquals(Collections.<String>emptySet(), notify(false, "dave"));
+        assertTrue(coverage.contains("dave"));
+
+        Set<String> dropped = notify(true, "alice", "carol");
+
+        assertEquals(
+            new HashSet<String>(Arrays.asList("bob", "dave")), dropped);
+        assertTrue(coverage.contains("alice"));
+        assertTrue(coverage.contains("carol"));
+        assertFalse(coverage.contains("bob"));
+        assertFalse(coverage.contains("dave"));
+    }
+
+    /**
+     * Tests that a partial notification doesn't drop the contacts it doesn't
+     * list.
+     */
+    public void testPartialStateKeepsContacts()
+    {
+        notify(true, "alice", "bob");
+
+        assertTrue(notify(false, "alice").isEmpty());
+        assertTrue(coverage.contains("bob"));
+    }
+
+    /**
+     * Tests that a contact listed as terminated is not covered anymore but
+     * is not returned to be polled, as its subscription was ended by the
+     * server.
+     */
+    public void testTerminatedContactIsNotDropped()
+    {
+        notify(true, "alice", "bob");
+
+        coverage.startNotification(true);
+        coverage.add("alice");
+        coverage.remove("bob");
+
+        assertTrue(coverage.endNotification().isEmpty());
+        assertFalse(coverage.contains("bob"));
+    }
+
+    /**
+     * Tests that nothing is returned to be polled once the subscription
+     * ended.
+     */
+    public void testClear()
+    {
+        notify(true, "alice");
+        coverage.clear();
+
+        assertFalse(coverage.contains("alice"));
+        assertTrue(notify(true).isEmpty());
+    }
+
+    /**
+     * Processes a notification listing active contacts.
+     */
+    private Set<String> notify(boolean fullState, String... contacts)
+    {
+        coverage.startNotification(fullState);
+        for (String contact : contacts)
+            coverage.add(contact);
+        return coverage.endNotification();
+    }
+}
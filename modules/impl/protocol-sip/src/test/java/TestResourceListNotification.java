@@ -0,0 +1,224 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
+
+/**
+ * Contains tests of parsing the <tt>multipart/related</tt> RLMI bodies of the
+ * NOTIFY requests sent by a resource list server (RFC 4662).
+ */
+public class TestResourceListNotification extends TestCase
+{
+    private static final String CONTENT_TYPE =
+        "multipart/related;type=\"application/rlmi+xml\";" +
+        "start=\"<nXYxAE@pres.vancouver.example.com>\";" +
+        "boundary=\"50UBfW7LSCVLtggUPe5z\"";
+
+    /**
+     * The NOTIFY body of the example in section 6 of RFC 4662, with a nested
+     * list and a non-ASCII note.
+     */
+    private static final String CONTENT =
+        "--50UBfW7LSCVLtggUPe5z\r\n" +
+        "Content-Transfer-Encoding: binary\r\n" +
+        "Content-ID: <nXYxAE@pres.vancouver.example.com>\r\n" +
+        "Content-Type: application/rlmi+xml;charset=\"UTF-8\"\r\n" +
+        "\r\n" +
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
+        "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\"\r\n" +
+        "      uri=\"sip:adam-friends@pres.vancouver.example.com\"\r\n" +
+        "      version=\"1\" fullState=\"true\">\r\n" +
+        "  <name xml:lang=\"en\">Buddy List at COM</name>\r\n" +
+        "  <resource uri=\"sip:bob@vancouver.example.com\">\r\n" +
+        "    <name>Bob Smith</name>\r\n" +
+        "    <instance id=\"juwigmtboe\" state=\"active\"\r\n" +
+        "              cid=\"bUZBsM@pres.vancouver.example.com\"/>\r\n" +
+        "  </resource>\r\n" +
+        "  <resource uri=\"sip:ed@dallas.example.net\">\r\n" +
+        "    <instance id=\"atgxhavqga\" state=\"pending\"/>\r\n" +
+        "  </resource>\r\n" +
+        "  <resource uri=\"sip:adam-colleagues@pres.vancouver.example.com\">\r\n" +
+        "    <instance id=\"rcrwwltb\" state=\"active\"\r\n" +
+        "              cid=\"K2Vc9m@pres.vancouver.example.com\"/>\r\n" +
+        "  </resource>\r\n" +
+        "</list>\r\n" +
+        "\r\n" +
+        "--50UBfW7LSCVLtggUPe5z\r\n" +
+        "Content-Transfer-Encoding: binary\r\n" +
+        "Content-ID: <bUZBsM@pres.vancouver.example.com>\r\n" +
+        "Content-Type: application/pidf+xml;charset=\"UTF-8\"\r\n" +
+        "\r\n" +
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
+        "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\"\r\n" +
+        "    entity=\"sip:bob@vancouver.example.com\">\r\n" +
+        "  <tuple id=\"sg89ae\">\r\n" +
+        "    <status><basic>open</basic></status>\r\n" +
+        "    <note>Caf\u00e9</note>\r\n" +
+        "  </tuple>\r\n" +
+        "</presence>\r\n" +
+        "--50UBfW7LSCVLtggUPe5z\r\n" +
+        "Content-Transfer-Encoding: binary\r\n" +
+        "Content-ID: <K2Vc9m@pres.vancouver.example.com>\r\n" +
+        "Content-Type: multipart/related;type=\"application/rlmi+xml\";" +
+        "start=\"<tgXNaU@pres.vancouver.example.com>\";" +
+        "boundary=\"7xprkf1nzrIyZDhyPQOa\"\r\n" +
+        "\r\n" +
+        "--7xprkf1nzrIyZDhyPQOa\r\n" +
+        "Content-ID: <tgXNaU@pres.vancouver.example.com>\r\n" +
+        "Content-Type: application/rlmi+xml;charset=\"UTF-8\"\r\n" +
+        "\r\n" +
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" +
+        "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\"\r\n" +
+        "      uri=\"sip:adam-colleagues@pres.vancouver.example.com\"\r\n" +
+        "      version=\"1\" fullState=\"true\">\r\n" +
+        "  <resource uri=\"sip:carol@vancouver.example.com\">\r\n" +
+        "    <instance id=\"kwiwbmuw\" state=\"terminated\"" +
+        " reason=\"rejected\"/>\r\n" +
+        "  </resource>\r\n" +
+        "</list>\r\n" +
+        "--7xprkf1nzrIyZDhyPQOa--\r\n" +
+        "\r\n" +
+        "--50UBfW7LSCVLtggUPe5z--\r\n";
+
+    /**
+     * Tests the parsing of a full state notification with a nested list.
+     *
+     * @throws Exception if the parsing fails.
+     */
+    public void testParseFullState()
+        throws Exception
+    {
+        ResourceListNotification notification
+            = ResourceListNotification.parse(
+                CONTENT_TYPE, CONTENT.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("sip:adam-friends@pres.vancouver.example.com",
+            notification.getUri());
+        assertEquals(1, notification.getVersion());
+        assertTrue(notification.isFullState());
+
+        List<ResourceListNotification.Resource> resources
+            = notification.getResources();
+        assertEquals(3, resources.size());
+
+        ResourceListNotification.Resource bob = resources.get(0);
+        assertEquals("sip:bob@vancouver.example.com", bob.getUri());
+        assertEquals(1, bob.getInstances().size());
+
+        ResourceListNotification.Instance bobInstance
+            = bob.getInstances().get(0);
+        assertEquals("juwigmtboe", bobInstance.getId());
+        assertEquals(ResourceListNotification.STATE_ACTIVE,
+            bobInstance.getState());
+        assertTrue(bobInstance.getContentType()
+            .startsWith("application/pidf+xml"));
+        assertTrue(bobInstance.getContent().startsWith("<?xml"));
+        assertTrue(bobInstance.getContent().endsWith("</presence>"));
+        assertTrue(bobInstance.getContent().contains("Caf\u00e9"));
+
+        ResourceListNotification.Resource ed = resources.get(1);
+        assertEquals("sip:ed@dallas.example.net", ed.getUri());
+        assertEquals(ResourceListNotification.STATE_PENDING,
+            ed.getInstances().get(0).getState());
+        assertNull(ed.getInstances().get(0).getContent());
+
+        // the resources of the nested list are flattened
+        ResourceListNotification.Resource carol = resources.get(2);
+        assertEquals("sip:carol@vancouver.example.com", carol.getUri());
+        assertEquals(ResourceListNotification.STATE_TERMINATED,
+            carol.getInstances().get(0).getState());
+        assertEquals("rejected", carol.getInstances().get(0).getReason());
+    }
+
+    /**
+     * Tests the parsing of a partial state notification with LF line
+     * endings, unquoted parameters and no start parameter.
+     *
+     * @throws Exception if the parsing fails.
+     */
+    public void testParsePartialState()
+        throws Exception
+    {
+        String content =
+            "preamble\n" +
+            "--boundary42\n" +
+            "Content-Type: application/rlmi+xml\n" +
+            "Content-ID: <root@example.com>\n" +
+            "\n" +
+            "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\"" +
+            " uri=\"sip:list@example.com\" version=\"7\" fullState=\"false\">" +
+            "<resource uri=\"sip:alice@example.com\">" +
+            "<instance id=\"a\" state=\"active\" cid=\"alice@example.com\"/>" +
+            "</resource>" +
+            "</list>\n" +
+            "--boundary42\n" +
+            "Content-Type: application/pidf+xml\n" +
+            "Content-ID: <alice@example.com>\n" +
+            "\n" +
+            "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\"" +
+            " entity=\"sip:alice@example.com\"/>\n" +
+            "--boundary42--\n";
+
+        ResourceListNotification notification
+            = ResourceListNotification.parse(
+                "multipart/related; type=application/rlmi+xml;" +
+                    " boundary=boundary42",
+                content.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(7, notification.getVersion());
+        assertFalse(notification.isFullState());
+        assertEquals(1, notification.getResources().size());
+        assertEquals(
+            "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\"" +
+                " entity=\"sip:alice@example.com\"/>",
+            notification.getResources().get(0).getInstances().get(0)
+                .getContent());
+    }
+
+    /**
+     * Tests that invalid notifications are rejected.
+     */
+    public void testParseInvalid()
+    {
+        assertInvalid("multipart/related", CONTENT);
+        assertInvalid(CONTENT_TYPE, "--50UBfW7LSCVLtggUPe5z\r\n");
+        assertInvalid(
+            "multipart/related;boundary=b",
+            "--b\r\nContent-Type: application/pidf+xml\r\n\r\n" +
+            "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\"/>\r\n--b--");
+    }
+
+    private static void assertInvalid(String contentType, String content)
+    {
+        try
+        {
+            ResourceListNotification.parse(
+                contentType, content.getBytes(StandardCharsets.UTF_8));
+            fail("Parsed an invalid notification");
+        }
+        catch (ParseException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import junit.framework.*;
+
+/**
+ * Contains tests of the timer shared by the SIP accounts and of the
+ * schedulers of the accounts: the delays longer than a turn of the wheel,
+ * the canceled tasks and the tasks of a scheduler running apart from the
+ * ones of the other schedulers. The wheel is advanced by the tests with a
+ * fake clock, the tasks run on the threads of the timer.
+ */
+public class TestHashedWheelTimer extends TestCase
+{
+    /**
+     * The time in milliseconds to wait for a task which is not expected to
+     * run.
+     */
+    private static final long NOT_RUN_WAIT = 200;
+
+    /**
+     * The current time of the timer in nanoseconds.
+     */
+    private final AtomicLong time = new AtomicLong(1000000000L);
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(time::get);
+
+    /**
+     * Tests that a task scheduled further than a turn of the wheel does not
+     * run with the tasks of its bucket in the previous turns.
+     */
+    public void testDelayLongerThanTurn()
+        throws Exception
+    {
+        try
+        {
+            TimerScheduler scheduler = new TimerScheduler(() -> timer);
+            CountDownLatch shortRan = new CountDownLatch(1);
+            CountDownLatch longRan = new CountDownLatch(1);
+
+            // 60 s is 8.8 s and a turn of 51.2 s
+            scheduler.schedule(task(shortRan), 8800);
+            scheduler.schedule(task(longRan), 60000);
+
+            advance(9000);
+            assertTrue(shortRan.await(5, TimeUnit.SECONDS));
+            assertFalse(longRan.await(NOT_RUN_WAIT, TimeUnit.MILLISECONDS));
+
+            advance(50900);
+            assertFalse(longRan.await(NOT_RUN_WAIT, TimeUnit.MILLISECONDS));
+
+            advance(200);
+            assertTrue(longRan.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Tests that canceled tasks do not run, and that canceling a periodic
+     * task prevents its next executions.
+     */
+    public void testCancel()
+        throws Exception
+    {
+        try
+        {
+            TimerScheduler scheduler = new TimerScheduler(() -> timer);
+            CountDownLatch ran = new CountDownLatch(1);
+            SipTimerTask task = task(ran);
+
+            scheduler.schedule(task, 1000);
+            assertTrue(task.cancel());
+            assertFalse(task.cancel());
+            advance(2000);
+            assertFalse(ran.await(NOT_RUN_WAIT, TimeUnit.MILLISECONDS));
+
+            final AtomicInteger runs = new AtomicInteger();
+            final Semaphore periodRan = new Semaphore(0);
+            SipTimerTask periodic = new SipTimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    runs.incrementAndGet();
+                    periodRan.release();
+                }
+            };
+            scheduler.schedule(periodic, 1000, 1000);
+            advance(1100);
+            assertTrue(periodRan.tryAcquire(5, TimeUnit.SECONDS));
+
+            // rescheduled once the run has returned
+            waitForRescheduling(periodic, scheduler);
+            assertTrue(periodic.cancel());
+            advance(5000);
+            assertFalse(
+                periodRan.tryAcquire(NOT_RUN_WAIT, TimeUnit.MILLISECONDS));
+            assertEquals(1, runs.get());
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Tests that canceling the tasks of a scheduler leaves the tasks of the
+     * other schedulers, and that a task blocking a scheduler does not delay
+     * the tasks of the other schedulers.
+     */
+    public void testSchedulersApart()
+        throws Exception
+    {
+        try
+        {
+            TimerScheduler first = new TimerScheduler(() -> timer);
+            TimerScheduler second = new TimerScheduler(() -> timer);
+            CountDownLatch firstRan = new CountDownLatch(1);
+            CountDownLatch secondRan = new CountDownLatch(1);
+
+            first.schedule(task(firstRan), 1000);
+            second.schedule(task(secondRan), 1000);
+            first.cancel();
+            advance(2000);
+            assertTrue(secondRan.await(5, TimeUnit.SECONDS));
+            assertFalse(firstRan.await(NOT_RUN_WAIT, TimeUnit.MILLISECONDS));
+
+            final CountDownLatch blocking = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            first.schedule(new SipTimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    blocking.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                }
+            }, 1000);
+            CountDownLatch queued = new CountDownLatch(1);
+            first.schedule(task(queued), 1000);
+            CountDownLatch other = new CountDownLatch(1);
+            second.schedule(task(other), 1000);
+
+            advance(2000);
+            assertTrue(blocking.await(5, TimeUnit.SECONDS));
+            assertTrue(other.await(5, TimeUnit.SECONDS));
+
+            // the tasks of a scheduler run one at a time
+            assertFalse(queued.await(NOT_RUN_WAIT, TimeUnit.MILLISECONDS));
+            release.countDown();
+            assertTrue(queued.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Tests that the shared timer is replaced once stopped, that the tasks
+     * scheduled on the stopped timer do not run, and that the schedulers
+     * schedule their next tasks on the new timer.
+     */
+    public void testStopInstance()
+        throws Exception
+    {
+        try
+        {
+            TimerScheduler scheduler = new TimerScheduler();
+            HashedWheelTimer stopped = HashedWheelTimer.getInstance();
+            CountDownLatch oldRan = new CountDownLatch(1);
+
+            scheduler.schedule(task(oldRan), 300);
+            HashedWheelTimer.stopInstance();
+
+            HashedWheelTimer restarted = HashedWheelTimer.getInstance();
+            assertNotSame(stopped, restarted);
+            assertSame(restarted, HashedWheelTimer.getInstance());
+
+            CountDownLatch newRan = new CountDownLatch(1);
+            scheduler.schedule(task(newRan), 0);
+            assertTrue(newRan.await(5, TimeUnit.SECONDS));
+            assertFalse(oldRan.await(500, TimeUnit.MILLISECONDS));
+        }
+        finally
+        {
+            HashedWheelTimer.stopInstance();
+        }
+    }
+
+    /**
+     * Advances the fake clock and the wheel.
+     */
+    private void advance(long millis)
+    {
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        timer.expireTimeouts();
+    }
+
+    /**
+     * Waits until a periodic task, which ran, is scheduled again, which
+     * happens on the thread of its scheduler once the run has returned.
+     */
+    private void waitForRescheduling(SipTimerTask task,
+                                     TimerScheduler scheduler)
+        throws InterruptedException
+    {
+        // an empty task of the same scheduler runs after the rescheduling
+        CountDownLatch after = new CountDownLatch(1);
+        scheduler.schedule(task(after), 0);
+        advance(100);
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+    }
+
+    private static SipTimerTask task(final CountDownLatch ran)
+    {
+        return new SipTimerTask()
+        {
+            @Override
+            public void run()
+            {
+                ran.countDown();
+            }
+        };
+    }
+}
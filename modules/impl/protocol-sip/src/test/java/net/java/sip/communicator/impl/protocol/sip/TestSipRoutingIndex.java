@@ -0,0 +1,437 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.sip.address.*;
+import javax.sip.header.*;
+import javax.sip.message.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Contains tests of the dispatch of the new SIP requests to the providers
+ * sharing the stack through their index, against a scan of all the
+ * providers as it was done before the index.
+ */
+public class TestSipRoutingIndex extends TestCase
+{
+    /**
+     * The providers sharing the stack, in the order of their set.
+     */
+    private final Set<ProtocolProviderServiceSipImpl> providers
+        = new LinkedHashSet<ProtocolProviderServiceSipImpl>();
+
+    /**
+     * Tests the lookups of the index by user ID and by user ID and custom
+     * parameter.
+     */
+    public void testIndex()
+    {
+        Provider alice1 = provider("alice", "reg1_example_com", true);
+        Provider alice2 = provider("alice", "reg2_example_com", true);
+        Provider bob = provider("bob", null, true);
+        SipRoutingIndex<ProtocolProviderServiceSipImpl> index
+            = SipStackSharing.createRoutingIndex(providers);
+
+        assertEquals(Arrays.asList(alice1, alice2, bob), index.getTargets());
+        assertEquals(Arrays.asList(alice1, alice2), index.getTargets("alice"));
+        assertEquals(Arrays.asList(bob), index.getTargets("bob"));
+        assertTrue(index.getTargets("carol").isEmpty());
+
+        assertSame(alice2, index.getTarget("alice", "reg2_example_com"));
+        assertNull(index.getTarget("bob", "reg2_example_com"));
+        assertNull(index.getTarget("alice", null));
+        assertNull(index.getTarget("bob", null));
+    }
+
+    /**
+     * Tests that the accounts of the same user on different registrars are
+     * told apart by the custom parameter of the Request-URI, or by the
+     * connection the request came from.
+     */
+    public void testSameUserOnDifferentRegistrars()
+    {
+        Provider alice1 = provider("alice", "reg1_example_com", true);
+        Provider alice2 = provider("alice", "reg2_example_com", true);
+
+        assertSame(alice2, dispatch(
+            request("alice", "reg2_example_com", "example.com")));
+        assertSame(alice1, dispatch(
+            request("alice", "reg1_example_com", "example.com")));
+
+        // a request from the connection of only one of the accounts
+        alice1.sameConnection = false;
+        assertSame(alice2, dispatch(
+            request("alice", "reg1_example_com", "example.com")));
+    }
+
+    /**
+     * Tests that the custom parameter is matched against the current
+     * registrar of the accounts, which may have changed since they were
+     * indexed.
+     */
+    public void testChangedRegistrar()
+    {
+        provider("alice", "reg1_example_com", true);
+        Provider alice2 = provider("alice", "reg2_example_com", true);
+        SipRoutingIndex<ProtocolProviderServiceSipImpl> index
+            = SipStackSharing.createRoutingIndex(providers);
+
+        alice2.customParam = "reg3_example_com";
+        assertSame(alice2, SipStackSharing.findTargetFor(
+            index, request("alice", "reg3_example_com", "other.example.com")));
+    }
+
+    /**
+     * Tests that the accounts of the same user without a matching custom
+     * parameter are told apart by the host of the To header, and that the
+     * first one is chosen without a matching host.
+     */
+    public void testToHostFallback()
+    {
+        Provider alice1 = provider("alice", null, true);
+        Provider alice2 = provider("alice", null, true);
+        alice1.host = "one.example.com";
+        alice2.host = "two.example.com";
+
+        assertSame(alice2, dispatch(
+            request("alice", null, "two.example.com")));
+        assertSame(alice1, dispatch(
+            request("alice", "reg1_example_com", "one.example.com")));
+        assertSame(alice1, dispatch(
+            request("alice", null, "three.example.com")));
+    }
+
+    /**
+     * Tests that a request for an unknown user goes to the first account of
+     * the connection it came from, and that it is dropped if there is none.
+     */
+    public void testAnyAccountFallback()
+    {
+        assertNull(dispatch(request("alice", null, "example.com")));
+
+        Provider alice = provider("alice", "reg1_example_com", false);
+        Provider bob = provider("bob", "reg2_example_com", true);
+        assertSame(bob, dispatch(request("carol", null, "example.com")));
+        assertSame(bob, dispatch(request(null, null, "example.com")));
+
+        bob.sameConnection = false;
+        assertNull(dispatch(request("carol", null, "example.com")));
+
+        alice.forceProxyBypass = true;
+        assertSame(alice, dispatch(request("carol", null, "example.com")));
+        assertNull(dispatch(null));
+    }
+
+    /**
+     * Tests that the dispatch through the index chooses the same provider as
+     * a scan of all the providers, for random accounts and requests.
+     */
+    public void testMatchesFullScan()
+    {
+        Random random = new Random(42);
+        String[] users = { "alice", "bob", "carol", null };
+        String[] params
+            = { "reg1_example_com", "reg2_example_com", "reg3_example_com",
+                null };
+        String[] hosts = { "one.example.com", "two.example.com" };
+
+        for (int i = 0; i < 500; i++)
+        {
+            providers.clear();
+            int count = 1 + random.nextInt(8);
+            for (int p = 0; p < count; p++)
+            {
+                Provider provider = provider(
+                    users[random.nextInt(users.length - 1)],
+                    params[random.nextInt(params.length)],
+                    random.nextInt(4) != 0);
+                provider.host = hosts[random.nextInt(hosts.length)];
+                provider.forceProxyBypass = random.nextInt(8) == 0;
+                if (random.nextInt(8) == 0)
+                    provider.registrar = null;
+            }
+
+            for (int r = 0; r < 20; r++)
+            {
+                Request request = request(
+                    users[random.nextInt(users.length)],
+                    params[random.nextInt(params.length)],
+                    hosts[random.nextInt(hosts.length)]);
+
+                assertSame(fullScan(request), dispatch(request));
+            }
+        }
+    }
+
+    /**
+     * Dispatches a request through an index of the current providers.
+     */
+    private ProtocolProviderServiceSipImpl dispatch(Request request)
+    {
+        return SipStackSharing.findTargetFor(
+            SipStackSharing.createRoutingIndex(providers), request);
+    }
+
+    /**
+     * Finds the recipient of a request by scanning all the providers, as
+     * <tt>SipStackSharing</tt> did before indexing them.
+     */
+    private ProtocolProviderServiceSipImpl fullScan(Request request)
+    {
+        List<ProtocolProviderServiceSipImpl> listeners
+            = new ArrayList<ProtocolProviderServiceSipImpl>();
+        for (ProtocolProviderServiceSipImpl provider : providers)
+        {
+            if (isFromConnectionOf(provider, request))
+                listeners.add(provider);
+        }
+        if (listeners.isEmpty())
+            return null;
+
+        SipURI requestURI = (SipURI) request.getRequestURI();
+        List<ProtocolProviderServiceSipImpl> candidates
+            = new ArrayList<ProtocolProviderServiceSipImpl>();
+        for (ProtocolProviderServiceSipImpl listener : listeners)
+        {
+            if (listener.getAccountID().getUserID()
+                    .equals(requestURI.getUser()))
+            {
+                candidates.add(listener);
+            }
+        }
+
+        if (candidates.size() == 1)
+            return candidates.get(0);
+        if (candidates.isEmpty())
+            return listeners.get(0);
+
+        String hostValue = requestURI.getParameter(
+            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+        for (ProtocolProviderServiceSipImpl candidate : candidates)
+        {
+            if (hostValue != null && hostValue.equals(
+                    candidate.getContactAddressCustomParamValue()))
+            {
+                return candidate;
+            }
+        }
+
+        SipURI fromURI = (SipURI) ((FromHeader) request
+            .getHeader(FromHeader.NAME)).getAddress().getURI();
+        String toHost = ((SipURI) ((ToHeader) request
+            .getHeader(ToHeader.NAME)).getAddress().getURI()).getHost();
+        for (ProtocolProviderServiceSipImpl candidate : candidates)
+        {
+            SipURI ourURI
+                = (SipURI) candidate.getOurSipAddress(fromURI).getURI();
+            if (toHost.equals(ourURI.getHost()))
+                return candidate;
+        }
+        return candidates.get(0);
+    }
+
+    private static boolean isFromConnectionOf(
+        ProtocolProviderServiceSipImpl provider,
+        Request request)
+    {
+        SipRegistrarConnection registrar = provider.getRegistrarConnection();
+
+        return provider.getAccountID().getAccountPropertyBoolean(
+                    ProtocolProviderFactory.FORCE_PROXY_BYPASS, false)
+            || registrar == null
+            || registrar.isRegistrarless()
+            || registrar.isRequestFromSameConnection(request);
+    }
+
+    /**
+     * Creates a provider sharing the stack.
+     *
+     * @param userID the user ID of the account.
+     * @param customParam the custom parameter of the contact address of the
+     * account, <tt>null</tt> for a registrarless account.
+     * @param sameConnection whether the requests come from the connection
+     * of the account.
+     */
+    private Provider provider(String userID,
+                              String customParam,
+                              boolean sameConnection)
+    {
+        Provider provider = new Provider(userID);
+        provider.customParam = customParam;
+        provider.sameConnection = sameConnection;
+        providers.add(provider);
+        return provider;
+    }
+
+    /**
+     * Creates a request from <tt>sip:peer@example.org</tt>.
+     *
+     * @param user the user part of the Request-URI.
+     * @param customParam the custom parameter of the Request-URI.
+     * @param toHost the host of the To header.
+     */
+    private static Request request(String user,
+                                   String customParam,
+                                   String toHost)
+    {
+        Map<String, Object> requestURI = new HashMap<String, Object>();
+        requestURI.put("getUser", user);
+        requestURI.put("getParameter", customParam);
+        requestURI.put("getHost", "local.example.net");
+
+        Map<String, Object> results = new HashMap<String, Object>();
+        results.put("getRequestURI", stub(SipURI.class, requestURI));
+        results.put(FromHeader.NAME, stub(FromHeader.class,
+            Collections.<String, Object>singletonMap(
+                "getAddress", address("example.org"))));
+        results.put(ToHeader.NAME, stub(ToHeader.class,
+            Collections.<String, Object>singletonMap(
+                "getAddress", address(toHost))));
+        return stub(Request.class, results);
+    }
+
+    private static Address address(String host)
+    {
+        return stub(Address.class,
+            Collections.<String, Object>singletonMap(
+                "getURI",
+                stub(SipURI.class,
+                    Collections.<String, Object>singletonMap(
+                        "getHost", host))));
+    }
+
+    /**
+     * Creates a stub returning the results of its methods by name, or of its
+     * <tt>getHeader</tt> method by header name, <tt>true</tt> for
+     * <tt>isSipURI</tt> and <tt>null</tt> for the other methods.
+     */
+    private static <T> T stub(Class<T> type,
+                              final Map<String, Object> results)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("equals"))
+                        return proxy == args[0];
+                    if (name.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (name.equals("isSipURI"))
+                        return true;
+                    if (name.equals("getHeader"))
+                        return results.get(args[0]);
+                    return results.get(name);
+                }
+            }));
+    }
+
+    /**
+     * A provider whose account, registrar and address are set by the tests.
+     */
+    private static class Provider
+        extends ProtocolProviderServiceSipImpl
+    {
+        private final AccountID accountID;
+
+        /**
+         * The value of the custom parameter of the contact address,
+         * <tt>null</tt> for a registrarless account.
+         */
+        private String customParam;
+
+        /**
+         * Whether the requests come from the connection of the account.
+         */
+        private boolean sameConnection;
+
+        /**
+         * Whether the requests from any connection are accepted.
+         */
+        private boolean forceProxyBypass;
+
+        /**
+         * The host of the address of the account.
+         */
+        private String host = "example.com";
+
+        private SipRegistrarConnection registrar = new SipRegistrarConnection()
+        {
+            @Override
+            public boolean isRegistrarless()
+            {
+                return customParam == null;
+            }
+
+            @Override
+            public boolean isRequestFromSameConnection(Request request)
+            {
+                return sameConnection;
+            }
+        };
+
+        Provider(String userID)
+        {
+            accountID = new AccountID(
+                userID, new HashMap<String, String>(), "SIP", "example.com")
+            {
+                @Override
+                public boolean getAccountPropertyBoolean(Object key,
+                                                         boolean defaultValue)
+                {
+                    if (ProtocolProviderFactory.FORCE_PROXY_BYPASS.equals(key))
+                        return forceProxyBypass;
+                    return defaultValue;
+                }
+            };
+        }
+
+        @Override
+        public AccountID getAccountID()
+        {
+            return accountID;
+        }
+
+        @Override
+        public String getContactAddressCustomParamValue()
+        {
+            return customParam;
+        }
+
+        @Override
+        public SipRegistrarConnection getRegistrarConnection()
+        {
+            return registrar;
+        }
+
+        @Override
+        public Address getOurSipAddress(SipURI intendedDestination)
+        {
+            return address(host);
+        }
+    }
+}
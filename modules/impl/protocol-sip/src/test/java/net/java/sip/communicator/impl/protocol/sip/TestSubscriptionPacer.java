@@ -0,0 +1,295 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.sip.header.*;
+import javax.sip.message.*;
+
+import junit.framework.*;
+
+/**
+ * Contains tests of the pacing of the SUBSCRIBE requests of an account: the
+ * token bucket, the pauses after overload responses and the queue of
+ * requests by key. The time is a fake clock and the send task is run by the
+ * tests instead of a timer.
+ */
+public class TestSubscriptionPacer extends TestCase
+{
+    /**
+     * The current time of the pacer in milliseconds.
+     */
+    private long time = 1000000;
+
+    private final ScheduledTimer timer = new ScheduledTimer();
+
+    /**
+     * The keys of the requests sent, in order.
+     */
+    private final List<Object> sent = new ArrayList<Object>();
+
+    /**
+     * Tests that the requests are sent at the maximum rate once the burst
+     * is spent, and that the bucket refills with time.
+     */
+    public void testRefillRate()
+    {
+        SubscriptionPacer pacer = createPacer(10);
+
+        for (int i = 0; i < 12; i++)
+            submit(pacer, i, 0);
+
+        assertEquals(10, sent.size());
+        assertEquals(2, pacer.getQueueDepth());
+        assertEquals(100, timer.delay);
+
+        time += 150;
+        timer.run();
+        assertEquals(11, sent.size());
+        assertEquals(1, pacer.getQueueDepth());
+        // half a token is left
+        assertEquals(50, timer.delay);
+
+        time += 50;
+        timer.run();
+        assertEquals(12, sent.size());
+        assertEquals(Arrays.<Object>asList(
+                0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11),
+            sent);
+
+        // a full bucket after a second
+        time += 1000;
+        for (int i = 12; i < 22; i++)
+            submit(pacer, i, 0);
+        assertEquals(22, sent.size());
+    }
+
+    /**
+     * Tests that the requests are not limited with a rate of <tt>0</tt>.
+     */
+    public void testUnlimited()
+    {
+        SubscriptionPacer pacer = createPacer(0);
+
+        for (int i = 0; i < 100; i++)
+            submit(pacer, i, 0);
+
+        assertEquals(100, sent.size());
+        assertNull(timer.task);
+    }
+
+    /**
+     * Tests that no request is sent for the time of the Retry-After header
+     * of an overload response.
+     */
+    public void testRetryAfter()
+    {
+        SubscriptionPacer pacer = createPacer(10);
+
+        pacer.processResponse(response(Response.SERVICE_UNAVAILABLE, 5));
+        submit(pacer, "a", 0);
+
+        assertTrue(sent.isEmpty());
+        assertEquals(5000, timer.delay);
+
+        time += 5000;
+        timer.run();
+        assertEquals(Arrays.<Object>asList("a"), sent);
+
+        // 429 Too Many Requests
+        pacer.processResponse(response(429, 2));
+        submit(pacer, "b", 0);
+        assertEquals(2000, timer.delay);
+    }
+
+    /**
+     * Tests that the pauses after overload responses without a Retry-After
+     * header double, and are reset by a successful response.
+     */
+    public void testExponentialBackOff()
+    {
+        SubscriptionPacer pacer = createPacer(10);
+        long backOff = 1000;
+
+        for (int i = 0; i < 4; i++)
+        {
+            pacer.processResponse(response(Response.SERVICE_UNAVAILABLE, 0));
+            submit(pacer, i, 0);
+
+            assertTrue(sent.isEmpty());
+            assertTrue(timer.delay >= backOff / 2);
+            assertTrue(timer.delay <= backOff);
+
+            // the next pause starts after this one
+            time += timer.delay;
+            pacer.clear();
+            timer.task = null;
+            backOff *= 2;
+        }
+
+        pacer.processResponse(response(Response.OK, 0));
+        pacer.processResponse(response(Response.SERVICE_UNAVAILABLE, 0));
+        submit(pacer, "a", 0);
+        assertTrue(timer.delay >= 500);
+        assertTrue(timer.delay <= 1000);
+    }
+
+    /**
+     * Tests that a request is not queued twice with the same key, the first
+     * one queued being kept.
+     */
+    public void testDedupByKey()
+    {
+        SubscriptionPacer pacer = createPacer(10);
+
+        assertTrue(submit(pacer, "a", 1000));
+        assertFalse(pacer.submit("a", 2000, () -> sent.add("second a")));
+        assertTrue(submit(pacer, "b", 1000));
+        assertEquals(2, pacer.getQueueDepth());
+        assertEquals(1000, timer.delay);
+
+        time += 1000;
+        timer.run();
+        assertEquals(Arrays.<Object>asList("a", "b"), sent);
+
+        // sent requests may be queued again
+        assertTrue(submit(pacer, "a", 0));
+        assertEquals(Arrays.<Object>asList("a", "b", "a"), sent);
+    }
+
+    /**
+     * Tests that a request queued for later is sent right away when a
+     * request with the same key is submitted without a delay.
+     */
+    public void testSubmitMovesQueuedRequestForward()
+    {
+        SubscriptionPacer pacer = createPacer(10);
+
+        submit(pacer, "a", 60000);
+        submit(pacer, "b", 60000);
+        assertEquals(60000, timer.delay);
+
+        assertFalse(pacer.submit("a", 0, () -> sent.add("second a")));
+        assertEquals(Arrays.<Object>asList("a"), sent);
+        assertEquals(1, pacer.getQueueDepth());
+
+        // a shorter delay moves it forward too
+        submit(pacer, "c", 60000);
+        assertFalse(pacer.submit("c", 10000, () -> sent.add("second c")));
+        assertEquals(10000, timer.delay);
+
+        time += 10000;
+        timer.run();
+        assertEquals(Arrays.<Object>asList("a", "c"), sent);
+        assertEquals(50000, timer.delay);
+    }
+
+    private SubscriptionPacer createPacer(int maxRequestsPerSecond)
+    {
+        return new SubscriptionPacer(
+            timer, maxRequestsPerSecond, () -> time);
+    }
+
+    private boolean submit(SubscriptionPacer pacer, final Object key,
+        long delay)
+    {
+        return pacer.submit(key, delay, () -> sent.add(key));
+    }
+
+    /**
+     * Creates a response with a status code and a Retry-After header of
+     * <tt>retryAfter</tt> seconds, or none if it is <tt>0</tt>.
+     */
+    private static Response response(final int statusCode,
+        final int retryAfter)
+    {
+        final RetryAfterHeader retryAfterHeader = (retryAfter == 0)
+            ? null
+            : stub(RetryAfterHeader.class, "getRetryAfter", retryAfter);
+
+        return (Response) Proxy.newProxyInstance(
+            Response.class.getClassLoader(),
+            new Class<?>[] { Response.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getName().equals("getStatusCode"))
+                        return statusCode;
+                    if (method.getName().equals("getHeader")
+                            && RetryAfterHeader.NAME.equals(args[0]))
+                        return retryAfterHeader;
+                    if (method.getName().equals("getHeader"))
+                        return null;
+                    throw new UnsupportedOperationException(
+                        method.getName());
+                }
+            });
+    }
+
+    private static <T> T stub(Class<T> type, final String methodName,
+        final Object result)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getName().equals(methodName))
+                        return result;
+                    throw new UnsupportedOperationException(
+                        method.getName());
+                }
+            }));
+    }
+
+    /**
+     * Keeps the last task scheduled by the pacer instead of running it.
+     */
+    private static class ScheduledTimer
+        extends TimerScheduler
+    {
+        private SipTimerTask task;
+
+        private long delay = -1;
+
+        @Override
+        public void schedule(SipTimerTask task, long delay)
+        {
+            this.task = task;
+            this.delay = delay;
+        }
+
+        /**
+         * Runs the last scheduled task.
+         */
+        void run()
+        {
+            SipTimerTask task = this.task;
+
+            this.task = null;
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.lang.reflect.Proxy;
+import java.net.*;
+import java.net.URI;
+import java.nio.charset.*;
+import java.util.*;
+
+import javax.sip.address.*;
+
+import junit.framework.*;
+
+import org.apache.http.client.*;
+import org.apache.http.impl.client.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Contains tests of the cache of the XCAP resources: their revalidation
+ * with If-None-Match, and their invalidation when a document is put or
+ * deleted or when the client connects to another server. The server is a
+ * local HTTP server keeping the documents in memory.
+ */
+public class TestXCapResourceCache extends TestCase
+{
+    private static final String INDEX
+        = "resource-lists/users/sip:alice@example.com/index";
+
+    private static final String INDEX2
+        = "resource-lists/users/sip:alice@example.com/index2";
+
+    private static final String CONTENT_TYPE
+        = "application/resource-lists+xml";
+
+    private HttpServer server;
+
+    /**
+     * The documents of the server by path, with their versions.
+     */
+    private final Map<String, String> documents
+        = new HashMap<String, String>();
+
+    private final Map<String, Integer> versions
+        = new HashMap<String, Integer>();
+
+    /**
+     * The If-None-Match headers of the GET requests, in order, with an empty
+     * string for the requests without one.
+     */
+    private final List<String> conditions = new ArrayList<String>();
+
+    private BaseHttpXCapClient client;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange)
+                throws IOException
+            {
+                serve(exchange);
+            }
+        });
+        server.start();
+
+        client = new BaseHttpXCapClient()
+        {
+            @Override
+            CloseableHttpClient createHttpClient(
+                CredentialsProvider credentialsProvider)
+            {
+                return HttpClients.createDefault();
+            }
+        };
+        connect("/xcap");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        client.disconnect();
+        server.stop(0);
+    }
+
+    /**
+     * Tests that a cached resource is revalidated with its ETag, and that a
+     * 304 response returns a copy of the cached content.
+     */
+    public void testNotModified()
+        throws Exception
+    {
+        store("/xcap/" + INDEX, "<resource-lists/>");
+
+        XCapHttpResponse response = client.get(new XCapResourceId(INDEX));
+        assertEquals(200, response.getHttpCode());
+        assertEquals("\"1\"", response.getETag());
+        assertEquals("", conditions.get(0));
+        // changing the content got does not change the cached one
+        response.getContent()[0] = 'X';
+
+        response = client.get(new XCapResourceId(INDEX));
+        assertEquals("\"1\"", conditions.get(1));
+        assertEquals(200, response.getHttpCode());
+        assertEquals("<resource-lists/>", content(response));
+        assertEquals(CONTENT_TYPE, response.getContentType());
+
+        store("/xcap/" + INDEX, "<resource-lists><list/></resource-lists>");
+        response = client.get(new XCapResourceId(INDEX));
+        assertEquals("\"1\"", conditions.get(2));
+        assertEquals("\"2\"", response.getETag());
+        assertEquals("<resource-lists><list/></resource-lists>",
+            content(response));
+    }
+
+    /**
+     * Tests that putting a document drops the cached resources of the
+     * document and of its nodes, and only them.
+     */
+    public void testInvalidateOnPut()
+        throws Exception
+    {
+        XCapResourceId node = new XCapResourceId(INDEX, "resource-lists");
+        cacheDocuments(node);
+
+        client.put(new XCapResource(
+            new XCapResourceId(INDEX), "<resource-lists/>", CONTENT_TYPE));
+        conditions.clear();
+
+        client.get(new XCapResourceId(INDEX));
+        client.get(node);
+        client.get(new XCapResourceId(INDEX2));
+        assertEquals(Arrays.asList("", "", "\"1\""), conditions);
+    }
+
+    /**
+     * Tests that deleting a node of a document drops the cached resources of
+     * the document, and only them.
+     */
+    public void testInvalidateOnDelete()
+        throws Exception
+    {
+        XCapResourceId node = new XCapResourceId(INDEX, "resource-lists");
+        cacheDocuments(node);
+
+        client.delete(node);
+        conditions.clear();
+
+        client.get(new XCapResourceId(INDEX));
+        client.get(new XCapResourceId(INDEX2));
+        assertEquals(Arrays.asList("", "\"1\""), conditions);
+    }
+
+    /**
+     * Tests that the resources of a server are kept when connecting again to
+     * it, and dropped when connecting to another one whose URI starts like
+     * it.
+     */
+    public void testConnectToOtherServer()
+        throws Exception
+    {
+        connect("/xcap2");
+        store("/xcap2/" + INDEX, "<resource-lists/>");
+        client.get(new XCapResourceId(INDEX));
+
+        connect("/xcap2");
+        client.get(new XCapResourceId(INDEX));
+        assertEquals("\"1\"", conditions.get(1));
+
+        connect("/xcap");
+        connect("/xcap2");
+        client.get(new XCapResourceId(INDEX));
+        assertEquals("", conditions.get(2));
+    }
+
+    /**
+     * Tests that the resources below a URI are found by whole path segments.
+     */
+    public void testIsUnder()
+    {
+        String document = "http://example.com/xcap/" + INDEX;
+
+        assertTrue(BaseHttpXCapClient.isUnder(
+            URI.create(document), document));
+        assertTrue(BaseHttpXCapClient.isUnder(
+            URI.create(document + "/~~/resource-lists"), document));
+        assertFalse(BaseHttpXCapClient.isUnder(
+            URI.create(document + "2"), document));
+        assertTrue(BaseHttpXCapClient.isUnder(
+            URI.create(document), "http://example.com/xcap/"));
+        assertFalse(BaseHttpXCapClient.isUnder(
+            URI.create("http://example.com/xcap2/" + INDEX),
+            "http://example.com/xcap"));
+    }
+
+    /**
+     * Stores the two documents on the server and gets them, and a node of
+     * the first one, so that they are cached.
+     */
+    private void cacheDocuments(XCapResourceId node)
+        throws XCapException
+    {
+        store("/xcap/" + INDEX, "<resource-lists/>");
+        store("/xcap/" + INDEX2, "<resource-lists/>");
+        store("/xcap/" + node, "<resource-lists/>");
+
+        client.get(new XCapResourceId(INDEX));
+        client.get(node);
+        client.get(new XCapResourceId(INDEX2));
+        assertEquals(Arrays.asList("", "", ""), conditions);
+    }
+
+    private void connect(String path)
+        throws XCapException
+    {
+        client.connect(
+            URI.create("http://127.0.0.1:" + server.getAddress().getPort()
+                + path),
+            address(),
+            "alice",
+            "secret");
+    }
+
+    private synchronized void store(String path, String content)
+    {
+        documents.put(path, content);
+        Integer version = versions.get(path);
+        versions.put(path, version == null ? 1 : version + 1);
+    }
+
+    /**
+     * Answers a request of the client: a GET with the document and its
+     * version as ETag, or with a 304 if the client has this version, a PUT
+     * by storing the document and a DELETE by removing it.
+     */
+    private synchronized void serve(HttpExchange exchange)
+        throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        String content = documents.get(path);
+        String eTag = "\"" + versions.get(path) + "\"";
+        byte[] body = new byte[0];
+        int status;
+
+        if (method.equals("GET"))
+        {
+            String condition
+                = exchange.getRequestHeaders().getFirst("If-None-Match");
+            conditions.add(condition == null ? "" : condition);
+
+            if (content == null)
+                status = 404;
+            else if (eTag.equals(condition))
+                status = 304;
+            else
+            {
+                status = 200;
+                body = content.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type",
+                    CONTENT_TYPE);
+                exchange.getResponseHeaders().set("ETag", eTag);
+            }
+        }
+        else if (method.equals("PUT"))
+        {
+            InputStream in = exchange.getRequestBody();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+            status = content == null ? 201 : 200;
+            store(path, new String(out.toByteArray(),
+                StandardCharsets.UTF_8));
+        }
+        else
+        {
+            status = 200;
+            documents.remove(path);
+        }
+
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1
+            : body.length);
+        if (body.length != 0)
+            exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static String content(XCapHttpResponse response)
+    {
+        return new String(response.getContent(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates the address of a user with a SIP URI.
+     */
+    private static Address address()
+    {
+        final javax.sip.address.URI sipUri
+            = (javax.sip.address.URI) Proxy.newProxyInstance(
+                SipURI.class.getClassLoader(),
+                new Class<?>[] { SipURI.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                        Object[] args)
+                    {
+                        if (method.getName().equals("isSipURI"))
+                            return true;
+                        return null;
+                    }
+                });
+
+        return (Address) Proxy.newProxyInstance(
+            Address.class.getClassLoader(),
+            new Class<?>[] { Address.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getName().equals("getURI"))
+                        return sipUri;
+                    if (method.getName().equals("clone"))
+                        return proxy;
+                    return null;
+                }
+            });
+    }
+}
@@ -25,6 +25,7 @@
 import net.java.sip.communicator.service.protocol.*;
 
 import net.java.sip.communicator.util.osgi.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.resources.*;
 import org.osgi.framework.*;
 
@@ -69,7 +70,8 @@ public CallHistoryActivator()
     {
         super(
             ResourceManagementService.class,
-            HistoryService.class
+            HistoryService.class,
+            FileAccessService.class
         );
     }
 
@@ -90,6 +92,10 @@ public void startWithServices(BundleContext bc) throws Exception
             new CallHistoryServiceImpl();
         // set the configuration and history service
         callHistoryService.setHistoryService(historyService);
+        callHistoryService.setPeerIndex(new CallHistoryPeerIndex(
+            getService(FileAccessService.class).getPrivatePersistentFile(
+                CallHistoryPeerIndex.INDEX_FILE, FileCategory.PROFILE),
+            "callParticipantIDs"));
 
         callHistoryService.start(bundleContext);
 
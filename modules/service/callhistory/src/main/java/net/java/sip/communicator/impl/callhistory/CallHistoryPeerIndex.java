@@ -0,0 +1,372 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.callhistory;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A persistent index of the call history records by peer address. Maps the
+ * address of every call peer to the timestamps of the history records of
+ * the calls with the peer, so that the calls of a peer are read with
+ * <tt>findByPeriod</tt> lookups of their timestamps instead of a scan of the
+ * whole history. The records keep their timestamp when their secondary peer
+ * addresses are updated, so the index never has to be changed for an update.
+ * <p>
+ * The index is kept in memory and persisted as an append-only journal, one
+ * line per record:
+ * <pre>
+ * timestamp (&lt;tab&gt; peer address)*
+ * </pre>
+ * The journal is only loaded when a lookup needs it. Until then, new records
+ * are just appended to it, provided it was already created by a previous
+ * lookup. On load, the records written after the newest indexed one, e.g.
+ * before a crash or by a version without the index, are read from the
+ * history and indexed, the first load building the whole index.
+ */
+class CallHistoryPeerIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(CallHistoryPeerIndex.class);
+
+    /**
+     * The name of the journal file in the user profile.
+     */
+    static final String INDEX_FILE = "callhistory_peers.idx";
+
+    /**
+     * The journal.
+     */
+    private final JournalFile journal;
+
+    /**
+     * The name of the field with the peer addresses of a record.
+     */
+    private final String peersField;
+
+    /**
+     * peer address -> timestamps of the records of the calls with the peer.
+     */
+    private final Map<String, TreeSet<Long>> records
+        = new HashMap<String, TreeSet<Long>>();
+
+    /**
+     * The newest indexed record.
+     */
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Whether the index was loaded in memory and covers the history.
+     */
+    private boolean loaded = false;
+
+    /**
+     * Creates the index. The journal is loaded on first use.
+     *
+     * @param file the journal file
+     * @param peersField the name of the field with the peer addresses of a
+     * record
+     */
+    CallHistoryPeerIndex(File file, String peersField)
+    {
+        this.journal = new JournalFile(file);
+        this.peersField = peersField;
+    }
+
+    /**
+     * Adds a record just written to the history, if the index is
+     * maintained. The index is maintained once it was built by a lookup.
+     *
+     * @param timestamp the timestamp of the record
+     * @param peers the addresses of the peers of the call
+     */
+    synchronized void addRecord(long timestamp, List<String> peers)
+    {
+        if (!loaded && !journal.exists())
+            return;
+
+        if (loaded)
+            index(timestamp, peers);
+        append(line(timestamp, peers));
+    }
+
+    /**
+     * Returns the timestamps of the newest records of the calls with one of
+     * the given peers.
+     *
+     * @param history the indexed history
+     * @param addresses the exact addresses of the peers
+     * @param count the maximum number of timestamps to return
+     * @return the timestamps, newest first
+     */
+    synchronized List<Long> findLast(History history,
+                                     Collection<String> addresses,
+                                     int count)
+    {
+        ensureLoaded(history);
+
+        List<TreeSet<Long>> matching = new ArrayList<TreeSet<Long>>();
+        for (String address : addresses)
+        {
+            TreeSet<Long> timestamps = records.get(address);
+            if (timestamps != null)
+                matching.add(timestamps);
+        }
+        return newest(matching, count);
+    }
+
+    /**
+     * Returns the timestamps of the newest records of the calls with a peer
+     * whose address matches <tt>pattern</tt>.
+     *
+     * @param history the indexed history
+     * @param pattern the pattern to find in the peer addresses
+     * @param count the maximum number of timestamps to return
+     * @return the timestamps, newest first
+     */
+    synchronized List<Long> findLast(History history,
+                                     Pattern pattern,
+                                     int count)
+    {
+        ensureLoaded(history);
+
+        // the peers are far less than the records
+        List<TreeSet<Long>> matching = new ArrayList<TreeSet<Long>>();
+        for (Map.Entry<String, TreeSet<Long>> e : records.entrySet())
+        {
+            if (pattern.matcher(e.getKey()).find())
+                matching.add(e.getValue());
+        }
+        return newest(matching, count);
+    }
+
+    /**
+     * Returns the timestamps of the records of the calls with a peer after a
+     * date, oldest first.
+     *
+     * @param history the indexed history
+     * @param address the exact address of the peer
+     * @param date the date
+     * @return the timestamps, oldest first
+     */
+    synchronized List<Long> findAfter(History history,
+                                      String address,
+                                      Date date)
+    {
+        ensureLoaded(history);
+
+        TreeSet<Long> timestamps = records.get(address);
+        if (timestamps == null)
+            return new ArrayList<Long>();
+
+        return new ArrayList<Long>(
+            timestamps.tailSet(date.getTime(), true));
+    }
+
+    /**
+     * Removes the index, when the history is erased.
+     */
+    synchronized void clear()
+    {
+        records.clear();
+        lastTimestamp = Long.MIN_VALUE;
+        loaded = false;
+        if (!journal.delete())
+            logger.warn("Could not delete " + journal.getFile());
+    }
+
+    /**
+     * Returns the <tt>count</tt> newest timestamps of several sets.
+     */
+    private static List<Long> newest(List<TreeSet<Long>> sets, int count)
+    {
+        if (count <= 0)
+            return new ArrayList<Long>();
+
+        TreeSet<Long> result = new TreeSet<Long>();
+        for (TreeSet<Long> timestamps : sets)
+        {
+            for (Long ts : timestamps.descendingSet())
+            {
+                // a call with several of the peers
+                if (result.contains(ts))
+                    continue;
+
+                if (result.size() >= count)
+                {
+                    if (ts <= result.first())
+                        break;
+                    result.pollFirst();
+                }
+                result.add(ts);
+            }
+        }
+        return new ArrayList<Long>(result.descendingSet());
+    }
+
+    /**
+     * Loads the journal if not loaded yet and indexes the records newer than
+     * the indexed ones.
+     *
+     * @param history the indexed history
+     */
+    private void ensureLoaded(History history)
+    {
+        if (loaded)
+            return;
+
+        if (journal.exists())
+            load();
+
+        // records which were written without being indexed
+        HistoryReader reader = history.getReader();
+        QueryResultSet<HistoryRecord> rs = reader.findByStartDate(
+            new Date(Math.max(0, lastTimestamp + 1)));
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        while (rs.hasNext())
+        {
+            HistoryRecord record = rs.next();
+            List<String> peers = getPeers(record);
+            long timestamp = record.getTimestamp().getTime();
+
+            index(timestamp, peers);
+            lines.append(line(timestamp, peers));
+            count++;
+        }
+
+        if (count > 0 || !journal.exists())
+        {
+            append(lines.toString());
+            if (logger.isInfoEnabled())
+                logger.info("Indexed " + count + " call history records");
+        }
+        loaded = true;
+    }
+
+    /**
+     * Returns the peer addresses of a history record.
+     *
+     * @param record the history record
+     * @return the peer addresses
+     */
+    private List<String> getPeers(HistoryRecord record)
+    {
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(peersField))
+                return CallHistoryServiceImpl.getCSVs(
+                    record.getPropertyValues()[i]);
+        }
+        return new ArrayList<String>();
+    }
+
+    /**
+     * Adds a record to the in-memory index.
+     */
+    private void index(long timestamp, List<String> peers)
+    {
+        for (String peer : peers)
+        {
+            TreeSet<Long> timestamps = records.get(peer);
+            if (timestamps == null)
+            {
+                timestamps = new TreeSet<Long>();
+                records.put(peer, timestamps);
+            }
+            timestamps.add(timestamp);
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+    }
+
+    /**
+     * Returns the journal line of a record.
+     */
+    private static String line(long timestamp, List<String> peers)
+    {
+        StringBuilder line = new StringBuilder();
+        line.append(timestamp);
+        for (String peer : peers)
+            line.append('\t').append(JournalFile.escape(peer));
+        return line.append('\n').toString();
+    }
+
+    /**
+     * Appends lines to the journal.
+     */
+    private void append(String lines)
+    {
+        try
+        {
+            journal.append(lines);
+        }
+        catch (IOException e)
+        {
+            // the records are indexed again on the next load
+            logger.error("Could not write the call history index", e);
+        }
+    }
+
+    /**
+     * Loads the journal in memory. Broken lines are skipped and an
+     * unterminated last line, written when crashing, is dropped so that its
+     * record is read again from the history.
+     */
+    private void load()
+    {
+        List<String> lines = new ArrayList<String>();
+        try
+        {
+            journal.read(lines);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read the call history index", e);
+            return;
+        }
+
+        for (String line : lines)
+        {
+            String[] parts = line.split("\t", -1);
+
+            long timestamp;
+            try
+            {
+                timestamp = Long.parseLong(parts[0]);
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+
+            List<String> peers = new ArrayList<String>(parts.length - 1);
+            for (int i = 1; i < parts.length; i++)
+                peers.add(JournalFile.unescape(parts[i]));
+            index(timestamp, peers);
+        }
+    }
+}
@@ -39,6 +39,17 @@
 
     private final HistoryQuery historyQuery;
 
+    /**
+     * The query string of a query which is not based on a
+     * <tt>HistoryQuery</tt>.
+     */
+    private final String queryString;
+
+    /**
+     * Indicates whether this query was canceled.
+     */
+    private volatile boolean canceled = false;
+
     /**
      * Creates an instance of <tt>CallHistoryQueryImpl</tt> by specifying the
      * underlying <tt>HistoryQuery</tt>.
@@ -47,6 +58,7 @@
     public CallHistoryQueryImpl(HistoryQuery query)
     {
         this.historyQuery = query;
+        this.queryString = null;
 
         historyQuery.addHistoryRecordsListener(new HistoryQueryListener()
         {
@@ -79,12 +91,55 @@ public void queryStatusChanged(HistoryQueryStatusEvent event)
         }
     }
 
+    /**
+     * Creates an instance of <tt>CallHistoryQueryImpl</tt>, whose results are
+     * given with <tt>addCallRecord</tt> and whose completion is given with
+     * <tt>setStatus</tt>.
+     * @param queryString the query string this query is created for
+     */
+    CallHistoryQueryImpl(String queryString)
+    {
+        this.historyQuery = null;
+        this.queryString = queryString;
+    }
+
+    /**
+     * Adds a result to this query and notifies the listeners.
+     * @param callRecord the <tt>CallRecord</tt> found
+     */
+    void addCallRecord(CallRecord callRecord)
+    {
+        callRecords.add(callRecord);
+        fireQueryEvent(callRecord);
+    }
+
+    /**
+     * Notifies the listeners that this query was completed or canceled.
+     * @param newStatus the new status
+     */
+    void setStatus(int newStatus)
+    {
+        fireQueryStatusEvent(newStatus);
+    }
+
+    /**
+     * Indicates whether this query was canceled.
+     * @return <tt>true</tt> if this query was canceled
+     */
+    boolean isCanceled()
+    {
+        return canceled;
+    }
+
     /**
      * Cancels this query.
      */
     public void cancel()
     {
-        historyQuery.cancel();
+        canceled = true;
+
+        if (historyQuery != null)
+            historyQuery.cancel();
     }
 
     /**
@@ -170,6 +225,8 @@ private void fireQueryStatusEvent(int newStatus)
      */
     public String getQueryString()
     {
-        return historyQuery.getQueryString();
+        return (historyQuery == null)
+            ? queryString
+            : historyQuery.getQueryString();
     }
 }
@@ -20,6 +20,7 @@
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.regex.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -89,6 +90,12 @@
     private List<CallHistoryPeerRecordListener> callHistoryRecordlisteners
         = new LinkedList<CallHistoryPeerRecordListener>();
 
+    /**
+     * The index of the call history records by peer address, or
+     * <tt>null</tt> to scan the history.
+     */
+    private CallHistoryPeerIndex peerIndex = null;
+
     /**
      * Returns the underlying history service.
      * @return the underlying history service
@@ -267,7 +274,43 @@ public Collection<CallRecord> findByPeriod(Date startDate, Date endDate)
     public Collection<CallRecord> findLast(MetaContact contact, int count)
         throws RuntimeException
     {
-        throw new UnsupportedOperationException("Not implemented yet!");
+        if (peerIndex == null)
+            throw new UnsupportedOperationException("Not implemented yet!");
+
+        Set<String> addresses = new HashSet<String>();
+        Iterator<Contact> contacts = contact.getContacts();
+        while (contacts.hasNext())
+            addresses.add(contacts.next().getAddress());
+
+        TreeSet<CallRecord> result
+            = new TreeSet<CallRecord>(new CallRecordComparator());
+        try
+        {
+            // the default ones
+            History history = this.getHistory(null, null);
+            HistoryReader reader = history.getReader();
+            for (Long timestamp
+                    : peerIndex.findLast(history, addresses, count))
+            {
+                for (HistoryRecord hr : findByTimestamp(reader, timestamp))
+                {
+                    for (String peer : getPeers(hr))
+                    {
+                        if (addresses.contains(peer))
+                        {
+                            result.add(convertHistoryRecordToCallRecord(hr));
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read history", ex);
+        }
+
+        return result;
     }
 
     /**
@@ -311,6 +354,11 @@ public Collection<CallRecord> findLast(int count) throws RuntimeException
     public CallHistoryQuery findByPeer(String address, int recordCount)
         throws RuntimeException
     {
+        // the index knows the peers one by one, so it can't find an address
+        // spanning several of them
+        if (peerIndex != null && address.indexOf(DELIM) == -1)
+            return findByPeerInIndex(address, recordCount);
+
         CallHistoryQueryImpl callQuery = null;
 
         try
@@ -333,6 +381,108 @@ public CallHistoryQuery findByPeer(String address, int recordCount)
         return callQuery;
     }
 
+    /**
+     * Finds the calls made by the peers whose address contains the supplied
+     * one, looking the records up in the peer index. Matches the peers like
+     * the keyword search of the history, case insensitively.
+     *
+     * @param address String the address of the peer
+     * @param recordCount the number of records to return
+     * @return the <tt>CallHistoryQuery</tt>, giving the records as they are
+     * read
+     */
+    private CallHistoryQuery findByPeerInIndex(final String address,
+                                               final int recordCount)
+    {
+        final History history;
+        try
+        {
+            // the default ones
+            history = this.getHistory(null, null);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read history", ex);
+            return null;
+        }
+
+        final CallHistoryQueryImpl callQuery
+            = new CallHistoryQueryImpl(address);
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                Pattern pattern = Pattern.compile(
+                    Pattern.quote(address), Pattern.CASE_INSENSITIVE);
+                HistoryReader reader = history.getReader();
+
+                for (Long timestamp
+                        : peerIndex.findLast(history, pattern, recordCount))
+                {
+                    if (callQuery.isCanceled())
+                        break;
+
+                    for (HistoryRecord hr : findByTimestamp(reader, timestamp))
+                    {
+                        for (String peer : getPeers(hr))
+                        {
+                            if (pattern.matcher(peer).find())
+                            {
+                                callQuery.addCallRecord(
+                                    convertHistoryRecordToCallRecord(hr));
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                callQuery.setStatus(
+                    callQuery.isCanceled()
+                        ? HistoryQueryStatusEvent.QUERY_CANCELED
+                        : HistoryQueryStatusEvent.QUERY_COMPLETED);
+            }
+        }.start();
+
+        return callQuery;
+    }
+
+    /**
+     * Returns the records with the given timestamp, as found in the peer
+     * index.
+     *
+     * @param reader the reader of the history
+     * @param timestamp the timestamp of the records
+     * @return the records
+     */
+    private static List<HistoryRecord> findByTimestamp(HistoryReader reader,
+                                                       long timestamp)
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>(1);
+        QueryResultSet<HistoryRecord> rs = reader.findByPeriod(
+            new Date(timestamp), new Date(timestamp + 1));
+        while (rs.hasNext())
+            result.add(rs.next());
+        return result;
+    }
+
+    /**
+     * Returns the addresses of the peers of a history record.
+     *
+     * @param hr HistoryRecord
+     * @return the addresses of the peers
+     */
+    private static List<String> getPeers(HistoryRecord hr)
+    {
+        for (int i = 0; i < hr.getPropertyNames().length; i++)
+        {
+            if (hr.getPropertyNames()[i].equals(STRUCTURE_NAMES[4]))
+                return getCSVs(hr.getPropertyValues()[i]);
+        }
+        return new LinkedList<String>();
+    }
+
     /**
      * Returns the history by specified local and remote contact
      * if one of them is null the default is used
@@ -424,7 +574,7 @@ else if(propName.equals(STRUCTURE_NAMES[8]))
             else if(propName.equals(STRUCTURE_NAMES[9]))
                 callPeerNames = getCSVs(value);
             else if(propName.equals(STRUCTURE_NAMES[10]))
-                callPeerSecondaryIDs = getCSVs(value);
+                callPeerSecondaryIDs = getDelimitedValues(value);
         }
 
         final int callPeerCount = callPeerIDs == null ? 0 : callPeerIDs.size();
@@ -485,7 +635,7 @@ else if(propName.equals(STRUCTURE_NAMES[10]))
                     callPeerEndValue);
 
             String callPeerSecondaryID = null;
-            if(callPeerSecondaryIDs != null && !callPeerSecondaryIDs.isEmpty())
+            if(callPeerSecondaryIDs != null && i < callPeerSecondaryIDs.size())
                 callPeerSecondaryID = callPeerSecondaryIDs.get(i);
 
             if(callPeerSecondaryID != null && !callPeerSecondaryID.equals(""))
@@ -516,7 +666,7 @@ else if (logger.isInfoEnabled())
      * @param str String
      * @return LinkedList
      */
-    private static List<String> getCSVs(String str)
+    static List<String> getCSVs(String str)
     {
         List<String> result = new LinkedList<String>();
 
@@ -548,6 +698,26 @@ private static List<String> getCSVs(String str)
         return result;
     }
 
+    /**
+     * Returns the values separated by DELIM in the supplied string, keeping
+     * the empty ones, so that they match the peers by position. Used for the
+     * secondary peer addresses, which are empty for most peers.
+     * @param str String
+     * @return the values
+     */
+    private static List<String> getDelimitedValues(String str)
+    {
+        List<String> result = new ArrayList<String>();
+
+        if(str == null)
+            return result;
+
+        for (String value : str.split(Pattern.quote(String.valueOf(DELIM)), -1))
+            result.add(value.trim());
+
+        return result;
+    }
+
     /**
      * Get the delimited strings and converts them to CallPeerState
      *
@@ -724,6 +894,8 @@ private void writeCall( CallRecordImpl callRecord,
 
             }
 
+            // this date is when the history record is written
+            Date timestamp = new Date();
             historyWriter.addRecord(new String[] {
                     callRecord.getSourceCall().getProtocolProvider()
                         .getAccountID().getAccountUniqueID(),
@@ -737,8 +909,13 @@ private void writeCall( CallRecordImpl callRecord,
                     String.valueOf(callRecord.getEndReason()),
                     callPeerNames.toString(),
                     callPeerSecondaryIDs.toString()},
-                    new Date());    // this date is when the history
-                                    // record is written
+                    timestamp);
+
+            if (peerIndex != null)
+            {
+                peerIndex.addRecord(
+                    timestamp.getTime(), getCSVs(callPeerIDs.toString()));
+            }
         }
         catch (IOException e)
         {
@@ -783,6 +960,17 @@ public void unsetHistoryService(HistoryService hService)
         }
     }
 
+    /**
+     * Sets the index of the call history records by peer address, used to
+     * find the calls of a peer without scanning the history.
+     *
+     * @param peerIndex the index
+     */
+    void setPeerIndex(CallHistoryPeerIndex peerIndex)
+    {
+        this.peerIndex = peerIndex;
+    }
+
     /**
      * Permanently removes all locally stored call history.
      *
@@ -795,6 +983,9 @@ public void eraseLocallyStoredHistory()
         HistoryID historyId = HistoryID.createFromRawID(
                     new String[] {  "callhistory" });
         historyService.purgeLocallyStoredHistory(historyId);
+
+        if (peerIndex != null)
+            peerIndex.clear();
     }
 
     /**
@@ -1262,12 +1453,12 @@ public boolean isMatching()
                     return false;
                 }
 
-                String secondaryID
-                    = getCSVs(propertyVlaues[peerSecondaryIDIndex]).get(i);
-                if(secondaryID != null)
-                    return false;
+                List<String> secondaryIDs
+                    = getDelimitedValues(propertyVlaues[peerSecondaryIDIndex]);
 
-                return true;
+                // the secondary address is not set yet
+                return i >= secondaryIDs.size()
+                    || secondaryIDs.get(i).length() == 0;
             }
 
 
@@ -1284,8 +1475,11 @@ public Map<String, String> getUpdateChanges()
                     return null;
 
                 List<String> secondaryID
-                    = getCSVs(record.getPropertyValues()[peerSecondaryIDIndex]);
-                secondaryID.set(i, peerAddress);
+                    = getDelimitedValues(
+                        record.getPropertyValues()[peerSecondaryIDIndex]);
+                while (secondaryID.size() < peerIDs.size())
+                    secondaryID.add("");
+                secondaryID.set(i, address);
                 String res = "";
                 int j = 0;
                 for(String id : secondaryID)
@@ -1301,7 +1495,19 @@ public Map<String, String> getUpdateChanges()
         };
         try
         {
-            historyWriter.updateRecord(updater);
+            if (peerIndex == null)
+            {
+                historyWriter.updateRecord(updater);
+                return;
+            }
+
+            // the record is written when the call ends, after the peer joined
+            for (Long timestamp
+                    : peerIndex.findAfter(history, peerAddress, date))
+            {
+                if (historyWriter.updateRecord(new Date(timestamp), updater))
+                    break;
+            }
         }
         catch (IOException e)
         {
@@ -17,6 +17,8 @@
  */
 package net.java.sip.communicator.service.dns;
 
+import java.util.concurrent.*;
+
 import org.xbill.DNS.*;
 
 /**
@@ -85,4 +87,12 @@
      * newly configured servers.
      */
     void reset();
+
+    /**
+     * Returns the executor that this resolver sends its queries with, so that
+     * lookups which should not wait for each other can share its threads.
+     *
+     * @return the executor of this resolver or <tt>null</tt> if it has none.
+     */
+    Executor getQueryExecutor();
 }
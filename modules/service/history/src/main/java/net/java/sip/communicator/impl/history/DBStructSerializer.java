@@ -62,6 +62,11 @@ public void writeHistory(File dbDatFile, History history)
 
         Element root = doc.createElement("dbstruct");
         root.setAttribute("version", "1.0");
+        if (history instanceof SegmentLogHistoryImpl)
+        {
+            root.setAttribute("storage",
+                HistoryService.STORAGE_ENGINE_SEGMENT_LOG);
+        }
 
         Element structure = this.createStructureTag(doc, history
                 .getHistoryRecordsStructure());
@@ -140,6 +145,14 @@ public History loadHistory(File dbDatFile) throws SAXException,
         HistoryID id = loadID(root);
         HistoryRecordStructure structure = loadStructure(root);
 
+        if (root instanceof Element
+            && HistoryService.STORAGE_ENGINE_SEGMENT_LOG.equals(
+                    ((Element) root).getAttribute("storage")))
+        {
+            return new SegmentLogHistoryImpl(id, dbDatFile.getParentFile(),
+                structure, historyService);
+        }
+
         return new HistoryImpl(id, dbDatFile.getParentFile(), structure,
                 historyService);
     }
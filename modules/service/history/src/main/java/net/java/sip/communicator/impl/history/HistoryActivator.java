@@ -37,6 +37,11 @@
      */
     private ServiceRegistration<HistoryService> serviceRegistration;
 
+    /**
+     * The registered history service.
+     */
+    private HistoryServiceImpl historyService;
+
     public HistoryActivator()
     {
         super(
@@ -54,12 +59,31 @@ public HistoryActivator()
     @Override
     public void startWithServices(BundleContext bundleContext) throws Exception
     {
+        historyService = new HistoryServiceImpl(
+            getService(ConfigurationService.class),
+            getService(FileAccessService.class));
         serviceRegistration =
             bundleContext.registerService(HistoryService.class,
-                new HistoryServiceImpl(
-                    getService(ConfigurationService.class),
-                    getService(FileAccessService.class)
-                ), null);
+                historyService, null);
+
+        ConfigurationService configService
+            = getService(ConfigurationService.class);
+        if (configService.getBoolean(
+                HistoryService.KEYWORD_INDEX_REBUILD_PROPERTY, false))
+        {
+            configService.removeProperty(
+                HistoryService.KEYWORD_INDEX_REBUILD_PROPERTY);
+
+            final HistoryServiceImpl service = historyService;
+            new Thread("HistoryKeywordIndexRebuild")
+            {
+                @Override
+                public void run()
+                {
+                    service.rebuildKeywordIndexes();
+                }
+            }.start();
+        }
     }
 
     /**
@@ -77,5 +101,11 @@ public void stop(BundleContext bundleContext) throws Exception
             serviceRegistration.unregister();
             serviceRegistration = null;
         }
+
+        if (historyService != null)
+        {
+            historyService.stop();
+            historyService = null;
+        }
     }
 }
@@ -0,0 +1,278 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * The parsed history documents, shared by all the <tt>HistoryImpl</tt>s of
+ * the service. The cache is bounded by an estimate of the memory used by the
+ * documents, computed from their number of records, and evicts the least
+ * recently used documents first.
+ */
+class HistoryDocumentCache
+{
+    /**
+     * The logger for this class.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(HistoryDocumentCache.class);
+
+    /**
+     * The minimum time between two debug logs of the hits, misses and
+     * evictions of the cache, in milliseconds.
+     */
+    private static final long STATISTICS_LOG_INTERVAL = 5 * 60 * 1000;
+
+    /**
+     * The estimated memory used by one parsed record.
+     */
+    static final long RECORD_SIZE_ESTIMATE = 2048;
+
+    /**
+     * The estimated memory used by a parsed document without records.
+     */
+    static final long DOCUMENT_SIZE_ESTIMATE = 1024;
+
+    /**
+     * The cached documents by history file, in access order.
+     */
+    private final LinkedHashMap<File, Entry> documents
+        = new LinkedHashMap<File, Entry>(16, 0.75f, true);
+
+    /**
+     * The maximum estimated size of the cached documents in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * The estimated size of the cached documents in bytes.
+     */
+    private long size = 0;
+
+    /**
+     * The number of lookups which found their document.
+     */
+    private long hitCount = 0;
+
+    /**
+     * The number of lookups which did not find their document.
+     */
+    private long missCount = 0;
+
+    /**
+     * The number of documents evicted to stay within <tt>maxSize</tt>.
+     */
+    private long evictionCount = 0;
+
+    /**
+     * The time the hits, misses and evictions were last logged, in
+     * milliseconds.
+     */
+    private long statisticsLogTime = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the maximum estimated size of the cached documents in
+     * bytes
+     */
+    HistoryDocumentCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached document of a history file.
+     *
+     * @param file the history file
+     * @return the document or <tt>null</tt> if not cached
+     */
+    synchronized Document get(File file)
+    {
+        Entry entry = documents.get(file);
+        if (entry == null)
+            missCount++;
+        else
+            hitCount++;
+
+        logStatistics();
+        return entry == null ? null : entry.document;
+    }
+
+    /**
+     * Logs the hits, misses and evictions of the cache at debug level, at
+     * most once per <tt>STATISTICS_LOG_INTERVAL</tt>.
+     */
+    private void logStatistics()
+    {
+        if (!logger.isDebugEnabled())
+            return;
+
+        long now = System.currentTimeMillis();
+        if (now - statisticsLogTime < STATISTICS_LOG_INTERVAL)
+            return;
+
+        statisticsLogTime = now;
+        logger.debug("History document cache: " + this);
+    }
+
+    /**
+     * Returns the cached document of a history file without counting the
+     * lookup as a hit or a miss.
+     *
+     * @param file the history file
+     * @return the document or <tt>null</tt> if not cached
+     */
+    synchronized Document peek(File file)
+    {
+        Entry entry = documents.get(file);
+        return entry == null ? null : entry.document;
+    }
+
+    /**
+     * Caches the document of a history file, or updates its estimated size
+     * if already cached, evicting the least recently used documents if
+     * needed. A document larger than the whole cache is not cached.
+     *
+     * @param file the history file
+     * @param document the parsed content of the file
+     */
+    synchronized void put(File file, Document document)
+    {
+        long weight = DOCUMENT_SIZE_ESTIMATE + RECORD_SIZE_ESTIMATE
+            * document.getElementsByTagName("record").getLength();
+
+        remove(file);
+        if (weight > maxSize)
+            return;
+
+        documents.put(file, new Entry(document, weight));
+        size += weight;
+
+        Iterator<Map.Entry<File, Entry>> iter
+            = documents.entrySet().iterator();
+        while (size > maxSize && iter.hasNext())
+        {
+            Map.Entry<File, Entry> eldest = iter.next();
+            if (eldest.getKey().equals(file))
+                continue;
+
+            size -= eldest.getValue().weight;
+            iter.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes the document of a history file.
+     *
+     * @param file the history file
+     */
+    synchronized void remove(File file)
+    {
+        Entry entry = documents.remove(file);
+        if (entry != null)
+            size -= entry.weight;
+    }
+
+    /**
+     * Removes the documents of all the files in a history directory.
+     *
+     * @param directory the history directory
+     */
+    synchronized void removeAll(File directory)
+    {
+        Iterator<Map.Entry<File, Entry>> iter
+            = documents.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<File, Entry> e = iter.next();
+            if (directory.equals(e.getKey().getParentFile()))
+            {
+                size -= e.getValue().weight;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found their document.
+     * @return the number of cache hits
+     */
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups which did not find their document.
+     * @return the number of cache misses
+     */
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of documents evicted to stay within the size limit.
+     * @return the number of evictions
+     */
+    synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the estimated size of the cached documents.
+     * @return the estimated size of the cached documents in bytes
+     */
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "HistoryDocumentCache[documents=" + documents.size()
+            + ", size=" + size + "/" + maxSize
+            + ", hits=" + hitCount
+            + ", misses=" + missCount
+            + ", evictions=" + evictionCount + "]";
+    }
+
+    /**
+     * A cached document and its estimated size.
+     */
+    private static class Entry
+    {
+        private final Document document;
+
+        private final long weight;
+
+        private Entry(Document document, long weight)
+        {
+            this.document = document;
+            this.weight = weight;
+        }
+    }
+}
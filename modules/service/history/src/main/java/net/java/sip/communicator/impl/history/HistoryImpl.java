@@ -21,6 +21,8 @@
 import java.security.*;
 import java.util.*;
 
+import javax.xml.stream.*;
+
 import lombok.extern.slf4j.*;
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
@@ -58,9 +60,24 @@
 
     private HistoryWriter writer;
 
+    /**
+     * The history files by name. The value is the <tt>File</tt>, or the
+     * <tt>Document</tt> of a new file until it is first written. Parsed
+     * documents are kept in the <tt>HistoryDocumentCache</tt> of the service.
+     */
     private SortedMap<String, Object> historyDocuments
         = new TreeMap<String, Object>();
 
+    /**
+     * The keyword index of this history.
+     */
+    private final HistoryKeywordIndex keywordIndex;
+
+    /**
+     * The record timestamps of this history.
+     */
+    private final HistoryTimestampIndex timestampIndex;
+
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
      * identifier, the directory, the <tt>HistoryRecordStructure</tt> to use
@@ -87,6 +104,9 @@ protected HistoryImpl(HistoryID id, File directory,
         this.historyRecordStructure = historyRecordStructure;
         this.reader = null;
         this.writer = null;
+        this.keywordIndex = new HistoryKeywordIndex(directory);
+        this.timestampIndex = new HistoryTimestampIndex(
+            directory, historyServiceImpl.isTimestampIndexEnabled());
 
         this.reloadDocumentList();
     }
@@ -166,6 +186,34 @@ protected HistoryServiceImpl getHistoryServiceImpl()
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the keyword index of this history.
+     * @return the keyword index or <tt>null</tt> if disabled
+     */
+    HistoryKeywordIndex getKeywordIndex()
+    {
+        return historyServiceImpl.isKeywordIndexEnabled()
+            ? keywordIndex : null;
+    }
+
+    /**
+     * Returns the record timestamps of this history.
+     * @return the record timestamps of this history
+     */
+    HistoryTimestampIndex getTimestampIndex()
+    {
+        return timestampIndex;
+    }
+
+    /**
+     * Returns the directory of this history.
+     * @return the directory of this history
+     */
+    File getDirectory()
+    {
+        return directory;
+    }
+
     void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
@@ -212,8 +260,9 @@ protected Document createDocument(String filename)
         return retVal;
     }
 
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
         File file = new File(this.directory, filename);
 
         synchronized (this.historyDocuments)
@@ -224,40 +273,62 @@ protected void writeFile(String filename) throws InvalidParameterException,
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
+            synchronized (doc)
             {
-                Document doc = (Document) obj;
+                XMLUtils.writeXML(doc, file);
 
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
+                // the written document is the current content of the file
+                this.historyDocuments.put(filename, file);
+                HistoryDocumentCache cache
+                    = historyServiceImpl.getDocumentCache();
+                if (cache != null)
+                    cache.put(file, doc);
             }
         }
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Makes a document, modified but not written yet, the content returned
+     * for a history file until it is written.
+     *
+     * @param filename the history file
+     * @param doc the current content of the file
+     */
+    void setPendingDocument(String filename, Document doc)
     {
-        File file = new File(this.directory, filename);
-
         synchronized (this.historyDocuments)
         {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
+            this.historyDocuments.put(filename, doc);
+        }
+    }
 
-            synchronized (doc)
-            {
-                XMLUtils.writeXML(doc, file);
-            }
+    /**
+     * Returns whether a history file has changes which are not written yet.
+     *
+     * @param filename the history file
+     * @return <tt>true</tt> if the file has changes not written yet
+     */
+    boolean isPending(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            return this.historyDocuments.get(filename) instanceof Document;
         }
     }
 
+    /**
+     * Writes the records queued by the writer of this history.
+     *
+     * @throws IOException if writing fails
+     */
+    void flush()
+        throws IOException
+    {
+        HistoryWriter writer = this.writer;
+        if (writer instanceof HistoryWriterImpl)
+            ((HistoryWriterImpl) writer).flush();
+    }
+
     protected Iterator<String> getFileList()
     {
         return this.historyDocuments.keySet().iterator();
@@ -283,6 +354,15 @@ protected Document getDocumentForFile(String filename)
             } else if (obj instanceof File)
             {
                 File file = (File) obj;
+                HistoryDocumentCache cache
+                    = historyServiceImpl.getDocumentCache();
+
+                if (cache != null)
+                {
+                    retVal = cache.get(file);
+                    if (retVal != null)
+                        return retVal;
+                }
 
                 try {
                     retVal = this.historyServiceImpl.parse(file);
@@ -302,8 +382,8 @@ protected Document getDocumentForFile(String filename)
                 }
 
                 // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
+                if(cache != null)
+                    cache.put(file, retVal);
             } else {
                 // TODO: Assert: Assert.fail("Internal error - the data type " +
                 // "should be either Document or File.");
@@ -313,6 +393,208 @@ protected Document getDocumentForFile(String filename)
         return retVal;
     }
 
+    /**
+     * Reads the timestamps of the records in a history file, in record
+     * order. Uses the loaded document if cached, otherwise streams over the
+     * file without building its DOM.
+     *
+     * @param filename the history file
+     * @return the timestamps or <tt>null</tt> if the file cannot be read
+     */
+    long[] readTimestamps(String filename)
+    {
+        Document doc = getCachedDocument(filename);
+
+        if (doc == null)
+        {
+            try
+            {
+                return HistoryTimestampIndex.readTimestamps(
+                    new File(this.directory, filename));
+            }
+            catch (IOException e)
+            {
+                logger.debug("Streaming " + filename + " failed", e);
+            }
+
+            // let the usual parsing fix the file if possible
+            doc = getDocumentForFile(filename);
+            if (doc == null)
+                return null;
+        }
+
+        synchronized (doc)
+        {
+            return HistoryTimestampIndex.readTimestamps(doc);
+        }
+    }
+
+    /**
+     * Returns the record elements with the given ordinals from a history
+     * file. When the documents are not cached, only the requested records
+     * are built, on a scratch document, while streaming over the file.
+     *
+     * @param filename the history file
+     * @param ordinals the ordinals of the records in the file
+     * @return ordinal -> record element, missing records are omitted
+     */
+    SortedMap<Integer, Node> getRecordNodes(String filename, BitSet ordinals)
+    {
+        SortedMap<Integer, Node> result = new TreeMap<Integer, Node>();
+        if (ordinals.isEmpty())
+            return result;
+
+        Document doc = getCachedDocument(filename);
+
+        if (doc == null && !historyServiceImpl.isCacheEnabled())
+        {
+            try
+            {
+                return readRecordNodes(
+                    new File(this.directory, filename), ordinals);
+            }
+            catch (IOException e)
+            {
+                logger.debug("Streaming " + filename + " failed", e);
+            }
+        }
+
+        if (doc == null)
+            doc = getDocumentForFile(filename);
+        if (doc == null)
+            return result;
+
+        NodeList nodes = doc.getElementsByTagName("record");
+        for (int i = ordinals.nextSetBit(0);
+             i >= 0 && i < nodes.getLength();
+             i = ordinals.nextSetBit(i + 1))
+        {
+            result.put(i, nodes.item(i));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the loaded document of a history file.
+     *
+     * @param filename the history file
+     * @return the document or <tt>null</tt> if it is not loaded
+     */
+    private Document getCachedDocument(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            if (!this.historyDocuments.containsKey(filename))
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+
+            Object obj = this.historyDocuments.get(filename);
+            if (obj instanceof Document)
+                return (Document) obj;
+
+            HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+            return cache == null ? null : cache.peek((File) obj);
+        }
+    }
+
+    /**
+     * Builds the record elements with the given ordinals while streaming
+     * over a history file. The elements have the same shape as the parsed
+     * ones, property elements without a value have no child.
+     *
+     * @param file the history file
+     * @param ordinals the ordinals of the records in the file
+     * @return ordinal -> record element
+     * @throws IOException if the file cannot be read or parsed
+     */
+    private SortedMap<Integer, Node> readRecordNodes(File file, BitSet ordinals)
+        throws IOException
+    {
+        SortedMap<Integer, Node> result = new TreeMap<Integer, Node>();
+        Document doc = this.historyServiceImpl.newDocument();
+        int last = ordinals.length() - 1;
+
+        try (InputStream in
+                = new BufferedInputStream(new FileInputStream(file)))
+        {
+            XMLStreamReader reader = HistoryTimestampIndex.createReader(in);
+            try
+            {
+                int depth = 0;
+                int ordinal = -1;
+                Element record = null;
+                Element property = null;
+                StringBuilder value = new StringBuilder();
+
+                while (reader.hasNext() && ordinal <= last)
+                {
+                    switch (reader.next())
+                    {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        if (depth == 2
+                            && "record".equals(reader.getLocalName()))
+                        {
+                            ordinal++;
+                            if (ordinals.get(ordinal))
+                            {
+                                record = doc.createElement("record");
+                                for (int i = 0;
+                                     i < reader.getAttributeCount();
+                                     i++)
+                                {
+                                    record.setAttribute(
+                                        reader.getAttributeLocalName(i),
+                                        reader.getAttributeValue(i));
+                                }
+                                result.put(ordinal, record);
+                            }
+                        }
+                        else if (depth == 3 && record != null)
+                        {
+                            property = doc.createElement(reader.getLocalName());
+                            value.setLength(0);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (property != null && depth == 3)
+                            value.append(reader.getText());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (depth == 3 && property != null)
+                        {
+                            if (value.length() > 0)
+                                property.appendChild(
+                                    doc.createTextNode(value.toString()));
+                            record.appendChild(property);
+                            property = null;
+                        }
+                        else if (depth == 2)
+                        {
+                            record = null;
+                        }
+                        depth--;
+                        break;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException | RuntimeException e)
+        {
+            throw new IOException("Cannot read " + file, e);
+        }
+
+        return result;
+    }
+
     /**
      * Methods trying to fix histry xml files if corrupted
      */
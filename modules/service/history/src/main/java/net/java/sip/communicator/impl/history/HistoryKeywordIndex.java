@@ -0,0 +1,726 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.util.*;
+
+import org.apache.commons.text.*;
+import org.w3c.dom.*;
+
+/**
+ * A persistent inverted index of the words in the records of a
+ * <tt>HistoryImpl</tt>. Maps the normalized tokens of every field to the
+ * records (history file and record ordinal in the file) containing them.
+ * <p>
+ * Keyword searches use the index to find the candidate records and still
+ * verify every candidate with the regular keyword matching, so the index
+ * never changes search results. Keywords are matched as substrings, so a
+ * candidate is a record having, for every token of every keyword, a token
+ * containing it.
+ * <p>
+ * The index is kept in memory and persisted as an append-only journal in the
+ * history directory:
+ * <pre>
+ * F &lt;tab&gt; file                                  (re)indexing of a file
+ * R &lt;tab&gt; file &lt;tab&gt; ordinal (&lt;tab&gt; field=tokens)*   a record
+ * D &lt;tab&gt; file &lt;tab&gt; ordinal                   a removed record
+ * </pre>
+ * A removed record shifts the ordinals of the following records of its file,
+ * it is how a history limited to a number of records drops its oldest record
+ * for every added one. The journal is compacted when it gets much larger
+ * than the index. Invalid lines are skipped, and a file whose number of
+ * indexed records differs from its number of records is indexed again.
+ * <p>
+ * The journal is only loaded when a search needs it. Until then, changes are
+ * just appended to it, provided it was already created by a previous search.
+ * Histories which were never searched have no index until the first keyword
+ * search builds it from the history files.
+ */
+@Slf4j
+class HistoryKeywordIndex
+{
+    /**
+     * The name of the index file in the history directory.
+     */
+    static final String INDEX_FILE = "keywords.idx";
+
+    /**
+     * Journal lines above the live entries after which the journal is
+     * compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    /**
+     * The journal.
+     */
+    private final JournalFile journal;
+
+    /**
+     * field -> token -> history file -> ordinals of the records in the file.
+     */
+    private final Map<String, SortedMap<String, Map<String, BitSet>>> fields
+        = new HashMap<String, SortedMap<String, Map<String, BitSet>>>();
+
+    /**
+     * The history files covered by the index and the number of records
+     * indexed for each of them.
+     */
+    private final Map<String, Integer> indexedFiles
+        = new TreeMap<String, Integer>();
+
+    /**
+     * The number of lines in the journal, or of the lines appended to it
+     * while it is not loaded.
+     */
+    private int journalLines = 0;
+
+    /**
+     * Whether the journal was loaded in memory.
+     */
+    private boolean loaded = false;
+
+    /**
+     * Whether the index covers all the history files.
+     */
+    private boolean upToDate = false;
+
+    /**
+     * Creates the index of a history. The journal is loaded on first use.
+     *
+     * @param directory the history directory
+     */
+    HistoryKeywordIndex(File directory)
+    {
+        this.journal = new JournalFile(new File(directory, INDEX_FILE));
+    }
+
+    /**
+     * Loads the journal if not loaded yet.
+     */
+    private void ensureLoaded()
+    {
+        if (loaded)
+            return;
+
+        loaded = true;
+        if (journal.exists())
+            load();
+    }
+
+    /**
+     * Checks whether changes have to be recorded. They are only recorded
+     * once the index was built by a search.
+     *
+     * @return <tt>true</tt> if the index is maintained
+     */
+    private boolean isMaintained()
+    {
+        return loaded || journal.exists();
+    }
+
+    /**
+     * Indexes all the files of a history which are not covered by the index
+     * yet or whose number of records differs from the index, e.g. after a
+     * crash or a journal line which could not be read, plus the newest one
+     * which may miss changes written before a crash.
+     *
+     * @param history the history to index
+     */
+    synchronized void update(HistoryImpl history)
+    {
+        ensureLoaded();
+        upToDate = true;
+
+        String newest = null;
+        List<String> missing = new ArrayList<String>();
+        Iterator<String> files = history.getFileList();
+        while (files.hasNext())
+        {
+            String f = files.next();
+            newest = f;
+            Integer indexed = indexedFiles.get(f);
+            if (indexed == null)
+            {
+                missing.add(f);
+                continue;
+            }
+
+            HistoryTimestampIndex.FileTimestamps timestamps
+                = history.getTimestampIndex().getTimestamps(history, f);
+            if (timestamps == null || timestamps.size() != indexed)
+                missing.add(f);
+        }
+        if (newest != null && !missing.contains(newest))
+            missing.add(newest);
+
+        for (String f : missing)
+        {
+            Document doc = history.getDocumentForFile(f);
+            if (doc != null)
+                reindexFile(f, doc);
+        }
+    }
+
+    /**
+     * Drops the whole index and indexes all files of a history again.
+     *
+     * @param history the history to index
+     */
+    synchronized void rebuild(HistoryImpl history)
+    {
+        fields.clear();
+        indexedFiles.clear();
+        journalLines = 0;
+        loaded = true;
+        if (!journal.delete())
+            logger.warn("Cannot delete keyword index " + journal.getFile());
+
+        update(history);
+    }
+
+    /**
+     * Adds a record appended to a history file.
+     *
+     * @param filename the history file
+     * @param removed the ordinal of the record removed from the file to make
+     * room for the new one, or <tt>-1</tt>
+     * @param ordinal the ordinal of the record in the file
+     * @param names the property names of the record
+     * @param values the property values of the record
+     */
+    synchronized void addRecord(String filename, int removed, int ordinal,
+                                String[] names, String[] values)
+    {
+        if (!isMaintained())
+            return;
+
+        StringBuilder line = new StringBuilder();
+        if (loaded && !indexedFiles.containsKey(filename))
+        {
+            indexedFiles.put(filename, 0);
+            line.append("F\t").append(filename).append('\n');
+        }
+        else if (removed >= 0)
+        {
+            if (loaded)
+                removeRecord(filename, removed);
+            line.append("D\t").append(filename).append('\t').append(removed)
+                .append('\n');
+        }
+
+        appendRecord(line, filename, ordinal, names, values);
+        append(line.toString());
+    }
+
+    /**
+     * Indexes again all the records of a history file, after records were
+     * inserted, removed or updated in it.
+     *
+     * @param filename the history file
+     * @param doc the current content of the file
+     */
+    synchronized void reindexFile(String filename, Document doc)
+    {
+        if (!isMaintained())
+            return;
+
+        if (loaded)
+        {
+            removeFile(filename);
+            indexedFiles.put(filename, 0);
+        }
+
+        StringBuilder lines = new StringBuilder("F\t")
+            .append(filename).append('\n');
+        NodeList nodes = doc.getElementsByTagName("record");
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            NodeList properties = nodes.item(i).getChildNodes();
+            List<String> names = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            for (int j = 0; j < properties.getLength(); j++)
+            {
+                Node property = properties.item(j);
+                if (property.getNodeType() != Node.ELEMENT_NODE
+                    || property.getFirstChild() == null)
+                    continue;
+
+                names.add(property.getNodeName());
+                values.add(StringEscapeUtils.unescapeXml(
+                    property.getFirstChild().getNodeValue()));
+            }
+
+            appendRecord(lines, filename, i,
+                names.toArray(new String[names.size()]),
+                values.toArray(new String[values.size()]));
+        }
+
+        append(lines.toString());
+    }
+
+    /**
+     * Returns the records which may match all <tt>keywords</tt> in
+     * <tt>field</tt>. Builds or updates the index if needed.
+     *
+     * @param history the history this index belongs to
+     * @param field the field to search
+     * @param keywords the keywords to search for
+     * @return history file -> candidate record ordinals, or <tt>null</tt> if
+     * the index cannot narrow the search (e.g. keywords without letters or
+     * digits), in which case all records have to be checked
+     */
+    synchronized Map<String, BitSet> findCandidates(HistoryImpl history,
+                                                    String field,
+                                                    String[] keywords)
+    {
+        if (!upToDate)
+            update(history);
+
+        List<String> tokens = new ArrayList<String>();
+        for (String k : keywords)
+            tokens.addAll(tokenize(k));
+        if (tokens.isEmpty())
+            return null;
+
+        SortedMap<String, Map<String, BitSet>> dictionary = fields.get(field);
+        Map<String, BitSet> result = null;
+        for (String token : tokens)
+        {
+            Map<String, BitSet> matching = new HashMap<String, BitSet>();
+            if (dictionary != null)
+            {
+                for (Map.Entry<String, Map<String, BitSet>> e
+                        : dictionary.entrySet())
+                {
+                    if (!e.getKey().contains(token))
+                        continue;
+
+                    for (Map.Entry<String, BitSet> p : e.getValue().entrySet())
+                    {
+                        BitSet b = matching.get(p.getKey());
+                        if (b == null)
+                            matching.put(p.getKey(), (BitSet) p.getValue().clone());
+                        else
+                            b.or(p.getValue());
+                    }
+                }
+            }
+
+            if (result == null)
+            {
+                result = matching;
+            }
+            else
+            {
+                Iterator<Map.Entry<String, BitSet>> iter
+                    = result.entrySet().iterator();
+                while (iter.hasNext())
+                {
+                    Map.Entry<String, BitSet> e = iter.next();
+                    BitSet other = matching.get(e.getKey());
+                    if (other != null)
+                        e.getValue().and(other);
+                    if (other == null || e.getValue().isEmpty())
+                        iter.remove();
+                }
+            }
+
+            if (result.isEmpty())
+                break;
+        }
+
+        return result;
+    }
+
+    /**
+     * Splits a text in lower case tokens of letters and digits.
+     *
+     * @param text the text to split
+     * @return the tokens of the text
+     */
+    static List<String> tokenize(String text)
+    {
+        List<String> tokens = new ArrayList<String>();
+        if (text == null)
+            return tokens;
+
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++)
+        {
+            boolean wordChar = i < lower.length()
+                && Character.isLetterOrDigit(lower.charAt(i));
+            if (wordChar && start < 0)
+            {
+                start = i;
+            }
+            else if (!wordChar && start >= 0)
+            {
+                tokens.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Adds a record to the in-memory index, if loaded, and its journal line
+     * to <tt>line</tt>.
+     */
+    private void appendRecord(StringBuilder line, String filename,
+                              int ordinal, String[] names, String[] values)
+    {
+        line.append("R\t").append(filename).append('\t').append(ordinal);
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            List<String> tokens = tokenize(values[i]);
+            if (tokens.isEmpty())
+                continue;
+
+            String field = names[i];
+            if (field.endsWith("_CDATA"))
+                field = field.substring(0, field.length() - 6);
+
+            line.append('\t').append(field).append('=');
+            for (int t = 0; t < tokens.size(); t++)
+            {
+                if (t > 0)
+                    line.append(' ');
+                line.append(tokens.get(t));
+                if (loaded)
+                    addPosting(field, tokens.get(t), filename, ordinal);
+            }
+        }
+        line.append('\n');
+        if (loaded)
+            indexedFiles.put(filename, indexedFiles.get(filename) + 1);
+    }
+
+    private void addPosting(String field, String token, String filename,
+                            int ordinal)
+    {
+        SortedMap<String, Map<String, BitSet>> dictionary = fields.get(field);
+        if (dictionary == null)
+        {
+            dictionary = new TreeMap<String, Map<String, BitSet>>();
+            fields.put(field, dictionary);
+        }
+
+        Map<String, BitSet> postings = dictionary.get(token);
+        if (postings == null)
+        {
+            postings = new HashMap<String, BitSet>(4);
+            dictionary.put(token, postings);
+        }
+
+        BitSet ordinals = postings.get(filename);
+        if (ordinals == null)
+        {
+            ordinals = new BitSet();
+            postings.put(filename, ordinals);
+        }
+        ordinals.set(ordinal);
+    }
+
+    /**
+     * Drops the postings of a record from the in-memory index and shifts the
+     * ordinals of the following records of its file.
+     */
+    private void removeRecord(String filename, int ordinal)
+    {
+        Integer records = indexedFiles.get(filename);
+        if (records == null)
+            return;
+        if (records > 0)
+            indexedFiles.put(filename, records - 1);
+
+        for (SortedMap<String, Map<String, BitSet>> dictionary
+                : fields.values())
+        {
+            Iterator<Map<String, BitSet>> iter
+                = dictionary.values().iterator();
+            while (iter.hasNext())
+            {
+                Map<String, BitSet> postings = iter.next();
+                BitSet ordinals = postings.get(filename);
+                if (ordinals == null || ordinals.length() <= ordinal)
+                    continue;
+
+                BitSet following = ordinals.get(ordinal + 1, ordinals.length());
+                ordinals.clear(ordinal, ordinals.length());
+                for (int i = following.nextSetBit(0);
+                        i >= 0;
+                        i = following.nextSetBit(i + 1))
+                {
+                    ordinals.set(ordinal + i);
+                }
+
+                if (ordinals.isEmpty())
+                {
+                    postings.remove(filename);
+                    if (postings.isEmpty())
+                        iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records in the in-memory index.
+     */
+    private int recordEntries()
+    {
+        int recordEntries = 0;
+        for (int count : indexedFiles.values())
+            recordEntries += count;
+        return recordEntries;
+    }
+
+    /**
+     * Drops all the postings of a history file from the in-memory index.
+     */
+    private void removeFile(String filename)
+    {
+        Integer records = indexedFiles.remove(filename);
+        if (records == null || records == 0)
+            return;
+
+        for (SortedMap<String, Map<String, BitSet>> dictionary
+                : fields.values())
+        {
+            Iterator<Map<String, BitSet>> iter
+                = dictionary.values().iterator();
+            while (iter.hasNext())
+            {
+                Map<String, BitSet> postings = iter.next();
+                postings.remove(filename);
+                if (postings.isEmpty())
+                    iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Appends lines to the journal and compacts it if needed. A journal which
+     * is not loaded is loaded once enough lines were appended to it, so that
+     * it can be compacted.
+     */
+    private void append(String lines)
+    {
+        try
+        {
+            journal.append(lines);
+        }
+        catch (IOException e)
+        {
+            logger.error(
+                "Failed to write keyword index " + journal.getFile(), e);
+        }
+
+        for (int i = 0; i < lines.length(); i++)
+        {
+            if (lines.charAt(i) == '\n')
+                journalLines++;
+        }
+
+        if (journalLines <= COMPACT_THRESHOLD)
+            return;
+
+        if (!loaded)
+            ensureLoaded();
+        else if (journalLines > 2 * recordEntries() + COMPACT_THRESHOLD)
+            compact();
+    }
+
+    /**
+     * Replays the journal and compacts it if needed.
+     */
+    private void load()
+    {
+        List<String> lines = new ArrayList<String>();
+        try
+        {
+            if (!journal.read(lines))
+            {
+                logger.warn(
+                    "Dropped a torn line of keyword index "
+                        + journal.getFile());
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn(
+                "Failed to fully read keyword index " + journal.getFile(), e);
+        }
+
+        journalLines = lines.size();
+        for (String line : lines)
+        {
+            try
+            {
+                String[] parts = line.split("\t");
+                if (parts.length >= 2 && "F".equals(parts[0]))
+                {
+                    removeFile(parts[1]);
+                    indexedFiles.put(parts[1], 0);
+                }
+                else if (parts.length == 3 && "D".equals(parts[0]))
+                {
+                    removeRecord(parts[1], Integer.parseInt(parts[2]));
+                }
+                else if (parts.length >= 3 && "R".equals(parts[0]))
+                {
+                    int ordinal = Integer.parseInt(parts[2]);
+                    Integer count = indexedFiles.get(parts[1]);
+                    indexedFiles.put(parts[1], count == null ? 1 : count + 1);
+                    for (int i = 3; i < parts.length; i++)
+                    {
+                        int eq = parts[i].indexOf('=');
+                        String field = parts[i].substring(0, eq);
+                        for (String token
+                                : parts[i].substring(eq + 1).split(" "))
+                        {
+                            addPosting(field, token, parts[1], ordinal);
+                        }
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // e.g. a line continued by another one after a failed
+                // write, the file is indexed again on update as its number
+                // of records differs
+                logger.debug("Skipping invalid line in " + journal.getFile());
+            }
+        }
+
+        if (journalLines > 2 * recordEntries() + COMPACT_THRESHOLD)
+            compact();
+    }
+
+    /**
+     * Writes the in-memory index as a new journal.
+     */
+    private void compact()
+    {
+        // regroup the postings per record
+        Map<String, SortedMap<Integer, StringBuilder>> records
+            = new TreeMap<String, SortedMap<Integer, StringBuilder>>();
+        for (Map.Entry<String, SortedMap<String, Map<String, BitSet>>> f
+                : fields.entrySet())
+        {
+            Map<String, Map<Integer, StringBuilder>> fieldTokens
+                = new HashMap<String, Map<Integer, StringBuilder>>();
+            for (Map.Entry<String, Map<String, BitSet>> t
+                    : f.getValue().entrySet())
+            {
+                for (Map.Entry<String, BitSet> p : t.getValue().entrySet())
+                {
+                    Map<Integer, StringBuilder> perOrdinal
+                        = fieldTokens.get(p.getKey());
+                    if (perOrdinal == null)
+                    {
+                        perOrdinal = new HashMap<Integer, StringBuilder>();
+                        fieldTokens.put(p.getKey(), perOrdinal);
+                    }
+
+                    BitSet b = p.getValue();
+                    for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i + 1))
+                    {
+                        StringBuilder tokens = perOrdinal.get(i);
+                        if (tokens == null)
+                        {
+                            tokens = new StringBuilder();
+                            perOrdinal.put(i, tokens);
+                        }
+                        else
+                        {
+                            tokens.append(' ');
+                        }
+                        tokens.append(t.getKey());
+                    }
+                }
+            }
+
+            for (Map.Entry<String, Map<Integer, StringBuilder>> e
+                    : fieldTokens.entrySet())
+            {
+                SortedMap<Integer, StringBuilder> perRecord
+                    = records.get(e.getKey());
+                if (perRecord == null)
+                {
+                    perRecord = new TreeMap<Integer, StringBuilder>();
+                    records.put(e.getKey(), perRecord);
+                }
+
+                for (Map.Entry<Integer, StringBuilder> r
+                        : e.getValue().entrySet())
+                {
+                    StringBuilder line = perRecord.get(r.getKey());
+                    if (line == null)
+                    {
+                        line = new StringBuilder();
+                        perRecord.put(r.getKey(), line);
+                    }
+                    line.append('\t').append(f.getKey()).append('=')
+                        .append(r.getValue());
+                }
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        int lines = 0;
+        for (Map.Entry<String, Integer> f : indexedFiles.entrySet())
+        {
+            out.append("F\t").append(f.getKey()).append('\n');
+            lines++;
+
+            SortedMap<Integer, StringBuilder> perRecord
+                = records.get(f.getKey());
+            if (perRecord == null)
+                continue;
+
+            for (Map.Entry<Integer, StringBuilder> r : perRecord.entrySet())
+            {
+                out.append("R\t").append(f.getKey()).append('\t')
+                    .append(r.getKey()).append(r.getValue()).append('\n');
+                lines++;
+            }
+        }
+
+        try
+        {
+            journal.write(out.toString());
+        }
+        catch (IOException e)
+        {
+            logger.error(
+                "Failed to compact keyword index " + journal.getFile(), e);
+            return;
+        }
+
+        journalLines = lines;
+    }
+}
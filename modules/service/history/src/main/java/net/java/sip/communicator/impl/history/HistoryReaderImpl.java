@@ -17,10 +17,6 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
@@ -207,61 +203,28 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        HistoryTimestampIndex index = historyImpl.getTimestampIndex();
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            String filename = filelist.get(currentFile--);
+            HistoryTimestampIndex.FileTimestamps timestamps
+                = index.getTimestamps(historyImpl, filename);
 
-            if(doc == null)
-            {
-                currentFile--;
+            if(timestamps == null)
                 continue;
-            }
 
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
-
-            List<Node> lNodes = null;
+            // only the last records of the file are read
+            int size = timestamps.size();
+            BitSet ordinals = new BitSet(size);
+            ordinals.set(Math.max(0, size - leftCount), size);
+            leftCount -= ordinals.cardinality();
 
-            if (nodes.size() > leftCount)
+            for (Map.Entry<Integer, Node> e
+                    : historyImpl.getRecordNodes(filename, ordinals).entrySet())
             {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
-
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
                 HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
+                    filterByKeyword(e.getValue().getChildNodes(),
+                        new Date(timestamps.get(e.getKey())),
                         keywords, field, caseSensitive);
 
                 if(record != null)
@@ -269,8 +232,6 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
                     result.add(record);
                 }
             }
-
-            currentFile--;
         }
 
         return new OrderedQueryResultSet<HistoryRecord>(result);
@@ -358,83 +319,10 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile++;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
-            }
-
+            leftCount -= readRecordsInPeriod(filelist.get(currentFile),
+                date, null, leftCount, false, result);
             currentFile++;
         }
 
@@ -463,178 +351,386 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            leftCount -= readRecordsInPeriod(filelist.get(currentFile),
+                null, date, leftCount, true, result);
+            currentFile--;
+        }
 
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+    /**
+     * Searches the records in a period which contain all <tt>keywords</tt>.
+     * The records are only read while the returned result set is iterated, a
+     * few files at a time. As when all the files were read at once, the
+     * records are ordered by timestamp and only the first record found with
+     * a timestamp is returned: the files whose records interleave, according
+     * to their indexed timestamps, are read and merged together.
+     * <p>
+     * The progress is reported while the timestamps of the files are read,
+     * when the result set is created.
+     *
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> find(
+        final Date startDate, final Date endDate,
+        final String[] keywords, final String field,
+        final boolean caseSensitive)
+    {
+        Vector<String> filelist
+            = filterFilesByDate(this.historyImpl.getFileList(),
+                                startDate, endDate);
 
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
-            {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
+        // start progress - minimum value
+        fireProgressStateChanged(startDate, endDate,
+            keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+        long start = startDate == null ? Long.MIN_VALUE : startDate.getTime();
+        long end = endDate == null ? Long.MAX_VALUE : endDate.getTime();
 
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
+        // consecutive files whose timestamp ranges overlap
+        final List<List<String>> runs = new ArrayList<List<String>>();
+        long runEnd = Long.MIN_VALUE;
+        HistoryTimestampIndex index = historyImpl.getTimestampIndex();
+        for (int i = 0; i < filelist.size(); i++)
+        {
+            String filename = filelist.get(i);
+            HistoryTimestampIndex.FileTimestamps timestamps
+                = index.getTimestamps(historyImpl, filename);
 
-                ArrayList<String> nameVals = new ArrayList<String>();
+            if (timestamps != null && timestamps.overlaps(start, end))
+            {
+                if (runs.isEmpty() || timestamps.min() > runEnd)
+                    runs.add(new ArrayList<String>());
+                runs.get(runs.size() - 1).add(filename);
+                runEnd = Math.max(runEnd, timestamps.max());
+            }
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
+            if (i + 1 < filelist.size())
+            {
+                fireProgressStateChanged(startDate, endDate, keywords,
+                    HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                        * (i + 1) / filelist.size());
+            }
+        }
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+
+        return new LazyQueryResultSet<HistoryRecord>(runs.size())
+        {
+            /**
+             * The timestamps of the records of the runs read at least once,
+             * so that a run read again returns the same records even if
+             * records were added to its files meanwhile.
+             */
+            private final long[][] runTimestamps = new long[runs.size()][];
+
+            @Override
+            protected List<HistoryRecord> loadChunk(int chunk)
+            {
+                synchronized (HistoryReaderImpl.this)
                 {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    // only the records found by the keyword index need to be
+                    // checked, they are looked up when the run is read as
+                    // the ordinals shift when records are dropped from a
+                    // history limited to a number of records
+                    Map<String, BitSet> candidates = findKeywordCandidates(
+                        historyImpl, keywords, field);
+
+                    List<HistoryRecord> records = readRun(runs.get(chunk),
+                        candidates, startDate, endDate,
+                        keywords, field, caseSensitive, runTimestamps[chunk]);
+
+                    if (runTimestamps[chunk] == null)
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
+                        long[] timestamps = new long[records.size()];
+                        for (int i = 0; i < timestamps.length; i++)
                         {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
+                            timestamps[i]
+                                = records.get(i).getTimestamp().getTime();
                         }
-                        else
-                            isRecordOK = false;
+                        runTimestamps[chunk] = timestamps;
                     }
+                    return records;
                 }
+            }
+        };
+    }
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+    /**
+     * Reads the records of a run of history files which are in a period and
+     * contain all <tt>keywords</tt>, ordered by timestamp. Of the records
+     * with the same timestamp, only the first one found is kept.
+     *
+     * @param run the history files, oldest first
+     * @param candidates history file -> the only records to check, or
+     * <tt>null</tt> to check all the records
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @param known the sorted timestamps of the only records to return, or
+     * <tt>null</tt> to return all the found records
+     * @return the found records ordered by timestamp
+     */
+    private List<HistoryRecord> readRun(List<String> run,
+                                        Map<String, BitSet> candidates,
+                                        Date startDate,
+                                        Date endDate,
+                                        String[] keywords,
+                                        String field,
+                                        boolean caseSensitive,
+                                        long[] known)
+    {
+        TreeMap<Long, HistoryRecord> records
+            = new TreeMap<Long, HistoryRecord>();
 
-                result.add(record);
-                leftCount--;
+        for (String filename : run)
+        {
+            BitSet candidateRecords = null;
+            if (candidates != null)
+            {
+                candidateRecords = candidates.get(filename);
+                if (candidateRecords == null)
+                    continue;
             }
 
-            currentFile--;
+            for (HistoryRecord record : readFile(filename,
+                    startDate, endDate, candidateRecords,
+                    keywords, field, caseSensitive))
+            {
+                long ts = record.getTimestamp().getTime();
+                if (known != null && Arrays.binarySearch(known, ts) < 0)
+                    continue;
+                if (!records.containsKey(ts))
+                    records.put(ts, record);
+            }
         }
 
-        return new OrderedQueryResultSet<HistoryRecord>(result);
+        return new ArrayList<HistoryRecord>(records.values());
     }
 
-    private QueryResultSet<HistoryRecord> find(
-        Date startDate, Date endDate,
-        String[] keywords, String field, boolean caseSensitive)
+    /**
+     * Reads the records of a history file which are in a period and contain
+     * all <tt>keywords</tt>.
+     *
+     * @param filename the history file
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param candidateRecords the only records to check or <tt>null</tt>
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records ordered by timestamp
+     */
+    private List<HistoryRecord> readFile(String filename,
+                                         Date startDate,
+                                         Date endDate,
+                                         BitSet candidateRecords,
+                                         String[] keywords,
+                                         String field,
+                                         boolean caseSensitive)
     {
-        TreeSet<HistoryRecord> result
-            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
 
-        Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
+        HistoryTimestampIndex.FileTimestamps timestamps
+            = historyImpl.getTimestampIndex().getTimestamps(
+                historyImpl, filename);
 
-        double currentProgress
-            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
-        double fileProgressStep
-            = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+        long start = startDate == null ? Long.MIN_VALUE : startDate.getTime();
+        long end = endDate == null ? Long.MAX_VALUE : endDate.getTime();
 
-        if(filelist.size() != 0)
-            fileProgressStep
-                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
-                    / filelist.size();
+        // files with no record in the period are not read at all
+        if(timestamps == null || !timestamps.overlaps(start, end))
+            return result;
 
-        // start progress - minimum value
-        fireProgressStateChanged(startDate, endDate,
-            keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+        BitSet ordinals = new BitSet();
+        for (int i = nextRecord(candidateRecords, 0);
+             i >= 0 && i < timestamps.size();
+             i = nextRecord(candidateRecords, i + 1))
+        {
+            long ts = timestamps.get(i);
+            if (start <= ts && ts < end)
+                ordinals.set(i);
+        }
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        Iterator<String> fileIterator = filelist.iterator();
-        while (fileIterator.hasNext())
+        for (Map.Entry<Integer, Node> e
+                : historyImpl.getRecordNodes(filename, ordinals).entrySet())
         {
-            String filename = fileIterator.next();
+            HistoryRecord record =
+                filterByKeyword(e.getValue().getChildNodes(),
+                                new Date(timestamps.get(e.getKey())),
+                                keywords, field, caseSensitive);
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+            if(record != null)
+            {
+                result.add(record);
+            }
+        }
 
-            if(doc == null)
-                continue;
+        Collections.sort(result, new HistoryRecordComparator());
+        return result;
+    }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+    /**
+     * Adds to <tt>result</tt> up to <tt>count</tt> valid records of a file
+     * which are in the given period, the first ones in record order or the
+     * last ones if <tt>reverse</tt>. The records are selected by their
+     * indexed timestamps, only the selected ones are read.
+     *
+     * @param filename the history file
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param count the maximum number of records to add
+     * @param reverse whether to take the last records of the file
+     * @param result the records found
+     * @return the number of records added
+     */
+    private int readRecordsInPeriod(String filename,
+                                    Date startDate,
+                                    Date endDate,
+                                    int count,
+                                    boolean reverse,
+                                    Collection<HistoryRecord> result)
+    {
+        HistoryTimestampIndex.FileTimestamps timestamps
+            = historyImpl.getTimestampIndex().getTimestamps(
+                historyImpl, filename);
+
+        if(timestamps == null)
+            return 0;
 
-            double nodesProgressStep = fileProgressStep;
+        int added = 0;
+        int next = reverse ? timestamps.size() - 1 : 0;
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+        // broken records are skipped, so more may have to be read
+        while (added < count && next >= 0 && next < timestamps.size())
+        {
+            BitSet ordinals = new BitSet();
+            while (ordinals.cardinality() < count - added
+                   && next >= 0 && next < timestamps.size())
+            {
+                if (isInPeriod(
+                        new Date(timestamps.get(next)), startDate, endDate))
+                    ordinals.set(next);
+                next += reverse ? -1 : 1;
+            }
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            for (Map.Entry<Integer, Node> e
+                    : historyImpl.getRecordNodes(filename, ordinals).entrySet())
             {
-                node = nodes.item(i);
+                HistoryRecord record = toRecord(
+                    e.getValue(), new Date(timestamps.get(e.getKey())));
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                if (record != null)
                 {
-                    timestamp = new Date(Long.parseLong(ts));
+                    result.add(record);
+                    added++;
                 }
+            }
+        }
 
-                if(isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
+        return added;
+    }
 
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+    /**
+     * Creates the <tt>HistoryRecord</tt> of a record element.
+     *
+     * @param node the record element
+     * @param timestamp the timestamp of the record
+     * @return the record or <tt>null</tt> if the record is broken
+     */
+    static HistoryRecord toRecord(Node node, Date timestamp)
+    {
+        NodeList propertyNodes = node.getChildNodes();
+        ArrayList<String> nameVals = new ArrayList<String>();
 
-                    if(record != null)
-                    {
-                        result.add(record);
-                    }
-                }
+        int len = propertyNodes.getLength();
+        for (int j = 0; j < len; j++)
+        {
+            Node propertyNode = propertyNodes.item(j);
+            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+            {
+                // Get nested TEXT node's value
+                Node nodeValue = propertyNode.getFirstChild();
+
+                // if we found a broken record - just skip it
+                if(nodeValue == null)
+                    return null;
 
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
+                nameVals.add(propertyNode.getNodeName());
+                nameVals.add(nodeValue.getNodeValue());
             }
         }
 
-        // if maximum value is not reached fire an event
-        if((int)currentProgress
-                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        String[] propertyNames = new String[nameVals.size() / 2];
+        String[] propertyValues = new String[propertyNames.length];
+        for (int j = 0; j < propertyNames.length; j++)
         {
-            fireProgressStateChanged(startDate, endDate, keywords,
-                                     HistorySearchProgressListener.
-                                     PROGRESS_MAXIMUM_VALUE);
+            propertyNames[j] = nameVals.get(j * 2);
+            propertyValues[j] = nameVals.get(j * 2 + 1);
         }
 
-        return new OrderedQueryResultSet<HistoryRecord>(result);
+        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+    }
+
+    /**
+     * Returns the records which may contain all <tt>keywords</tt> in
+     * <tt>field</tt> according to the keyword index of the history.
+     *
+     * @param history the history to search
+     * @param keywords the keywords to search for
+     * @param field the field where to look for the keywords
+     * @return history file -> ordinals of the candidate records, or
+     * <tt>null</tt> if all records have to be checked
+     */
+    static Map<String, BitSet> findKeywordCandidates(
+        HistoryImpl history, String[] keywords, String field)
+    {
+        if (keywords == null || keywords.length == 0 || field == null)
+            return null;
+
+        HistoryKeywordIndex index = history.getKeywordIndex();
+        if (index == null)
+            return null;
+
+        return index.findCandidates(history, field, keywords);
+    }
+
+    /**
+     * Returns the ordinal of the next record to check.
+     *
+     * @param candidates the candidate records of the file or <tt>null</tt>
+     * if all records are candidates
+     * @param from the first ordinal to consider
+     * @return the next ordinal to check or -1 if there is none
+     */
+    static int nextRecord(BitSet candidates, int from)
+    {
+        return candidates == null ? from : candidates.nextSetBit(from);
+    }
+
+    /**
+     * Returns the ordinal of the previous record to check.
+     *
+     * @param candidates the candidate records of the file or <tt>null</tt>
+     * if all records are candidates
+     * @param from the last ordinal to consider
+     * @return the previous ordinal to check or -1 if there is none
+     */
+    static int previousRecord(BitSet candidates, int from)
+    {
+        return candidates == null || from < 0
+            ? from : candidates.previousSetBit(from);
     }
 
     /**
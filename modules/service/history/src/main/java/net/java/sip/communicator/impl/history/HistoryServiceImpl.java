@@ -63,6 +63,63 @@
 
     private final boolean cacheEnabled;
 
+    /**
+     * The parsed documents shared by the XML histories, <tt>null</tt> if
+     * caching is disabled.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    /**
+     * Whether the keyword index of the XML histories is maintained.
+     */
+    private final boolean keywordIndexEnabled;
+
+    /**
+     * Whether the timestamp index of the XML histories is maintained.
+     */
+    private final boolean timestampIndexEnabled;
+
+    /**
+     * The storage engine used for newly created histories.
+     */
+    private final String storageEngine;
+
+    /**
+     * Periodically syncs the appended records of segment log histories.
+     */
+    private Timer segmentLogSyncTimer = null;
+
+    /**
+     * Whether the XML histories write their added records in batches.
+     */
+    private final boolean writeBehindEnabled;
+
+    /**
+     * The maximum time an added record waits to be written.
+     */
+    private final int writeBehindDelay;
+
+    /**
+     * The number of queued records of a history which triggers a write.
+     */
+    private final int writeBehindBatchSize;
+
+    /**
+     * The writers with records waiting to be written.
+     */
+    private final Set<HistoryWriterImpl> dirtyWriters
+        = new LinkedHashSet<HistoryWriterImpl>();
+
+    /**
+     * Runs the writes of the write-behind mode.
+     */
+    private Timer writeBehindTimer = null;
+
+    /**
+     * The scheduled write of the queued records, if any.
+     */
+    private TimerTask scheduledFlush = null;
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -93,6 +150,23 @@ public HistoryServiceImpl(ConfigurationService configService,
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
         this.cacheEnabled = configService.getBoolean(
                 CACHE_ENABLED_PROPERTY, false);
+        this.documentCache = cacheEnabled
+            ? new HistoryDocumentCache(configService.getLong(
+                    CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE))
+            : null;
+        this.keywordIndexEnabled = configService.getBoolean(
+                KEYWORD_INDEX_ENABLED_PROPERTY, true);
+        this.timestampIndexEnabled = configService.getBoolean(
+                TIMESTAMP_INDEX_ENABLED_PROPERTY, true);
+        this.storageEngine = configService.getString(
+                STORAGE_ENGINE_PROPERTY, STORAGE_ENGINE_XML);
+        this.writeBehindEnabled = configService.getBoolean(
+                WRITE_BEHIND_ENABLED_PROPERTY, false);
+        this.writeBehindDelay = configService.getInt(
+                WRITE_BEHIND_DELAY_PROPERTY, DEFAULT_WRITE_BEHIND_DELAY);
+        this.writeBehindBatchSize = configService.getInt(
+                WRITE_BEHIND_BATCH_SIZE_PROPERTY,
+                DEFAULT_WRITE_BEHIND_BATCH_SIZE);
         this.fileAccessService = fas;
     }
 
@@ -127,6 +201,8 @@ public Iterator<HistoryID> getExistingIDs()
                     if (!this.histories.containsKey(hist.getID()))
                     {
                         this.histories.put(hist.getID(), hist);
+                        if (hist instanceof SegmentLogHistoryImpl)
+                            startSegmentLogSync();
                     }
                 }
                 catch (Exception e)
@@ -185,14 +261,25 @@ public History createHistory(
             else
             {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history;
+                if (STORAGE_ENGINE_SEGMENT_LOG.equals(storageEngine)
+                    && !containsXmlHistoryFiles(dir))
+                {
+                    history = new SegmentLogHistoryImpl(id, dir,
+                        recordStructure, this);
+                }
+                else
+                {
+                    history = new HistoryImpl(id, dir, recordStructure, this);
+                }
 
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
                 dbss.writeHistory(dbDatFile, history);
 
                 this.histories.put(id, history);
+                if (history instanceof SegmentLogHistoryImpl)
+                    startSegmentLogSync();
                 retVal = history;
             }
         }
@@ -200,6 +287,214 @@ public History createHistory(
         return retVal;
     }
 
+    /**
+     * Checks whether a history directory already holds XML history files, in
+     * which case the history keeps using the XML storage.
+     *
+     * @param dir the history directory
+     * @return <tt>true</tt> if there are XML history files in <tt>dir</tt>
+     */
+    private static boolean containsXmlHistoryFiles(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return false;
+
+        for (File f : files)
+        {
+            if (f.isFile()
+                && f.getName().endsWith("." + HistoryImpl.SUPPORTED_FILETYPE))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts the timer syncing the segment log histories, if not running.
+     * Appends sync on their own once a batch is full, the timer bounds the
+     * time a record of a quiet history stays unsynced.
+     */
+    private synchronized void startSegmentLogSync()
+    {
+        if (segmentLogSyncTimer != null)
+            return;
+
+        segmentLogSyncTimer = new Timer("HistorySegmentLogSync", true);
+        segmentLogSyncTimer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                for (History h : getLoadedHistories())
+                {
+                    if (!(h instanceof SegmentLogHistoryImpl))
+                        continue;
+
+                    try
+                    {
+                        ((SegmentLogHistoryImpl) h).getSegmentLog().sync();
+                    }
+                    catch (IOException e)
+                    {
+                        logger.error("Failed to sync history " + h.getID(), e);
+                    }
+                }
+            }
+        }, SegmentLog.SYNC_INTERVAL, SegmentLog.SYNC_INTERVAL);
+    }
+
+    /**
+     * Returns a snapshot of the histories loaded in memory.
+     *
+     * @return the loaded histories
+     */
+    private List<History> getLoadedHistories()
+    {
+        synchronized (this.histories)
+        {
+            return new ArrayList<History>(this.histories.values());
+        }
+    }
+
+    /**
+     * Releases the resources held by a history which is no longer used.
+     *
+     * @param history the history
+     */
+    private void closeHistory(History history)
+    {
+        if (history instanceof SegmentLogHistoryImpl)
+            ((SegmentLogHistoryImpl) history).getSegmentLog().close();
+        else if (history instanceof HistoryImpl)
+        {
+            HistoryImpl historyImpl = (HistoryImpl) history;
+            try
+            {
+                historyImpl.flush();
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to write history " + history.getID(), e);
+            }
+
+            if (documentCache != null)
+                documentCache.removeAll(historyImpl.getDirectory());
+        }
+    }
+
+    /**
+     * Returns whether the XML histories write their added records in
+     * batches, on a background thread.
+     * @return boolean
+     */
+    boolean isWriteBehindEnabled()
+    {
+        return writeBehindEnabled;
+    }
+
+    /**
+     * Returns the number of queued records of a history which triggers
+     * their write.
+     * @return the write-behind batch size
+     */
+    int getWriteBehindBatchSize()
+    {
+        return writeBehindBatchSize;
+    }
+
+    /**
+     * Schedules the write of the records queued by a writer, within the
+     * write-behind delay or at once.
+     *
+     * @param writer the writer with queued records
+     * @param now whether to write without waiting for the delay
+     */
+    synchronized void scheduleFlush(HistoryWriterImpl writer, boolean now)
+    {
+        dirtyWriters.add(writer);
+
+        if (writeBehindTimer == null)
+            writeBehindTimer = new Timer("HistoryWriteBehind", true);
+
+        if (now && scheduledFlush != null)
+        {
+            scheduledFlush.cancel();
+            scheduledFlush = null;
+        }
+
+        if (scheduledFlush == null)
+        {
+            scheduledFlush = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    flushWriters();
+                }
+            };
+            writeBehindTimer.schedule(
+                scheduledFlush, now ? 0 : writeBehindDelay);
+        }
+    }
+
+    /**
+     * Writes the records queued by all writers.
+     */
+    private void flushWriters()
+    {
+        List<HistoryWriterImpl> writers;
+        synchronized (this)
+        {
+            writers = new ArrayList<HistoryWriterImpl>(dirtyWriters);
+            dirtyWriters.clear();
+            scheduledFlush = null;
+        }
+
+        for (HistoryWriterImpl writer : writers)
+        {
+            try
+            {
+                writer.flush();
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to write queued history records", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the service, flushing all pending history writes.
+     */
+    void stop()
+    {
+        synchronized (this)
+        {
+            if (segmentLogSyncTimer != null)
+            {
+                segmentLogSyncTimer.cancel();
+                segmentLogSyncTimer = null;
+            }
+
+            if (writeBehindTimer != null)
+            {
+                writeBehindTimer.cancel();
+                writeBehindTimer = null;
+                scheduledFlush = null;
+            }
+        }
+
+        flushWriters();
+
+        for (History h : getLoadedHistories())
+            closeHistory(h);
+
+        if (documentCache != null)
+            logger.info("History document cache on stop: " + documentCache);
+    }
+
     protected FileAccessService getFileAccessService()
     {
         return this.fileAccessService;
@@ -241,6 +536,16 @@ protected synchronized Document parse(ByteArrayInputStream in)
         return builder.parse(in);
     }
 
+    /**
+     * Creates an empty document. Synchronized as the
+     * <tt>DocumentBuilder</tt> is shared with the parsing.
+     * @return the new document
+     */
+    protected synchronized Document newDocument()
+    {
+        return builder.newDocument();
+    }
+
     private void findDatFiles(List<File> vect, File directory)
     {
         File[] files = directory.listFiles();
@@ -314,6 +619,70 @@ protected boolean isCacheEnabled()
         return cacheEnabled;
     }
 
+    /**
+     * Returns the cache of the parsed history documents.
+     * @return the cache or <tt>null</tt> if caching is disabled
+     */
+    HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns whether the keyword index of the XML histories is maintained
+     * and used for keyword searches.
+     * @return boolean
+     */
+    boolean isKeywordIndexEnabled()
+    {
+        return keywordIndexEnabled;
+    }
+
+    /**
+     * Returns whether the timestamp index of the XML histories is kept and
+     * persisted, instead of reading the timestamps from the history files.
+     * @return boolean
+     */
+    boolean isTimestampIndexEnabled()
+    {
+        return timestampIndexEnabled;
+    }
+
+    /**
+     * Drops and rebuilds the keyword indexes of all existing XML histories.
+     * Used to recover from indexes which got out of sync with their
+     * histories, e.g. after history files were edited by hand.
+     */
+    public void rebuildKeywordIndexes()
+    {
+        if (!keywordIndexEnabled)
+            return;
+
+        Iterator<HistoryID> ids = getExistingIDs();
+        while (ids.hasNext())
+        {
+            History history;
+            try
+            {
+                history = getHistory(ids.next());
+            }
+            catch (IllegalArgumentException e)
+            {
+                // removed in the meantime
+                continue;
+            }
+
+            if (history instanceof HistoryImpl)
+            {
+                HistoryImpl historyImpl = (HistoryImpl) history;
+                historyImpl.getKeywordIndex().rebuild(historyImpl);
+            }
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Rebuilt the history keyword indexes");
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -325,12 +694,12 @@ public void purgeLocallyStoredHistory(HistoryID id)
     {
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
-        if (logger.isTraceEnabled())
-            logger.trace("Removing history directory " + dir);
-        deleteDirAndContent(dir);
-
         History history = histories.remove(id);
-        if(history == null)
+        if (history != null)
+        {
+            closeHistory(history);
+        }
+        else
         {
             // well this can be global delete, so lets remove all matching
             // sub-histories
@@ -343,10 +712,15 @@ public void purgeLocallyStoredHistory(HistoryID id)
                 Map.Entry<HistoryID, History> entry = iter.next();
                 if(isSubHistory(ids, entry.getKey()))
                 {
+                    closeHistory(entry.getValue());
                     iter.remove();
                 }
             }
         }
+
+        if (logger.isTraceEnabled())
+            logger.trace("Removing history directory " + dir);
+        deleteDirAndContent(dir);
     }
 
     /**
@@ -354,6 +728,8 @@ public void purgeLocallyStoredHistory(HistoryID id)
      */
     public void purgeLocallyCachedHistories()
     {
+        for (History h : getLoadedHistories())
+            closeHistory(h);
         histories.clear();
     }
 
@@ -449,6 +825,11 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
         // make sure parent path is existing
         newDir.getParentFile().mkdirs();
 
+        // release open files before moving them
+        History oldHistory = histories.get(oldId);
+        if (oldHistory != null)
+            closeHistory(oldHistory);
+
         if(!oldDir.renameTo(newDir))
         {
             if (logger.isInfoEnabled())
@@ -551,7 +932,9 @@ public List<HistoryID> getExistingHistories(
                 @Override
                 public int compare(File o1, File o2)
                 {
-                    return o1.getName().compareTo(o2.getName());
+                    // files of different histories may have the same name
+                    int result = o1.getName().compareTo(o2.getName());
+                    return result != 0 ? result : o1.compareTo(o2);
                 }
             });
 
@@ -593,7 +976,11 @@ private void getExistingFiles(
             }
             else
             {
-                if(f.getName().equals(DATA_FILE))
+                // only the history files, not the structure, the indexes
+                // or the temporary files kept next to them
+                String name = f.getName();
+                if(!name.endsWith("." + HistoryImpl.SUPPORTED_FILETYPE)
+                    && !name.endsWith("." + SegmentLog.SEGMENT_FILETYPE))
                     continue;
 
                 res.put(f, HistoryID.createFromRawStrings(
@@ -0,0 +1,649 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * The timestamps of the records of a <tt>HistoryImpl</tt>, kept per history
+ * file in record order, together with the minimum and maximum timestamp of
+ * every file. Lets the readers select the files and the records they return
+ * without parsing the XML documents and their timestamp attributes.
+ * <p>
+ * The timestamps of a file are read on first use, by streaming over its
+ * record elements, and are persisted in a journal in the history directory:
+ * <pre>
+ * A &lt;tab&gt; file &lt;tab&gt; ordinal &lt;tab&gt; timestamp &lt;tab&gt; length
+ * D &lt;tab&gt; file &lt;tab&gt; ordinal &lt;tab&gt; length
+ * F &lt;tab&gt; file &lt;tab&gt; length &lt;tab&gt; timestamp,timestamp,...
+ * </pre>
+ * The first form records an appended record, the second one a record
+ * removed to make room for it in a history limited to a number of records,
+ * the third one all the records of a file. The writer appends to the journal
+ * without loading it, and the journal is compacted when it gets much larger
+ * than the index. Every entry remembers the length of its file when it was
+ * recorded, a file whose length differs, e.g. after a crash between a
+ * history write and its journal line, is read again on next use.
+ */
+@Slf4j
+class HistoryTimestampIndex
+{
+    /**
+     * The name of the index file in the history directory.
+     */
+    static final String INDEX_FILE = "timestamps.idx";
+
+    /**
+     * Journal lines above the number of files after which the journal is
+     * compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 4096;
+
+    /**
+     * The factory of the readers used to scan the history files.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY
+        = XMLInputFactory.newInstance();
+
+    static
+    {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * The history directory.
+     */
+    private final File directory;
+
+    /**
+     * The journal.
+     */
+    private final JournalFile journal;
+
+    /**
+     * History file -> timestamps of its records in record order.
+     */
+    private final Map<String, FileTimestamps> files
+        = new HashMap<String, FileTimestamps>();
+
+    /**
+     * Whether the timestamps are kept and persisted, otherwise they are read
+     * from the history files on every use.
+     */
+    private final boolean enabled;
+
+    /**
+     * Whether the journal was loaded.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The number of lines in the journal, or of the lines appended to it
+     * while it is not loaded.
+     */
+    private int journalLines = 0;
+
+    /**
+     * Creates the timestamp index of a history.
+     *
+     * @param directory the history directory
+     * @param enabled whether the timestamps are kept and persisted
+     */
+    HistoryTimestampIndex(File directory, boolean enabled)
+    {
+        this.directory = directory;
+        this.journal = new JournalFile(new File(directory, INDEX_FILE));
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the timestamps of the records of a history file, reading them
+     * from the file if they are not known yet.
+     *
+     * @param history the history
+     * @param filename the history file
+     * @return the timestamps of the records or <tt>null</tt> if the file
+     * cannot be read
+     */
+    synchronized FileTimestamps getTimestamps(HistoryImpl history,
+                                              String filename)
+    {
+        // queued changes are not in the file nor the journal yet
+        if (!enabled || history.isPending(filename))
+        {
+            long[] timestamps = history.readTimestamps(filename);
+            return timestamps == null
+                ? null
+                : new FileTimestamps(timestamps, timestamps.length, -1);
+        }
+
+        ensureLoaded();
+
+        long length = new File(directory, filename).length();
+        FileTimestamps result = files.get(filename);
+        if (result != null && result.length == length)
+            return result;
+
+        long[] timestamps = history.readTimestamps(filename);
+        if (timestamps == null)
+            return null;
+
+        result = new FileTimestamps(timestamps, timestamps.length, length);
+        files.put(filename, result);
+        append(fullLine(filename, result));
+        return result;
+    }
+
+    /**
+     * Records a record appended to a history file.
+     *
+     * @param filename the history file
+     * @param removed the ordinal of the record removed from the file to make
+     * room for the new one, or <tt>-1</tt>
+     * @param ordinal the ordinal of the record in the file
+     * @param timestamp the timestamp of the record
+     */
+    synchronized void addRecord(String filename, int removed, int ordinal,
+                                long timestamp)
+    {
+        addRecords(filename,
+            Collections.singletonList(
+                new long[] { removed, ordinal, timestamp }));
+    }
+
+    /**
+     * Records records appended to a history file, e.g. the ones queued in
+     * write-behind mode once they are written.
+     *
+     * @param filename the history file
+     * @param records the ordinal of the record removed to make room for each
+     * record or <tt>-1</tt>, the ordinal of the record and its timestamp, in
+     * the order the records were appended
+     */
+    synchronized void addRecords(String filename, List<long[]> records)
+    {
+        if (!enabled)
+            return;
+
+        long length = new File(directory, filename).length();
+        StringBuilder lines = new StringBuilder();
+        for (long[] r : records)
+        {
+            int removed = (int) r[0];
+            int ordinal = (int) r[1];
+            if (removed >= 0)
+            {
+                if (loaded)
+                    applyRemove(filename, removed, length);
+                lines.append("D\t").append(filename).append('\t')
+                    .append(removed).append('\t').append(length).append('\n');
+            }
+
+            if (loaded)
+                applyAppend(filename, ordinal, r[2], length);
+            lines.append("A\t").append(filename).append('\t').append(ordinal)
+                .append('\t').append(r[2]).append('\t').append(length)
+                .append('\n');
+        }
+        append(lines.toString());
+    }
+
+    /**
+     * Records the timestamps of a history file after records were inserted,
+     * removed or updated in it.
+     *
+     * @param filename the history file
+     * @param doc the current content of the file
+     */
+    synchronized void reindexFile(String filename, Document doc)
+    {
+        if (!enabled)
+            return;
+
+        long[] timestamps;
+        synchronized (doc)
+        {
+            timestamps = readTimestamps(doc);
+        }
+        FileTimestamps entry = new FileTimestamps(timestamps, timestamps.length,
+            new File(directory, filename).length());
+        if (loaded)
+            files.put(filename, entry);
+
+        append(fullLine(filename, entry));
+    }
+
+    /**
+     * Reads the record timestamps of a parsed history file.
+     *
+     * @param doc the history document
+     * @return the timestamps of the records in record order
+     */
+    static long[] readTimestamps(Document doc)
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        NodeList nodes = doc.getElementsByTagName("record");
+        long[] result = new long[nodes.getLength()];
+        for (int i = 0; i < result.length; i++)
+        {
+            result[i] = parseTimestamp(sdf,
+                ((Element) nodes.item(i)).getAttribute("timestamp"));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the record timestamps of a history file by streaming over its
+     * record elements, without building its DOM.
+     *
+     * @param historyFile the history file
+     * @return the timestamps of the records in record order
+     * @throws IOException if the file cannot be read or parsed
+     */
+    static long[] readTimestamps(File historyFile)
+        throws IOException
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        long[] result = new long[HistoryWriterImpl.MAX_RECORDS_PER_FILE + 2];
+        int count = 0;
+
+        try (InputStream in
+                = new BufferedInputStream(new FileInputStream(historyFile)))
+        {
+            XMLStreamReader reader = createReader(in);
+            try
+            {
+                int depth = 0;
+                while (reader.hasNext())
+                {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT)
+                    {
+                        depth++;
+                        if (depth == 2
+                            && "record".equals(reader.getLocalName()))
+                        {
+                            if (count == result.length)
+                                result = Arrays.copyOf(result, count * 2);
+                            result[count++] = parseTimestamp(sdf,
+                                reader.getAttributeValue(null, "timestamp"));
+                        }
+                    }
+                    else if (event == XMLStreamConstants.END_ELEMENT)
+                    {
+                        depth--;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException | RuntimeException e)
+        {
+            throw new IOException("Cannot read " + historyFile, e);
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Creates a streaming reader over a history file.
+     *
+     * @param in the content of the file
+     * @return the reader
+     * @throws XMLStreamException if the reader cannot be created
+     */
+    static XMLStreamReader createReader(InputStream in)
+        throws XMLStreamException
+    {
+        synchronized (XML_INPUT_FACTORY)
+        {
+            return XML_INPUT_FACTORY.createXMLStreamReader(in);
+        }
+    }
+
+    /**
+     * Parses a record timestamp attribute the way the readers do.
+     *
+     * @param sdf the format of the timestamps
+     * @param ts the attribute value
+     * @return the timestamp in milliseconds
+     */
+    static long parseTimestamp(SimpleDateFormat sdf, String ts)
+    {
+        try
+        {
+            return sdf.parse(ts).getTime();
+        }
+        catch (ParseException e)
+        {
+            return Long.parseLong(ts);
+        }
+    }
+
+    /**
+     * Applies an appended record to the in-memory index.
+     */
+    private void applyAppend(String filename, int ordinal, long timestamp,
+                             long length)
+    {
+        FileTimestamps entry = files.get(filename);
+        if (ordinal == 0)
+        {
+            files.put(filename,
+                new FileTimestamps(new long[] { timestamp }, 1, length));
+        }
+        else if (entry != null && entry.count == ordinal)
+        {
+            entry.add(timestamp, length);
+        }
+        else if (entry != null)
+        {
+            // out of sync, will be read again from the file
+            files.remove(filename);
+        }
+    }
+
+    /**
+     * Applies a removed record to the in-memory index. The entry of the file
+     * is replaced rather than changed, the readers may still use it.
+     */
+    private void applyRemove(String filename, int ordinal, long length)
+    {
+        FileTimestamps entry = files.get(filename);
+        if (entry == null)
+            return;
+
+        if (ordinal < entry.size())
+            files.put(filename, entry.without(ordinal, length));
+        else
+            files.remove(filename);
+    }
+
+    /**
+     * Loads the journal if not loaded yet.
+     */
+    private void ensureLoaded()
+    {
+        if (loaded)
+            return;
+
+        loaded = true;
+        if (!journal.exists())
+            return;
+
+        List<String> lines = new ArrayList<String>();
+        try
+        {
+            if (!journal.read(lines))
+            {
+                logger.warn(
+                    "Dropped a torn line of timestamp index "
+                        + journal.getFile());
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn(
+                "Failed to read timestamp index " + journal.getFile(), e);
+        }
+
+        journalLines = lines.size();
+        for (String line : lines)
+        {
+            try
+            {
+                String[] parts = line.split("\t");
+                if ("A".equals(parts[0]) && parts.length == 5)
+                {
+                    applyAppend(parts[1], Integer.parseInt(parts[2]),
+                        Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+                }
+                else if ("D".equals(parts[0]) && parts.length == 4)
+                {
+                    applyRemove(parts[1], Integer.parseInt(parts[2]),
+                        Long.parseLong(parts[3]));
+                }
+                else if ("F".equals(parts[0]) && parts.length >= 3)
+                {
+                    String[] values = parts.length > 3
+                        ? parts[3].split(",") : new String[0];
+                    long[] timestamps = new long[values.length];
+                    for (int i = 0; i < values.length; i++)
+                        timestamps[i] = Long.parseLong(values[i]);
+                    files.put(parts[1], new FileTimestamps(timestamps,
+                        timestamps.length, Long.parseLong(parts[2])));
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // e.g. a line continued by another one after a failed write
+                logger.debug("Skipping invalid line in " + journal.getFile());
+            }
+        }
+
+        if (journalLines > files.size() + COMPACT_THRESHOLD)
+            compact();
+    }
+
+    /**
+     * Writes the in-memory index as a new journal.
+     */
+    private void compact()
+    {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, FileTimestamps> e : files.entrySet())
+            out.append(fullLine(e.getKey(), e.getValue()));
+
+        try
+        {
+            journal.write(out.toString());
+        }
+        catch (IOException e)
+        {
+            logger.error(
+                "Failed to compact timestamp index " + journal.getFile(), e);
+            return;
+        }
+
+        journalLines = files.size();
+    }
+
+    /**
+     * Appends lines to the journal and compacts it if needed. A journal which
+     * is not loaded is loaded once enough lines were appended to it, so that
+     * it can be compacted.
+     */
+    private void append(String lines)
+    {
+        try
+        {
+            journal.append(lines);
+        }
+        catch (IOException e)
+        {
+            logger.error(
+                "Failed to write timestamp index " + journal.getFile(), e);
+        }
+
+        for (int i = 0; i < lines.length(); i++)
+        {
+            if (lines.charAt(i) == '\n')
+                journalLines++;
+        }
+
+        if (!loaded)
+        {
+            if (journalLines > COMPACT_THRESHOLD)
+                ensureLoaded();
+        }
+        else if (journalLines > files.size() + COMPACT_THRESHOLD)
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Returns the journal line recording all the records of a file.
+     */
+    private static String fullLine(String filename, FileTimestamps entry)
+    {
+        StringBuilder s = new StringBuilder("F\t");
+        s.append(filename).append('\t').append(entry.length).append('\t');
+        synchronized (entry)
+        {
+            for (int i = 0; i < entry.count; i++)
+            {
+                if (i > 0)
+                    s.append(',');
+                s.append(entry.timestamps[i]);
+            }
+        }
+        return s.append('\n').toString();
+    }
+
+    /**
+     * The timestamps of the records of one history file.
+     */
+    static class FileTimestamps
+    {
+        /**
+         * The timestamps in record order.
+         */
+        private long[] timestamps;
+
+        /**
+         * The number of records.
+         */
+        private int count;
+
+        /**
+         * The length of the file the timestamps were recorded for.
+         */
+        private long length;
+
+        /**
+         * The oldest timestamp in the file.
+         */
+        private long min = Long.MAX_VALUE;
+
+        /**
+         * The newest timestamp in the file.
+         */
+        private long max = Long.MIN_VALUE;
+
+        FileTimestamps(long[] timestamps, int count, long length)
+        {
+            this.timestamps = timestamps;
+            this.count = count;
+            this.length = length;
+            for (int i = 0; i < count; i++)
+            {
+                min = Math.min(min, timestamps[i]);
+                max = Math.max(max, timestamps[i]);
+            }
+        }
+
+        private synchronized FileTimestamps without(int ordinal, long length)
+        {
+            // keeps room for the record appended after the removal
+            long[] result = new long[count];
+            System.arraycopy(timestamps, 0, result, 0, ordinal);
+            System.arraycopy(timestamps, ordinal + 1, result, ordinal,
+                count - ordinal - 1);
+            return new FileTimestamps(result, count - 1, length);
+        }
+
+        private synchronized void add(long timestamp, long length)
+        {
+            this.length = length;
+            if (count == timestamps.length)
+                timestamps = Arrays.copyOf(timestamps, count * 2 + 1);
+            timestamps[count++] = timestamp;
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+        }
+
+        /**
+         * Returns the number of records in the file.
+         * @return the number of records in the file
+         */
+        synchronized int size()
+        {
+            return count;
+        }
+
+        /**
+         * Returns the timestamp of a record.
+         * @param ordinal the ordinal of the record in the file
+         * @return the timestamp of the record
+         */
+        synchronized long get(int ordinal)
+        {
+            return timestamps[ordinal];
+        }
+
+        /**
+         * Returns the oldest timestamp in the file.
+         * @return the oldest timestamp, <tt>Long.MAX_VALUE</tt> if the file
+         * has no record
+         */
+        synchronized long min()
+        {
+            return min;
+        }
+
+        /**
+         * Returns the newest timestamp in the file.
+         * @return the newest timestamp, <tt>Long.MIN_VALUE</tt> if the file
+         * has no record
+         */
+        synchronized long max()
+        {
+            return max;
+        }
+
+        /**
+         * Checks whether the file may contain records in a period.
+         * @param start start of the period, inclusive
+         * @param end end of the period, exclusive
+         * @return <tt>true</tt> if a record of the file may be in the period
+         */
+        synchronized boolean overlaps(long start, long end)
+        {
+            return count > 0 && min < end && max >= start;
+        }
+    }
+}
@@ -60,6 +60,27 @@
 
     private int currentDocElements = -1;
 
+    /**
+     * The documents with records not written yet in write-behind mode, by
+     * history file.
+     */
+    private final Map<String, Document> pendingDocuments
+        = new LinkedHashMap<String, Document>();
+
+    /**
+     * The number of records not written yet in write-behind mode.
+     */
+    private int pendingRecords = 0;
+
+    /**
+     * The records not written yet in write-behind mode, by history file: the
+     * ordinal of the record removed to make room for each of them or
+     * <tt>-1</tt>, their ordinal and their timestamp, recorded in the
+     * timestamp index once written.
+     */
+    private final Map<String, List<long[]>> pendingTimestamps
+        = new HashMap<String, List<long[]>>();
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -142,9 +163,14 @@ private void addRecord(String[] propertyNames,
             }
         }
 
-        synchronized (this.currentDoc)
+        String file = this.currentFile;
+        Document doc = this.currentDoc;
+        int removed = -1;
+        int ordinal;
+
+        synchronized (doc)
         {
-            Node root = this.currentDoc.getFirstChild();
+            Node root = doc.getFirstChild();
             synchronized (root)
             {
                 // if we have setting for max number of records,
@@ -153,26 +179,112 @@ private void addRecord(String[] propertyNames,
                     && this.currentDocElements >= maxNumberOfRecords)
                 {
                     // lets remove the first one
-                    removeFirstRecord(root);
+                    removed = removeFirstRecord(root);
                 }
 
                 Element elem = createRecord(
-                    this.currentDoc, propertyNames, propertyValues, date);
+                    doc, propertyNames, propertyValues, date);
                 root.appendChild(elem);
                 this.currentDocElements++;
+                ordinal = ((Element) root).getElementsByTagName("record")
+                    .getLength() - 1;
             }
         }
 
-        // write changes
+        HistoryServiceImpl historyService = historyImpl.getHistoryServiceImpl();
+        boolean writeBehind = historyService.isWriteBehindEnabled();
+        boolean batchFull = false;
+
+        // write changes, or queue them in write-behind mode, the readers
+        // get the queued document until it is written
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
+            if (writeBehind)
+            {
+                this.historyImpl.setPendingDocument(file, doc);
+                this.pendingDocuments.put(file, doc);
+                this.pendingRecords++;
+
+                List<long[]> timestamps = this.pendingTimestamps.get(file);
+                if (timestamps == null)
+                {
+                    timestamps = new ArrayList<long[]>();
+                    this.pendingTimestamps.put(file, timestamps);
+                }
+                timestamps.add(new long[] { removed, ordinal, date.getTime() });
+                batchFull = this.pendingRecords
+                    >= historyService.getWriteBehindBatchSize();
+            }
             else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+                this.historyImpl.writeFile(file, doc);
+        }
+
+        HistoryKeywordIndex index = historyImpl.getKeywordIndex();
+        if (index != null)
+        {
+            index.addRecord(
+                file, removed, ordinal, propertyNames, propertyValues);
+        }
+
+        // the timestamps of queued records are recorded when written
+        if (writeBehind)
+            historyService.scheduleFlush(this, batchFull);
+        else
+            historyImpl.getTimestampIndex().addRecord(
+                file, removed, ordinal, date.getTime());
+    }
+
+    /**
+     * Writes the records queued in write-behind mode.
+     *
+     * @throws IOException if writing fails, the records stay queued
+     */
+    void flush()
+        throws IOException
+    {
+        synchronized (this.docWriteLock)
+        {
+            Iterator<Map.Entry<String, Document>> iter
+                = this.pendingDocuments.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry<String, Document> e = iter.next();
+                this.historyImpl.writeFile(e.getKey(), e.getValue());
+
+                List<long[]> timestamps
+                    = this.pendingTimestamps.remove(e.getKey());
+                if (timestamps != null)
+                {
+                    this.historyImpl.getTimestampIndex().addRecords(
+                        e.getKey(), timestamps);
+                }
+                else
+                {
+                    this.historyImpl.getTimestampIndex().reindexFile(
+                        e.getKey(), e.getValue());
+                }
+                iter.remove();
+            }
+            this.pendingRecords = 0;
         }
     }
 
+    /**
+     * Updates the keyword and timestamp indexes after records of a file were
+     * inserted, removed or changed.
+     *
+     * @param filename the changed file
+     * @param doc the new content of the file
+     */
+    private void reindex(String filename, Document doc)
+    {
+        HistoryKeywordIndex index = historyImpl.getKeywordIndex();
+        if (index != null)
+            index.reindexFile(filename, doc);
+
+        historyImpl.getTimestampIndex().reindexFile(filename, doc);
+    }
+
     /**
      * Creates a record element for the supplied <tt>doc</tt> and populates it
      * with the property names from <tt>propertyNames</tt> and corresponding
@@ -239,14 +351,17 @@ private Element createRecord(Document doc,
     /**
      * Finds the oldest node by timestamp in current root and deletes it.
      * @param root where to search for records
+     * @return the ordinal of the deleted record or <tt>-1</tt> if there was
+     * no record
      */
-    private void removeFirstRecord(Node root)
+    private int removeFirstRecord(Node root)
     {
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
 
         NodeList nodes = ((Element)root).getElementsByTagName("record");
 
         Node oldestNode = null;
+        int oldestOrdinal = -1;
         Date oldestTimeStamp = null;
 
         Node node;
@@ -270,6 +385,7 @@ private void removeFirstRecord(Node root)
                 || (oldestTimeStamp.after(timestamp)))
             {
                 oldestNode = node;
+                oldestOrdinal = i;
                 oldestTimeStamp = timestamp;
                 continue;
             }
@@ -278,6 +394,8 @@ private void removeFirstRecord(Node root)
 
         if(oldestNode != null)
             root.removeChild(oldestNode);
+
+        return oldestOrdinal;
     }
 
     /**
@@ -299,6 +417,9 @@ public void insertRecord(
             String[] propertyValues, Date timestamp, String timestampProperty)
         throws IOException
     {
+        // the queued records are written first, to keep the order of writes
+        flush();
+
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator
             = HistoryReaderImpl.filterFilesByDate(
@@ -365,6 +486,8 @@ public void insertRecord(
                     this.historyImpl.writeFile(filename, doc);
                 }
 
+                reindex(filename, doc);
+
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
                 // override our last changes to the document
@@ -442,6 +565,8 @@ public void updateRecord(String idProperty, String idValue,
             String property, String newValue)
         throws IOException
     {
+        flush();
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -515,6 +640,8 @@ public void updateRecord(String idProperty, String idValue,
                     this.historyImpl.writeFile(filename, doc);
                 }
 
+                reindex(filename, doc);
+
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
                 // override our last changes to the document
@@ -536,6 +663,8 @@ public void updateRecord(String idProperty, String idValue,
      */
     public void updateRecord(HistoryRecordUpdater updater) throws IOException
     {
+        flush();
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -589,6 +718,8 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
                     this.historyImpl.writeFile(filename, doc);
                 }
 
+                reindex(filename, doc);
+
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
                 // override our last changes to the document
@@ -602,6 +733,93 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
         }
     }
 
+    /**
+     * Updates the record with the given timestamp using given
+     * <tt>HistoryRecordUpdater</tt> instance. The files which cannot contain
+     * the record are skipped using the timestamp index and the record keeps
+     * its timestamp.
+     *
+     * @param timestamp the timestamp of the record to update
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     * @return <tt>true</tt> if a record was updated
+     */
+    public boolean updateRecord(Date timestamp, HistoryRecordUpdater updater)
+        throws IOException
+    {
+        flush();
+
+        long ts = timestamp.getTime();
+        HistoryTimestampIndex index = historyImpl.getTimestampIndex();
+        Iterator<String> fileIterator = this.historyImpl.getFileList();
+        while (fileIterator.hasNext())
+        {
+            String filename = fileIterator.next();
+
+            HistoryTimestampIndex.FileTimestamps timestamps
+                = index.getTimestamps(historyImpl, filename);
+            if (timestamps == null || !timestamps.overlaps(ts, ts + 1))
+                continue;
+
+            Document doc = this.historyImpl.getDocumentForFile(filename);
+
+            if(doc == null)
+                continue;
+
+            NodeList nodes = doc.getElementsByTagName("record");
+
+            boolean changed = false;
+            for (int i = 0;
+                 i < nodes.getLength() && i < timestamps.size();
+                 i++)
+            {
+                if (timestamps.get(i) != ts)
+                    continue;
+
+                Node node = nodes.item(i);
+                updater.setHistoryRecord(createHistoryRecordFromNode(node));
+                if(!updater.isMatching())
+                    continue;
+
+                Map<String, String> updates = updater.getUpdateChanges();
+                for(Map.Entry<String, String> e : updates.entrySet())
+                {
+                    Element changedNode =
+                        XMLUtils.findChild((Element)node, e.getKey());
+
+                    if(changedNode == null)
+                        continue;
+
+                    Node changedNestedNode = changedNode.getFirstChild();
+                    if (changedNestedNode != null)
+                        changedNestedNode.setNodeValue(e.getValue());
+                    else
+                        changedNode.appendChild(
+                            doc.createTextNode(e.getValue()));
+                    changed = true;
+                }
+            }
+
+            if(changed)
+            {
+                synchronized (this.docWriteLock)
+                {
+                    this.historyImpl.writeFile(filename, doc);
+                }
+
+                reindex(filename, doc);
+
+                if(filename.equals(this.currentFile))
+                {
+                    this.currentDoc = doc;
+                }
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Creates <tt>HistoryRecord</tt> instance from <tt>Node</tt> object.
      * @param node the node
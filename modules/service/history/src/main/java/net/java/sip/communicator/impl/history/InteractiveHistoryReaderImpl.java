@@ -155,10 +155,23 @@ private void find(  Date startDate,
                                                     startDate, endDate, true);
         Iterator<String> fileIterator = filelist.iterator();
 
+        // only the records found by the keyword index need to be checked
+        Map<String, BitSet> candidates
+            = HistoryReaderImpl.findKeywordCandidates(history, keywords, field);
+
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
+
+            BitSet candidateRecords = null;
+            if (candidates != null)
+            {
+                candidateRecords = candidates.get(filename);
+                if (candidateRecords == null)
+                    continue;
+            }
+
             Document doc = history.getDocumentForFile(filename);
 
             if(doc == null)
@@ -166,9 +179,11 @@ private void find(  Date startDate,
 
             NodeList nodes = doc.getElementsByTagName("record");
 
-            for ( int i = nodes.getLength() - 1;
+            for ( int i = HistoryReaderImpl.previousRecord(
+                        candidateRecords, nodes.getLength() - 1);
                   i >= 0 && !query.isCanceled();
-                  i--)
+                  i = HistoryReaderImpl.previousRecord(
+                        candidateRecords, i - 1))
             {
                 Node node = nodes.item(i);
                 Date timestamp;
@@ -0,0 +1,262 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+
+/**
+ * A <tt>QueryResultSet</tt> reading its records on demand, a chunk at a
+ * time, e.g. one history file at a time. Only the last few chunks used are
+ * kept in memory, so the memory used does not depend on the number of
+ * results and the first results are available as soon as the first chunk
+ * containing results is read.
+ * <p>
+ * Iterates the same way as <tt>OrderedQueryResultSet</tt>: <tt>next()</tt>
+ * moves to and returns the following record and <tt>prev()</tt> moves to and
+ * returns the preceding one.
+ *
+ * @param <T> element type of query
+ */
+public abstract class LazyQueryResultSet<T>
+    implements QueryResultSet<T>
+{
+    /**
+     * The number of chunks kept in memory.
+     */
+    private static final int MAX_LOADED_CHUNKS = 3;
+
+    /**
+     * The number of chunks.
+     */
+    private final int chunkCount;
+
+    /**
+     * The chunks known to contain no record.
+     */
+    private final BitSet emptyChunks = new BitSet();
+
+    /**
+     * The chunks kept in memory, in access order.
+     */
+    private final LinkedHashMap<Integer, List<T>> loadedChunks
+        = new LinkedHashMap<Integer, List<T>>(
+                MAX_LOADED_CHUNKS + 1, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Integer, List<T>> eldest)
+            {
+                return size() > MAX_LOADED_CHUNKS;
+            }
+        };
+
+    /**
+     * The chunk of the current record, -1 before the first record.
+     */
+    private int currentChunk = -1;
+
+    /**
+     * The index of the current record in its chunk.
+     */
+    private int currentIndex = -1;
+
+    /**
+     * Creates a result set.
+     *
+     * @param chunkCount the number of chunks
+     */
+    protected LazyQueryResultSet(int chunkCount)
+    {
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Reads the records of a chunk, in order. Chunks are read in any order
+     * and may be read again after they were dropped from memory, in which
+     * case they must return the same records so that the positions in the
+     * result set do not move.
+     *
+     * @param chunk the index of the chunk
+     * @return the records of the chunk
+     */
+    protected abstract List<T> loadChunk(int chunk);
+
+    /**
+     * Returns <tt>true</tt> if the iteration has more elements.
+     *
+     * @return <tt>true</tt> if the iterator has more elements.
+     */
+    public boolean hasNext()
+    {
+        return successor() != null;
+    }
+
+    /**
+     * Returns true if the iteration has elements preceeding the current one.
+     *
+     * @return true if the iterator has preceeding elements.
+     */
+    public boolean hasPrev()
+    {
+        return predecessor() != null;
+    }
+
+    /**
+     * Returns the next element in the iteration.
+     *
+     * @return the next element in the iteration.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T next()
+        throws NoSuchElementException
+    {
+        return moveTo(successor());
+    }
+
+    /**
+     * A strongly-typed variant of <tt>next()</tt>.
+     *
+     * @return the next history record.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T nextRecord()
+        throws NoSuchElementException
+    {
+        return next();
+    }
+
+    /**
+     * Returns the previous element in the iteration.
+     *
+     * @return the previous element in the iteration.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T prev()
+        throws NoSuchElementException
+    {
+        return moveTo(predecessor());
+    }
+
+    /**
+     * A strongly-typed variant of <tt>prev()</tt>.
+     *
+     * @return the previous history record.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public T prevRecord()
+        throws NoSuchElementException
+    {
+        return prev();
+    }
+
+    /**
+     * Removes from the underlying collection the last element returned by
+     * the iterator (optional operation).
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Cannot remove elements "
+                + "from underlaying collection.");
+    }
+
+    /**
+     * Makes a position the current one and returns its record.
+     *
+     * @param position chunk and index of the record or <tt>null</tt>
+     * @return the record
+     * @throws NoSuchElementException if <tt>position</tt> is <tt>null</tt>
+     */
+    private T moveTo(int[] position)
+    {
+        if (position == null)
+            throw new NoSuchElementException();
+
+        currentChunk = position[0];
+        currentIndex = position[1];
+        return getChunk(currentChunk).get(currentIndex);
+    }
+
+    /**
+     * Returns the position of the record following the current one.
+     *
+     * @return chunk and index of the record or <tt>null</tt> if none
+     */
+    private int[] successor()
+    {
+        if (currentChunk >= 0
+            && currentIndex + 1 < getChunk(currentChunk).size())
+        {
+            return new int[] { currentChunk, currentIndex + 1 };
+        }
+
+        for (int chunk = currentChunk + 1; chunk < chunkCount; chunk++)
+        {
+            if (!getChunk(chunk).isEmpty())
+                return new int[] { chunk, 0 };
+        }
+        return null;
+    }
+
+    /**
+     * Returns the position of the record preceding the current one.
+     *
+     * @return chunk and index of the record or <tt>null</tt> if none
+     */
+    private int[] predecessor()
+    {
+        if (currentChunk < 0)
+            return null;
+        if (currentIndex > 0)
+            return new int[] { currentChunk, currentIndex - 1 };
+
+        for (int chunk = currentChunk - 1; chunk >= 0; chunk--)
+        {
+            List<T> records = getChunk(chunk);
+            if (!records.isEmpty())
+                return new int[] { chunk, records.size() - 1 };
+        }
+        return null;
+    }
+
+    /**
+     * Returns the records of a chunk, reading them if not in memory.
+     *
+     * @param chunk the index of the chunk
+     * @return the records of the chunk
+     */
+    private List<T> getChunk(int chunk)
+    {
+        if (emptyChunks.get(chunk))
+            return Collections.emptyList();
+
+        List<T> records = loadedChunks.get(chunk);
+        if (records == null)
+        {
+            records = loadChunk(chunk);
+            if (records.isEmpty())
+                emptyChunks.set(chunk);
+            else
+                loadedChunks.put(chunk, records);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,844 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * An append-only log of history records split in segment files. Every record
+ * is stored as a length-prefixed, CRC protected binary frame, so adding a
+ * record never rewrites previously stored data.
+ * <p>
+ * Frame layout: <tt>int payloadLength, int crc32, payload</tt> where the
+ * payload is <tt>long timestamp, int propertyCount</tt> followed by
+ * <tt>propertyCount</tt> (name, value) string pairs. Strings are written as
+ * an <tt>int</tt> byte length followed by their UTF-8 bytes.
+ * <p>
+ * Each segment keeps an in-memory index of its records ordered by timestamp,
+ * which is built lazily the first time the segment is accessed. A torn frame
+ * at the end of the newest segment (e.g. after a crash) is truncated when the
+ * segment is indexed.
+ */
+@Slf4j
+class SegmentLog
+{
+    /**
+     * The extension of the segment files.
+     */
+    static final String SEGMENT_FILETYPE = "seg";
+
+    /**
+     * The size after which a new segment file is started.
+     */
+    static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * Number of appended records after which the active segment is synced to
+     * the storage device.
+     */
+    static final int SYNC_BATCH_SIZE = 32;
+
+    /**
+     * Maximum time in milliseconds an appended record can stay unsynced.
+     */
+    static final long SYNC_INTERVAL = 1000;
+
+    /**
+     * The size of the frame header (payload length and checksum).
+     */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    /**
+     * The directory holding the segment files.
+     */
+    private final File directory;
+
+    /**
+     * The segments of this log ordered by their file names, i.e. by the
+     * time they were started.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * The channel used to append to the newest segment.
+     */
+    private FileChannel appendChannel = null;
+
+    /**
+     * The number of records appended since the last sync.
+     */
+    private int unsyncedRecords = 0;
+
+    /**
+     * The time of the last sync of the active segment.
+     */
+    private long lastSyncTime = System.currentTimeMillis();
+
+    /**
+     * Creates a log stored in the given directory, picking up all segments
+     * already present there.
+     *
+     * @param directory the directory of the history
+     */
+    SegmentLog(File directory)
+    {
+        this.directory = directory;
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                if (f.isFile()
+                    && f.getName().endsWith("." + SEGMENT_FILETYPE))
+                {
+                    segments.add(new Segment(f));
+                }
+            }
+        }
+
+        Collections.sort(segments, new Comparator<Segment>()
+        {
+            public int compare(Segment s1, Segment s2)
+            {
+                return Long.compare(s1.startTime, s2.startTime);
+            }
+        });
+    }
+
+    /**
+     * Appends a record at the end of the log.
+     *
+     * @param record the record to append
+     * @throws IOException if writing to the segment fails
+     */
+    synchronized void append(HistoryRecord record)
+        throws IOException
+    {
+        ByteBuffer frame = encode(record);
+
+        Segment segment = segments.isEmpty()
+            ? null : segments.get(segments.size() - 1);
+        if (segment == null
+            || segment.ensureIndexed(true).size >= MAX_SEGMENT_SIZE)
+        {
+            segment = startSegment(record.getTimestamp().getTime());
+        }
+
+        FileChannel channel = getAppendChannel(segment);
+        long position = segment.size;
+        while (frame.hasRemaining())
+            channel.write(frame, position + frame.position());
+
+        segment.size += frame.limit();
+        segment.addEntry(record.getTimestamp().getTime(), position);
+
+        unsyncedRecords++;
+        long now = System.currentTimeMillis();
+        if (unsyncedRecords >= SYNC_BATCH_SIZE
+            || now - lastSyncTime >= SYNC_INTERVAL)
+        {
+            sync();
+        }
+    }
+
+    /**
+     * Forces the appended records, which are not yet synced, to the storage
+     * device.
+     *
+     * @throws IOException if the sync fails
+     */
+    synchronized void sync()
+        throws IOException
+    {
+        if (appendChannel != null && unsyncedRecords > 0)
+            appendChannel.force(false);
+
+        unsyncedRecords = 0;
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Syncs and closes the channels held by this log. The log can still be
+     * used afterwards, channels are reopened on demand.
+     */
+    synchronized void close()
+    {
+        try
+        {
+            sync();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to sync history log " + directory, e);
+        }
+
+        closeAppendChannel();
+        for (Segment s : segments)
+            s.closeReadChannel();
+    }
+
+    /**
+     * Returns a snapshot of the segments of this log, indexed and ordered by
+     * the time they were started.
+     *
+     * @return the segments of this log
+     */
+    synchronized List<Segment> getSegments()
+    {
+        for (Segment s : segments)
+            s.ensureIndexed(isLast(s));
+
+        return new ArrayList<Segment>(segments);
+    }
+
+    /**
+     * Returns the total number of records in this log.
+     *
+     * @return the total number of records in this log
+     */
+    synchronized int count()
+    {
+        int result = 0;
+        for (Segment s : getSegments())
+            result += s.count;
+        return result;
+    }
+
+    /**
+     * Reads the record with the given timestamp ordinal from a segment.
+     *
+     * @param segment the segment to read from
+     * @param index the index of the record in timestamp order
+     * @return the record or <tt>null</tt> if it cannot be read anymore
+     */
+    synchronized HistoryRecord read(Segment segment, int index)
+    {
+        if (!segments.contains(segment) || index >= segment.count)
+            return null;
+
+        try
+        {
+            return segment.readAt(segment.offsets[index]);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to read history record from "
+                + segment.file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of records in a segment.
+     *
+     * @param segment the segment
+     * @return the number of records in <tt>segment</tt>
+     */
+    synchronized int size(Segment segment)
+    {
+        return segment.count;
+    }
+
+    /**
+     * Returns the timestamp of the record with the given ordinal.
+     *
+     * @param segment the segment
+     * @param index the index of the record in timestamp order
+     * @return the timestamp of the record
+     */
+    synchronized long timestamp(Segment segment, int index)
+    {
+        return segment.timestamps[index];
+    }
+
+    /**
+     * Returns the index of the first record in a segment with timestamp
+     * greater than or equal to <tt>timestamp</tt>.
+     *
+     * @param segment the segment
+     * @param timestamp the timestamp to look for
+     * @return the insertion point of <tt>timestamp</tt>
+     */
+    synchronized int lowerBound(Segment segment, long timestamp)
+    {
+        return segment.lowerBound(timestamp);
+    }
+
+    /**
+     * Rewrites the records of a single segment, replacing its file
+     * atomically. Used for the rare in-place updates of existing records.
+     *
+     * @param segment the segment to rewrite
+     * @param records the new content of the segment in file order
+     * @throws IOException if writing the new segment fails
+     */
+    synchronized void rewrite(Segment segment, List<HistoryRecord> records)
+        throws IOException
+    {
+        if (isLast(segment))
+            closeAppendChannel();
+        segment.closeReadChannel();
+
+        File tmp = new File(directory, segment.file.getName() + ".tmp");
+        writeSegmentFile(tmp, records);
+        Files.move(tmp.toPath(), segment.file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        segment.reset();
+        segment.ensureIndexed(isLast(segment));
+    }
+
+    /**
+     * Deletes a segment and its records.
+     *
+     * @param segment the segment to delete
+     * @throws IOException if the segment file cannot be deleted
+     */
+    synchronized void delete(Segment segment)
+        throws IOException
+    {
+        if (isLast(segment))
+            closeAppendChannel();
+        segment.closeReadChannel();
+
+        Files.deleteIfExists(segment.file.toPath());
+        segments.remove(segment);
+    }
+
+    /**
+     * Reads all records of a segment in file order.
+     *
+     * @param segment the segment to read
+     * @return the records of the segment in the order they were written
+     * @throws IOException if reading fails
+     */
+    synchronized List<HistoryRecord> readAll(Segment segment)
+        throws IOException
+    {
+        long[] fileOrder = Arrays.copyOf(segment.offsets, segment.count);
+        Arrays.sort(fileOrder);
+
+        List<HistoryRecord> result
+            = new ArrayList<HistoryRecord>(segment.count);
+        for (long offset : fileOrder)
+            result.add(segment.readAt(offset));
+        return result;
+    }
+
+    /**
+     * Checks whether <tt>segment</tt> is the one records are appended to.
+     *
+     * @param segment the segment to check
+     * @return <tt>true</tt> if it is the newest segment
+     */
+    private boolean isLast(Segment segment)
+    {
+        return !segments.isEmpty()
+            && segments.get(segments.size() - 1) == segment;
+    }
+
+    /**
+     * Starts a new segment file.
+     *
+     * @param startTime the time used to name the segment
+     * @return the new segment
+     * @throws IOException if the file cannot be created
+     */
+    private Segment startSegment(long startTime)
+        throws IOException
+    {
+        if (!segments.isEmpty())
+        {
+            long last = segments.get(segments.size() - 1).startTime;
+            if (startTime <= last)
+                startTime = last + 1;
+        }
+
+        sync();
+        closeAppendChannel();
+
+        File file = new File(directory, startTime + "." + SEGMENT_FILETYPE);
+        if (!file.createNewFile() && file.length() != 0)
+        {
+            throw new IOException(
+                "History segment already exists: " + file);
+        }
+
+        Segment segment = new Segment(file);
+        segment.ensureIndexed(true);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Returns the channel used to append to <tt>segment</tt>, opening it if
+     * needed.
+     *
+     * @param segment the newest segment
+     * @return the append channel
+     * @throws IOException if the file cannot be opened
+     */
+    private FileChannel getAppendChannel(Segment segment)
+        throws IOException
+    {
+        if (appendChannel == null || !appendChannel.isOpen())
+        {
+            appendChannel = FileChannel.open(segment.file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+
+        return appendChannel;
+    }
+
+    /**
+     * Closes the append channel, if open.
+     */
+    private void closeAppendChannel()
+    {
+        if (appendChannel == null)
+            return;
+
+        try
+        {
+            appendChannel.close();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to close history segment", e);
+        }
+        appendChannel = null;
+    }
+
+    /**
+     * Writes a complete segment file and syncs it.
+     *
+     * @param file the file to write
+     * @param records the records to write
+     * @throws IOException if writing fails
+     */
+    private static void writeSegmentFile(File file, List<HistoryRecord> records)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            for (HistoryRecord r : records)
+            {
+                ByteBuffer frame = encode(r);
+                while (frame.hasRemaining())
+                    channel.write(frame);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Encodes a record as a frame.
+     *
+     * @param record the record to encode
+     * @return the frame ready to be written
+     */
+    static ByteBuffer encode(HistoryRecord record)
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        int count = 0;
+        int payloadLength = 8 + 4;
+        byte[][] encoded = new byte[names.length * 2][];
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            encoded[count * 2] = names[i].getBytes(StandardCharsets.UTF_8);
+            encoded[count * 2 + 1] = values[i].getBytes(StandardCharsets.UTF_8);
+            payloadLength += 8
+                + encoded[count * 2].length + encoded[count * 2 + 1].length;
+            count++;
+        }
+
+        ByteBuffer frame
+            = ByteBuffer.allocate(FRAME_HEADER_SIZE + payloadLength);
+        frame.putInt(payloadLength);
+        frame.putInt(0);
+        frame.putLong(record.getTimestamp().getTime());
+        frame.putInt(count);
+        for (int i = 0; i < count * 2; i++)
+        {
+            frame.putInt(encoded[i].length);
+            frame.put(encoded[i]);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), FRAME_HEADER_SIZE, payloadLength);
+        frame.putInt(4, (int) crc.getValue());
+
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Decodes the payload of a frame.
+     *
+     * @param payload the payload of the frame
+     * @return the decoded record
+     */
+    static HistoryRecord decode(ByteBuffer payload)
+    {
+        long timestamp = payload.getLong();
+        int count = payload.getInt();
+
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = readString(payload);
+            values[i] = readString(payload);
+        }
+
+        return new HistoryRecord(names, values, new Date(timestamp));
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     *
+     * @param buffer the buffer to read from
+     * @return the string
+     */
+    private static String readString(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        String s = new String(buffer.array(),
+            buffer.arrayOffset() + buffer.position(), length,
+            StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * A single segment file and its index of record offsets ordered by
+     * timestamp.
+     */
+    static class Segment
+    {
+        /**
+         * The file of the segment.
+         */
+        final File file;
+
+        /**
+         * The time the segment was started, taken from its name.
+         */
+        final long startTime;
+
+        /**
+         * The record timestamps in ascending order.
+         */
+        long[] timestamps = new long[16];
+
+        /**
+         * The frame offsets of the records, parallel to <tt>timestamps</tt>.
+         */
+        long[] offsets = new long[16];
+
+        /**
+         * The number of records in this segment.
+         */
+        int count = 0;
+
+        /**
+         * The number of valid bytes in the segment file.
+         */
+        long size = 0;
+
+        /**
+         * Whether the index was built.
+         */
+        private boolean indexed = false;
+
+        /**
+         * The channel used for reading records.
+         */
+        private FileChannel readChannel = null;
+
+        /**
+         * Creates a segment for the given file.
+         *
+         * @param file the segment file
+         */
+        Segment(File file)
+        {
+            this.file = file;
+
+            String name = file.getName();
+            long start;
+            try
+            {
+                start = Long.parseLong(
+                    name.substring(0, name.indexOf('.')));
+            }
+            catch (NumberFormatException e)
+            {
+                start = file.lastModified();
+            }
+            this.startTime = start;
+        }
+
+        /**
+         * Returns the oldest timestamp in this segment.
+         *
+         * @return the oldest timestamp or <tt>Long.MAX_VALUE</tt> if empty
+         */
+        long getMinTimestamp()
+        {
+            return count == 0 ? Long.MAX_VALUE : timestamps[0];
+        }
+
+        /**
+         * Returns the newest timestamp in this segment.
+         *
+         * @return the newest timestamp or <tt>Long.MIN_VALUE</tt> if empty
+         */
+        long getMaxTimestamp()
+        {
+            return count == 0 ? Long.MIN_VALUE : timestamps[count - 1];
+        }
+
+        /**
+         * Returns the index of the first record with timestamp greater than
+         * or equal to <tt>timestamp</tt>.
+         *
+         * @param timestamp the timestamp to look for
+         * @return the insertion point of <tt>timestamp</tt>
+         */
+        int lowerBound(long timestamp)
+        {
+            int low = 0;
+            int high = count;
+            while (low < high)
+            {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] < timestamp)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * Adds a record to the index keeping it ordered by timestamp.
+         *
+         * @param timestamp the record timestamp
+         * @param offset the frame offset
+         */
+        void addEntry(long timestamp, long offset)
+        {
+            if (count == timestamps.length)
+            {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+
+            // records are appended in chronological order, except for the
+            // rare inserted old records
+            int pos = count;
+            if (count > 0 && timestamps[count - 1] > timestamp)
+            {
+                pos = lowerBound(timestamp + 1);
+                System.arraycopy(timestamps, pos, timestamps, pos + 1,
+                    count - pos);
+                System.arraycopy(offsets, pos, offsets, pos + 1, count - pos);
+            }
+
+            timestamps[pos] = timestamp;
+            offsets[pos] = offset;
+            count++;
+        }
+
+        /**
+         * Drops the index so that it is rebuilt on next access.
+         */
+        void reset()
+        {
+            indexed = false;
+            count = 0;
+            size = 0;
+        }
+
+        /**
+         * Builds the index of this segment if not built yet.
+         *
+         * @param truncateTornTail whether an incomplete frame at the end of
+         * the file should be removed
+         * @return this segment
+         */
+        Segment ensureIndexed(boolean truncateTornTail)
+        {
+            if (indexed)
+                return this;
+
+            indexed = true;
+            count = 0;
+            size = 0;
+
+            try
+            {
+                FileChannel channel = getReadChannel();
+                long length = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+                ByteBuffer ts = ByteBuffer.allocate(8);
+                while (size + FRAME_HEADER_SIZE <= length)
+                {
+                    header.clear();
+                    readFully(channel, header, size);
+                    int payloadLength = header.getInt(0);
+                    if (payloadLength < 12
+                        || size + FRAME_HEADER_SIZE + payloadLength > length)
+                        break;
+
+                    ts.clear();
+                    readFully(channel, ts, size + FRAME_HEADER_SIZE);
+                    addEntry(ts.getLong(0), size);
+                    size += FRAME_HEADER_SIZE + payloadLength;
+                }
+
+                if (size < length)
+                {
+                    logger.warn("Found " + (length - size)
+                        + " trailing bytes in history segment " + file);
+
+                    if (truncateTornTail)
+                    {
+                        try (FileChannel w = FileChannel.open(file.toPath(),
+                            StandardOpenOption.WRITE))
+                        {
+                            w.truncate(size);
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to index history segment " + file, e);
+            }
+
+            return this;
+        }
+
+        /**
+         * Reads and verifies the record frame at the given offset.
+         *
+         * @param offset the frame offset
+         * @return the decoded record
+         * @throws IOException if reading fails or the frame is corrupted
+         */
+        HistoryRecord readAt(long offset)
+            throws IOException
+        {
+            FileChannel channel = getReadChannel();
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            readFully(channel, header, offset);
+
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+            readFully(channel, payload, offset + FRAME_HEADER_SIZE);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, payload.capacity());
+            if ((int) crc.getValue() != header.getInt(4))
+            {
+                throw new IOException("Corrupted history record at "
+                    + offset + " in " + file);
+            }
+
+            payload.flip();
+            return decode(payload);
+        }
+
+        /**
+         * Returns the channel used to read this segment, opening it if
+         * needed.
+         *
+         * @return the read channel
+         * @throws IOException if the file cannot be opened
+         */
+        private FileChannel getReadChannel()
+            throws IOException
+        {
+            if (readChannel == null || !readChannel.isOpen())
+            {
+                readChannel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ);
+            }
+
+            return readChannel;
+        }
+
+        /**
+         * Closes the read channel, if open.
+         */
+        void closeReadChannel()
+        {
+            if (readChannel == null)
+                return;
+
+            try
+            {
+                readChannel.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to close history segment " + file, e);
+            }
+            readChannel = null;
+        }
+
+        /**
+         * Fills <tt>buffer</tt> from the given position of the channel.
+         *
+         * @param channel the channel to read from
+         * @param buffer the buffer to fill
+         * @param position the position in the channel
+         * @throws IOException if the end of file is reached
+         */
+        private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position)
+            throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0)
+                    throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * A <tt>History</tt> storing its records in an append-only
+ * <tt>SegmentLog</tt> instead of XML documents. Selected with the
+ * {@link HistoryService#STORAGE_ENGINE_PROPERTY} for newly created histories.
+ */
+@Slf4j
+public class SegmentLogHistoryImpl
+    implements History
+{
+    private final HistoryID id;
+
+    private final File directory;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private final SegmentLog segmentLog;
+
+    private HistoryReader reader;
+
+    private InteractiveHistoryReader interactiveReader;
+
+    private HistoryWriter writer;
+
+    /**
+     * Creates an instance of <tt>SegmentLogHistoryImpl</tt>.
+     * @param id the identifier
+     * @param directory the directory
+     * @param historyRecordStructure the structure
+     * @param historyServiceImpl the parent history service
+     */
+    protected SegmentLogHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+        this.historyRecordStructure = historyRecordStructure;
+        this.segmentLog = new SegmentLog(directory);
+    }
+
+    public HistoryID getID()
+    {
+        return id;
+    }
+
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return historyRecordStructure;
+    }
+
+    /**
+     * Sets the given <tt>structure</tt> to be the new history records
+     * structure used in this history implementation.
+     * @param structure the new <tt>HistoryRecordStructure</tt> to use
+     */
+    public void setHistoryRecordsStructure(HistoryRecordStructure structure)
+    {
+        this.historyRecordStructure = structure;
+
+        try
+        {
+            File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
+            DBStructSerializer dbss = new DBStructSerializer(historyServiceImpl);
+            dbss.writeHistory(dbDatFile, this);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not create new history structure");
+        }
+    }
+
+    public synchronized HistoryReader getReader()
+    {
+        if (reader == null)
+            reader = new SegmentLogHistoryReader(this);
+        return reader;
+    }
+
+    public synchronized InteractiveHistoryReader getInteractiveReader()
+    {
+        if (interactiveReader == null)
+            interactiveReader = new SegmentLogInteractiveHistoryReader(this);
+        return interactiveReader;
+    }
+
+    public synchronized HistoryWriter getWriter()
+    {
+        if (writer == null)
+            writer = new SegmentLogHistoryWriter(this);
+        return writer;
+    }
+
+    /**
+     * Returns the log holding the records of this history.
+     * @return the log holding the records of this history
+     */
+    SegmentLog getSegmentLog()
+    {
+        return segmentLog;
+    }
+}
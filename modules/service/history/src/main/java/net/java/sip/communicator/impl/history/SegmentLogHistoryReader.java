@@ -0,0 +1,412 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryReader</tt> of a <tt>SegmentLogHistoryImpl</tt>. Uses the
+ * per segment timestamp index of the <tt>SegmentLog</tt> to decode only the
+ * records within the requested period.
+ */
+public class SegmentLogHistoryReader
+    implements HistoryReader
+{
+    /**
+     * The history this reader reads from.
+     */
+    private final SegmentLogHistoryImpl history;
+
+    /**
+     * The registered search progress listeners.
+     */
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Orders records by ascending timestamp.
+     */
+    private static final Comparator<HistoryRecord> TIMESTAMP_COMPARATOR
+        = new Comparator<HistoryRecord>()
+        {
+            public int compare(HistoryRecord h1, HistoryRecord h2)
+            {
+                return h1.getTimestamp().compareTo(h2.getTimestamp());
+            }
+        };
+
+    /**
+     * Creates an instance of <tt>SegmentLogHistoryReader</tt>.
+     * @param history the parent History implementation
+     */
+    SegmentLogHistoryReader(SegmentLogHistoryImpl history)
+    {
+        this.history = history;
+    }
+
+    public QueryResultSet<HistoryRecord> findByStartDate(Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field,
+                                                       boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field,
+                                                      boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findLast(int count)
+        throws RuntimeException
+    {
+        return findLast(count, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findLast(int count,
+                                                  String[] keywords,
+                                                  String field,
+                                                  boolean caseSensitive)
+        throws RuntimeException
+    {
+        // like the XML history, only the last count records are searched
+        QueryResultSet<HistoryRecord> last
+            = collect(null, null, count, true, null, null, false, false);
+        if (keywords == null || keywords.length == 0)
+            return last;
+
+        Set<HistoryRecord> result = new LinkedHashSet<HistoryRecord>();
+        while (last.hasNext())
+        {
+            HistoryRecord record = last.nextRecord();
+            if (matches(record, keywords, field, caseSensitive))
+                result.add(record);
+        }
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        return collect(date, null, count, false, null, null, false, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        return collect(null, date, count, true, null, null, false, false);
+    }
+
+    /**
+     * Finds all records in the given period matching the keywords.
+     *
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> find(
+        Date startDate, Date endDate,
+        String[] keywords, String field, boolean caseSensitive)
+    {
+        return collect(startDate, endDate, Integer.MAX_VALUE, false,
+            keywords, field, caseSensitive, true);
+    }
+
+    /**
+     * Collects up to <tt>count</tt> records in the given period matching the
+     * keywords, either the newest or the oldest ones. Only segments
+     * overlapping the period are visited and within them only the records
+     * whose timestamp is in the period are decoded.
+     *
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period (exclusive) or <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @param newest whether to return the newest or the oldest records
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @param fireProgress whether to report progress to the listeners
+     * @return the found records ordered by timestamp
+     */
+    private QueryResultSet<HistoryRecord> collect(
+        Date startDate, Date endDate, int count, final boolean newest,
+        String[] keywords, String field, boolean caseSensitive,
+        boolean fireProgress)
+    {
+        final SegmentLog log = history.getSegmentLog();
+        long start = startDate == null ? Long.MIN_VALUE : startDate.getTime();
+        long end = endDate == null ? Long.MAX_VALUE : endDate.getTime();
+
+        List<SegmentLog.Segment> segments = new ArrayList<SegmentLog.Segment>();
+        for (SegmentLog.Segment s : log.getSegments())
+        {
+            int size = log.size(s);
+            if (size > 0
+                && log.timestamp(s, 0) < end
+                && log.timestamp(s, size - 1) >= start)
+            {
+                segments.add(s);
+            }
+        }
+
+        // visit the segments holding the records closest to the wanted end
+        // first, so we can stop as soon as we have enough records
+        Collections.sort(segments, new Comparator<SegmentLog.Segment>()
+        {
+            public int compare(SegmentLog.Segment s1, SegmentLog.Segment s2)
+            {
+                return newest
+                    ? Long.compare(last(log, s2), last(log, s1))
+                    : Long.compare(log.timestamp(s1, 0),
+                                   log.timestamp(s2, 0));
+            }
+        });
+
+        // keeps the best count records, the worst one at the head
+        PriorityQueue<HistoryRecord> result = new PriorityQueue<HistoryRecord>(
+            11, newest ? TIMESTAMP_COMPARATOR
+                       : Collections.reverseOrder(TIMESTAMP_COMPARATOR));
+
+        double progress = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+        double segmentStep = segments.isEmpty()
+            ? HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+            : (double) HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                / segments.size();
+        if (fireProgress)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+        }
+
+        for (SegmentLog.Segment s : segments)
+        {
+            if (count <= 0)
+                break;
+
+            if (result.size() >= count)
+            {
+                long worst = result.peek().getTimestamp().getTime();
+                if (newest ? last(log, s) < worst : log.timestamp(s, 0) > worst)
+                    break;
+            }
+
+            int from = log.lowerBound(s, start);
+            int to = end == Long.MAX_VALUE
+                ? log.size(s) : log.lowerBound(s, end);
+            for (int n = 0; n < to - from; n++)
+            {
+                int i = newest ? to - 1 - n : from + n;
+
+                if (result.size() >= count)
+                {
+                    long worst = result.peek().getTimestamp().getTime();
+                    long ts = log.timestamp(s, i);
+                    if (newest ? ts < worst : ts > worst)
+                        break;
+                }
+
+                HistoryRecord record = log.read(s, i);
+                if (record == null
+                    || !matches(record, keywords, field, caseSensitive))
+                    continue;
+
+                result.add(record);
+                if (result.size() > count)
+                    result.poll();
+            }
+
+            if (fireProgress)
+            {
+                progress += segmentStep;
+                fireProgressStateChanged(startDate, endDate, keywords,
+                    (int) progress);
+            }
+        }
+
+        if (fireProgress
+            && (int) progress < HistorySearchProgressListener
+                                    .PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        List<HistoryRecord> ordered = new ArrayList<HistoryRecord>(result);
+        Collections.sort(ordered, TIMESTAMP_COMPARATOR);
+        return new OrderedQueryResultSet<HistoryRecord>(
+            new LinkedHashSet<HistoryRecord>(ordered));
+    }
+
+    /**
+     * Returns the newest timestamp of a non-empty segment.
+     *
+     * @param log the log of the segment
+     * @param segment the segment
+     * @return the newest timestamp in the segment
+     */
+    private static long last(SegmentLog log, SegmentLog.Segment segment)
+    {
+        return log.timestamp(segment, log.size(segment) - 1);
+    }
+
+    /**
+     * Checks whether a record matches the keywords the same way the XML
+     * history does: a keyword restricted search needs the field to be present
+     * and to contain all keywords.
+     *
+     * @param record the record to check
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field to check
+     * @param caseSensitive is keywords search case sensitive
+     * @return <tt>true</tt> if the record matches
+     */
+    static boolean matches(HistoryRecord record, String[] keywords,
+                           String field, boolean caseSensitive)
+    {
+        if (keywords == null || keywords.length == 0)
+            return true;
+
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(field))
+            {
+                return HistoryReaderImpl.matchKeyword(
+                    record.getPropertyValues()[i], keywords, caseSensitive);
+            }
+        }
+
+        return false;
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                                          String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized(progressListeners)
+        {
+            for (HistorySearchProgressListener l : progressListeners)
+                l.progressChanged(event);
+        }
+    }
+
+    /**
+     * Adding progress listener for monitoring progress of search process
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void addSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removing progress listener
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void removeSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Returns the exact number of records in the history.
+     *
+     * @return the number of records
+     */
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        return history.getSegmentLog().count();
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of a <tt>SegmentLogHistoryImpl</tt>. New records
+ * are appended to the log, only the rare updates of existing records and the
+ * trimming of size limited histories rewrite segment files.
+ */
+public class SegmentLogHistoryWriter
+    implements HistoryWriter
+{
+    /**
+     * A size limited history is trimmed once it exceeds its limit by
+     * <tt>maxNumberOfRecords / TRIM_SLACK_DIVISOR</tt> records.
+     */
+    static final int TRIM_SLACK_DIVISOR = 4;
+
+    /**
+     * The history this writer writes to.
+     */
+    private final SegmentLogHistoryImpl history;
+
+    /**
+     * Creates an instance of <tt>SegmentLogHistoryWriter</tt>.
+     * @param history the history to write to
+     */
+    SegmentLogHistoryWriter(SegmentLogHistoryImpl history)
+    {
+        this.history = history;
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        history.getSegmentLog().append(record);
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(propertyValues, new Date());
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        addRecord(new HistoryRecord(
+            history.getHistoryRecordsStructure(), propertyValues, timestamp));
+    }
+
+    /**
+     * Stores the passed propertyValues, dropping the oldest records if the
+     * history would exceed <tt>maxNumberOfRecords</tt>. The history may
+     * exceed the limit by <tt>maxNumberOfRecords / TRIM_SLACK_DIVISOR</tt>
+     * records before it is trimmed back to it, so that the trimming, which
+     * drops whole segments and rewrites at most one, is shared by many
+     * appends.
+     *
+     * @param propertyValues the values of the record.
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException if writing fails
+     */
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        SegmentLog log = history.getSegmentLog();
+
+        synchronized (log)
+        {
+            if (maxNumberOfRecords > -1
+                && log.count() >= maxNumberOfRecords
+                    + maxNumberOfRecords / TRIM_SLACK_DIVISOR)
+            {
+                trim(log, Math.max(maxNumberOfRecords - 1, 0));
+            }
+
+            addRecord(propertyValues, new Date());
+        }
+    }
+
+    /**
+     * Drops the oldest records of a log. The oldest segments are deleted
+     * and the newest records of the segment holding the limit are
+     * rewritten.
+     *
+     * @param log the log to trim
+     * @param keep the number of records to keep
+     * @throws IOException if a segment cannot be rewritten
+     */
+    private static void trim(SegmentLog log, int keep)
+        throws IOException
+    {
+        int excess = log.count() - keep;
+
+        for (SegmentLog.Segment s : log.getSegments())
+        {
+            if (excess <= 0)
+                break;
+
+            int size = log.size(s);
+            if (size <= excess)
+            {
+                log.delete(s);
+                excess -= size;
+                continue;
+            }
+
+            List<HistoryRecord> records = log.readAll(s);
+            Collections.sort(records, new Comparator<HistoryRecord>()
+            {
+                public int compare(HistoryRecord h1, HistoryRecord h2)
+                {
+                    return h1.getTimestamp().compareTo(h2.getTimestamp());
+                }
+            });
+            log.rewrite(s, records.subList(excess, records.size()));
+            excess = 0;
+        }
+    }
+
+    /**
+     * Inserts a record with an old timestamp. As the segments keep their
+     * records ordered by timestamp, this is a plain append.
+     *
+     * @param propertyValues the values of the record.
+     * @param timestamp the timestamp of the record.
+     * @param timestampProperty not used by this implementation
+     * @throws IOException if writing fails
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        addRecord(propertyValues, timestamp);
+    }
+
+    public void updateRecord(final String idProperty, final String idValue,
+                             final String property, final String newValue)
+        throws IOException
+    {
+        update(new RecordModifier()
+        {
+            public HistoryRecord modify(HistoryRecord record)
+            {
+                String[] names = record.getPropertyNames();
+                String[] values = record.getPropertyValues();
+                int idIndex = indexOf(names, idProperty);
+                if (idIndex < 0 || !idValue.equals(values[idIndex]))
+                    return null;
+
+                int index = indexOf(names, property);
+                if (index < 0)
+                {
+                    names = Arrays.copyOf(names, names.length + 1);
+                    values = Arrays.copyOf(values, values.length + 1);
+                    index = names.length - 1;
+                    names[index] = property;
+                }
+                values[index] = newValue;
+
+                return new HistoryRecord(names, values, new Date());
+            }
+        }, true);
+    }
+
+    public void updateRecord(final HistoryRecordUpdater updater)
+        throws IOException
+    {
+        update(new RecordModifier()
+        {
+            public HistoryRecord modify(HistoryRecord record)
+            {
+                return applyUpdater(updater, record, new Date());
+            }
+        }, false);
+    }
+
+    /**
+     * Updates the record with the given timestamp. Only the segments whose
+     * index contains the timestamp are read and the record keeps its
+     * timestamp.
+     *
+     * @param timestamp the timestamp of the record to update
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     * @return <tt>true</tt> if a record was updated
+     * @throws IOException if the segment cannot be rewritten
+     */
+    public boolean updateRecord(Date timestamp, HistoryRecordUpdater updater)
+        throws IOException
+    {
+        long ts = timestamp.getTime();
+        SegmentLog log = history.getSegmentLog();
+
+        synchronized (log)
+        {
+            for (SegmentLog.Segment s : log.getSegments())
+            {
+                int index = log.lowerBound(s, ts);
+                if (index >= s.count || s.timestamps[index] != ts)
+                    continue;
+
+                List<HistoryRecord> records = log.readAll(s);
+                boolean changed = false;
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+                    if (record.getTimestamp().getTime() != ts)
+                        continue;
+
+                    HistoryRecord updated
+                        = applyUpdater(updater, record, timestamp);
+                    if (updated == null)
+                        continue;
+
+                    records.set(i, updated);
+                    changed = true;
+                }
+
+                if (changed)
+                {
+                    log.rewrite(s, records);
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the record updated by a <tt>HistoryRecordUpdater</tt>.
+     *
+     * @param updater the updater
+     * @param record the stored record
+     * @param timestamp the timestamp of the updated record
+     * @return the updated record or <tt>null</tt> if the updater does not
+     * match the record
+     */
+    private HistoryRecord applyUpdater(HistoryRecordUpdater updater,
+                                       HistoryRecord record,
+                                       Date timestamp)
+    {
+        // the updater works with the full structure, like the xml
+        // history does
+        HistoryRecordStructure structure = history.getHistoryRecordsStructure();
+        String[] names = structure.getPropertyNames();
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            int index = indexOf(record.getPropertyNames(), names[i]);
+            if (index >= 0)
+                values[i] = record.getPropertyValues()[index];
+        }
+
+        updater.setHistoryRecord(new HistoryRecord(structure, values));
+        if (!updater.isMatching())
+            return null;
+
+        names = record.getPropertyNames();
+        values = record.getPropertyValues().clone();
+        for (Map.Entry<String, String> e
+                : updater.getUpdateChanges().entrySet())
+        {
+            int index = indexOf(names, e.getKey());
+            if (index >= 0)
+                values[index] = e.getValue();
+        }
+
+        return new HistoryRecord(names, values, timestamp);
+    }
+
+    /**
+     * Rewrites the first segment, in chronological order, containing
+     * records accepted by the modifier.
+     *
+     * @param modifier produces the updated records
+     * @param firstOnly whether only the first matching record is updated
+     * @throws IOException if the segment cannot be rewritten
+     */
+    private void update(RecordModifier modifier, boolean firstOnly)
+        throws IOException
+    {
+        SegmentLog log = history.getSegmentLog();
+
+        synchronized (log)
+        {
+            for (SegmentLog.Segment s : log.getSegments())
+            {
+                List<HistoryRecord> records = log.readAll(s);
+                boolean changed = false;
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord updated = modifier.modify(records.get(i));
+                    if (updated == null)
+                        continue;
+
+                    records.set(i, updated);
+                    changed = true;
+                    if (firstOnly)
+                        break;
+                }
+
+                if (changed)
+                {
+                    log.rewrite(s, records);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of <tt>name</tt> in <tt>names</tt>.
+     *
+     * @param names the array to search
+     * @param name the name to look for
+     * @return the index or -1 if not found
+     */
+    private static int indexOf(String[] names, String name)
+    {
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Produces the new version of a record to be updated.
+     */
+    private interface RecordModifier
+    {
+        /**
+         * Returns the updated record or <tt>null</tt> if the record should
+         * stay unchanged.
+         *
+         * @param record the stored record
+         * @return the updated record or <tt>null</tt>
+         */
+        HistoryRecord modify(HistoryRecord record);
+    }
+}
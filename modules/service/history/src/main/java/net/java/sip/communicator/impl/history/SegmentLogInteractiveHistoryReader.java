@@ -0,0 +1,120 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>InteractiveHistoryReader</tt> of a <tt>SegmentLogHistoryImpl</tt>.
+ * Walks the segments from the newest to the oldest record and reports every
+ * match to the <tt>HistoryQuery</tt> as soon as it is decoded.
+ */
+public class SegmentLogInteractiveHistoryReader
+    implements InteractiveHistoryReader
+{
+    /**
+     * The history this reader reads from.
+     */
+    private final SegmentLogHistoryImpl history;
+
+    /**
+     * Creates an instance of <tt>SegmentLogInteractiveHistoryReader</tt>.
+     * @param history the corresponding history to read from
+     */
+    SegmentLogInteractiveHistoryReader(SegmentLogHistoryImpl history)
+    {
+        this.history = history;
+    }
+
+    public HistoryQuery findByKeyword(String keyword,
+                                      String field,
+                                      int recordCount)
+    {
+        return findByKeywords(new String[]{keyword}, field, recordCount);
+    }
+
+    public HistoryQuery findByKeywords(final String[] keywords,
+                                       final String field,
+                                       final int recordCount)
+    {
+        StringBuilder queryString = new StringBuilder();
+        for (String s : keywords)
+        {
+            queryString.append(' ');
+            queryString.append(s);
+        }
+
+        final HistoryQueryImpl query
+            = new HistoryQueryImpl(queryString.toString());
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                find(keywords, field, recordCount, query);
+            }
+        }.start();
+
+        return query;
+    }
+
+    /**
+     * Finds the newest records matching the keywords.
+     *
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void find(String[] keywords,
+                      String field,
+                      int resultCount,
+                      HistoryQueryImpl query)
+    {
+        final SegmentLog log = history.getSegmentLog();
+        List<SegmentLog.Segment> segments = log.getSegments();
+        Collections.reverse(segments);
+
+        for (SegmentLog.Segment s : segments)
+        {
+            for (int i = log.size(s) - 1;
+                 i >= 0 && resultCount > 0 && !query.isCanceled();
+                 i--)
+            {
+                HistoryRecord record = log.read(s, i);
+                if (record != null
+                    && SegmentLogHistoryReader.matches(
+                            record, keywords, field, false))
+                {
+                    query.addHistoryRecord(record);
+                    resultCount--;
+                }
+            }
+        }
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
+}
@@ -41,6 +41,91 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property setting the maximum memory, in bytes, used by the cached
+     * history documents when caching is enabled. The size of a document is
+     * estimated from its number of records.
+     */
+    public static final String CACHE_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_SIZE";
+
+    /**
+     * The default value of {@link #CACHE_SIZE_PROPERTY}, 16 MiB.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Property enabling the write-behind mode of the XML histories. Added
+     * records are then visible to the readers at once but are written to
+     * disk in batches by a background thread. Disabled by default.
+     */
+    public static final String WRITE_BEHIND_ENABLED_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_ENABLED";
+
+    /**
+     * Property setting the maximum time, in milliseconds, an added record
+     * waits to be written in write-behind mode.
+     */
+    public static final String WRITE_BEHIND_DELAY_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_DELAY";
+
+    /**
+     * The default value of {@link #WRITE_BEHIND_DELAY_PROPERTY}.
+     */
+    public static final int DEFAULT_WRITE_BEHIND_DELAY = 250;
+
+    /**
+     * Property setting the number of records added to a history after which
+     * they are written at once in write-behind mode.
+     */
+    public static final String WRITE_BEHIND_BATCH_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_BATCH_SIZE";
+
+    /**
+     * The default value of {@link #WRITE_BEHIND_BATCH_SIZE_PROPERTY}.
+     */
+    public static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 32;
+
+    /**
+     * Property enabling the persistent keyword index of the XML histories,
+     * used to speed up keyword searches. Enabled by default.
+     */
+    public static final String KEYWORD_INDEX_ENABLED_PROPERTY =
+        "net.java.sip.communicator.service.history.KEYWORD_INDEX_ENABLED";
+
+    /**
+     * Property requesting the keyword indexes of all existing histories to
+     * be rebuilt on next start. Removed once the rebuild is started.
+     */
+    public static final String KEYWORD_INDEX_REBUILD_PROPERTY =
+        "net.java.sip.communicator.service.history.KEYWORD_INDEX_REBUILD";
+
+    /**
+     * Property enabling the persistent timestamp index of the XML histories,
+     * used to select the files and records of date bounded and last records
+     * queries without reading the history files. Enabled by default.
+     */
+    public static final String TIMESTAMP_INDEX_ENABLED_PROPERTY =
+        "net.java.sip.communicator.service.history.TIMESTAMP_INDEX_ENABLED";
+
+    /**
+     * Property selecting the storage engine of newly created histories.
+     * Existing histories keep the engine they were created with.
+     */
+    public static final String STORAGE_ENGINE_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE_ENGINE";
+
+    /**
+     * Storage engine keeping every history file as an XML document.
+     * This is the default.
+     */
+    public static final String STORAGE_ENGINE_XML = "xml";
+
+    /**
+     * Storage engine keeping the records in an append-only binary log.
+     */
+    public static final String STORAGE_ENGINE_SEGMENT_LOG = "segmentlog";
+
     /**
      * Date format used in the XML history database.
      */
@@ -117,6 +117,21 @@ public void updateRecord(
     public void updateRecord(HistoryRecordUpdater updater)
         throws IOException;
 
+    /**
+     * Updates the record with the given timestamp using given
+     * <tt>HistoryRecordUpdater</tt> instance, which still decides whether the
+     * record is to be updated and gives the new values for the fields. Only
+     * the records with that timestamp are looked at and, unlike with the other
+     * updates, the record keeps its timestamp, so it can be found again with
+     * it.
+     *
+     * @param timestamp the timestamp of the record to update
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     * @return <tt>true</tt> if a record was updated
+     */
+    public boolean updateRecord(Date timestamp, HistoryRecordUpdater updater)
+        throws IOException;
+
     /**
      * This interface is used to find a history record to update and to get the
      * new values for the record.
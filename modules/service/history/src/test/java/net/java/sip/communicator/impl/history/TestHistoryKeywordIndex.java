@@ -0,0 +1,240 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.junit.*;
+
+/**
+ * Tests that the keyword index of a history, replayed from its journal,
+ * finds the records after the journal was damaged and after records were
+ * dropped from a history limited to a number of records.
+ */
+public class TestHistoryKeywordIndex
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "msg" });
+
+    private static final long TIME = 1500000000000L;
+
+    private File directory;
+
+    private File historyDir;
+
+    private HistoryImpl history;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("history").toFile();
+
+        HistoryServiceImpl historyService = new HistoryServiceImpl(
+            stub(ConfigurationService.class, null),
+            stub(FileAccessService.class, directory));
+
+        historyDir = new File(directory, "xml");
+        historyDir.mkdirs();
+        history = new HistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test", "xml" }),
+            historyDir, STRUCTURE, historyService);
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(directory);
+    }
+
+    /**
+     * Tests that the lines appended after a torn last line are replayed, and
+     * that a file with an invalid line is indexed again.
+     */
+    @Test
+    public void testReplayAfterTornLine()
+        throws IOException
+    {
+        int count = HistoryWriterImpl.MAX_RECORDS_PER_FILE + 10;
+        for (int i = 0; i < count; i++)
+            addRecord(i, -1);
+        history.getKeywordIndex().update(history);
+
+        String first = history.getFileList().next();
+        File journal = new File(historyDir, HistoryKeywordIndex.INDEX_FILE);
+        String content = new String(
+            Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8);
+        content = content.replace(
+            "R\t" + first + "\t3\t", "R\t" + first + "\tx\t");
+        Files.write(
+            journal.toPath(),
+            (content + "R\t" + first + "\t4\tmsg=t")
+                .getBytes(StandardCharsets.UTF_8));
+
+        // a new run appending without loading the journal
+        HistoryKeywordIndex index = new HistoryKeywordIndex(historyDir);
+        index.addRecord("other.xml", -1, 0,
+            new String[] { "msg" }, new String[] { "later" });
+
+        index = new HistoryKeywordIndex(historyDir);
+        assertEquals(
+            Collections.singletonMap(first, ordinals(3)),
+            index.findCandidates(history, "msg", new String[] { "n3x" }));
+        assertEquals(
+            Collections.singletonMap("other.xml", ordinals(0)),
+            index.findCandidates(history, "msg", new String[] { "later" }));
+    }
+
+    /**
+     * Tests that the records dropped from a history limited to a number of
+     * records shift the ordinals of the following ones, in memory and on
+     * replay, without indexing the whole file again.
+     */
+    @Test
+    public void testCappedHistory()
+        throws IOException
+    {
+        for (int i = 0; i < 10; i++)
+            addRecord(i, 10);
+        history.getKeywordIndex().update(history);
+        for (int i = 10; i < 25; i++)
+            addRecord(i, 10);
+
+        String file = history.getFileList().next();
+        Map<String, BitSet> expected
+            = Collections.singletonMap(file, ordinals(2));
+        assertEquals(
+            expected,
+            history.getKeywordIndex().findCandidates(
+                history, "msg", new String[] { "n17x" }));
+        assertNull(
+            history.getKeywordIndex().findCandidates(
+                history, "msg", new String[] { "n14x" }).get(file));
+
+        File journal = new File(historyDir, HistoryKeywordIndex.INDEX_FILE);
+        int fileLines = 0;
+        for (String line : Files.readAllLines(journal.toPath()))
+        {
+            if (line.startsWith("F\t"))
+                fileLines++;
+        }
+        assertEquals(1, fileLines);
+
+        HistoryKeywordIndex index = new HistoryKeywordIndex(historyDir);
+        assertEquals(
+            expected,
+            index.findCandidates(history, "msg", new String[] { "n17x" }));
+    }
+
+    /**
+     * Tests that the journal of a history limited to a number of records is
+     * compacted while records are added.
+     */
+    @Test
+    public void testCappedHistoryCompacted()
+        throws IOException
+    {
+        addRecord(0, 10);
+        history.getKeywordIndex().update(history);
+        for (int i = 1; i < 1500; i++)
+            addRecord(i, 10);
+
+        // two lines per record without compaction
+        File journal = new File(historyDir, HistoryKeywordIndex.INDEX_FILE);
+        assertTrue(Files.readAllLines(journal.toPath()).size() < 1500);
+
+        String newest = null;
+        for (Iterator<String> i = history.getFileList(); i.hasNext();)
+            newest = i.next();
+        int records = HistoryTimestampIndex.readTimestamps(
+            new File(historyDir, newest)).length;
+
+        HistoryKeywordIndex index = new HistoryKeywordIndex(historyDir);
+        assertEquals(
+            Collections.singletonMap(newest, ordinals(records - 1)),
+            index.findCandidates(history, "msg", new String[] { "n1499x" }));
+    }
+
+    private void addRecord(int i, int maxNumberOfRecords)
+        throws IOException
+    {
+        String[] values = new String[] { "message n" + i + "x" };
+        if (maxNumberOfRecords < 0)
+        {
+            history.getWriter().addRecord(values, new Date(TIME + i * 1000L));
+        }
+        else
+        {
+            // the current time, the oldest of equal timestamps is dropped
+            history.getWriter().addRecord(values, maxNumberOfRecords);
+        }
+    }
+
+    private static BitSet ordinals(int... ordinals)
+    {
+        BitSet result = new BitSet();
+        for (int o : ordinals)
+            result.set(o);
+        return result;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a stub of a service returning the defaults of the
+     * configuration properties, or <tt>directory</tt> for the files.
+     */
+    private static <T> T stub(Class<T> type, final File directory)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getReturnType() == File.class)
+                        return directory;
+                    if (args != null && args.length == 2)
+                        return args[1];
+                    return null;
+                }
+            }));
+    }
+}
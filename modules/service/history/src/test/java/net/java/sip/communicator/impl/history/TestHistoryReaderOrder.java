@@ -0,0 +1,265 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.junit.*;
+
+/**
+ * Tests that the records of the XML histories, which are read lazily a few
+ * files at a time, are returned in timestamp order without duplicate
+ * timestamps, as when all the files were read at once.
+ */
+public class TestHistoryReaderOrder
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "msg" });
+
+    private static final long TIME = 1500000000000L;
+
+    private File directory;
+
+    private HistoryImpl history;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("history").toFile();
+
+        HistoryServiceImpl historyService = new HistoryServiceImpl(
+            stub(ConfigurationService.class, null),
+            stub(FileAccessService.class, directory));
+
+        File historyDir = new File(directory, "xml");
+        historyDir.mkdirs();
+        history = new HistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test", "xml" }),
+            historyDir, STRUCTURE, historyService);
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(directory);
+    }
+
+    /**
+     * Tests that records written out of order to another file are returned
+     * in order, and that of the records with the same timestamp only the one
+     * of the oldest file is returned.
+     */
+    @Test
+    public void testOrderAcrossFiles()
+        throws IOException
+    {
+        int count = HistoryWriterImpl.MAX_RECORDS_PER_FILE + 10;
+        addRecords(0, count);
+
+        // both go to the last file
+        history.getWriter().addRecord(
+            new String[] { "late" }, new Date(TIME + 500));
+        history.getWriter().addRecord(
+            new String[] { "duplicate" }, new Date(TIME + 10 * 1000L));
+
+        List<HistoryRecord> records
+            = toList(history.getReader().findByStartDate(new Date(TIME)));
+
+        assertEquals(count + 1, records.size());
+        for (int i = 1; i < records.size(); i++)
+        {
+            assertTrue(records.get(i - 1).getTimestamp().before(
+                records.get(i).getTimestamp()));
+        }
+        assertEquals("late", records.get(1).getPropertyValues()[0]);
+        assertEquals("message 10", records.get(11).getPropertyValues()[0]);
+    }
+
+    /**
+     * Tests that the search is reported complete when the result set is
+     * returned, before it is iterated.
+     */
+    @Test
+    public void testProgressCompleteBeforeIteration()
+        throws IOException
+    {
+        addRecords(0, 2 * HistoryWriterImpl.MAX_RECORDS_PER_FILE + 10);
+
+        final List<Integer> progress = new ArrayList<Integer>();
+        HistoryReader reader = history.getReader();
+        reader.addSearchProgressListener(new HistorySearchProgressListener()
+        {
+            public void progressChanged(ProgressEvent evt)
+            {
+                progress.add(evt.getProgress());
+            }
+        });
+
+        QueryResultSet<HistoryRecord> result
+            = reader.findByStartDate(new Date(TIME));
+
+        assertFalse(progress.isEmpty());
+        assertEquals(
+            HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
+            (int) progress.get(progress.size() - 1));
+
+        // stopping early leaves nothing to report
+        result.nextRecord();
+        int reported = progress.size();
+        result.nextRecord();
+        assertEquals(reported, progress.size());
+    }
+
+    /**
+     * Tests that files dropped from memory and read again do not return the
+     * records added to them since they were first read.
+     */
+    @Test
+    public void testStableWhileAppending()
+        throws IOException
+    {
+        int count = 5 * HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+        addRecords(0, count - 10);
+
+        QueryResultSet<HistoryRecord> result
+            = history.getReader().findByStartDate(new Date(TIME));
+        List<HistoryRecord> forward = new ArrayList<HistoryRecord>();
+        while (result.hasNext())
+            forward.add(result.nextRecord());
+
+        // appended to the last file, which is dropped from memory while
+        // going back to the first ones
+        addRecords(count - 10, count);
+
+        List<HistoryRecord> backward = new ArrayList<HistoryRecord>();
+        backward.add(forward.get(forward.size() - 1));
+        while (result.hasPrev())
+            backward.add(0, result.prevRecord());
+        assertSameRecords(forward, backward);
+
+        List<HistoryRecord> again = new ArrayList<HistoryRecord>();
+        again.add(backward.get(0));
+        while (result.hasNext())
+            again.add(result.nextRecord());
+        assertSameRecords(forward, again);
+    }
+
+    /**
+     * Tests that a keyword search finds the records of a history limited to
+     * a number of records, when records were dropped from it between the
+     * search and the reading of the results.
+     */
+    @Test
+    public void testKeywordSearchWhileDroppingRecords()
+        throws IOException
+    {
+        addRecords(0, HistoryWriterImpl.MAX_RECORDS_PER_FILE + 10);
+        history.getKeywordIndex().update(history);
+
+        QueryResultSet<HistoryRecord> result = history.getReader()
+            .findByKeyword("message 155", "msg", false);
+
+        // drops the 3 oldest records of the last file
+        for (int i = 0; i < 3; i++)
+            history.getWriter().addRecord(new String[] { "new " + i }, 5);
+
+        List<HistoryRecord> records = toList(result);
+        assertEquals(1, records.size());
+        assertEquals("message 155", records.get(0).getPropertyValues()[0]);
+    }
+
+    private void addRecords(int from, int to)
+        throws IOException
+    {
+        for (int i = from; i < to; i++)
+        {
+            history.getWriter().addRecord(
+                new String[] { "message " + i },
+                new Date(TIME + i * 1000L));
+        }
+    }
+
+    private static void assertSameRecords(
+            List<HistoryRecord> expected, List<HistoryRecord> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(
+                expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertArrayEquals(
+                expected.get(i).getPropertyValues(),
+                actual.get(i).getPropertyValues());
+        }
+    }
+
+    private static List<HistoryRecord> toList(
+            QueryResultSet<HistoryRecord> result)
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        while (result.hasNext())
+            records.add(result.nextRecord());
+        return records;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a stub of a service returning the defaults of the
+     * configuration properties, or <tt>directory</tt> for the files.
+     */
+    private static <T> T stub(Class<T> type, final File directory)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getReturnType() == File.class)
+                        return directory;
+                    if (args != null && args.length == 2)
+                        return args[1];
+                    return null;
+                }
+            }));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.junit.*;
+
+/**
+ * Tests that the timestamps of a history, replayed from their journal, match
+ * the history files after the journal was damaged and after records were
+ * dropped from a history limited to a number of records, also when the
+ * records are written behind.
+ */
+public class TestHistoryTimestampIndex
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "msg" });
+
+    private static final long TIME = 1500000000000L;
+
+    private File directory;
+
+    private File historyDir;
+
+    private HistoryImpl history;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("history").toFile();
+        historyDir = new File(directory, "xml");
+        historyDir.mkdirs();
+        history = createHistory(false);
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(directory);
+    }
+
+    /**
+     * Tests that the lines appended after a torn last line are replayed, and
+     * that an invalid line only makes its file read again.
+     */
+    @Test
+    public void testReplayAfterTornLine()
+        throws Exception
+    {
+        for (int i = 0; i < 20; i++)
+            history.getWriter().addRecord(
+                new String[] { "message " + i }, new Date(TIME + i * 1000L));
+
+        String file = history.getFileList().next();
+        File journal = new File(historyDir, HistoryTimestampIndex.INDEX_FILE);
+        String content = new String(
+            Files.readAllBytes(journal.toPath()), StandardCharsets.UTF_8);
+        content = content.replace(
+            "A\t" + file + "\t5\t", "A\t" + file + "\tx\t");
+        Files.write(
+            journal.toPath(),
+            (content + "A\t" + file + "\t20\t1")
+                .getBytes(StandardCharsets.UTF_8));
+
+        // a new run appending without loading the journal
+        history = createHistory(false);
+        history.getWriter().addRecord(
+            new String[] { "message 20" }, new Date(TIME + 20 * 1000L));
+
+        assertFalse(
+            new String(
+                    Files.readAllBytes(journal.toPath()),
+                    StandardCharsets.UTF_8)
+                .contains("\t1A\t"));
+        assertTimestamps(file, 21);
+    }
+
+    /**
+     * Tests that the records dropped from a history limited to a number of
+     * records are recorded without recording all the timestamps of the file
+     * again, and that the journal is compacted while records are added.
+     */
+    @Test
+    public void testCappedHistory()
+        throws IOException
+    {
+        for (int i = 0; i < 2500; i++)
+            history.getWriter().addRecord(new String[] { "message " + i }, 10);
+
+        File journal = new File(historyDir, HistoryTimestampIndex.INDEX_FILE);
+        List<String> lines = Files.readAllLines(journal.toPath());
+        // two lines per record without compaction
+        assertTrue(lines.size() < 4500);
+        for (Iterator<String> i = history.getFileList(); i.hasNext();)
+            assertTimestamps(i.next(), 10);
+    }
+
+    /**
+     * Tests that the records written behind in a history limited to a number
+     * of records are recorded when they are written.
+     */
+    @Test
+    public void testCappedHistoryWrittenBehind()
+        throws Exception
+    {
+        history = createHistory(true);
+        HistoryWriterImpl writer = (HistoryWriterImpl) history.getWriter();
+        for (int i = 0; i < 25; i++)
+        {
+            writer.addRecord(new String[] { "message " + i }, 10);
+            if (i % 7 == 0)
+                writer.flush();
+        }
+        writer.flush();
+
+        File journal = new File(historyDir, HistoryTimestampIndex.INDEX_FILE);
+        for (String line : Files.readAllLines(journal.toPath()))
+            assertFalse(line, line.startsWith("F\t"));
+        assertTimestamps(history.getFileList().next(), 10);
+    }
+
+    /**
+     * Checks that the timestamps replayed from the journal are the ones of
+     * the history file.
+     */
+    private void assertTimestamps(String filename, int count)
+        throws IOException
+    {
+        long[] expected = HistoryTimestampIndex.readTimestamps(
+            new File(historyDir, filename));
+        assertEquals(count, expected.length);
+
+        HistoryTimestampIndex.FileTimestamps timestamps
+            = new HistoryTimestampIndex(historyDir, true)
+                .getTimestamps(history, filename);
+        assertEquals(expected.length, timestamps.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], timestamps.get(i));
+    }
+
+    private HistoryImpl createHistory(boolean writeBehind)
+        throws Exception
+    {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(
+            HistoryService.WRITE_BEHIND_ENABLED_PROPERTY, writeBehind);
+        // flushed by the tests
+        properties.put(HistoryService.WRITE_BEHIND_DELAY_PROPERTY, 3600000);
+        properties.put(HistoryService.WRITE_BEHIND_BATCH_SIZE_PROPERTY, 1000);
+
+        HistoryServiceImpl historyService = new HistoryServiceImpl(
+            stub(ConfigurationService.class, properties),
+            stub(FileAccessService.class, directory));
+        return new HistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test", "xml" }),
+            historyDir, STRUCTURE, historyService);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a stub of a service returning <tt>result</tt> for the files,
+     * and the values in <tt>result</tt> or the defaults for the
+     * configuration properties.
+     */
+    private static <T> T stub(Class<T> type, final Object result)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getReturnType() == File.class)
+                        return result;
+                    if (args == null || args.length != 2)
+                        return null;
+                    Object value = result instanceof Map
+                        ? ((Map<?, ?>) result).get(args[0])
+                        : null;
+                    return value != null ? value : args[1];
+                }
+            }));
+    }
+}
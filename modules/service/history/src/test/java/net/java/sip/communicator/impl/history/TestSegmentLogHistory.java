@@ -0,0 +1,311 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.junit.*;
+
+/**
+ * Tests the segment log storage engine against the XML one: the same
+ * records written to both histories must be read back the same way.
+ */
+public class TestSegmentLogHistory
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "dir", "msg", "uid" });
+
+    private File directory;
+
+    private HistoryServiceImpl historyService;
+
+    private HistoryImpl xmlHistory;
+
+    private SegmentLogHistoryImpl segmentLogHistory;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("history").toFile();
+
+        historyService = new HistoryServiceImpl(
+            stub(ConfigurationService.class, null),
+            stub(FileAccessService.class, directory));
+
+        xmlHistory = new HistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test", "xml" }),
+            mkdir("xml"), STRUCTURE, historyService);
+        segmentLogHistory = new SegmentLogHistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test", "segments" }),
+            mkdir("segments"), STRUCTURE, historyService);
+    }
+
+    @After
+    public void tearDown()
+    {
+        segmentLogHistory.getSegmentLog().close();
+        delete(directory);
+    }
+
+    /**
+     * Tests that records are read back with their values and timestamps by
+     * period and by keyword.
+     */
+    @Test
+    public void testRoundTrip()
+        throws IOException
+    {
+        long time = 1500000000000L;
+        for (int i = 0; i < 200; i++)
+        {
+            String[] values = {
+                i % 3 == 0 ? "in" : "out",
+                "message " + i + (i % 7 == 0 ? " <lunch> & caf\u00e9" : ""),
+                "uid" + i };
+            Date timestamp = new Date(time + i * 1000L);
+
+            xmlHistory.getWriter().addRecord(values, timestamp);
+            segmentLogHistory.getWriter().addRecord(values, timestamp);
+        }
+
+        Date start = new Date(time + 50 * 1000L);
+        Date end = new Date(time + 150 * 1000L);
+
+        assertSameRecords(
+            xmlHistory.getReader().findByPeriod(start, end),
+            segmentLogHistory.getReader().findByPeriod(start, end),
+            true);
+        assertSameRecords(
+            xmlHistory.getReader().findByStartDate(start),
+            segmentLogHistory.getReader().findByStartDate(start),
+            true);
+        assertSameRecords(
+            xmlHistory.getReader().findByKeyword("lunch", "msg"),
+            segmentLogHistory.getReader().findByKeyword("lunch", "msg"),
+            true);
+        assertSameRecords(
+            xmlHistory.getReader().findLast(10),
+            segmentLogHistory.getReader().findLast(10),
+            true);
+    }
+
+    /**
+     * Tests that the newest records are filtered by keywords: like the XML
+     * reader, only the last <tt>count</tt> records are searched.
+     */
+    @Test
+    public void testFindLastWithKeywords()
+        throws IOException
+    {
+        long time = 1500000000000L;
+        for (int i = 0; i < 100; i++)
+        {
+            String[] values = {
+                "in",
+                (i % 4 == 0 ? "Hello " : "bye ") + i
+                    + (i % 5 == 0 ? " world" : ""),
+                "uid" + i };
+            Date timestamp = new Date(time + i * 1000L);
+
+            xmlHistory.getWriter().addRecord(values, timestamp);
+            segmentLogHistory.getWriter().addRecord(values, timestamp);
+        }
+
+        String[] keywords = { "hello", "world" };
+        assertSameRecords(
+            xmlHistory.getReader().findLast(30, keywords, "msg", false),
+            segmentLogHistory.getReader().findLast(
+                30, keywords, "msg", false),
+            true);
+        assertEquals(0, toList(segmentLogHistory.getReader().findLast(
+            30, keywords, "msg", true)).size());
+
+        keywords = new String[] { "Hello", "world" };
+        assertSameRecords(
+            xmlHistory.getReader().findLast(30, keywords, "msg", true),
+            segmentLogHistory.getReader().findLast(
+                30, keywords, "msg", true),
+            true);
+        assertSameRecords(
+            xmlHistory.getReader().findLast(
+                20, new String[] { "bye" }, "msg", false),
+            segmentLogHistory.getReader().findLast(
+                20, new String[] { "bye" }, "msg", false),
+            true);
+    }
+
+    /**
+     * Tests that a size limited history keeps its newest records and is not
+     * trimmed on every append.
+     */
+    @Test
+    public void testLimitTrim()
+        throws IOException
+    {
+        int limit = 20;
+        SegmentLog log = segmentLogHistory.getSegmentLog();
+
+        for (int i = 0; i < 103; i++)
+        {
+            String[] values = { "in", "message " + i, "uid" + i };
+
+            xmlHistory.getWriter().addRecord(values, limit);
+            segmentLogHistory.getWriter().addRecord(values, limit);
+            sleep();
+
+            assertTrue(log.count() <= limit
+                + limit / SegmentLogHistoryWriter.TRIM_SLACK_DIVISOR);
+        }
+
+        assertSameRecords(
+            xmlHistory.getReader().findLast(limit),
+            segmentLogHistory.getReader().findLast(limit),
+            false);
+        assertTrue(log.count() > limit);
+    }
+
+    /**
+     * Tests that trimming a history stored in several segments deletes the
+     * old segments.
+     */
+    @Test
+    public void testLimitTrimDropsSegments()
+        throws IOException
+    {
+        int limit = 8;
+        char[] padding = new char[200 * 1024];
+        Arrays.fill(padding, 'x');
+        SegmentLog log = segmentLogHistory.getSegmentLog();
+
+        for (int i = 0; i < 40; i++)
+        {
+            segmentLogHistory.getWriter().addRecord(
+                new String[] { "in", "message " + i, new String(padding) },
+                limit);
+            // records of the same millisecond have no defined order
+            sleep();
+        }
+
+        assertTrue(log.count() <= limit + limit / 4);
+        assertTrue(log.getSegments().size() <= 3);
+
+        QueryResultSet<HistoryRecord> result
+            = segmentLogHistory.getReader().findLast(limit);
+        for (int i = 40 - limit; i < 40; i++)
+        {
+            assertEquals(
+                "message " + i, result.nextRecord().getPropertyValues()[1]);
+        }
+        assertFalse(result.hasNext());
+    }
+
+    private static void assertSameRecords(
+            QueryResultSet<HistoryRecord> expected,
+            QueryResultSet<HistoryRecord> actual,
+            boolean compareTimestamps)
+    {
+        List<HistoryRecord> expectedRecords = toList(expected);
+        List<HistoryRecord> actualRecords = toList(actual);
+
+        assertFalse(expectedRecords.isEmpty());
+        assertEquals(expectedRecords.size(), actualRecords.size());
+        for (int i = 0; i < expectedRecords.size(); i++)
+        {
+            HistoryRecord e = expectedRecords.get(i);
+            HistoryRecord a = actualRecords.get(i);
+
+            assertArrayEquals(e.getPropertyNames(), a.getPropertyNames());
+            assertArrayEquals(e.getPropertyValues(), a.getPropertyValues());
+            if (compareTimestamps)
+                assertEquals(e.getTimestamp(), a.getTimestamp());
+        }
+    }
+
+    private static List<HistoryRecord> toList(
+            QueryResultSet<HistoryRecord> result)
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        while (result.hasNext())
+            records.add(result.nextRecord());
+        return records;
+    }
+
+    private static void sleep()
+    {
+        try
+        {
+            Thread.sleep(2);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private File mkdir(String name)
+    {
+        File dir = new File(directory, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Creates a stub of a service returning the defaults of the
+     * configuration properties, or <tt>directory</tt> for the files.
+     */
+    private static <T> T stub(Class<T> type, final File directory)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                {
+                    if (method.getReturnType() == File.class)
+                        return directory;
+                    if (args != null && args.length == 2)
+                        return args[1];
+                    return null;
+                }
+            }));
+    }
+}
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -35,8 +36,9 @@
 
 /**
  * The Meta History Service is wrapper around the other known
- * history services. Query them all at once, sort the result and return all
- * merged records in one collection.
+ * history services. Query them all at once, in parallel, and merge their
+ * sorted records in one collection, only going through the records that
+ * are returned.
  *
  * @author Damian Minkov
  */
@@ -62,6 +64,38 @@
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The maximum number of services queried at once, by all the searches.
+     */
+    private static final int QUERY_THREADS = 4;
+
+    /**
+     * Orders the records by their timestamp.
+     */
+    private static final Comparator<Object> RECORDS_COMPARATOR
+        = new RecordsComparator();
+
+    /**
+     * Orders the cursors of a merge by their current record, then by service
+     * so that the records with the same timestamp keep the service order.
+     */
+    private static final Comparator<Cursor> CURSOR_COMPARATOR
+        = new Comparator<Cursor>()
+        {
+            public int compare(Cursor c1, Cursor c2)
+            {
+                int result
+                    = RECORDS_COMPARATOR.compare(c1.record(), c2.record());
+                return (result != 0) ? result : (c1.source - c2.source);
+            }
+        };
+
+    /**
+     * Queries the services for the searches, all but one service of a search
+     * which is queried by the searching thread.
+     */
+    private ThreadPoolExecutor queryExecutor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -75,55 +109,41 @@
      */
     @Override
     public Collection<Object> findByStartDate(Class<?>[] services,
-            Object descriptor, Date startDate)
+            Object descriptor, final Date startDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                return mhs.findByStartDate(contact, startDate);
+            }
 
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
+            {
+                return mhs.findByStartDate(room, startDate);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
+                return fhs.findByStartDate(contact, startDate);
             }
-            else if(serv instanceof CallHistoryService)
+
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
+                return chs.findByStartDate(startDate);
             }
-        }
-        listenWrapper.fireLastProgress(startDate, null, null);
+        });
+        fireLastProgress(services.length, startDate, null, null);
 
-        return result;
+        return mergeAll(results);
     }
 
     /**
@@ -139,56 +159,41 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findByEndDate(Class<?>[] services,
-            Object descriptor, Date endDate)
+            Object descriptor, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                return mhs.findByEndDate(contact, endDate);
+            }
 
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
+            {
+                return mhs.findByEndDate(room, endDate);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
+                return fhs.findByEndDate(contact, endDate);
             }
-            else if(serv instanceof CallHistoryService)
+
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
+                return chs.findByEndDate(endDate);
             }
-        }
-        listenWrapper.fireLastProgress(null, endDate, null);
+        });
+        fireLastProgress(services.length, null, endDate, null);
 
-        return result;
+        return mergeAll(results);
     }
 
     /**
@@ -205,59 +210,41 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findByPeriod(Class<?>[] services,
-            Object descriptor, Date startDate, Date endDate)
+            Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        LinkedList<Object> result = new LinkedList<Object>();
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                return mhs.findByPeriod(contact, startDate, endDate);
+            }
 
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
+            {
+                return mhs.findByPeriod(room, startDate, endDate);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
+                return fhs.findByPeriod(contact, startDate, endDate);
             }
-            else if(serv instanceof CallHistoryService)
+
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
+                return chs.findByPeriod(startDate, endDate);
             }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, null);
+        });
+        fireLastProgress(services.length, startDate, endDate, null);
 
-        Collections.sort(result, new RecordsComparator());
-        return result;
+        return mergeAll(results);
     }
 
     /**
@@ -299,75 +286,47 @@ public Collection<Object> findByPeriod(Class<?>[] services,
      */
     @Override
     public Collection<Object> findByPeriod(Class<?>[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            Object descriptor, final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+                return mhs.findByPeriod(
+                    contact, startDate, endDate, keywords, caseSensitive);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor,
-                        startDate, endDate,
-                        keywords, caseSensitive));
+                return mhs.findByPeriod(
+                    room, startDate, endDate, keywords, caseSensitive);
             }
-            else if(serv instanceof CallHistoryService)
+
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
-                {
-                    CallRecord callRecord = iter.next();
+                return fhs.findByPeriod(
+                    contact, startDate, endDate, keywords, caseSensitive);
+            }
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
-                }
-                chs.removeSearchProgressListener(listenWrapper);
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
+            {
+                return filterCalls(
+                    chs.findByPeriod(startDate, endDate),
+                    keywords, caseSensitive);
             }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, keywords);
+        });
+        fireLastProgress(services.length, startDate, endDate, keywords);
 
-        return result;
+        return mergeAll(results);
     }
 
     /**
@@ -443,72 +402,44 @@ public Collection<Object> findByKeywords(Class<?>[] services,
      */
     @Override
     public Collection<Object> findByKeywords(Class<?>[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (ChatRoom)descriptor,
-                            keywords, caseSensitive));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+                return mhs.findByKeywords(contact, keywords, caseSensitive);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
-                        (MetaContact)descriptor,
-                        keywords, caseSensitive));
+                return mhs.findByKeywords(room, keywords, caseSensitive);
             }
-            else if(serv instanceof CallHistoryService)
+
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
+                return fhs.findByKeywords(contact, keywords, caseSensitive);
+            }
 
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
+            {
                 // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
-                {
-                    CallRecord callRecord = iter.next();
-
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
-                }
-                chs.removeSearchProgressListener(listenWrapper);
+                return filterCalls(
+                    chs.findByEndDate(new Date()), keywords, caseSensitive);
             }
-        }
-        listenWrapper.fireLastProgress(null, null, keywords);
+        });
+        fireLastProgress(services.length, null, null, keywords);
 
-        return result;
+        return mergeAll(results);
     }
 
     /**
@@ -524,67 +455,41 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findLast(Class<?>[] services,
-            Object descriptor, int count)
+            Object descriptor, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findLast(
-                            (MetaContact)descriptor,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLast(
-                            (ChatRoom)descriptor,
-                            count));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+                return mhs.findLast(contact, count);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
-                        (MetaContact)descriptor,
-                        count));
+                return mhs.findLast(room, count);
             }
-            else if(serv instanceof CallHistoryService)
+
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
+                return fhs.findLast(contact, count);
             }
-        }
-        listenWrapper.fireLastProgress(null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
-
-        if(startIndex < 0)
-            startIndex = 0;
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
+            {
+                return chs.findLast(count);
+            }
+        });
+        fireLastProgress(services.length, null, null, null);
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return mergeLast(results, count);
     }
 
     /**
@@ -601,79 +506,42 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findFirstMessagesAfter(Class<?>[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+                return mhs.findFirstMessagesAfter(contact, date, count);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
+                return mhs.findFirstMessagesAfter(room, date, count);
             }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
-                {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
-                }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
+            {
+                return fhs.findFirstRecordsAfter(contact, date, count);
             }
-        }
-        listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
 
-        int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
+            {
+                // the merge takes the first count of them
+                return chs.findByStartDate(date);
+            }
+        });
+        fireLastProgress(services.length, date, null, null);
 
-        return resultAsList.subList(0, toIndex);
+        return mergeFirst(results, count);
     }
 
     /**
@@ -690,77 +558,272 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findLastMessagesBefore(Class<?>[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<SortedRecords> results = query(services, descriptor, new Query()
         {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       MetaContact contact)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                return mhs.findLastMessagesBefore(contact, date, count);
+            }
 
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+            @Override
+            Collection<?> findMessages(MessageHistoryService mhs,
+                                       ChatRoom room)
+            {
+                return mhs.findLastMessagesBefore(room, date, count);
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+
+            @Override
+            Collection<?> findFiles(FileHistoryService fhs,
+                                    MetaContact contact)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
+                return fhs.findLastRecordsBefore(contact, date, count);
             }
-            else if(serv instanceof CallHistoryService)
+
+            @Override
+            Collection<?> findCalls(CallHistoryService chs)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
+                // the merge takes the last count of them
+                return chs.findByEndDate(date);
+            }
+        });
+        fireLastProgress(services.length, date, null, null);
+
+        return mergeLast(results, count);
+    }
+
+    /**
+     * Queries the services in parallel, each one on its own with the
+     * <tt>query</tt> for the descriptor, and returns the records of each
+     * service ready to be merged.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param query the query of a service
+     * @return the records of each service
+     */
+    private List<SortedRecords> query(Class<?>[] services,
+                                     final Object descriptor,
+                                     final Query query)
+    {
+        List<Future<SortedRecords>> futures
+            = new ArrayList<Future<SortedRecords>>(services.length);
+        ExecutorService executor = queryExecutor;
 
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
+        for (int i = 0; i < services.length; i++)
+        {
+            final Object serv = getService(services[i]);
+            final MessageProgressWrapper listenWrapper
+                = new MessageProgressWrapper(services.length);
+            listenWrapper.setIx(i);
+
+            Callable<SortedRecords> task = new Callable<SortedRecords>()
+            {
+                public SortedRecords call()
                 {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
+                    return query(serv, descriptor, query, listenWrapper);
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+            };
+
+            // the last one is queried by the calling thread
+            if (executor == null || i == services.length - 1)
+            {
+                FutureTask<SortedRecords> future
+                    = new FutureTask<SortedRecords>(task);
+                future.run();
+                futures.add(future);
             }
+            else
+                futures.add(executor.submit(task));
+        }
+
+        List<SortedRecords> results
+            = new ArrayList<SortedRecords>(futures.size());
+        try
+        {
+            for (Future<SortedRecords> future : futures)
+                results.add(future.get());
         }
-        listenWrapper.fireLastProgress(date, null, null);
+        catch (InterruptedException e)
+        {
+            for (Future<SortedRecords> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Queries a service and returns its records.
+     *
+     * @param serv the service
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param query the query of a service
+     * @param listenWrapper the progress listener of the service
+     * @return the records
+     */
+    private SortedRecords query(Object serv,
+                               Object descriptor,
+                               Query query,
+                               MessageProgressWrapper listenWrapper)
+    {
+        Collection<?> records = null;
+        if(serv instanceof MessageHistoryService)
+        {
+            MessageHistoryService mhs = (MessageHistoryService)serv;
+            mhs.addSearchProgressListener(listenWrapper);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+            if(descriptor instanceof MetaContact)
+                records = query.findMessages(mhs, (MetaContact)descriptor);
+            else if(descriptor instanceof ChatRoom)
+                records = query.findMessages(mhs, (ChatRoom)descriptor);
 
-        if(startIndex < 0)
-            startIndex = 0;
+            mhs.removeSearchProgressListener(listenWrapper);
+        }
+        else if(serv instanceof FileHistoryService
+                && descriptor instanceof MetaContact)
+        {
+            records = query.findFiles(
+                (FileHistoryService)serv, (MetaContact)descriptor);
+        }
+        else if(serv instanceof CallHistoryService)
+        {
+            CallHistoryService chs = (CallHistoryService)serv;
+            chs.addSearchProgressListener(listenWrapper);
+            records = query.findCalls(chs);
+            chs.removeSearchProgressListener(listenWrapper);
+        }
+
+        if (records == null)
+            records = Collections.emptyList();
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return SortedRecords.of(records);
+    }
+
+    /**
+     * Merges the records of the services.
+     *
+     * @param sources the records of each service
+     * @return all the records, sorted
+     */
+    static List<Object> mergeAll(List<SortedRecords> sources)
+    {
+        int size = 0;
+        for (SortedRecords source : sources)
+            size += source.size();
+
+        return mergeFirst(sources, size);
+    }
+
+    /**
+     * Merges the oldest <tt>count</tt> records of the services, not looking
+     * at the others.
+     *
+     * @param sources the records of each service
+     * @param count the number of records to return
+     * @return the oldest records, sorted
+     */
+    static List<Object> mergeFirst(List<SortedRecords> sources, int count)
+    {
+        List<Object> result = new ArrayList<Object>(Math.max(count, 0));
+        PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(
+            Math.max(sources.size(), 1), CURSOR_COMPARATOR);
+        for (int i = 0; i < sources.size(); i++)
+        {
+            SortedRecords source = sources.get(i);
+            if (source.size() > 0)
+                cursors.add(new Cursor(source.iterator(true), i));
+        }
+
+        while (result.size() < count && !cursors.isEmpty())
+        {
+            Cursor cursor = cursors.poll();
+            result.add(cursor.record());
+            if (cursor.next())
+                cursors.add(cursor);
+        }
+        return result;
+    }
+
+    /**
+     * Merges the newest <tt>count</tt> records of the services, not looking
+     * at the others.
+     *
+     * @param sources the records of each service
+     * @param count the number of records to return
+     * @return the newest records, sorted from the oldest
+     */
+    static List<Object> mergeLast(List<SortedRecords> sources, int count)
+    {
+        LinkedList<Object> result = new LinkedList<Object>();
+        PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(
+            Math.max(sources.size(), 1),
+            Collections.reverseOrder(CURSOR_COMPARATOR));
+        for (int i = 0; i < sources.size(); i++)
+        {
+            SortedRecords source = sources.get(i);
+            if (source.size() > 0)
+                cursors.add(new Cursor(source.iterator(false), i));
+        }
+
+        while (result.size() < count && !cursors.isEmpty())
+        {
+            Cursor cursor = cursors.poll();
+            result.addFirst(cursor.record());
+            if (cursor.next())
+                cursors.add(cursor);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the call records with a peer matching the keywords.
+     *
+     * @param calls the call records
+     * @param keywords the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching call records
+     */
+    private Collection<CallRecord> filterCalls(Collection<CallRecord> calls,
+                                               String[] keywords,
+                                               boolean caseSensitive)
+    {
+        List<CallRecord> result = new ArrayList<CallRecord>();
+        for (CallRecord callRecord : calls)
+        {
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+        return result;
+    }
+
+    /**
+     * Notifies the progress listeners that a search is over.
+     *
+     * @param count the number of services searched
+     * @param startDate the start date of the search
+     * @param endDate the end date of the search
+     * @param keywords the keywords of the search
+     */
+    private void fireLastProgress(
+        int count, Date startDate, Date endDate, String[] keywords)
+    {
+        new MessageProgressWrapper(count)
+            .fireLastProgress(startDate, endDate, keywords);
     }
 
     /**
@@ -890,6 +953,21 @@ public void start(BundleContext bc)
 
         services.clear();
 
+        queryExecutor = new ThreadPoolExecutor(
+            QUERY_THREADS, QUERY_THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "MetaHistoryQuery");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        queryExecutor.allowCoreThreadTimeOut(true);
+
         // start listening for newly register or removed services
         bc.addServiceListener(this);
     }
@@ -903,6 +981,12 @@ public void stop(BundleContext bc)
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        if (queryExecutor != null)
+        {
+            queryExecutor.shutdown();
+            queryExecutor = null;
+        }
     }
 
     /**
@@ -939,6 +1023,213 @@ public int compare(Object o1, Object o2)
         }
     }
 
+    /**
+     * The query of a search for each kind of service. The services which
+     * can't search for the descriptor are not queried.
+     */
+    private static abstract class Query
+    {
+        /**
+         * Queries the message history for the messages with a contact.
+         *
+         * @param mhs the message history
+         * @param contact the contact
+         * @return the messages
+         */
+        abstract Collection<?> findMessages(MessageHistoryService mhs,
+                                            MetaContact contact);
+
+        /**
+         * Queries the message history for the messages of a chat room.
+         *
+         * @param mhs the message history
+         * @param room the chat room
+         * @return the messages
+         */
+        abstract Collection<?> findMessages(MessageHistoryService mhs,
+                                            ChatRoom room);
+
+        /**
+         * Queries the file history for the transfers with a contact.
+         *
+         * @param fhs the file history
+         * @param contact the contact
+         * @return the file records
+         */
+        abstract Collection<?> findFiles(FileHistoryService fhs,
+                                         MetaContact contact);
+
+        /**
+         * Queries the call history.
+         *
+         * @param chs the call history
+         * @return the call records
+         */
+        abstract Collection<?> findCalls(CallHistoryService chs);
+    }
+
+    /**
+     * The records returned by a service. Most services return their records
+     * sorted by timestamp already, from the oldest or from the newest, and
+     * these are merged as they are, going through them in one or the other
+     * direction. Only the records which are not sorted are copied and
+     * sorted.
+     */
+    static class SortedRecords
+    {
+        /**
+         * The records, sorted.
+         */
+        private final Collection<?> records;
+
+        /**
+         * Whether <tt>records</tt> are sorted from the newest.
+         */
+        private final boolean descending;
+
+        private SortedRecords(Collection<?> records, boolean descending)
+        {
+            this.records = records;
+            this.descending = descending;
+        }
+
+        /**
+         * Wraps the records returned by a service, sorting them if they are
+         * not sorted in either direction.
+         *
+         * @param records the records
+         * @return the sorted records
+         */
+        static SortedRecords of(Collection<?> records)
+        {
+            boolean ascending = true;
+            boolean descending = true;
+            Object previous = null;
+            for (Object record : records)
+            {
+                if (previous != null)
+                {
+                    int result = RECORDS_COMPARATOR.compare(previous, record);
+                    if (result > 0)
+                        ascending = false;
+                    else if (result < 0)
+                        descending = false;
+
+                    if (!ascending && !descending)
+                        break;
+                }
+                previous = record;
+            }
+
+            if (ascending)
+                return new SortedRecords(records, false);
+            if (descending)
+                return new SortedRecords(records, true);
+
+            List<Object> sorted = new ArrayList<Object>(records);
+            Collections.sort(sorted, RECORDS_COMPARATOR);
+            return new SortedRecords(sorted, false);
+        }
+
+        /**
+         * Returns the number of records.
+         *
+         * @return the number of records
+         */
+        int size()
+        {
+            return records.size();
+        }
+
+        /**
+         * Returns an iterator over the records.
+         *
+         * @param fromOldest <tt>true</tt> to go from the oldest record to
+         * the newest, <tt>false</tt> to go the other way
+         * @return the iterator
+         */
+        Iterator<?> iterator(boolean fromOldest)
+        {
+            if (fromOldest != descending)
+                return records.iterator();
+
+            if (records instanceof NavigableSet)
+                return ((NavigableSet<?>) records).descendingIterator();
+            if (records instanceof Deque)
+                return ((Deque<?>) records).descendingIterator();
+
+            List<?> list = (records instanceof List)
+                ? (List<?>) records
+                : new ArrayList<Object>(records);
+            final ListIterator<?> iterator = list.listIterator(list.size());
+            return new Iterator<Object>()
+            {
+                public boolean hasNext()
+                {
+                    return iterator.hasPrevious();
+                }
+
+                public Object next()
+                {
+                    return iterator.previous();
+                }
+            };
+        }
+    }
+
+    /**
+     * The position of a merge in the records of a service, going from the
+     * oldest or from the newest.
+     */
+    private static class Cursor
+    {
+        /**
+         * The remaining records of the service.
+         */
+        private final Iterator<?> records;
+
+        /**
+         * The index of the service, to keep the service order for the
+         * records with the same timestamp.
+         */
+        final int source;
+
+        /**
+         * The current record.
+         */
+        private Object record;
+
+        Cursor(Iterator<?> records, int source)
+        {
+            this.records = records;
+            this.source = source;
+            this.record = records.next();
+        }
+
+        /**
+         * Returns the current record.
+         *
+         * @return the current record
+         */
+        Object record()
+        {
+            return record;
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return <tt>false</tt> if there are no more records
+         */
+        boolean next()
+        {
+            if (!records.hasNext())
+                return false;
+            record = records.next();
+            return true;
+        }
+    }
+
     private class MessageProgressWrapper
         implements MessageHistorySearchProgressListener,
         CallHistorySearchProgressListener
@@ -0,0 +1,702 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A persistent summary of the message histories: the last message of every
+ * conversation, and its last sms, so that the recent messages are found
+ * without loading the newest history file of every conversation.
+ * <p>
+ * The summary is kept in memory and persisted as an append-only journal, one
+ * line per written message or removed conversation:
+ * <pre>
+ * + &lt;tab&gt; history id &lt;tab&gt; timestamp &lt;tab&gt; L|S|LS
+ *     (&lt;tab&gt; property name &lt;tab&gt; property value)*
+ * - &lt;tab&gt; history id
+ * .
+ * </pre>
+ * The journal is only loaded when the summary is read. Until then, the
+ * messages are just appended to it, provided it was already created. The
+ * first read builds the summary from the histories, and so does a read after
+ * a crash left the journal with an unterminated line. The last line is a dot
+ * when the service stopped cleanly, otherwise the messages written to the
+ * histories after the newest journaled one are summarized on load. Superseded
+ * lines are dropped when loading, if they make most of the journal.
+ */
+class ConversationSummaries
+{
+    /**
+     * The logger for this class.
+     */
+    private static final org.slf4j.Logger logger
+        = org.slf4j.LoggerFactory.getLogger(ConversationSummaries.class);
+
+    /**
+     * The name of the journal file in the user profile.
+     */
+    static final String SUMMARY_FILE = "msghistory_summary.idx";
+
+    /**
+     * The journal.
+     */
+    private final JournalFile journal;
+
+    /**
+     * The start of the ids of the summarized histories.
+     */
+    private final String[] rawid;
+
+    /**
+     * The structure of the message history records.
+     */
+    private final HistoryRecordStructure structure;
+
+    /**
+     * history id -> summary of the conversation.
+     */
+    private final Map<HistoryID, Summary> summaries
+        = new HashMap<HistoryID, Summary>();
+
+    /**
+     * Whether the summary was loaded in memory and covers the histories.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The timestamp of the newest journaled message.
+     */
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Whether the loaded journal ended with the line written when the
+     * service stopped.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates the summary. The journal is loaded on first use.
+     *
+     * @param file the journal file
+     * @param rawid the start of the ids of the summarized histories
+     * @param structure the structure of the message history records
+     */
+    ConversationSummaries(File file,
+                          String[] rawid,
+                          HistoryRecordStructure structure)
+    {
+        this.journal = new JournalFile(file);
+        this.rawid = rawid;
+        this.structure = structure;
+    }
+
+    /**
+     * Adds a message just written to a history, if the summary is
+     * maintained. The summary is maintained once it was built by a read.
+     *
+     * @param id the id of the history
+     * @param values the property values of the record, <tt>null</tt> for the
+     * missing ones
+     * @param timestamp the timestamp of the record
+     */
+    synchronized void addRecord(HistoryID id, String[] values, Date timestamp)
+    {
+        if (!isMaintained(id))
+            return;
+
+        HistoryRecord record = createRecord(
+            structure.getPropertyNames(), values, timestamp);
+        String flags = flags(summaries.get(id), record);
+        if (flags.length() == 0)
+            return;
+
+        if (loaded)
+            summarize(id, record, flags);
+        append(line(id, record, flags));
+    }
+
+    /**
+     * Reads the last records of a history again, when it was replaced.
+     *
+     * @param history the history
+     */
+    synchronized void update(History history)
+    {
+        HistoryID id = history.getID();
+        if (!isMaintained(id))
+            return;
+
+        StringBuilder lines = new StringBuilder("-\t")
+            .append(join(id)).append('\n');
+        summaries.remove(id);
+        read(history, lines);
+        append(lines.toString());
+    }
+
+    /**
+     * Removes the summary of a history, when the history is erased.
+     *
+     * @param id the id of the history
+     */
+    synchronized void remove(HistoryID id)
+    {
+        if (!isMaintained(id))
+            return;
+
+        summaries.remove(id);
+        append("-\t" + join(id) + "\n");
+    }
+
+    /**
+     * Removes the summary, when all the histories are erased.
+     */
+    synchronized void clear()
+    {
+        summaries.clear();
+        lastTimestamp = Long.MIN_VALUE;
+        loaded = false;
+        if (!journal.delete())
+            logger.warn("Could not delete " + journal.getFile());
+    }
+
+    /**
+     * Marks the journal as complete, when the service stops.
+     */
+    synchronized void close()
+    {
+        if (loaded || journal.exists())
+            append(".\n");
+    }
+
+    /**
+     * Returns the summaries of the histories.
+     *
+     * @param historyService the history service, to build the summary
+     * @return the summaries, newest message first
+     */
+    synchronized List<Summary> getSummaries(HistoryService historyService)
+    {
+        ensureLoaded(historyService);
+
+        List<Summary> result = new ArrayList<Summary>(summaries.values());
+        Collections.sort(result, new Comparator<Summary>()
+        {
+            @Override
+            public int compare(Summary s1, Summary s2)
+            {
+                return s2.lastRecord.getTimestamp().compareTo(
+                    s1.lastRecord.getTimestamp());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the summary of a history.
+     *
+     * @param historyService the history service, to build the summary
+     * @param id the id of the history
+     * @return the summary, <tt>null</tt> if the history has no message
+     */
+    synchronized Summary getSummary(HistoryService historyService,
+                                    HistoryID id)
+    {
+        ensureLoaded(historyService);
+        return summaries.get(id);
+    }
+
+    /**
+     * Loads the journal if not loaded yet, or builds it from the histories.
+     *
+     * @param historyService the history service
+     */
+    private void ensureLoaded(HistoryService historyService)
+    {
+        if (loaded)
+            return;
+
+        if (journal.exists() && load())
+        {
+            if (!closed)
+                catchUp(historyService);
+            loaded = true;
+            return;
+        }
+
+        summaries.clear();
+        StringBuilder lines = new StringBuilder();
+        for (HistoryID id : historyService.getExistingHistories(rawid))
+        {
+            try
+            {
+                read(historyService.createHistory(id, structure), lines);
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not read history", e);
+            }
+        }
+        write(lines.toString());
+        loaded = true;
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info(
+                "Summarized " + summaries.size() + " message histories");
+        }
+    }
+
+    /**
+     * Summarizes the messages written to the histories after the newest
+     * journaled one, which were not journaled if the application stopped
+     * right after writing them.
+     *
+     * @param historyService the history service
+     */
+    private void catchUp(HistoryService historyService)
+    {
+        Date start = new Date(Math.max(0, lastTimestamp + 1));
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        for (HistoryID id : historyService.getExistingHistories(rawid))
+        {
+            try
+            {
+                QueryResultSet<HistoryRecord> rs = historyService
+                    .createHistory(id, structure).getReader()
+                    .findByStartDate(start);
+                while (rs.hasNext())
+                {
+                    HistoryRecord record = rs.next();
+                    String flags = flags(summaries.get(id), record);
+                    if (flags.length() == 0)
+                        continue;
+
+                    summarize(id, record, flags);
+                    lines.append(line(id, record, flags));
+                    count++;
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not read history", e);
+            }
+        }
+
+        if (lines.length() > 0)
+            append(lines.toString());
+        if (logger.isInfoEnabled())
+        {
+            logger.info(
+                "Summarized " + count + " messages missing from the message"
+                    + " history summary");
+        }
+    }
+
+    /**
+     * Returns whether the summary of a history is maintained, i.e. the history
+     * is summarized and the summary was built.
+     *
+     * @param id the id of the history
+     */
+    private boolean isMaintained(HistoryID id)
+    {
+        String[] parts = id.getID();
+        if (parts.length < rawid.length)
+            return false;
+        for (int i = 0; i < rawid.length; i++)
+        {
+            if (!parts[i].equals(rawid[i]))
+                return false;
+        }
+        return loaded || journal.exists();
+    }
+
+    /**
+     * Summarizes the last records of a history.
+     *
+     * @param history the history
+     * @param lines the journal lines of the records
+     */
+    private void read(History history, StringBuilder lines)
+    {
+        HistoryReader reader = history.getReader();
+        HistoryID id = history.getID();
+
+        Iterator<HistoryRecord> last = reader.findLast(1);
+        if (last.hasNext())
+        {
+            HistoryRecord record = last.next();
+            String flags = flags(null, record);
+            summarize(id, record, flags);
+            lines.append(line(id, record, flags));
+
+            if (flags.indexOf('S') == -1)
+            {
+                Iterator<HistoryRecord> sms = reader.findLast(
+                    1,
+                    new String[]{MessageHistoryServiceImpl.MSG_SUBTYPE_SMS},
+                    MessageHistoryServiceImpl.STRUCTURE_NAMES[7],
+                    true);
+                if (sms.hasNext())
+                {
+                    record = sms.next();
+                    summarize(id, record, "S");
+                    lines.append(line(id, record, "S"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns which of the last message and the last sms of a conversation a
+     * record supersedes.
+     *
+     * @param summary the summary of the conversation, <tt>null</tt> if none
+     * @param record the record
+     * @return <tt>L</tt>, <tt>S</tt>, <tt>LS</tt> or an empty string
+     */
+    private static String flags(Summary summary, HistoryRecord record)
+    {
+        long timestamp = record.getTimestamp().getTime();
+        StringBuilder flags = new StringBuilder(2);
+
+        if (summary == null
+            || timestamp >= summary.lastRecord.getTimestamp().getTime())
+        {
+            flags.append('L');
+        }
+        if (isSms(record)
+            && (summary == null
+                || summary.lastSmsRecord == null
+                || timestamp
+                    >= summary.lastSmsRecord.getTimestamp().getTime()))
+        {
+            flags.append('S');
+        }
+        return flags.toString();
+    }
+
+    /**
+     * Adds a record to the in-memory summary, if newer than the summarized
+     * ones.
+     *
+     * @param id the id of the history
+     * @param record the record
+     * @param flags whether the record is the last message, <tt>L</tt>, the
+     * last sms, <tt>S</tt>, or both of the history when written
+     */
+    private void summarize(HistoryID id, HistoryRecord record, String flags)
+    {
+        Summary summary = summaries.get(id);
+        Date timestamp = record.getTimestamp();
+        lastTimestamp = Math.max(lastTimestamp, timestamp.getTime());
+
+        boolean last = flags.indexOf('L') != -1
+            && (summary == null
+                || !timestamp.before(summary.lastRecord.getTimestamp()));
+        boolean sms = flags.indexOf('S') != -1
+            && (summary == null
+                || summary.lastSmsRecord == null
+                || !timestamp.before(summary.lastSmsRecord.getTimestamp()));
+
+        // a journal line only sets the last sms after the last message
+        if (summary == null)
+        {
+            if (last)
+                summaries.put(id, new Summary(id, record, sms ? record : null));
+        }
+        else if (last || sms)
+        {
+            summaries.put(id, new Summary(
+                id,
+                last ? record : summary.lastRecord,
+                sms ? record : summary.lastSmsRecord));
+        }
+    }
+
+    private static boolean isSms(HistoryRecord record)
+    {
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(MessageHistoryServiceImpl.STRUCTURE_NAMES[7]))
+            {
+                return MessageHistoryServiceImpl.MSG_SUBTYPE_SMS.equals(
+                    record.getPropertyValues()[i]);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a record with the non <tt>null</tt> values only, like the
+     * records read from a history.
+     */
+    private static HistoryRecord createRecord(String[] names,
+                                              String[] values,
+                                              Date timestamp)
+    {
+        List<String> presentNames = new ArrayList<String>(names.length);
+        List<String> presentValues = new ArrayList<String>(names.length);
+        for (int i = 0; i < names.length && i < values.length; i++)
+        {
+            if (values[i] != null)
+            {
+                presentNames.add(names[i]);
+                presentValues.add(values[i]);
+            }
+        }
+        return new HistoryRecord(
+            presentNames.toArray(new String[presentNames.size()]),
+            presentValues.toArray(new String[presentValues.size()]),
+            timestamp);
+    }
+
+    /**
+     * Returns the journal line of a record.
+     */
+    private static String line(HistoryID id,
+                               HistoryRecord record,
+                               String flags)
+    {
+        StringBuilder line = new StringBuilder("+\t");
+        line.append(join(id))
+            .append('\t').append(record.getTimestamp().getTime())
+            .append('\t').append(flags);
+
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+        for (int i = 0; i < names.length; i++)
+        {
+            line.append('\t').append(JournalFile.escape(names[i]))
+                .append('\t').append(JournalFile.escape(values[i]));
+        }
+        return line.append('\n').toString();
+    }
+
+    /**
+     * Returns the history id as a journal field. The parts of the ids are
+     * folder names, which cannot contain a slash.
+     */
+    private static String join(HistoryID id)
+    {
+        StringBuilder result = new StringBuilder();
+        for (String part : id.getID())
+        {
+            if (result.length() > 0)
+                result.append('/');
+            result.append(part);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Appends lines to the journal.
+     */
+    private void append(String lines)
+    {
+        try
+        {
+            journal.append(lines);
+        }
+        catch (IOException e)
+        {
+            // the summary is built again on the next read
+            logger.error("Could not write the message history summary", e);
+            summaries.clear();
+            lastTimestamp = Long.MIN_VALUE;
+            loaded = false;
+            if (!journal.delete())
+                logger.warn("Could not delete " + journal.getFile());
+        }
+    }
+
+    /**
+     * Replaces the journal.
+     */
+    private void write(String lines)
+    {
+        try
+        {
+            journal.write(lines);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not write the message history summary", e);
+        }
+    }
+
+    /**
+     * Loads the journal in memory.
+     *
+     * @return <tt>true</tt> if the journal was loaded, <tt>false</tt> if it
+     * is incomplete and the summary has to be built again
+     */
+    private boolean load()
+    {
+        List<String> lines = new ArrayList<String>();
+        try
+        {
+            // a message written when crashing
+            if (!journal.read(lines))
+            {
+                logger.warn("Incomplete message history summary");
+                return false;
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read the message history summary", e);
+            return false;
+        }
+
+        closed = false;
+        for (String line : lines)
+        {
+            parse(line);
+            closed = line.equals(".");
+        }
+
+        // the journal has a line per message, the summary a conversation
+        if (lines.size() > 2 * summaries.size() + 100)
+            compact();
+        return true;
+    }
+
+    /**
+     * Loads a journal line in memory. Broken lines are skipped.
+     */
+    private void parse(String line)
+    {
+        String[] parts = line.split("\t", -1);
+        if (parts.length < 2)
+            return;
+
+        HistoryID id;
+        try
+        {
+            id = HistoryID.createFromID(parts[1].split("/"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            return;
+        }
+
+        if (parts[0].equals("-"))
+        {
+            summaries.remove(id);
+        }
+        else if (parts[0].equals("+") && parts.length % 2 == 0)
+        {
+            long timestamp;
+            try
+            {
+                timestamp = Long.parseLong(parts[2]);
+            }
+            catch (NumberFormatException e)
+            {
+                return;
+            }
+
+            int count = (parts.length - 4) / 2;
+            String[] names = new String[count];
+            String[] values = new String[count];
+            for (int i = 0; i < count; i++)
+            {
+                names[i] = JournalFile.unescape(parts[4 + 2 * i]);
+                values[i] = JournalFile.unescape(parts[5 + 2 * i]);
+            }
+            summarize(
+                id, new HistoryRecord(names, values, new Date(timestamp)),
+                parts[3]);
+        }
+    }
+
+    /**
+     * Rewrites the journal with the current summaries only.
+     */
+    private void compact()
+    {
+        StringBuilder lines = new StringBuilder();
+        for (Summary summary : summaries.values())
+        {
+            if (summary.lastRecord == summary.lastSmsRecord)
+            {
+                lines.append(line(summary.id, summary.lastRecord, "LS"));
+                continue;
+            }
+
+            lines.append(line(summary.id, summary.lastRecord, "L"));
+            if (summary.lastSmsRecord != null)
+                lines.append(line(summary.id, summary.lastSmsRecord, "S"));
+        }
+        write(lines.toString());
+    }
+
+    /**
+     * The summary of a conversation.
+     */
+    static class Summary
+    {
+        /**
+         * The id of the history of the conversation.
+         */
+        private final HistoryID id;
+
+        /**
+         * The last message of the conversation.
+         */
+        private final HistoryRecord lastRecord;
+
+        /**
+         * The last sms of the conversation, <tt>null</tt> if none.
+         */
+        private final HistoryRecord lastSmsRecord;
+
+        private Summary(HistoryID id,
+                        HistoryRecord lastRecord,
+                        HistoryRecord lastSmsRecord)
+        {
+            this.id = id;
+            this.lastRecord = lastRecord;
+            this.lastSmsRecord = lastSmsRecord;
+        }
+
+        HistoryID getID()
+        {
+            return id;
+        }
+
+        HistoryRecord getLastRecord()
+        {
+            return lastRecord;
+        }
+
+        HistoryRecord getLastSmsRecord()
+        {
+            return lastSmsRecord;
+        }
+    }
+}
@@ -19,10 +19,12 @@
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
 import net.java.sip.communicator.service.msghistory.*;
 
 import net.java.sip.communicator.util.osgi.*;
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.resources.*;
 import org.osgi.framework.*;
 
@@ -72,7 +74,8 @@ public MessageHistoryActivator()
             ResourceManagementService.class,
             MetaContactListService.class,
             ConfigurationService.class,
-            HistoryService.class
+            HistoryService.class,
+            FileAccessService.class
         );
     }
 
@@ -94,6 +97,12 @@ public void startWithServices(BundleContext bc) throws Exception
             new MessageHistoryServiceImpl();
 
         msgHistoryService.setHistoryService(historyService);
+        msgHistoryService.setConversationSummaries(new ConversationSummaries(
+            getService(FileAccessService.class).getPrivatePersistentFile(
+                ConversationSummaries.SUMMARY_FILE, FileCategory.PROFILE),
+            new String[]{"messages", "default"},
+            new HistoryRecordStructure(
+                MessageHistoryServiceImpl.STRUCTURE_NAMES)));
 
         msgHistoryService.start(bundleContext);
 
@@ -23,6 +23,7 @@
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import lombok.extern.slf4j.*;
 import net.java.sip.communicator.service.contactlist.*;
@@ -80,6 +81,19 @@
      */
     static final String MSG_SUBTYPE_SMS = "sms";
 
+    /**
+     * The property enabling the parallel query mode, in which the histories
+     * of the contacts of a meta contact are read at once instead of one after
+     * the other. Enabled by default.
+     */
+    static final String PNAME_PARALLEL_QUERIES
+        = "net.java.sip.communicator.impl.msghistory.PARALLEL_QUERIES";
+
+    /**
+     * The maximum number of histories read at once, by all the searches.
+     */
+    private static final int QUERY_THREADS = 4;
+
     /**
      * The BundleContext that we got from the OSGI bus.
      */
@@ -113,6 +127,18 @@
      */
     private ServiceRegistration messageSourceServiceReg = null;
 
+    /**
+     * Reads the histories of the contacts in the parallel query mode,
+     * <tt>null</tt> when they are read one after the other.
+     */
+    private volatile ThreadPoolExecutor queryExecutor = null;
+
+    /**
+     * The summary of the last messages of the conversations, <tt>null</tt> to
+     * read them from the histories.
+     */
+    private ConversationSummaries summaries = null;
+
     /**
      * Returns the history service.
      * @return the history service
@@ -132,33 +158,25 @@ public HistoryService getHistoryService()
      * @throws RuntimeException
      */
     public Collection<EventObject> findByStartDate( MetaContact contact,
-                                                    Date startDate)
+                                                    final Date startDate)
         throws RuntimeException
     {
-        HashSet<EventObject> result = new HashSet<EventObject>();
-
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
+        final HashSet<EventObject> result = new HashSet<EventObject>();
 
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        find(contact, true, new ReadersQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByStartDate(startDate);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
             {
-                result.add(
-                    convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByStartDate(startDate);
             }
-        }
 
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
+            @Override
+            void addResults(List<EventObject> events)
+            {
+                result.addAll(events);
+            }
+        });
 
         return result;
     }
@@ -180,33 +198,25 @@ private void removeHistorySearchProgressListeners(
      * @throws RuntimeException
      */
     public Collection<EventObject> findByEndDate(   MetaContact contact,
-                                                    Date endDate)
+                                                    final Date endDate)
         throws RuntimeException
     {
-        HashSet<EventObject> result = new HashSet<EventObject>();
+        final HashSet<EventObject> result = new HashSet<EventObject>();
 
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        find(contact, true, new ReadersQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByEndDate(endDate);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
             {
-                result
-                    .add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByEndDate(endDate);
             }
-        }
 
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
+            @Override
+            void addResults(List<EventObject> events)
+            {
+                result.addAll(events);
+            }
+        });
 
         return result;
     }
@@ -222,36 +232,26 @@ public Collection<EventObject> findByEndDate(   MetaContact contact,
      * @throws RuntimeException
      */
     public Collection<EventObject> findByPeriod(MetaContact contact,
-                                                Date startDate,
-                                                Date endDate)
+                                                final Date startDate,
+                                                final Date endDate)
         throws RuntimeException
     {
-        HashSet<EventObject> result = new HashSet<EventObject>();
-
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
+        final HashSet<EventObject> result = new HashSet<EventObject>();
 
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        find(contact, true, new ReadersQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-
-            Iterator<HistoryRecord> recs
-                = reader.findByPeriod(startDate, endDate);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
             {
-                result
-                    .add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByPeriod(startDate, endDate);
             }
-        }
 
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
+            @Override
+            void addResults(List<EventObject> events)
+            {
+                result.addAll(events);
+            }
+        });
 
         return result;
     }
@@ -317,66 +317,72 @@ public Collection<EventObject> findByKeywords(  MetaContact contact,
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findLast(MetaContact contact, int count)
+    public Collection<EventObject> findLast(MetaContact contact,
+                                          final int count)
         throws RuntimeException
     {
-        LinkedList<EventObject> result = new LinkedList<EventObject>();
-
-        Iterator<Contact> iter = contact.getContacts();
-        while (iter.hasNext())
+        LastRecordsQuery query = new LastRecordsQuery(count)
         {
-            Contact item = iter.next();
-
-            try
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
             {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
-                Iterator<HistoryRecord> recs = reader.findLast(count);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(recs.next(), item));
-
-                }
+                return reader.findLast(count);
             }
-            catch (IOException e)
-            {
-                logger.error("Could not read history", e);
-            }
-        }
+        };
+        find(contact, false, query);
 
-        Collections.sort(result, new MessageEventComparator<EventObject>());
-        int startIndex = result.size() - count;
-        if(startIndex < 0)
-            startIndex = 0;
-
-        return result.subList(startIndex, result.size());
+        return query.result;
     }
 
     /**
-     * Checks whether this historyID contains messages of certain type.
-     * @param historyID
-     * @param keywords
-     * @param field
-     * @param caseSensitive
-     * @return
+     * Returns the last message, or sms, of a history. The message is read
+     * from the summary of the last messages if maintained, from the history
+     * otherwise.
+     *
+     * @param historyID the id of the history
+     * @param isSMS whether to return the last sms
+     * @return the last message, <tt>null</tt> if none
      * @throws IOException
      */
-    private boolean hasMessages(HistoryID historyID,
-                                String[] keywords,
-                                String field,
-                                boolean caseSensitive)
+    private HistoryRecord findLastRecord(HistoryID historyID, boolean isSMS)
         throws IOException
     {
+        if (summaries != null)
+        {
+            ConversationSummaries.Summary summary
+                = summaries.getSummary(this.historyService, historyID);
+
+            if (summary == null)
+                return null;
+            return isSMS
+                ? summary.getLastSmsRecord() : summary.getLastRecord();
+        }
+
         if(!this.historyService.isHistoryCreated(historyID))
-            return false;
+            return null;
 
         History history = this.historyService.createHistory(historyID,
                 recordStructure);
 
-        return history.getReader().findLast(
-            1, keywords, field, caseSensitive).hasNext();
+        HistoryReader reader = history.getReader();
+
+        // find last by type
+        Iterator<HistoryRecord> recs;
+
+        if(isSMS)
+        {
+            recs = reader.findLast(
+                1,
+                new String[]{MessageHistoryServiceImpl.MSG_SUBTYPE_SMS},
+                MessageHistoryServiceImpl.STRUCTURE_NAMES[7],
+                true);
+        }
+        else
+        {
+            recs = reader.findLast(1);
+        }
+
+        return recs.hasNext() ? recs.next() : null;
     }
 
     /**
@@ -397,9 +403,22 @@ Collection<EventObject> findRecentMessagesPerContact(
     {
         HashSet<EventObject> result = new HashSet<EventObject>();
 
-        List<HistoryID> historyIDs=
-            this.historyService.getExistingHistories(
+        List<HistoryID> historyIDs;
+        if (summaries != null)
+        {
+            // the most recent conversations first
+            historyIDs = new ArrayList<HistoryID>();
+            for (ConversationSummaries.Summary summary
+                    : summaries.getSummaries(this.historyService))
+            {
+                historyIDs.add(summary.getID());
+            }
+        }
+        else
+        {
+            historyIDs = this.historyService.getExistingHistories(
                 new String[]{"messages", "default"});
+        }
 
         // make the filter provider string to reflect those that were
         // used when creating folders
@@ -442,44 +461,24 @@ Collection<EventObject> findRecentMessagesPerContact(
                 if(descriptor == null)
                     continue;
 
-                History history = this.historyService.createHistory(id,
-                        recordStructure);
+                HistoryRecord record = findLastRecord(id, isSMSEnabled);
 
-                HistoryReader reader = history.getReader();
-
-                // find last by type
-                Iterator<HistoryRecord> recs;
-
-                if(isSMSEnabled)
-                {
-                    recs = reader.findLast(
-                        1,
-                        new String[]{MessageHistoryServiceImpl.MSG_SUBTYPE_SMS},
-                        MessageHistoryServiceImpl.STRUCTURE_NAMES[7],
-                        true);
-                }
-                else
-                {
-                    recs = reader.findLast(1);
-                }
-
-                while (recs.hasNext())
+                if(record != null)
                 {
                     if(descriptor instanceof Contact)
                     {
                         EventObject o = convertHistoryRecordToMessageEvent(
-                            recs.next(), (Contact) descriptor);
+                            record, (Contact) descriptor);
 
                         result.add(o);
                     }
                     if(descriptor instanceof ChatRoom)
                     {
                         EventObject o = convertHistoryRecordToMessageEvent(
-                            recs.next(), (ChatRoom) descriptor);
+                            record, (ChatRoom) descriptor);
 
                         result.add(o);
                     }
-                    break;
                 }
             }
             catch(IOException ex)
@@ -539,11 +538,7 @@ private Object getContactOrRoomByID(String accountID,
         {
             //lets check if we have a contact and it has sms messages return it
             if(contact != null
-                && hasMessages(
-                        historyID,
-                        new String[]{MessageHistoryServiceImpl.MSG_SUBTYPE_SMS},
-                        MessageHistoryServiceImpl.STRUCTURE_NAMES[7],
-                        true))
+                && findLastRecord(historyID, true) != null)
             {
                 return contact;
             }
@@ -554,11 +549,7 @@ && hasMessages(
 
             // return the contact only if it has stored sms messages
             if(opSetSMS == null
-                || !hasMessages(
-                        historyID,
-                        new String[]{MessageHistoryServiceImpl.MSG_SUBTYPE_SMS},
-                        MessageHistoryServiceImpl.STRUCTURE_NAMES[7],
-                        true))
+                || findLastRecord(historyID, true) == null)
             {
                 return null;
             }
@@ -681,44 +672,21 @@ else if(object instanceof MessageReceivedEvent)
      * @throws RuntimeException
      */
     public Collection<EventObject> findLastMessagesBefore(  MetaContact contact,
-                                                            Date date,
-                                                            int count)
+                                                            final Date date,
+                                                            final int count)
         throws RuntimeException
     {
-        LinkedList<EventObject> result = new LinkedList<EventObject>();
-
-        Iterator<Contact> iter = contact.getContacts();
-        while (iter.hasNext())
+        LastRecordsQuery query = new LastRecordsQuery(count)
         {
-            Contact item = iter.next();
-
-            try
-            {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
-                Iterator<HistoryRecord> recs
-                    = reader.findLastRecordsBefore(date, count);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(recs.next(),
-                            item));
-
-                }
-            }
-            catch (IOException e)
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
             {
-                logger.error("Could not read history", e);
+                return reader.findLastRecordsBefore(date, count);
             }
-        }
-
-        Collections.sort(result, new MessageEventComparator<EventObject>());
-        int startIndex = result.size() - count;
-        if(startIndex < 0)
-            startIndex = 0;
+        };
+        find(contact, false, query);
 
-        return result.subList(startIndex, result.size());
+        return query.result;
     }
 
     /**
@@ -765,6 +733,12 @@ private History getHistory(Contact localContact, Contact remoteContact)
                 try
                 {
                     this.historyService.moveHistory(historyId_old, historyId);
+
+                    History history = this.historyService.createHistory(
+                        historyId, recordStructure);
+                    if (summaries != null)
+                        summaries.update(history);
+                    return history;
                 }
                 catch (IOException iOException)
                 {
@@ -1054,6 +1028,9 @@ public void start(BundleContext bc)
         configService = (ConfigurationService)
             bundleContext.getService(refConfig);
 
+        setParallelQueries(
+            configService.getBoolean(PNAME_PARALLEL_QUERIES, true));
+
         // Check if the message history is enabled in the configuration
         // service, and if not do not register the service.
         boolean isMessageHistoryEnabled = configService.getBoolean(
@@ -1129,6 +1106,42 @@ public void stop(BundleContext bc)
             configService.removePropertyChangeListener(msgHistoryPropListener);
 
         stopMessageHistoryService();
+        setParallelQueries(false);
+
+        if (summaries != null)
+            summaries.close();
+    }
+
+    /**
+     * Enables or disables the parallel query mode, in which the histories of
+     * the contacts of a meta contact are read at once.
+     *
+     * @param parallel <tt>true</tt> to read the histories at once
+     */
+    void setParallelQueries(boolean parallel)
+    {
+        if (parallel && queryExecutor == null)
+        {
+            queryExecutor = new ThreadPoolExecutor(
+                QUERY_THREADS, QUERY_THREADS,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "MessageHistoryQuery");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            queryExecutor.allowCoreThreadTimeOut(true);
+        }
+        else if (!parallel && queryExecutor != null)
+        {
+            queryExecutor.shutdown();
+            queryExecutor = null;
+        }
     }
 
     // //////////////////////////////////////////////////////////////////////////
@@ -1365,12 +1378,15 @@ private void writeMessage(History history, String direction,
             HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            String[] values = new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     message.getSubject(), sdf.format(messageTimestamp),
-                    isSmsSubtype ? MSG_SUBTYPE_SMS : null},
-                    new Date()); // this date is when the history record is written
+                    isSmsSubtype ? MSG_SUBTYPE_SMS : null};
+            // this date is when the history record is written
+            Date timestamp = new Date();
+            historyWriter.addRecord(values, timestamp);
+            addToSummary(history, values, timestamp);
         } catch (IOException e)
         {
             logger.error("Could not add message to history", e);
@@ -1399,13 +1415,16 @@ private void writeMessage(History history, String direction,
             HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            String[] values = new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     from.getContactAddress(),
                     sdf.format(messageTimestamp),
-                    null},
-                    new Date()); // this date is when the history record is written
+                    null};
+            // this date is when the history record is written
+            Date timestamp = new Date();
+            historyWriter.addRecord(values, timestamp);
+            addToSummary(history, values, timestamp);
         } catch (IOException e)
         {
             logger.error("Could not add message to history", e);
@@ -1430,19 +1449,36 @@ private void writeMessage(History history, String direction,
             HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            String[] values = new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     from.getAddress(),
                     sdf.format(messageTimestamp),
-                    null},
-                    new Date()); // this date is when the history record is written
+                    null};
+            // this date is when the history record is written
+            Date timestamp = new Date();
+            historyWriter.addRecord(values, timestamp);
+            addToSummary(history, values, timestamp);
         } catch (IOException e)
         {
             logger.error("Could not add message to history", e);
         }
     }
 
+    /**
+     * Adds a message just written to a history to the summary of the last
+     * messages, if maintained.
+     *
+     * @param history the history
+     * @param values the property values of the message
+     * @param timestamp the timestamp of the history record
+     */
+    private void addToSummary(History history, String[] values, Date timestamp)
+    {
+        if (summaries != null)
+            summaries.addRecord(history.getID(), values, timestamp);
+    }
+
     /**
      * Inserts message to the history. Allows to update the laready saved
      * history.
@@ -1479,16 +1515,17 @@ public void insertMessage(
             HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.insertRecord(new String[]{direction,
+            String[] values = new String[]{direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     message.getSubject(), sdf.format(messageTimestamp),
-                    isSmsSubtype ? MSG_SUBTYPE_SMS : null},
+                    isSmsSubtype ? MSG_SUBTYPE_SMS : null};
+            historyWriter.insertRecord(values,
                 messageTimestamp,
                 STRUCTURE_NAMES[6]);
                 // this date is when the history record to be written
                 // as we are inserting
-
+            addToSummary(history, values, messageTimestamp);
         } catch (IOException e)
         {
             logger.error("Could not add message to history", e);
@@ -1515,6 +1552,17 @@ public void setHistoryService(HistoryService historyService)
         }
     }
 
+    /**
+     * Sets the summary of the last messages of the conversations, used to
+     * find the recent messages without reading the histories.
+     *
+     * @param summaries the summary, <tt>null</tt> to read the histories
+     */
+    void setConversationSummaries(ConversationSummaries summaries)
+    {
+        this.summaries = summaries;
+    }
+
     /**
      * Remove a configuration service.
      *
@@ -1839,34 +1887,29 @@ private void removeHistorySearchProgressListeners(HistoryReader reader)
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByPeriod(MetaContact contact, Date startDate,
-                                   Date endDate, String[] keywords,
-                                   boolean caseSensitive)
+    public Collection<EventObject> findByPeriod(MetaContact contact,
+                                   final Date startDate, final Date endDate,
+                                   final String[] keywords,
+                                   final boolean caseSensitive)
         throws RuntimeException
     {
-        HashSet<EventObject> result = new HashSet<EventObject>();
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
+        final HashSet<EventObject> result = new HashSet<EventObject>();
 
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        find(contact, true, new ReadersQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByPeriod(startDate, endDate, keywords,
-                                                SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByPeriod(startDate, endDate, keywords,
+                    SEARCH_FIELD, caseSensitive);
             }
-        }
 
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
+            @Override
+            void addResults(List<EventObject> events)
+            {
+                result.addAll(events);
+            }
+        });
 
         return result;
     }
@@ -1881,33 +1924,28 @@ public Collection<EventObject> findByPeriod(MetaContact contact, Date startDate,
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByKeyword(MetaContact contact, String keyword,
-                                    boolean caseSensitive)
+    public Collection<EventObject> findByKeyword(MetaContact contact,
+                                    final String keyword,
+                                    final boolean caseSensitive)
         throws RuntimeException
     {
-        HashSet<EventObject> result = new HashSet<EventObject>();
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
+        final HashSet<EventObject> result = new HashSet<EventObject>();
 
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        find(contact, true, new ReadersQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.
-                findByKeyword(keyword, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByKeyword(
+                    keyword, SEARCH_FIELD, caseSensitive);
             }
-        }
 
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
+            @Override
+            void addResults(List<EventObject> events)
+            {
+                result.addAll(events);
+            }
+        });
 
         return result;
     }
@@ -1922,34 +1960,147 @@ public Collection<EventObject> findByKeyword(MetaContact contact, String keyword
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByKeywords(MetaContact contact, String[] keywords,
-                                     boolean caseSensitive)
+    public Collection<EventObject> findByKeywords(MetaContact contact,
+                                     final String[] keywords,
+                                     final boolean caseSensitive)
         throws RuntimeException
     {
-        HashSet<EventObject> result = new HashSet<EventObject>();
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
+        final HashSet<EventObject> result = new HashSet<EventObject>();
+
+        find(contact, true, new ReadersQuery()
+        {
+            @Override
+            Iterator<HistoryRecord> find(HistoryReader reader)
+            {
+                return reader.findByKeywords(
+                    keywords, SEARCH_FIELD, caseSensitive);
+            }
+
+            @Override
+            void addResults(List<EventObject> events)
+            {
+                result.addAll(events);
+            }
+        });
+
+        return result;
+    }
 
-        int recordsCount = countRecords(readers);
+    /**
+     * Reads the histories of the contacts in the given MetaContact with the
+     * given query. In the parallel query mode the histories are read at once
+     * and the query gets the results of each contact as soon as they are
+     * read, else the histories are read one after the other.
+     *
+     * @param contact MetaContact
+     * @param reportProgress whether to report the progress to the
+     * <tt>MessageHistorySearchProgressListener</tt>s
+     * @param query the query of a history
+     */
+    private void find(MetaContact contact,
+                      boolean reportProgress,
+                      final ReadersQuery query)
+    {
+        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
+        ThreadPoolExecutor executor = queryExecutor;
 
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        if (executor == null || readers.size() < 2)
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
+            int recordsCount = reportProgress ? countRecords(readers) : 0;
 
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.
-                findByKeywords(keywords, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            for (Map.Entry<Contact, HistoryReader> readerEntry
+                    : readers.entrySet())
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                HistoryReader reader = readerEntry.getValue();
+
+                // add the progress listeners
+                if (reportProgress)
+                    addHistorySearchProgressListeners(reader, recordsCount);
+                query.addResults(read(query, reader, readerEntry.getKey()));
             }
+
+            // now remove this listeners
+            if (reportProgress)
+                removeHistorySearchProgressListeners(readers);
+            return;
         }
 
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
+        ParallelSearchProgress progress
+            = reportProgress ? new ParallelSearchProgress(readers) : null;
+        CompletionService<List<EventObject>> completionService
+            = new ExecutorCompletionService<List<EventObject>>(executor);
+        List<Future<List<EventObject>>> futures
+            = new ArrayList<Future<List<EventObject>>>(readers.size());
+
+        for (Map.Entry<Contact, HistoryReader> readerEntry
+                : readers.entrySet())
+        {
+            final Contact item = readerEntry.getKey();
+            final HistoryReader reader = readerEntry.getValue();
+            final HistorySearchProgressListener listener
+                = (progress == null) ? null : progress.addReader(reader);
+
+            futures.add(completionService.submit(
+                new Callable<List<EventObject>>()
+                {
+                    public List<EventObject> call()
+                    {
+                        if (listener != null)
+                            reader.addSearchProgressListener(listener);
+                        try
+                        {
+                            return read(query, reader, item);
+                        }
+                        finally
+                        {
+                            if (listener != null)
+                                reader.removeSearchProgressListener(listener);
+                        }
+                    }
+                }));
+        }
+
+        try
+        {
+            for (int i = 0; i < futures.size(); i++)
+                query.addResults(completionService.take().get());
+        }
+        catch (InterruptedException e)
+        {
+            for (Future<List<EventObject>> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e)
+        {
+            for (Future<List<EventObject>> future : futures)
+                future.cancel(true);
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
+    /**
+     * Reads the history of a contact with the given query.
+     *
+     * @param query the query of a history
+     * @param reader the reader of the history
+     * @param contact the contact of the history
+     * @return the messages found
+     */
+    private List<EventObject> read(ReadersQuery query,
+                                   HistoryReader reader,
+                                   Contact contact)
+    {
+        List<EventObject> result = new ArrayList<EventObject>();
+        Iterator<HistoryRecord> recs = query.find(reader);
+        while (recs.hasNext())
+        {
+            result.add(
+                convertHistoryRecordToMessageEvent(recs.next(), contact));
+        }
         return result;
     }
 
@@ -2418,6 +2569,170 @@ public Collection<EventObject> findLastMessagesBefore(  ChatRoom room,
         return result.subList(startIndex, result.size());
     }
 
+    /**
+     * The query of the histories of the contacts of a meta contact.
+     */
+    private static abstract class ReadersQuery
+    {
+        /**
+         * Queries a history. Called by the thread reading the history.
+         *
+         * @param reader the reader of the history
+         * @return the records found
+         */
+        abstract Iterator<HistoryRecord> find(HistoryReader reader);
+
+        /**
+         * Adds the messages found in the history of a contact. Called by the
+         * searching thread, for one contact at a time.
+         *
+         * @param events the messages found in the history of a contact
+         */
+        abstract void addResults(List<EventObject> events);
+    }
+
+    /**
+     * A query of the last messages of the histories of the contacts of a meta
+     * contact. The messages of each contact are merged with the last ones
+     * found so far, keeping only <tt>count</tt> of them.
+     */
+    private static abstract class LastRecordsQuery
+        extends ReadersQuery
+    {
+        /**
+         * The number of messages to find.
+         */
+        private final int count;
+
+        /**
+         * The last messages found so far, sorted.
+         */
+        List<EventObject> result = new ArrayList<EventObject>();
+
+        LastRecordsQuery(int count)
+        {
+            this.count = count;
+        }
+
+        @Override
+        void addResults(List<EventObject> events)
+        {
+            Comparator<EventObject> comparator
+                = new MessageEventComparator<EventObject>();
+            Collections.sort(events, comparator);
+
+            // merge from the newest ones
+            int size = Math.min(result.size() + events.size(), count);
+            EventObject[] merged = new EventObject[Math.max(size, 0)];
+            int i = result.size() - 1;
+            int j = events.size() - 1;
+            for (int k = merged.length - 1; k >= 0; k--)
+            {
+                if (j < 0
+                        || (i >= 0
+                            && comparator.compare(
+                                    result.get(i), events.get(j)) > 0))
+                    merged[k] = result.get(i--);
+                else
+                    merged[k] = events.get(j--);
+            }
+            result = new ArrayList<EventObject>(Arrays.asList(merged));
+        }
+    }
+
+    /**
+     * Reports the progress of a search reading the histories of several
+     * contacts at once to the <tt>MessageHistorySearchProgressListener</tt>s.
+     * Each history contributes to the progress according to the number of its
+     * records, like with the <tt>SearchProgressWrapper</tt>.
+     */
+    private class ParallelSearchProgress
+    {
+        /**
+         * The number of records of each history.
+         */
+        private final Map<HistoryReader, Integer> counts
+            = new HashMap<HistoryReader, Integer>();
+
+        /**
+         * The number of records of all the histories.
+         */
+        private int allRecords = 0;
+
+        /**
+         * The progress of the search.
+         */
+        private double progress = 0;
+
+        ParallelSearchProgress(Map<Contact, HistoryReader> readers)
+        {
+            for (HistoryReader reader : readers.values())
+            {
+                int count = reader.countRecords();
+                counts.put(reader, count);
+                allRecords += count;
+            }
+        }
+
+        /**
+         * Returns the listener of the progress of the search in a history.
+         *
+         * @param reader the reader of the history
+         * @return the listener to add to the reader
+         */
+        HistorySearchProgressListener addReader(HistoryReader reader)
+        {
+            Integer count = counts.get(reader);
+            final double ratio = (allRecords == 0 || count == null)
+                ? 0
+                : (double) count / allRecords;
+
+            return new HistorySearchProgressListener()
+            {
+                private int lastProgress = 0;
+
+                public void progressChanged(ProgressEvent evt)
+                {
+                    int readerProgress = evt.getProgress();
+                    historyProgressChanged(
+                        evt, ratio * (readerProgress - lastProgress));
+                    lastProgress = readerProgress;
+                }
+            };
+        }
+
+        /**
+         * Adds the progress of a history to the progress of the search and
+         * notifies the listeners.
+         *
+         * @param evt the progress event of the history
+         * @param delta the progress of the search
+         */
+        private synchronized void historyProgressChanged(ProgressEvent evt,
+                                                         double delta)
+        {
+            progress += delta;
+
+            int searchProgress = Math.min(
+                (int) Math.round(progress),
+                MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+
+            List<MessageHistorySearchProgressListener> listeners;
+            synchronized(progressListeners)
+            {
+                listeners = new ArrayList<MessageHistorySearchProgressListener>(
+                    progressListeners.keySet());
+            }
+            for (MessageHistorySearchProgressListener l : listeners)
+            {
+                l.progressChanged(
+                    new net.java.sip.communicator.service.msghistory.event.
+                        ProgressEvent(MessageHistoryServiceImpl.this,
+                        evt, searchProgress));
+            }
+        }
+    }
+
     /**
      * A wrapper around HistorySearchProgressListener
      * that fires events for MessageHistorySearchProgressListener
@@ -2972,6 +3287,9 @@ public void eraseLocallyStoredHistory()
                     new String[] {  "messages" });
         historyService.purgeLocallyStoredHistory(historyId);
 
+        if (summaries != null)
+            summaries.clear();
+
         if(this.messageSourceService != null)
             this.messageSourceService.eraseLocallyStoredHistory();
     }
@@ -2992,6 +3310,9 @@ public void eraseLocallyStoredHistory(MetaContact contact)
 
             History history = this.getHistory(null, item);
             historyService.purgeLocallyStoredHistory(history.getID());
+
+            if (summaries != null)
+                summaries.remove(history.getID());
         }
 
         if(this.messageSourceService != null)
@@ -3010,6 +3331,9 @@ public void eraseLocallyStoredHistory(ChatRoom room)
         History history = this.getHistoryForMultiChat(room);
         historyService.purgeLocallyStoredHistory(history.getID());
 
+        if (summaries != null)
+            summaries.remove(history.getID());
+
         if(this.messageSourceService != null)
             this.messageSourceService.eraseLocallyStoredHistory(room);
     }
@@ -65,6 +65,19 @@
      */
     public static final String OPT_CLIST_PASSWORD = "OPT_CLIST_PASSWORD";
 
+    /**
+     * The name of the property under which the user may specify the URI of a
+     * resource list (RFC 4662) to subscribe to instead of subscribing to the
+     * presence of each contact.
+     */
+    public static final String RESOURCE_LIST_URI = "RESOURCE_LIST_URI";
+
+    /**
+     * The name of the property under which the user may specify the maximum
+     * number of presence SUBSCRIBE requests per second, 0 for no limit.
+     */
+    public static final String MAX_SUBSCRIBE_RATE = "MAX_SUBSCRIBE_RATE";
+
     /**
      * Default properties prefix used in jitsi-defaults.properties file
      * for SIP protocol.
@@ -0,0 +1,238 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * An append-only journal file of tab separated lines, used by the services
+ * keeping an index or a summary of their histories. The fields are escaped
+ * so that they contain neither tabs nor line breaks.
+ */
+public class JournalFile
+{
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Whether an unterminated last line was looked for since the journal was
+     * created.
+     */
+    private boolean checked = false;
+
+    /**
+     * Creates a journal.
+     *
+     * @param file the journal file
+     */
+    public JournalFile(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the journal file.
+     *
+     * @return the journal file
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns whether the journal file exists.
+     *
+     * @return <tt>true</tt> if the journal file exists
+     */
+    public boolean exists()
+    {
+        return file.exists();
+    }
+
+    /**
+     * Deletes the journal file.
+     *
+     * @return <tt>false</tt> if the journal file exists and could not be
+     * deleted
+     */
+    public boolean delete()
+    {
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Appends lines to the journal, creating it if it does not exist. The
+     * first time, an unterminated last line written when crashing is cut
+     * from the journal, so that the lines do not continue it.
+     *
+     * @param lines the lines, each ending with a new line
+     * @throws IOException if writing fails
+     */
+    public void append(String lines)
+        throws IOException
+    {
+        if (!checked)
+            cutUnterminatedLine();
+
+        try (Writer out = new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8))
+        {
+            out.write(lines);
+        }
+    }
+
+    /**
+     * Replaces the journal. The lines are written to a temporary file which
+     * then replaces the journal, so that the journal is never left half
+     * written.
+     *
+     * @param lines the lines, each ending with a new line
+     * @throws IOException if writing fails
+     */
+    public void write(String lines)
+        throws IOException
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8))
+        {
+            out.write(lines);
+        }
+        Files.move(
+            tmp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the complete lines of the journal. An unterminated last line,
+     * written when crashing, is not returned and is cut from the file, so
+     * that the next appended line does not continue it.
+     *
+     * @param lines the list to add the lines to, without their new line
+     * @return <tt>false</tt> if an unterminated last line was dropped
+     * @throws IOException if reading or truncating the journal fails
+     */
+    public boolean read(List<String> lines)
+        throws IOException
+    {
+        if (!file.exists())
+            return true;
+
+        boolean terminated = cutUnterminatedLine();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8)))
+        {
+            int c;
+            StringBuilder line = new StringBuilder();
+            while ((c = in.read()) != -1)
+            {
+                if (c == '\n')
+                {
+                    lines.add(line.toString());
+                    line.setLength(0);
+                }
+                else
+                {
+                    line.append((char) c);
+                }
+            }
+        }
+        return terminated;
+    }
+
+    /**
+     * Cuts an unterminated last line from the journal.
+     *
+     * @return <tt>false</tt> if an unterminated last line was cut
+     * @throws IOException if truncating the journal fails
+     */
+    private boolean cutUnterminatedLine()
+        throws IOException
+    {
+        checked = true;
+        if (!file.exists())
+            return true;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            long end = raf.length();
+            while (end > 0)
+            {
+                raf.seek(end - 1);
+                if (raf.read() == '\n')
+                    break;
+                end--;
+            }
+            if (end == raf.length())
+                return true;
+
+            raf.setLength(end);
+            return false;
+        }
+    }
+
+    /**
+     * Escapes a journal field.
+     *
+     * @param s the value of the field
+     * @return the value without tabs and line breaks
+     */
+    public static String escape(String s)
+    {
+        return s.replace("\\", "\\\\")
+            .replace("\t", "\\t")
+            .replace("\n", "\\n")
+            .replace("\r", "\\r");
+    }
+
+    /**
+     * Unescapes a journal field.
+     *
+     * @param s the escaped field
+     * @return the value of the field
+     */
+    public static String unescape(String s)
+    {
+        if (s.indexOf('\\') == -1)
+            return s;
+
+        StringBuilder result = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length())
+            {
+                c = s.charAt(++i);
+                if (c == 't')
+                    c = '\t';
+                else if (c == 'n')
+                    c = '\n';
+                else if (c == 'r')
+                    c = '\r';
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+}
@@ -17,10 +17,14 @@
  */
 package net.java.sip.communicator.util;
 
+import java.io.*;
 import java.lang.*;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+
+import javax.net.*;
 
 import net.java.sip.communicator.service.dns.*;
 import org.xbill.DNS.*;
@@ -109,6 +113,19 @@
      */
     private static final Random random = new Random();
 
+    /**
+     * The number of milliseconds that {@link #connectToFirst(SocketFactory,
+     * InetSocketAddress[], int)} waits for a connection attempt before
+     * starting the next one, as recommended by RFC 8305.
+     */
+    public static final long CONNECTION_ATTEMPT_DELAY = 250;
+
+    /**
+     * The executor of the lookups and connection attempts run in parallel
+     * when the default resolver has none.
+     */
+    private static ExecutorService lookupExecutor = null;
+
     static
     {
         String prefer6 = System.getProperty("java.net.preferIPv6Addresses");
@@ -912,61 +929,196 @@ public static InetSocketAddress[] getAandAAAARecords(String domain, int port)
             }
         }
 
-        List<InetSocketAddress> addresses = new LinkedList<>();
         boolean v6lookup = Boolean.getBoolean("java.net.preferIPv6Addresses");
+        int[] types
+            = v6lookup
+                ? new int[] { Type.AAAA, Type.A }
+                : new int[] { Type.A, Type.AAAA };
+        Lookup[] lookups = new Lookup[types.length];
 
-        for(int i = 0; i < 2; i++)
+        for(int i = 0; i < types.length; i++)
         {
-            Lookup lookup;
             try
             {
-                lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
+                lookups[i] = createLookup(domain, types[i]);
             }
             catch (TextParseException tpe)
             {
                 logger.error("Failed to parse domain <" + domain + ">", tpe);
                 throw new ParseException(tpe.getMessage(), 0);
             }
-            Record[] records;
+        }
+
+        // the second lookup does not wait for the first one to time out
+        FutureTask<Record[]> secondLookup = new FutureTask<>(lookups[1]::run);
+        getLookupExecutor().execute(secondLookup);
+
+        List<InetSocketAddress> addresses = new LinkedList<>();
+        try
+        {
+            addAddresses(addresses, domain, port, lookups[0].run());
+            addAddresses(addresses, domain, port, secondLookup.get());
+        }
+        catch(DnssecRuntimeException e)
+        {
+            throw new DnssecException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof DnssecRuntimeException)
+                throw new DnssecException(
+                    (DnssecRuntimeException) e.getCause());
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw (Error) e.getCause();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while resolving <" + domain + ">");
+        }
+
+        if(logger.isTraceEnabled())
+            logger.trace("A or AAAA addresses: " + addresses);
+        return addresses.toArray(new InetSocketAddress[0]);
+    }
+
+    /**
+     * Adds the addresses of A or AAAA records to a list.
+     *
+     * @param addresses the list to add the addresses to
+     * @param domain the domain name of the records
+     * @param port the port number of the added <tt>InetSocketAddress</tt>es
+     * @param records the records or <tt>null</tt> if the lookup found none
+     */
+    private static void addAddresses(List<InetSocketAddress> addresses,
+                                     String domain,
+                                     int port,
+                                     Record[] records)
+    {
+        if(records == null)
+            return;
+
+        for(Record r : records)
+        {
             try
             {
-                records = lookup.run();
+                addresses.add(
+                    new InetSocketAddress(
+                        // create a new InetAddress filled with the
+                        // domain name to avoid PTR queries
+                        InetAddress.getByAddress(
+                            domain,
+                            (r instanceof AAAARecord)
+                              ? ((AAAARecord)r).getAddress().getAddress()
+                              : ((ARecord)r).getAddress().getAddress()
+                        ),
+                        port
+                    )
+                );
             }
-            catch(DnssecRuntimeException e)
+            catch (UnknownHostException e)
             {
-                throw new DnssecException(e);
+                logger.error("Invalid record returned from DNS", e);
             }
-            if(records != null)
+        }
+    }
+
+    /**
+     * Returns the executor to run lookups and connection attempts in
+     * parallel with: the one of the default resolver if it has one, so that
+     * they share its threads.
+     *
+     * @return the executor
+     */
+    private static synchronized Executor getLookupExecutor()
+    {
+        Resolver resolver = Lookup.getDefaultResolver();
+        if (resolver instanceof CustomResolver)
+        {
+            Executor executor = ((CustomResolver) resolver).getQueryExecutor();
+            if (executor != null)
+                return executor;
+        }
+
+        if (lookupExecutor == null)
+        {
+            lookupExecutor = Executors.newCachedThreadPool(r ->
             {
-                for(Record r : records)
-                {
-                    try
-                    {
-                        addresses.add(
-                            new InetSocketAddress(
-                                // create a new InetAddress filled with the
-                                // domain name to avoid PTR queries
-                                InetAddress.getByAddress(
-                                    domain,
-                                    v6lookup
-                                      ? ((AAAARecord)r).getAddress().getAddress()
-                                      : ((ARecord)r).getAddress().getAddress()
-                                ),
-                                port
-                            )
-                        );
-                    }
-                    catch (UnknownHostException e)
-                    {
-                        logger.error("Invalid record returned from DNS", e);
-                    }
-                }
-            }
-            v6lookup = !v6lookup;
+                Thread thread = new Thread(r, "NetworkUtils lookup");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        if(logger.isTraceEnabled())
-            logger.trace("A or AAAA addresses: " + addresses);
-        return addresses.toArray(new InetSocketAddress[0]);
+        return lookupExecutor;
+    }
+
+    /**
+     * Orders addresses so that IPv4 and IPv6 addresses alternate, starting
+     * with the family of the first address, as recommended by RFC 8305.
+     * The order of the addresses of each family is kept.
+     *
+     * @param addresses the addresses, in order of preference
+     * @return a new array with the addresses in the order they should be
+     * tried in
+     */
+    public static InetSocketAddress[] interleaveAddressFamilies(
+        InetSocketAddress[] addresses)
+    {
+        if (addresses.length == 0)
+            return new InetSocketAddress[0];
+
+        boolean firstIsV6 = addresses[0].getAddress() instanceof Inet6Address;
+        List<InetSocketAddress> first = new ArrayList<>(addresses.length);
+        List<InetSocketAddress> second = new ArrayList<>(addresses.length);
+
+        for (InetSocketAddress address : addresses)
+        {
+            boolean isV6 = address.getAddress() instanceof Inet6Address;
+            if (isV6 == firstIsV6)
+                first.add(address);
+            else
+                second.add(address);
+        }
+
+        InetSocketAddress[] result = new InetSocketAddress[addresses.length];
+        for (int i = 0, f = 0, s = 0; i < result.length; i++)
+        {
+            if ((i % 2 == 0 || s == second.size()) && f < first.size())
+                result[i] = first.get(f++);
+            else
+                result[i] = second.get(s++);
+        }
+        return result;
+    }
+
+    /**
+     * Connects to the first of the given addresses that accepts the
+     * connection, racing the attempts as recommended by RFC 8305: the
+     * address families are interleaved and each attempt is given
+     * {@link #CONNECTION_ATTEMPT_DELAY} milliseconds before the next one is
+     * started, or less if it fails. The sockets of the attempts that lose
+     * the race are closed.
+     *
+     * @param socketFactory the factory of the sockets to connect
+     * @param addresses the addresses, in order of preference, for example as
+     * returned by {@link #getAandAAAARecords(String, int)}
+     * @param timeout the timeout of each connection attempt in milliseconds,
+     * <tt>0</tt> for none
+     * @return the first connected socket
+     * @throws IOException if no connection could be established, with the
+     * failures of the other attempts as suppressed exceptions
+     */
+    public static Socket connectToFirst(SocketFactory socketFactory,
+                                        InetSocketAddress[] addresses,
+                                        int timeout)
+        throws IOException
+    {
+        if (addresses.length == 0)
+            throw new IOException("No address to connect to");
+
+        return new ConnectionRace(socketFactory, timeout)
+            .run(interleaveAddressFamilies(addresses));
     }
 
     /**
@@ -1430,4 +1582,170 @@ public static void clearDefaultDNSCache()
         Cache defaultCache = Lookup.getDefaultCache(DClass.IN);
         defaultCache.clearCache();
     }
+
+    /**
+     * The connection attempts of a {@link #connectToFirst(SocketFactory,
+     * InetSocketAddress[], int)} call.
+     */
+    private static class ConnectionRace
+    {
+        private final SocketFactory socketFactory;
+
+        private final int timeout;
+
+        /**
+         * The connected sockets and the failures of the attempts, in the order
+         * they ended.
+         */
+        private final BlockingQueue<Object> results
+            = new LinkedBlockingQueue<>();
+
+        /**
+         * The sockets of the attempts, to close once the race is over.
+         */
+        private final List<Socket> sockets = new ArrayList<>();
+
+        /**
+         * Whether the race is over. Attempts starting after that do not
+         * connect.
+         */
+        private boolean over = false;
+
+        ConnectionRace(SocketFactory socketFactory, int timeout)
+        {
+            this.socketFactory = socketFactory;
+            this.timeout = timeout;
+        }
+
+        /**
+         * Runs the race.
+         *
+         * @param addresses the addresses in the order to try them in
+         * @return the first connected socket
+         * @throws IOException if every attempt failed
+         */
+        Socket run(InetSocketAddress[] addresses)
+            throws IOException
+        {
+            Executor executor = getLookupExecutor();
+            Socket winner = null;
+            IOException failure = null;
+            int started = 0;
+            int ended = 0;
+
+            try
+            {
+                while (winner == null && ended < addresses.length)
+                {
+                    if (started < addresses.length)
+                    {
+                        InetSocketAddress address = addresses[started++];
+                        executor.execute(() -> attempt(address));
+                    }
+
+                    Object result
+                        = (started < addresses.length)
+                            ? results.poll(
+                                CONNECTION_ATTEMPT_DELAY,
+                                TimeUnit.MILLISECONDS)
+                            : results.take();
+
+                    if (result == null)
+                        continue;
+
+                    ended++;
+                    if (result instanceof Socket)
+                    {
+                        winner = (Socket) result;
+                    }
+                    else if (failure == null)
+                    {
+                        failure = (IOException) result;
+                    }
+                    else
+                    {
+                        failure.addSuppressed((IOException) result);
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                    "Interrupted while connecting to "
+                        + Arrays.toString(addresses));
+            }
+            finally
+            {
+                synchronized (sockets)
+                {
+                    over = true;
+                    for (Socket socket : sockets)
+                    {
+                        if (socket != winner)
+                            closeQuietly(socket);
+                    }
+                }
+            }
+
+            if (winner == null)
+                throw failure;
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Connected to " + winner.getRemoteSocketAddress()
+                    + " after " + started + " attempts");
+            }
+            return winner;
+        }
+
+        /**
+         * Connects a socket to an address and reports the result.
+         *
+         * @param address the address to connect to
+         */
+        private void attempt(InetSocketAddress address)
+        {
+            Socket socket = null;
+            try
+            {
+                socket = socketFactory.createSocket();
+                synchronized (sockets)
+                {
+                    if (over)
+                    {
+                        closeQuietly(socket);
+                        return;
+                    }
+                    sockets.add(socket);
+                }
+
+                socket.connect(address, timeout);
+                results.add(socket);
+            }
+            catch (IOException e)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Failed to connect to " + address, e);
+                results.add(e);
+            }
+            catch (RuntimeException e)
+            {
+                results.add(new IOException(
+                    "Failed to connect to " + address, e));
+            }
+        }
+
+        private static void closeQuietly(Socket socket)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                // nothing we could do
+            }
+        }
+    }
 }
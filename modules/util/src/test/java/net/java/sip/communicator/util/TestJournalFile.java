@@ -0,0 +1,117 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the append-only journal files of the history indexes.
+ */
+public class TestJournalFile
+{
+    private JournalFile journal;
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        File file = File.createTempFile("history", ".idx");
+        file.delete();
+        journal = new JournalFile(file);
+    }
+
+    @After
+    public void tearDown()
+    {
+        journal.delete();
+    }
+
+    /**
+     * Tests that escaped fields are read back unchanged.
+     */
+    @Test
+    public void testEscape()
+    {
+        String value = "a\tb\nc\rd\\t e\\";
+        String escaped = JournalFile.escape(value);
+
+        assertEquals(-1, escaped.indexOf('\t'));
+        assertEquals(-1, escaped.indexOf('\n'));
+        assertEquals(-1, escaped.indexOf('\r'));
+        assertEquals(value, JournalFile.unescape(escaped));
+    }
+
+    /**
+     * Tests that an unterminated last line is dropped from the journal.
+     */
+    @Test
+    public void testReadUnterminated()
+        throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        assertTrue(journal.read(lines));
+        assertTrue(lines.isEmpty());
+
+        journal.append("1\ta\n2\tb\n3\tc");
+        assertFalse(journal.read(lines));
+        assertEquals(Arrays.asList("1\ta", "2\tb"), lines);
+
+        journal.append("4\td\n");
+        lines.clear();
+        assertTrue(journal.read(lines));
+        assertEquals(Arrays.asList("1\ta", "2\tb", "4\td"), lines);
+    }
+
+    /**
+     * Tests that the lines appended to a journal left with an unterminated
+     * last line, e.g. by a previous run, do not continue that line.
+     */
+    @Test
+    public void testAppendAfterUnterminated()
+        throws IOException
+    {
+        journal.append("1\ta\n2\tb\n3\tc");
+
+        JournalFile reopened = new JournalFile(journal.getFile());
+        reopened.append("4\td\n");
+
+        List<String> lines = new ArrayList<String>();
+        assertTrue(reopened.read(lines));
+        assertEquals(Arrays.asList("1\ta", "2\tb", "4\td"), lines);
+    }
+
+    /**
+     * Tests that writing replaces the journal.
+     */
+    @Test
+    public void testWrite()
+        throws IOException
+    {
+        journal.append("1\ta\n");
+        journal.write("2\tb\n");
+
+        List<String> lines = new ArrayList<String>();
+        assertTrue(journal.read(lines));
+        assertEquals(Arrays.asList("2\tb"), lines);
+    }
+}
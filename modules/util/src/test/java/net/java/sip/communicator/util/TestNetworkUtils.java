@@ -0,0 +1,141 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+
+import javax.net.*;
+
+import org.junit.*;
+
+/**
+ * Tests the connection racing methods of the NetworkUtils class.
+ */
+public class TestNetworkUtils
+{
+    /**
+     * A server socket on the loopback interface accepting connections.
+     */
+    private ServerSocket server;
+
+    /**
+     * An address of the loopback interface refusing connections.
+     */
+    private InetSocketAddress refusingAddress;
+
+    @Before
+    public void setUp()
+        throws IOException
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        server = new ServerSocket(0, 50, loopback);
+
+        ServerSocket closed = new ServerSocket(0, 50, loopback);
+        refusingAddress
+            = new InetSocketAddress(loopback, closed.getLocalPort());
+        closed.close();
+    }
+
+    @After
+    public void tearDown()
+        throws IOException
+    {
+        server.close();
+    }
+
+    /**
+     * Makes sure that the address families alternate, starting with the
+     * family of the first address, and that the order within a family is
+     * kept.
+     */
+    @Test
+    public void testInterleaveAddressFamilies()
+        throws UnknownHostException
+    {
+        InetSocketAddress v6a
+            = new InetSocketAddress(InetAddress.getByName("::1"), 5060);
+        InetSocketAddress v6b
+            = new InetSocketAddress(InetAddress.getByName("::2"), 5060);
+        InetSocketAddress v6c
+            = new InetSocketAddress(InetAddress.getByName("::3"), 5060);
+        InetSocketAddress v4a
+            = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 5060);
+
+        assertArrayEquals(
+            new InetSocketAddress[] { v6a, v4a, v6b, v6c },
+            NetworkUtils.interleaveAddressFamilies(
+                new InetSocketAddress[] { v6a, v6b, v6c, v4a }));
+        assertArrayEquals(
+            new InetSocketAddress[] { v4a, v6a, v6b },
+            NetworkUtils.interleaveAddressFamilies(
+                new InetSocketAddress[] { v4a, v6a, v6b }));
+    }
+
+    /**
+     * Makes sure that a refused connection attempt does not prevent the next
+     * address from being connected to.
+     */
+    @Test
+    public void testConnectToFirstSkipsRefusingAddress()
+        throws IOException
+    {
+        InetSocketAddress accepting
+            = new InetSocketAddress(
+                server.getInetAddress(), server.getLocalPort());
+
+        Socket socket
+            = NetworkUtils.connectToFirst(
+                SocketFactory.getDefault(),
+                new InetSocketAddress[] { refusingAddress, accepting },
+                5000);
+        try
+        {
+            assertTrue(socket.isConnected());
+            assertEquals(accepting, socket.getRemoteSocketAddress());
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Makes sure that the failures of all attempts are reported when no
+     * address accepts the connection.
+     */
+    @Test
+    public void testConnectToFirstFailsWhenAllAttemptsFail()
+    {
+        try
+        {
+            NetworkUtils.connectToFirst(
+                SocketFactory.getDefault(),
+                new InetSocketAddress[] { refusingAddress, refusingAddress },
+                5000);
+            fail("Connected to a refusing address");
+        }
+        catch (IOException e)
+        {
+            assertEquals(1, e.getSuppressed().length);
+        }
+    }
+}